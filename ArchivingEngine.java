@@ -0,0 +1,92 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+// Wraps an engine with the download archive from DownloadOptions: URLs that
+// are already archived finish without spawning anything, and the IDs of
+// successful downloads are recorded afterwards.
+public class ArchivingEngine implements DownloadEngine {
+    private final DownloadEngine engine;
+
+    public ArchivingEngine(DownloadEngine engine) {
+        this.engine = engine;
+    }
+
+    @Override
+    public int download(String url, String outputPath, DownloadOptions options,
+                        ProgressListener listener, Consumer<String> log) throws IOException, InterruptedException {
+        if (options.getArchiveFile() == null) {
+            return engine.download(url, outputPath, options, listener, log);
+        }
+        if (skipIfArchived(url, options, listener, log)) {
+            return 0;
+        }
+
+        List<String> seen = new ArrayList<>();
+        AtomicBoolean deferred = new AtomicBoolean();
+        int exitCode = engine.download(url, outputPath, options, new ForwardingListener(listener) {
+            @Override
+            public void onMediaId(String extractor, String id) {
+                synchronized (seen) {
+                    seen.add(DownloadArchive.key(extractor, id));
+                }
+                super.onMediaId(extractor, id);
+            }
+
+            // A download only counts once its post-processing went through
+            @Override
+            public boolean deferPostProcessing(PostProcessor.Task task) {
+                if (!super.deferPostProcessing(task)) {
+                    return false;
+                }
+                deferred.set(true);
+                task.then(() -> record(url, options, keys(seen)));
+                return true;
+            }
+        }, log);
+
+        if (exitCode == 0 && !deferred.get()) {
+            record(url, options, keys(seen));
+        }
+        return exitCode;
+    }
+
+    private static List<String> keys(List<String> seen) {
+        synchronized (seen) {
+            return new ArrayList<>(seen);
+        }
+    }
+
+    // True if the URL's ID is already archived, in which case it is reported as done
+    static boolean skipIfArchived(String url, DownloadOptions options, ProgressListener listener,
+                                  Consumer<String> log) throws IOException {
+        String urlKey = DownloadArchive.keyForUrl(url);
+        if (options.getArchiveFile() == null || urlKey == null
+                || !DownloadArchive.forFile(options.getArchiveFile()).contains(urlKey)) {
+            return false;
+        }
+        listener.onPhase(ProgressParser.Phase.ALREADY_DOWNLOADED);
+        log.accept("[archive] " + urlKey + " has already been recorded in the archive");
+        return true;
+    }
+
+    // Records the IDs seen during a successful download, or the URL's own ID
+    static void record(String url, DownloadOptions options, Collection<String> seen) throws IOException, InterruptedException {
+        if (options.getArchiveFile() == null) {
+            return;
+        }
+        DownloadArchive archive = DownloadArchive.forFile(options.getArchiveFile());
+        String urlKey = DownloadArchive.keyForUrl(url);
+        if (seen.isEmpty() && urlKey != null) {
+            archive.addKey(urlKey);
+        }
+        for (String key : seen) {
+            archive.addKey(key);
+        }
+        // Jobs finishing together share one fsync
+        archive.sync();
+    }
+}
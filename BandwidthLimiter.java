@@ -0,0 +1,136 @@
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+// Caps the combined download rate of all running jobs. Every job holds a
+// Share of the limit proportional to its weight (DownloadOptions.weight);
+// shares are recomputed whenever a job starts or stops, a weight changes or
+// the limit itself is changed. The native engine pulls bytes through its
+// share's token bucket, so it follows a new rate immediately; yt-dlp and
+// aria2c get the rate on their command line.
+public class BandwidthLimiter {
+    private static final BandwidthLimiter SHARED = new BandwidthLimiter(Long.getLong("downloader.bandwidthLimit", 0));
+    // Lets a connection send a short burst without waiting for every buffer
+    private static final long MIN_BURST = 64 * 1024;
+
+    private final Set<Share> shares = new LinkedHashSet<>();
+    private long limit;
+
+    // Bytes per second for all jobs together; 0 is unlimited
+    public BandwidthLimiter(long limit) {
+        setLimit(limit);
+    }
+
+    public static BandwidthLimiter shared() {
+        return SHARED;
+    }
+
+    public synchronized long getLimit() {
+        return limit;
+    }
+
+    public synchronized void setLimit(long bytesPerSecond) {
+        if (bytesPerSecond < 0) {
+            throw new IllegalArgumentException("limit must not be negative");
+        }
+        limit = bytesPerSecond;
+        rebalance();
+    }
+
+    public synchronized int getActiveShares() {
+        return shares.size();
+    }
+
+    // Registers a running download; close the share when it stops
+    public synchronized Share open(DownloadOptions options) {
+        Share share = new Share(options);
+        shares.add(share);
+        rebalance();
+        return share;
+    }
+
+    // Re-reads the weights of all open shares
+    public synchronized void rebalance() {
+        double totalWeight = 0;
+        for (Share share : shares) {
+            totalWeight += share.options.getWeight();
+        }
+        for (Share share : shares) {
+            share.setRate(limit == 0 || totalWeight <= 0 ? 0
+                : Math.max(1, Math.round(limit * share.options.getWeight() / totalWeight)));
+        }
+    }
+
+    private synchronized void close(Share share) {
+        if (shares.remove(share)) {
+            rebalance();
+        }
+    }
+
+    public class Share implements AutoCloseable {
+        private final DownloadOptions options;
+        private long rate; // bytes per second, 0 when unlimited
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+
+        private Share(DownloadOptions options) {
+            this.options = options;
+        }
+
+        public synchronized long getRate() {
+            return rate;
+        }
+
+        // True if a process started at rate is far enough off to be worth restarting
+        public synchronized boolean differsFrom(long spawnedRate) {
+            if (rate == spawnedRate) {
+                return false;
+            }
+            if (rate == 0 || spawnedRate == 0) {
+                return true;
+            }
+            double ratio = (double) rate / spawnedRate;
+            return ratio < 0.67 || ratio > 1.5;
+        }
+
+        // Blocks until count bytes fit within the share's current rate
+        public void acquire(int count) throws InterruptedException {
+            long waitNanos;
+            synchronized (this) {
+                if (rate == 0) {
+                    return;
+                }
+                refill();
+                tokens -= count;
+                if (tokens >= 0) {
+                    return;
+                }
+                waitNanos = (long) (-tokens * 1_000_000_000L / rate);
+            }
+            // Tokens are already spent, so sleeping out the debt keeps the average
+            Thread.sleep(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+        }
+
+        @Override
+        public void close() {
+            BandwidthLimiter.this.close(this);
+        }
+
+        private synchronized void setRate(long newRate) {
+            refill();
+            rate = newRate;
+            tokens = Math.min(tokens, burst());
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            if (rate > 0) {
+                tokens = Math.min(burst(), tokens + (now - lastRefill) * rate / 1e9);
+            }
+            lastRefill = now;
+        }
+
+        private double burst() {
+            return Math.max(MIN_BURST, rate / 4.0);
+        }
+    }
+}
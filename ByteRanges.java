@@ -0,0 +1,70 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Set of inclusive byte ranges, kept merged
+public class ByteRanges {
+    private final TreeMap<Long, Long> ranges = new TreeMap<>();
+
+    public synchronized void add(long start, long end) {
+        if (end < start) {
+            return;
+        }
+        Map.Entry<Long, Long> before = ranges.floorEntry(start);
+        if (before != null && before.getValue() >= start - 1) {
+            start = before.getKey();
+            end = Math.max(end, before.getValue());
+        }
+        Map.Entry<Long, Long> next = ranges.ceilingEntry(start);
+        while (next != null && next.getKey() <= end + 1) {
+            end = Math.max(end, next.getValue());
+            ranges.remove(next.getKey());
+            next = ranges.ceilingEntry(start);
+        }
+        ranges.put(start, end);
+    }
+
+    public synchronized void clear() {
+        ranges.clear();
+    }
+
+    public synchronized boolean isEmpty() {
+        return ranges.isEmpty();
+    }
+
+    public synchronized long coveredBytes() {
+        long total = 0;
+        for (Map.Entry<Long, Long> e : ranges.entrySet()) {
+            total += e.getValue() - e.getKey() + 1;
+        }
+        return total;
+    }
+
+    // Gaps between 0 and length - 1, as {start, end} pairs
+    public synchronized List<long[]> missing(long length) {
+        List<long[]> gaps = new ArrayList<>();
+        long next = 0;
+        for (Map.Entry<Long, Long> e : ranges.entrySet()) {
+            if (e.getKey() >= length) {
+                break;
+            }
+            if (e.getKey() > next) {
+                gaps.add(new long[] {next, e.getKey() - 1});
+            }
+            next = Math.max(next, e.getValue() + 1);
+        }
+        if (next < length) {
+            gaps.add(new long[] {next, length - 1});
+        }
+        return gaps;
+    }
+
+    public synchronized List<long[]> toList() {
+        List<long[]> list = new ArrayList<>(ranges.size());
+        for (Map.Entry<Long, Long> e : ranges.entrySet()) {
+            list.add(new long[] {e.getKey(), e.getValue()});
+        }
+        return list;
+    }
+}
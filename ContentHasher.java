@@ -0,0 +1,138 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Content hash of a file computed while it is written. The file is hashed in
+// 1 MiB blocks and the digest is the SHA-256 of the block digests, not of
+// the file itself, so connections writing different parts of a file each
+// hash their own blocks as the bytes go by. Only blocks nobody saw whole,
+// like those written before a pause or cut by an unaligned range, are read
+// back in finish().
+public class ContentHasher {
+    static final int BLOCK_SIZE = 1 << 20;
+
+    // Digest of each block by index; the last block may be shorter
+    private final Map<Long, Leaf> leaves = new ConcurrentHashMap<>();
+
+    // Hashes what is written sequentially from position on; one per connection
+    public Writer writer(long position) {
+        return new Writer(position);
+    }
+
+    // The digest of the first size bytes of file, reading the blocks no writer hashed
+    public String finish(Path file, long size) throws IOException {
+        MessageDigest root = newDigest();
+        long blocks = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        ByteBuffer buffer = null;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            for (long block = 0; block < blocks; block++) {
+                int length = (int) Math.min(BLOCK_SIZE, size - block * BLOCK_SIZE);
+                Leaf leaf = leaves.get(block);
+                if (leaf == null || leaf.length != length) {
+                    if (buffer == null) {
+                        buffer = ByteBuffer.allocate(BLOCK_SIZE);
+                    }
+                    leaf = readBlock(channel, block, length, buffer);
+                }
+                root.update(leaf.digest);
+            }
+        }
+        return HexFormat.of().formatHex(root.digest());
+    }
+
+    // A second pass over a file nothing hashed while writing, e.g. yt-dlp's or ffmpeg's output
+    public static String hash(Path file, long size) throws IOException {
+        return new ContentHasher().finish(file, size);
+    }
+
+    private static Leaf readBlock(FileChannel channel, long block, int length, ByteBuffer buffer) throws IOException {
+        buffer.clear().limit(length);
+        long position = block * BLOCK_SIZE;
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("File ended before byte " + (position + length));
+            }
+        }
+        buffer.flip();
+        long startedAt = System.nanoTime();
+        MessageDigest digest = newDigest();
+        digest.update(buffer);
+        Leaf leaf = new Leaf(digest.digest(), length);
+        Metrics.HASH_NANOS.add(System.nanoTime() - startedAt);
+        Metrics.HASH_READ_BYTES.add(length);
+        return leaf;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Every JVM has SHA-256", e);
+        }
+    }
+
+    private static final class Leaf {
+        final byte[] digest;
+        final int length;
+
+        Leaf(byte[] digest, int length) {
+            this.digest = digest;
+            this.length = length;
+        }
+    }
+
+    public final class Writer {
+        private final MessageDigest digest = newDigest();
+        private long block; // block being hashed
+        private int filled; // bytes of it hashed so far
+        private long skip;  // bytes until the first block boundary; their block is read back
+
+        private Writer(long position) {
+            block = position / BLOCK_SIZE;
+            int offset = (int) (position % BLOCK_SIZE);
+            if (offset > 0) {
+                skip = BLOCK_SIZE - offset;
+                block++;
+            }
+        }
+
+        // The next length bytes written after the previous ones
+        public void update(byte[] bytes, int offset, int length) {
+            if (skip > 0) {
+                int n = (int) Math.min(skip, length);
+                skip -= n;
+                offset += n;
+                length -= n;
+            }
+            long startedAt = System.nanoTime();
+            Metrics.HASHED_BYTES.add(length);
+            while (length > 0) {
+                int n = Math.min(BLOCK_SIZE - filled, length);
+                digest.update(bytes, offset, n);
+                filled += n;
+                offset += n;
+                length -= n;
+                if (filled == BLOCK_SIZE) {
+                    leaves.put(block++, new Leaf(digest.digest(), BLOCK_SIZE));
+                    filled = 0;
+                }
+            }
+            Metrics.HASH_NANOS.add(System.nanoTime() - startedAt);
+        }
+
+        // Nothing follows; a partial block counts if it turns out to be the file's last
+        public void close() {
+            if (filled > 0) {
+                leaves.put(block, new Leaf(digest.digest(), filled));
+                filled = 0;
+            }
+        }
+    }
+}
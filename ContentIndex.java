@@ -0,0 +1,300 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// Size and content hash of every file downloaded into one output directory,
+// and which media and format it holds, so the same video arriving again
+// under another name or through another playlist can become a hard link to
+// the copy already there. Kept as JSON lines in FILE_NAME in that directory;
+// like DownloadArchive, one shared instance per directory and one writer
+// thread that appends whole batches with one fsync. Entries are checked
+// against the file on every hit, so files deleted or edited since are
+// simply forgotten.
+public class ContentIndex {
+    static final String FILE_NAME = ".downylink-index";
+
+    private static final Map<Path, ContentIndex> OPEN = new ConcurrentHashMap<>();
+    private static final int COMPACT_MIN_LINES = 256;
+
+    private final Path root;
+    private final Path file;
+    // By path relative to root; the other maps point into it
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    private final Map<String, String> byContent = new HashMap<>();
+    private final Map<String, String> byMedia = new HashMap<>();
+    private final BlockingQueue<String> pending = new LinkedBlockingQueue<>();
+    private FileChannel channel;
+
+    private ContentIndex(Path root) throws IOException {
+        this.root = root;
+        this.file = root.resolve(FILE_NAME);
+        int lines = 0;
+        if (Files.exists(file)) {
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                try {
+                    apply(Json.parseObject(line));
+                    lines++;
+                } catch (IllegalArgumentException e) {
+                    break; // torn by a crash
+                }
+            }
+        } else {
+            Files.createDirectories(root);
+        }
+        if (lines > Math.max(COMPACT_MIN_LINES, entries.size() * 2)) {
+            compact();
+        }
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        Thread writer = new Thread(this::writeLoop, "content-index");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // One shared instance per output directory
+    public static ContentIndex forRoot(Path root) throws IOException {
+        Path key = root.toAbsolutePath().normalize();
+        try {
+            return OPEN.computeIfAbsent(key, k -> {
+                try {
+                    return new ContentIndex(k);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    // What a finished file holds: the media, the format or quality asked for
+    // and what the options turn it into, so another container or audio-only
+    // is not a match
+    public static String mediaKey(String archiveKey, DownloadOptions options) {
+        StringBuilder key = new StringBuilder(archiveKey).append(' ');
+        if (options.getFormat() != null) {
+            key.append(options.getFormat());
+        } else if (options.getQuality() != null) {
+            key.append("quality=").append(options.getQuality());
+        } else {
+            key.append("default");
+        }
+        if (options.getContainer() != null) {
+            key.append(" container=").append(options.getContainer());
+        }
+        if (options.isExtractAudio()) {
+            key.append(" audio");
+        }
+        return key.toString();
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    // An indexed file with this content, or null
+    public Path findContent(long size, String digest) {
+        return find(byContent, contentKey(size, digest));
+    }
+
+    // An indexed file holding this media, or null
+    public Path findMedia(String mediaKey) {
+        return find(byMedia, mediaKey);
+    }
+
+    // Records a finished file under root; files elsewhere are ignored.
+    // mediaKey may be null when the engine never said what it downloaded.
+    public void add(Path file, long size, String digest, String mediaKey) throws IOException {
+        String path = relative(file);
+        if (path == null) {
+            return;
+        }
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put("path", path);
+        record.put("size", size);
+        record.put("treeHash", digest);
+        record.put("modified", Files.getLastModifiedTime(file).toMillis());
+        if (mediaKey != null) {
+            record.put("media", mediaKey);
+        }
+        synchronized (this) {
+            apply(record);
+            pending.add(Json.write(record));
+        }
+    }
+
+    // Whether file is indexed and unchanged since
+    public synchronized boolean contains(Path file) {
+        String path = relative(file);
+        Entry entry = path != null ? entries.get(path) : null;
+        return entry != null && matches(entry);
+    }
+
+    // Records link, a new hard link to the indexed file existing
+    public void addLink(Path link, Path existing) throws IOException {
+        Entry entry;
+        synchronized (this) {
+            String path = relative(existing);
+            entry = path != null ? entries.get(path) : null;
+        }
+        if (entry != null) {
+            add(link, entry.size, entry.digest, entry.mediaKey);
+        }
+    }
+
+    // Forgets stale entries on the way, so another copy can still match
+    private synchronized Path find(Map<String, String> index, String key) {
+        String path;
+        while ((path = index.get(key)) != null) {
+            if (matches(entries.get(path))) {
+                return root.resolve(path);
+            }
+            Map<String, Object> record = new LinkedHashMap<>();
+            record.put("path", path);
+            record.put("removed", true);
+            apply(record);
+            pending.add(Json.write(record));
+        }
+        return null;
+    }
+
+    // Still there with the size and time it was recorded with
+    private boolean matches(Entry entry) {
+        Path path = root.resolve(entry.path);
+        try {
+            return Files.size(path) == entry.size && Files.getLastModifiedTime(path).toMillis() == entry.modified;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private String relative(Path file) {
+        Path absolute = file.toAbsolutePath().normalize();
+        return absolute.startsWith(root) ? root.relativize(absolute).toString() : null;
+    }
+
+    private static String contentKey(long size, String digest) {
+        return size + " " + digest;
+    }
+
+    private void apply(Map<String, Object> record) {
+        String path = Json.getString(record, "path");
+        Entry old = entries.remove(path);
+        if (old != null) {
+            // Links to the same file may still be indexed under other names
+            String content = contentKey(old.size, old.digest);
+            boolean contentGone = byContent.remove(content, path);
+            boolean mediaGone = old.mediaKey != null && byMedia.remove(old.mediaKey, path);
+            if (contentGone || mediaGone) {
+                for (Entry other : entries.values()) {
+                    if (contentGone && content.equals(contentKey(other.size, other.digest))) {
+                        byContent.putIfAbsent(content, other.path);
+                    }
+                    if (mediaGone && old.mediaKey.equals(other.mediaKey)) {
+                        byMedia.putIfAbsent(old.mediaKey, other.path);
+                    }
+                }
+            }
+        }
+        if (Boolean.TRUE.equals(record.get("removed"))) {
+            return;
+        }
+        Entry entry = new Entry(path, Json.getLong(record, "size", -1), treeHashOf(record),
+            Json.getLong(record, "modified", 0), Json.getString(record, "media"));
+        entries.put(path, entry);
+        byContent.putIfAbsent(contentKey(entry.size, entry.digest), path);
+        if (entry.mediaKey != null) {
+            byMedia.putIfAbsent(entry.mediaKey, path);
+        }
+    }
+
+    // ContentHasher's digest, a hash over 1 MiB block hashes rather than the
+    // file's SHA-256; indexes written before the rename call it "sha256"
+    private static String treeHashOf(Map<String, Object> record) {
+        String digest = Json.getString(record, "treeHash");
+        return digest != null ? digest : Json.getString(record, "sha256");
+    }
+
+    // One line per entry, swapped in atomically
+    private void compact() throws IOException {
+        StringBuilder out = new StringBuilder();
+        for (Entry entry : entries.values()) {
+            out.append(Json.write(entry.toJson())).append('\n');
+        }
+        Path temp = file.resolveSibling(FILE_NAME + ".tmp");
+        Files.writeString(temp, out, StandardCharsets.UTF_8);
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void writeLoop() {
+        List<String> batch = new ArrayList<>();
+        StringBuilder text = new StringBuilder();
+        while (true) {
+            try {
+                batch.add(pending.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            pending.drainTo(batch);
+            text.setLength(0);
+            for (String line : batch) {
+                text.append(line).append('\n');
+            }
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8));
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                System.err.println("Content index write to " + file + " failed: " + e.getMessage());
+            }
+            batch.clear();
+        }
+    }
+
+    private static final class Entry {
+        final String path;
+        final long size;
+        final String digest;
+        final long modified;
+        final String mediaKey;
+
+        Entry(String path, long size, String digest, long modified, String mediaKey) {
+            this.path = path;
+            this.size = size;
+            this.digest = digest;
+            this.modified = modified;
+            this.mediaKey = mediaKey;
+        }
+
+        Map<String, Object> toJson() {
+            Map<String, Object> json = new LinkedHashMap<>();
+            json.put("path", path);
+            json.put("size", size);
+            json.put("treeHash", digest);
+            json.put("modified", modified);
+            if (mediaKey != null) {
+                json.put("media", mediaKey);
+            }
+            return json;
+        }
+    }
+}
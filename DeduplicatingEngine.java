@@ -0,0 +1,160 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+// Wraps an engine with the ContentIndex of the output directory. Media that
+// is already there in the same format is not fetched again, and a finished
+// file identical to one already there is replaced with a hard link to it.
+// Engines that hash while writing report the digest through onContentHash;
+// other files, like yt-dlp's or ffmpeg's output, are hashed once they are done.
+public class DeduplicatingEngine implements DownloadEngine {
+    private final DownloadEngine engine;
+
+    public DeduplicatingEngine(DownloadEngine engine) {
+        this.engine = engine;
+    }
+
+    @Override
+    public int download(String url, String outputPath, DownloadOptions options,
+                        ProgressListener listener, Consumer<String> log) throws IOException, InterruptedException {
+        if (!options.isDeduplicate()) {
+            return engine.download(url, outputPath, options, listener, log);
+        }
+        if (skipIfIndexed(url, outputPath, options, listener, log)) {
+            return 0;
+        }
+
+        ContentIndex index = ContentIndex.forRoot(Paths.get(outputPath));
+        Report report = new Report();
+        AtomicBoolean handled = new AtomicBoolean();
+        int exitCode = engine.download(url, outputPath, options, new ForwardingListener(listener) {
+            @Override
+            public void onMediaId(String extractor, String id) {
+                report.mediaKey = ContentIndex.mediaKey(DownloadArchive.key(extractor, id), options);
+                super.onMediaId(extractor, id);
+            }
+
+            @Override
+            public void onDestination(String path) {
+                report.destination = path;
+                super.onDestination(path);
+            }
+
+            @Override
+            public void onContentHash(String path, long size, String digest) {
+                report.digests.put(size + " " + path, digest);
+                super.onContentHash(path, size, digest);
+            }
+
+            @Override
+            public boolean reuseExisting(String path) {
+                Path existing = report.mediaKey != null ? index.findMedia(report.mediaKey) : null;
+                if (existing != null && link(index, existing, Paths.get(path), log)) {
+                    handled.set(true);
+                    return true;
+                }
+                return super.reuseExisting(path);
+            }
+
+            // The file to look at only exists once ffmpeg is through
+            @Override
+            public boolean deferPostProcessing(PostProcessor.Task task) {
+                if (!super.deferPostProcessing(task)) {
+                    return false;
+                }
+                handled.set(true);
+                task.then(() -> deduplicate(index, task.getOutput(), report.mediaKey, report.digests, log));
+                return true;
+            }
+        }, log);
+
+        if (exitCode == 0 && !handled.get() && report.destination != null) {
+            deduplicate(index, Paths.get(report.destination), report.mediaKey, report.digests, log);
+        }
+        return exitCode;
+    }
+
+    // True if the URL's media is already in the output directory, in which
+    // case it is reported as done; only works for URLs that show their ID
+    static boolean skipIfIndexed(String url, String outputPath, DownloadOptions options,
+                                 ProgressListener listener, Consumer<String> log) throws IOException {
+        String urlKey = DownloadArchive.keyForUrl(url);
+        if (!options.isDeduplicate() || urlKey == null) {
+            return false;
+        }
+        Path existing = ContentIndex.forRoot(Paths.get(outputPath)).findMedia(ContentIndex.mediaKey(urlKey, options));
+        if (existing == null) {
+            return false;
+        }
+        listener.onPhase(ProgressParser.Phase.ALREADY_DOWNLOADED);
+        listener.onDestination(existing.toString());
+        log.accept("[dedup] " + urlKey + " is already in " + existing);
+        return true;
+    }
+
+    // Indexes a finished file, first replacing it with a hard link if its content
+    // is already there. digests holds what the engine hashed, by "<size> <path>".
+    static void deduplicate(ContentIndex index, Path file, String mediaKey, Map<String, String> digests,
+                            Consumer<String> log) throws IOException {
+        if (!Files.isRegularFile(file) || index.contains(file)) {
+            return;
+        }
+        long size = Files.size(file);
+        String digest = digests.get(size + " " + file);
+        if (digest == null) {
+            digest = ContentHasher.hash(file, size);
+        }
+        Path existing = index.findContent(size, digest);
+        if (existing != null && !Files.isSameFile(existing, file) && replaceWithLink(existing, file, log)) {
+            Metrics.DEDUP_LINKS.increment();
+            Metrics.DEDUP_SAVED_BYTES.add(size);
+            log.accept("[dedup] " + file.getFileName() + " is identical to " + existing
+                + ", replaced it with a hard link (" + ProgressEvent.formatBytes(size) + " saved)");
+        }
+        index.add(file, size, digest, mediaKey);
+    }
+
+    // Makes target, which does not exist yet, a hard link to existing
+    private static boolean link(ContentIndex index, Path existing, Path target, Consumer<String> log) {
+        long size;
+        try {
+            size = Files.size(existing);
+            Files.createLink(target, existing);
+            index.addLink(target, existing);
+        } catch (IOException | UnsupportedOperationException e) {
+            log.accept("[dedup] Could not link " + target.getFileName() + " to " + existing + ": " + e.getMessage());
+            return false;
+        }
+        Metrics.DEDUP_LINKS.increment();
+        Metrics.DEDUP_SAVED_BYTES.add(size);
+        log.accept("[dedup] Same media and format as " + existing + ", linked it instead of downloading");
+        return true;
+    }
+
+    // Swaps file for a link in one rename, so it never goes missing
+    private static boolean replaceWithLink(Path existing, Path file, Consumer<String> log) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".dedup");
+        Files.deleteIfExists(temp);
+        try {
+            Files.createLink(temp, existing);
+        } catch (IOException | UnsupportedOperationException e) {
+            log.accept("[dedup] Could not link " + file.getFileName() + " to " + existing + ": " + e.getMessage());
+            return false;
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return true;
+    }
+
+    // What the engine said about the file it produced; written on its threads
+    private static final class Report {
+        final Map<String, String> digests = new ConcurrentHashMap<>();
+        volatile String mediaKey;
+        volatile String destination;
+    }
+}
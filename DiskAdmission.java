@@ -0,0 +1,417 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Decides what may write where. Output paths are grouped by the FileStore
+// behind them, and each store runs a limited number of jobs at once: a few
+// on spinning disks and network shares, where more writers only make them
+// seek, more on SSDs. Before a download starts, the bytes it expects are
+// reserved against the store's free space, so one that can't fit fails up
+// front instead of halfway through, and jobs running side by side can't
+// count on the same free space. With downloader.scratchDir set, partial
+// files are written there and moved to the output directory when done.
+public class DiskAdmission {
+    private static final DiskAdmission SHARED = new DiskAdmission(
+        Integer.getInteger("downloader.volumeWriters", 0),
+        Long.getLong("downloader.minFreeSpace", 256L << 20),
+        System.getProperty("downloader.scratchDir") != null ? Paths.get(System.getProperty("downloader.scratchDir")) : null);
+
+    static final int SLOW_WRITERS = 2;
+    static final int FAST_WRITERS = 8;
+    private static final Set<String> NETWORK_TYPES = Set.of(
+        "nfs", "nfs4", "cifs", "smb3", "smbfs", "fuse.sshfs", "sshfs", "9p", "davfs", "afpfs");
+    private static final String FALLOCATE = System.getProperty("downloader.fallocate", "fallocate");
+    private static volatile boolean noFallocate;
+
+    private final int writers;
+    private final long minFree;
+    private final Path scratch;
+    private final Map<FileStore, Volume> volumes = new ConcurrentHashMap<>();
+    // Looking up the store reads the mount table, so it's done once per directory
+    private final Map<Path, Volume> byDirectory = new ConcurrentHashMap<>();
+    // For paths whose store can't be found; no limit and nothing checked
+    private final Volume unknown;
+
+    // writers of 0 picks a limit per store; minFree is kept free on every
+    // store; a null scratch writes partial files next to the output
+    public DiskAdmission(int writers, long minFree, Path scratch) {
+        this.writers = writers;
+        this.minFree = minFree;
+        this.scratch = scratch != null ? scratch.toAbsolutePath().normalize() : null;
+        this.unknown = new Volume(null, "unknown", Integer.MAX_VALUE);
+    }
+
+    public static DiskAdmission shared() {
+        return SHARED;
+    }
+
+    public Path getScratch() {
+        return scratch;
+    }
+
+    // Where partial files for outputPath go, or null to keep them next to the
+    // output. One directory per output directory, so equal names don't collide.
+    public Path stagingDir(String outputPath) {
+        if (scratch == null) {
+            return null;
+        }
+        Path output = Paths.get(outputPath).toAbsolutePath().normalize();
+        return scratch.resolve(".stage-" + shortHash(output.toString()));
+    }
+
+    // The directory a download into outputPath writes while it runs
+    public Path writeDirectory(String outputPath) {
+        Path staging = stagingDir(outputPath);
+        return staging != null ? staging : Paths.get(outputPath);
+    }
+
+    // file in the staging directory, unless there is none or it is there already
+    static Path staged(Path file, Path stagingDir) {
+        if (stagingDir == null || file.toAbsolutePath().startsWith(stagingDir)) {
+            return file;
+        }
+        return stagingDir.resolve(file.getFileName());
+    }
+
+    // Where a file reported inside the staging directory of outputPath ends up
+    // once the downloader moves it out
+    public String unstaged(String path, String outputPath) {
+        Path staging = stagingDir(outputPath);
+        Path file = Paths.get(path).toAbsolutePath();
+        if (staging == null || !file.startsWith(staging)) {
+            return path;
+        }
+        return Paths.get(outputPath).resolve(staging.relativize(file)).toString();
+    }
+
+    public Volume volume(Path path) {
+        Path directory = existingAncestor(path.toAbsolutePath().normalize());
+        if (directory == null) {
+            return unknown;
+        }
+        return byDirectory.computeIfAbsent(directory, d -> {
+            try {
+                FileStore store = Files.getFileStore(d);
+                return volumes.computeIfAbsent(store, s -> new Volume(s, s.toString(), writerLimit(s)));
+            } catch (IOException e) {
+                return unknown;
+            }
+        });
+    }
+
+    // The volume a download into outputPath writes to while it runs
+    public Volume writeVolume(String outputPath) {
+        return volume(writeDirectory(outputPath));
+    }
+
+    // Every store seen so far, by name
+    public Map<String, Volume> getVolumes() {
+        Map<String, Volume> result = new TreeMap<>();
+        for (Volume volume : volumes.values()) {
+            result.put(volume.getName(), volume);
+        }
+        return result;
+    }
+
+    // Reserves bytes on the store of each location, once per mention, so
+    // merge inputs and the merged file on the same store count twice. The
+    // first location is the one being written: written bytes of it are on
+    // disk already, and what arrives through Reservation.watch stops being
+    // held as it lands. bytes of -1 reserves nothing but still checks minFree.
+    public Reservation reserve(long bytes, long written, Path... locations) throws IOException {
+        Reservation reservation = new Reservation();
+        try {
+            for (Path location : locations) {
+                long needed = Math.max(0, reservation.holds.isEmpty() ? bytes - written : bytes);
+                Volume volume = volume(location);
+                volume.reserve(needed, location);
+                reservation.holds.add(new Hold(volume, needed));
+            }
+        } catch (IOException e) {
+            reservation.close();
+            throw e;
+        }
+        return reservation;
+    }
+
+    // Fails if location's store is down to minFree already
+    public void checkFree(Path location) throws IOException {
+        reserve(-1, 0, location).close();
+    }
+
+    // Gives file its full length up front, so the filesystem can lay it out in
+    // one piece instead of growing it from connections writing far apart.
+    // fallocate(1) really allocates the blocks; where it's missing or the
+    // filesystem refuses, the file only gets its length, which allocates on
+    // Windows and leaves a sparse file elsewhere. True only when fallocate
+    // took the space, so the bytes are off the volume's free space already.
+    public static boolean preallocate(Path file, long length) {
+        if (!noFallocate) {
+            try {
+                Process process = Metrics.start(new ProcessBuilder(
+                    FALLOCATE, "-l", Long.toString(length), file.toString()).redirectErrorStream(true));
+                process.getInputStream().transferTo(OutputStream.nullOutputStream());
+                if (process.waitFor() == 0) {
+                    return true;
+                }
+            } catch (IOException e) {
+                noFallocate = true; // not installed
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            if (raf.length() < length) {
+                raf.setLength(length);
+            }
+        } catch (IOException e) {
+            System.err.println("Could not preallocate " + file + ": " + e.getMessage());
+        }
+        return false;
+    }
+
+    private int writerLimit(FileStore store) {
+        if (writers > 0) {
+            return writers;
+        }
+        return NETWORK_TYPES.contains(store.type().toLowerCase(Locale.ROOT)) || isRotational(store.name())
+            ? SLOW_WRITERS : FAST_WRITERS;
+    }
+
+    // Linux only: /sys/class/block/sda/queue/rotational, or its disk's for a partition
+    private static boolean isRotational(String device) {
+        if (!device.startsWith("/dev/")) {
+            return false;
+        }
+        try {
+            Path block = Paths.get("/sys/class/block", device.substring("/dev/".length())).toRealPath();
+            Path flag = block.resolve("queue/rotational");
+            if (!Files.exists(flag)) {
+                flag = block.resolveSibling("queue/rotational");
+            }
+            return Files.readString(flag, StandardCharsets.US_ASCII).trim().equals("1");
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    private static Path existingAncestor(Path path) {
+        while (path != null && !Files.exists(path)) {
+            path = path.getParent();
+        }
+        return path;
+    }
+
+    private static String shortHash(String text) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(text.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest, 0, 6);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Every JVM has SHA-1", e);
+        }
+    }
+
+    public final class Volume {
+        private final FileStore store;
+        private final String name;
+        private final int writerLimit;
+        private final Deque<Runnable> waiting = new ArrayDeque<>();
+        private int running;
+        private long reserved;
+
+        private Volume(FileStore store, String name, int writerLimit) {
+            this.store = store;
+            this.name = name;
+            this.writerLimit = writerLimit;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getType() {
+            return store != null ? store.type() : "";
+        }
+
+        public int getWriterLimit() {
+            return writerLimit;
+        }
+
+        public synchronized int getRunning() {
+            return running;
+        }
+
+        public synchronized int getWaiting() {
+            return waiting.size();
+        }
+
+        public synchronized long getReservedBytes() {
+            return reserved;
+        }
+
+        // -1 when the store can't tell
+        public long getUsableBytes() {
+            try {
+                return store != null ? store.getUsableSpace() : -1;
+            } catch (IOException e) {
+                return -1;
+            }
+        }
+
+        // Runs start now if fewer than the limit are writing here, otherwise once
+        // a running job calls release(). Every start has to be paired with one release.
+        public void submit(Runnable start) {
+            synchronized (this) {
+                if (running >= writerLimit) {
+                    waiting.add(start);
+                    return;
+                }
+                running++;
+            }
+            start.run();
+        }
+
+        // Takes a slot only if one is free now, without queueing; true has to
+        // be paired with one release()
+        public synchronized boolean tryAcquire() {
+            if (running >= writerLimit) {
+                return false;
+            }
+            running++;
+            return true;
+        }
+
+        // Takes a start back out of the queue; false once it has left it
+        public synchronized boolean withdraw(Runnable start) {
+            return waiting.remove(start);
+        }
+
+        public void release() {
+            Runnable next;
+            synchronized (this) {
+                running--;
+                next = running < writerLimit ? waiting.poll() : null;
+                if (next != null) {
+                    running++;
+                }
+            }
+            if (next != null) {
+                next.run();
+            }
+        }
+
+        private synchronized void reserve(long bytes, Path location) throws IOException {
+            long usable = getUsableBytes();
+            if (usable < 0) {
+                return;
+            }
+            long available = usable - reserved - minFree;
+            if (bytes > available) {
+                Metrics.SPACE_REFUSALS.increment();
+                throw new IOException("Not enough space for " + location + " on " + name + ": "
+                    + ProgressEvent.formatBytes(bytes) + " needed, " + ProgressEvent.formatBytes(Math.max(0, usable))
+                    + " free, of which " + ProgressEvent.formatBytes(reserved) + " is promised to running downloads"
+                    + " and " + ProgressEvent.formatBytes(minFree) + " kept free");
+            }
+            reserved += bytes;
+        }
+
+        private synchronized void unreserve(long bytes) {
+            reserved -= bytes;
+        }
+    }
+
+    // Space held for one download until it is closed
+    public static final class Reservation implements Closeable {
+        private final List<Hold> holds = new ArrayList<>();
+
+        // Wraps a download's listener so bytes written to the first location
+        // stop being held once they are on disk. A preallocated file is on
+        // disk in full at once; its bytes arriving later release nothing more.
+        public ProgressListener watch(ProgressListener listener) {
+            return new ForwardingListener(listener) {
+                private long downloaded = -1;
+                private long allocated; // of the current file, not yet written
+
+                @Override
+                public void onProgress(ProgressEvent event) {
+                    long bytes = event.getDownloadedBytes();
+                    if (bytes >= 0) {
+                        // Same baseline rules as HostConcurrency.Host.watch
+                        if (downloaded >= 0) {
+                            long delta = bytes >= downloaded ? bytes - downloaded : bytes;
+                            long covered = Math.min(delta, allocated);
+                            allocated -= covered;
+                            if (delta > covered) {
+                                written(delta - covered);
+                            }
+                        }
+                        downloaded = bytes;
+                    }
+                    super.onProgress(event);
+                }
+
+                @Override
+                public void onDestination(String path) {
+                    downloaded = -1;
+                    allocated = 0;
+                    super.onDestination(path);
+                }
+
+                @Override
+                public void onAllocated(String path, long bytes) {
+                    allocated += bytes;
+                    written(bytes);
+                    super.onAllocated(path, bytes);
+                }
+            };
+        }
+
+        private synchronized void written(long bytes) {
+            if (!holds.isEmpty()) {
+                holds.get(0).release(Math.min(bytes, holds.get(0).bytes));
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            for (Hold hold : holds) {
+                hold.release(hold.bytes);
+            }
+        }
+    }
+
+    private static final class Hold {
+        final Volume volume;
+        long bytes;
+
+        Hold(Volume volume, long bytes) {
+            this.volume = volume;
+            this.bytes = bytes;
+        }
+
+        void release(long n) {
+            bytes -= n;
+            volume.unreserve(n);
+        }
+    }
+}
@@ -0,0 +1,285 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// In-memory index over a yt-dlp style archive file ("<extractor> <id>" per
+// line). Lookups are hash hits instead of a file scan per process start, and
+// every job writing to the same file goes through one writer thread that
+// appends whole batches and fsyncs once per batch. That thread is the only
+// writer: yt-dlp gets a snapshot, never the file itself. A batch that fails
+// to write is cut off the file again and retried; until it goes through,
+// sync() fails for callers whose entries are in it.
+public class DownloadArchive {
+    private static final Map<Path, DownloadArchive> OPEN = new ConcurrentHashMap<>();
+    private static final long RETRY_MILLIS = 1000;
+
+    private final Path file;
+    private final Set<String> keys = ConcurrentHashMap.newKeySet();
+    private final BlockingQueue<String> pending = new LinkedBlockingQueue<>();
+    private final FileChannel channel;
+    private long queued;
+    private long synced; // entries known to be on disk, in the order they were added
+    private IOException writeError; // the last batch's, until a retry goes through
+
+    private DownloadArchive(Path file) throws IOException {
+        this.file = file;
+        if (Files.exists(file)) {
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    if (!line.isEmpty()) {
+                        keys.add(line);
+                    }
+                }
+            }
+        } else if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        Thread writer = new Thread(this::writeLoop, "archive-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // One shared instance per file, so concurrent jobs never race on it
+    public static DownloadArchive forFile(Path file) throws IOException {
+        Path key = file.toAbsolutePath().normalize();
+        try {
+            return OPEN.computeIfAbsent(key, k -> {
+                try {
+                    return new DownloadArchive(k);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    public static String key(String extractor, String id) {
+        return extractor.toLowerCase(Locale.ROOT) + " " + id;
+    }
+
+    // Archive key for URLs whose video ID is visible without extraction, else null
+    public static String keyForUrl(String url) {
+        URI uri;
+        try {
+            uri = URI.create(url.trim());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        String host = uri.getHost();
+        String path = uri.getPath();
+        if (host == null || path == null) {
+            return null;
+        }
+        host = host.toLowerCase(Locale.ROOT);
+        String query = uri.getRawQuery() == null ? "" : "&" + uri.getRawQuery();
+        String id = null;
+        if (host.equals("youtu.be")) {
+            id = path.substring(1);
+        } else if (host.equals("youtube.com") || host.endsWith(".youtube.com")) {
+            if (path.equals("/watch")) {
+                int v = query.indexOf("&v=");
+                if (v >= 0) {
+                    int end = query.indexOf('&', v + 3);
+                    id = query.substring(v + 3, end < 0 ? query.length() : end);
+                }
+            } else {
+                for (String prefix : new String[] {"/shorts/", "/embed/", "/live/"}) {
+                    if (path.startsWith(prefix)) {
+                        id = path.substring(prefix.length());
+                    }
+                }
+            }
+        }
+        // With a list= parameter yt-dlp fetches the whole playlist
+        if (id == null || query.contains("&list=") || !id.matches("[A-Za-z0-9_-]{11}")) {
+            return null;
+        }
+        return key("youtube", id);
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public int size() {
+        return keys.size();
+    }
+
+    public boolean contains(String key) {
+        return keys.contains(key);
+    }
+
+    public boolean contains(String extractor, String id) {
+        return keys.contains(key(extractor, id));
+    }
+
+    public boolean containsUrl(String url) {
+        String key = keyForUrl(url);
+        return key != null && keys.contains(key);
+    }
+
+    // Returns false if the entry was already there; the write is asynchronous
+    public boolean add(String extractor, String id) {
+        return addKey(key(extractor, id));
+    }
+
+    public boolean addKey(String key) {
+        if (!keys.add(key)) {
+            return false;
+        }
+        synchronized (this) {
+            queued++;
+            pending.add(key);
+        }
+        return true;
+    }
+
+    // Blocks until everything added so far is on disk; throws if some of it
+    // is in a batch that failed to write
+    public synchronized void sync() throws IOException, InterruptedException {
+        long target = queued;
+        while (synced < target && writeError == null) {
+            wait();
+        }
+        if (synced < target) {
+            throw new IOException("Could not write archive " + file + ": " + writeError.getMessage(), writeError);
+        }
+    }
+
+    // Merges entries from another yt-dlp archive file; returns how many were new
+    public int importFrom(Path archiveTxt) throws IOException {
+        int added = 0;
+        try (BufferedReader reader = Files.newBufferedReader(archiveTxt, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty() && addKey(line)) {
+                    added++;
+                }
+            }
+        }
+        return added;
+    }
+
+    // A copy for a yt-dlp run that has to skip archived playlist entries
+    // itself. yt-dlp appends what it downloads to the file it is given; those
+    // IDs reach this archive through ArchivingEngine instead.
+    public Snapshot snapshot() throws IOException {
+        Path copy = Files.createTempFile("downylink-archive-", ".txt");
+        try {
+            exportTo(copy);
+        } catch (IOException e) {
+            Files.deleteIfExists(copy);
+            throw e;
+        }
+        return new Snapshot(copy);
+    }
+
+    public void exportTo(Path archiveTxt) throws IOException {
+        List<String> snapshot = new ArrayList<>(keys);
+        try (BufferedWriter writer = Files.newBufferedWriter(archiveTxt, StandardCharsets.UTF_8)) {
+            for (String key : snapshot) {
+                writer.write(key);
+                writer.newLine();
+            }
+        }
+    }
+
+    private void writeLoop() {
+        List<String> batch = new ArrayList<>();
+        StringBuilder text = new StringBuilder();
+        boolean torn = false; // the file may end in part of a line
+        while (true) {
+            try {
+                if (batch.isEmpty()) {
+                    batch.add(pending.take());
+                } else {
+                    Thread.sleep(RETRY_MILLIS); // the batch that failed, tried again
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            pending.drainTo(batch);
+            text.setLength(0);
+            if (torn) {
+                text.append('\n');
+            }
+            for (String key : batch) {
+                text.append(key).append('\n');
+            }
+            IOException error = null;
+            long end = -1;
+            try {
+                end = channel.size();
+                ByteBuffer buffer = ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8));
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+                torn = false;
+            } catch (IOException e) {
+                error = e;
+                System.err.println("Archive write to " + file + " failed: " + e.getMessage());
+                if (end < 0) {
+                    torn = true;
+                } else {
+                    try {
+                        channel.truncate(end); // so the retry doesn't follow half a line
+                    } catch (IOException ignored) {
+                        torn = true; // the retry starts on a new line instead
+                    }
+                }
+            }
+            synchronized (this) {
+                if (error == null) {
+                    synced += batch.size();
+                }
+                writeError = error;
+                notifyAll();
+            }
+            if (error == null) {
+                batch.clear();
+            }
+        }
+    }
+
+    // Deleted on close
+    public static final class Snapshot implements Closeable {
+        private final Path file;
+
+        private Snapshot(Path file) {
+            this.file = file;
+        }
+
+        public Path getFile() {
+            return file;
+        }
+
+        @Override
+        public void close() throws IOException {
+            Files.deleteIfExists(file);
+        }
+    }
+}
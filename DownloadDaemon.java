@@ -0,0 +1,703 @@
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+// Headless entry point: runs the scheduler behind a small JSON API on
+// com.sun.net.httpserver, for servers and scripts. Nothing here touches AWT.
+//
+//   java DownloadDaemon [port] [workers]
+//
+// Every request needs "Authorization: Bearer <token>", the token being
+// downloader.token or else the one generated into downloader.stateDir/daemon.token
+// on first start. POSTs with a body must be Content-Type: application/json,
+// which a page in a browser can't send cross-origin without a preflight.
+// "url" must be http or https. "output" and "archive" are taken relative to
+// downloader.outputRoot (./downloads by default) and may not leave it.
+//
+//   POST /jobs                  {"url": ..., "output": ..., "format", "quality", "engine", "weight",
+//                                "archive", "container", "extractAudio", "deduplicate",
+//                                "stallTimeout", "stallRestarts"}
+//                               or {"urls": [...], ...} for many at once; "quality" is used
+//                               without "format": {"maxHeight": 1080, "codecs": ["av1", "vp9"],
+//                                "maxBitrate": kbit/s, "minAudioBitrate": 128, "audioOnly", "ext"}
+//   POST /playlists             same fields; entries are queued while they are listed.
+//                               With "sync": true only entries earlier syncs into the same
+//                               output did not list are queued, and listing stops at known ones
+//   GET  /jobs[?state=RUNNING&limit=100]
+//   GET  /jobs/{id}
+//   POST /jobs/{id}/pause | resume | cancel
+//   POST /jobs/{id}/weight      {"weight": 2}
+//   POST /limit                 {"bytesPerSecond": 1048576}, 0 for none
+//   GET  /stats
+//   GET  /metrics               Prometheus text format; also over JMX as DownyLink:type=Metrics
+//   GET  /events[?job={id}]     server-sent events with changed jobs, pushed as they change
+public class DownloadDaemon {
+    private static final long EVENT_INTERVAL_MILLIS = 500;
+    private static final long KEEPALIVE_MILLIS = 15_000;
+    private static final String TOKEN_FILE = "daemon.token";
+    // Becomes a file extension, so nothing that could name a path
+    private static final Pattern CONTAINER = Pattern.compile("[A-Za-z0-9]{1,8}");
+
+    private final DownloadScheduler scheduler;
+    private final PlaylistExpander expander;
+    private final HttpServer server;
+    private final ExecutorService handlers;
+    private final byte[] token;
+    private final Path outputRoot;
+    private final Path realOutputRoot;
+
+    public DownloadDaemon(DownloadScheduler scheduler, InetSocketAddress address, String token, Path outputRoot)
+            throws IOException {
+        if (token == null || token.isEmpty()) {
+            throw new IllegalArgumentException("The daemon needs a token");
+        }
+        this.scheduler = scheduler;
+        this.expander = new PlaylistExpander(scheduler);
+        this.token = token.getBytes(StandardCharsets.UTF_8);
+        this.outputRoot = outputRoot.toAbsolutePath().normalize();
+        Files.createDirectories(this.outputRoot);
+        this.realOutputRoot = this.outputRoot.toRealPath();
+        this.server = HttpServer.create(address, 0);
+        // Event streams hold their thread, so the pool grows with clients
+        this.handlers = Executors.newCachedThreadPool(DownloadScheduler.daemonThreads("http"));
+        server.setExecutor(handlers);
+        Filter guard = new Guard();
+        server.createContext("/jobs", this::handleJobs).getFilters().add(guard);
+        server.createContext("/playlists", this::handlePlaylists).getFilters().add(guard);
+        server.createContext("/limit", this::handleLimit).getFilters().add(guard);
+        server.createContext("/stats", this::handleStats).getFilters().add(guard);
+        server.createContext("/metrics", this::handleMetrics).getFilters().add(guard);
+        server.createContext("/events", this::handleEvents).getFilters().add(guard);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    public void stop() {
+        server.stop(0);
+        handlers.shutdownNow();
+    }
+
+    public static void main(String[] args) throws IOException {
+        long started = System.nanoTime();
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : Integer.getInteger("downloader.port", 8765);
+        int workers = args.length > 1 ? Integer.parseInt(args[1]) : DownloadScheduler.defaultWorkers();
+        String host = System.getProperty("downloader.host", "127.0.0.1");
+
+        DownloadScheduler scheduler = new DownloadScheduler(workers);
+        int batchSize = Integer.getInteger("downloader.batchSize", 1);
+        if (batchSize > 1) {
+            scheduler.setBatching(batchSize, Long.getLong("downloader.batchDelay", 200));
+        }
+        // Empty turns the job store off
+        String storeFile = System.getProperty("downloader.jobStore", JobStore.defaultFile("daemon-jobs.log").toString());
+        int restored = 0;
+        if (!storeFile.isEmpty()) {
+            try {
+                restored = scheduler.restore(JobStore.open(Paths.get(storeFile))).size();
+            } catch (IOException e) {
+                System.err.println("Running without a job store: " + e.getMessage());
+            }
+        }
+        String token = System.getProperty("downloader.token");
+        if (token == null || token.isEmpty()) {
+            token = storedToken(JobStore.defaultFile(TOKEN_FILE));
+        }
+        Path outputRoot = Paths.get(System.getProperty("downloader.outputRoot", "downloads"));
+        DownloadDaemon daemon = new DownloadDaemon(scheduler, new InetSocketAddress(host, port), token, outputRoot);
+        Metrics.registerMBean();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            daemon.stop();
+            scheduler.shutdownNow(); // stops child processes; partial files are kept
+        }, "daemon-shutdown"));
+        daemon.start();
+        System.out.printf("Listening on http://%s:%d with %d workers, %d jobs restored (started in %d ms)%n",
+            host, daemon.getAddress().getPort(), workers, restored,
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+        if (System.getProperty("downloader.token") == null) {
+            System.out.println("API token in " + JobStore.defaultFile(TOKEN_FILE));
+        }
+    }
+
+    // The token saved by an earlier start, or a new one readable only by the owner
+    static String storedToken(Path file) throws IOException {
+        if (Files.exists(file)) {
+            String stored = Files.readString(file, StandardCharsets.UTF_8).trim();
+            if (!stored.isEmpty()) {
+                return stored;
+            }
+            Files.delete(file);
+        }
+        byte[] random = new byte[24];
+        new SecureRandom().nextBytes(random);
+        String token = HexFormat.of().formatHex(random);
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        try {
+            Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            Files.createFile(file); // not POSIX; the state directory is the user's own
+        } catch (FileAlreadyExistsException e) {
+            return storedToken(file); // another daemon starting at the same time
+        }
+        Files.writeString(file, token, StandardCharsets.UTF_8);
+        return token;
+    }
+
+    private void handleJobs(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            try {
+                String[] path = pathParts(exchange, "/jobs");
+                String method = exchange.getRequestMethod();
+                if (path.length == 0) {
+                    if (method.equals("GET")) {
+                        listJobs(exchange);
+                    } else if (method.equals("POST")) {
+                        submitJobs(exchange);
+                    } else {
+                        send(exchange, 405, error("Use GET or POST"));
+                    }
+                    return;
+                }
+                DownloadJob job = findJob(path[0]);
+                if (job == null) {
+                    send(exchange, 404, error("No job " + path[0]));
+                    return;
+                }
+                if (path.length == 1 && method.equals("GET")) {
+                    send(exchange, 200, toJson(job));
+                    return;
+                }
+                if (path.length != 2 || !method.equals("POST")) {
+                    send(exchange, 405, error("Use GET /jobs/{id} or POST /jobs/{id}/{action}"));
+                    return;
+                }
+                boolean changed;
+                switch (path[1]) {
+                    case "pause" -> changed = job.pause();
+                    case "resume" -> changed = job.resume();
+                    case "cancel" -> changed = job.cancel();
+                    case "weight" -> {
+                        job.setWeight(Json.getDouble(readObject(exchange), "weight", job.getWeight()));
+                        changed = true;
+                    }
+                    default -> {
+                        send(exchange, 404, error("Unknown action " + path[1]));
+                        return;
+                    }
+                }
+                send(exchange, changed ? 200 : 409, toJson(job));
+            } catch (IllegalArgumentException e) {
+                send(exchange, 400, error(e.getMessage()));
+            }
+        }
+    }
+
+    private void listJobs(HttpExchange exchange) throws IOException {
+        Map<String, String> query = query(exchange);
+        DownloadJob.State state = query.containsKey("state")
+            ? DownloadJob.State.valueOf(query.get("state").toUpperCase(Locale.ROOT)) : null;
+        int limit = query.containsKey("limit") ? Integer.parseInt(query.get("limit")) : Integer.MAX_VALUE;
+        List<DownloadJob> jobs = new ArrayList<>();
+        for (DownloadJob job : scheduler.getJobs()) {
+            if (state == null || job.getState() == state) {
+                jobs.add(job);
+            }
+        }
+        jobs.sort(Comparator.comparingLong(DownloadJob::getId));
+        List<Object> list = new ArrayList<>(Math.min(jobs.size(), limit));
+        for (DownloadJob job : jobs) {
+            if (list.size() >= limit) {
+                break;
+            }
+            list.add(toJson(job));
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("total", jobs.size());
+        result.put("jobs", list);
+        send(exchange, 200, result);
+    }
+
+    private void submitJobs(HttpExchange exchange) throws IOException {
+        Map<String, Object> request = readObject(exchange);
+        String output = outputOf(request);
+        DownloadOptions options = optionsOf(request, output);
+        List<String> urls = new ArrayList<>();
+        List<Object> list = Json.getArray(request, "urls");
+        if (list != null) {
+            for (Object url : list) {
+                urls.add(checkUrl(String.valueOf(url)));
+            }
+        } else {
+            String url = Json.getString(request, "url");
+            if (url == null) {
+                throw new IllegalArgumentException("Missing \"url\" or \"urls\"");
+            }
+            urls.add(checkUrl(url));
+        }
+        List<Object> submitted = new ArrayList<>();
+        for (DownloadJob job : scheduler.submitAll(urls, output, options)) {
+            submitted.add(toJson(job));
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("jobs", submitted);
+        // Only a 201 once the job store has them, so it survives a crash
+        try {
+            scheduler.awaitStored();
+        } catch (IOException e) {
+            result.put("error", "Queued but not saved: " + e.getMessage());
+            send(exchange, 500, result);
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.put("error", "Queued, daemon stopping before they were saved");
+            send(exchange, 503, result);
+            return;
+        }
+        send(exchange, 201, result);
+    }
+
+    private void handlePlaylists(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            try {
+                if (!exchange.getRequestMethod().equals("POST")) {
+                    send(exchange, 405, error("Use POST"));
+                    return;
+                }
+                Map<String, Object> request = readObject(exchange);
+                String url = Json.getString(request, "url");
+                if (url == null) {
+                    throw new IllegalArgumentException("Missing \"url\"");
+                }
+                checkUrl(url);
+                String output = outputOf(request);
+                boolean sync = Boolean.TRUE.equals(request.get("sync"));
+                if (sync) {
+                    expander.sync(url, output, optionsOf(request, output), null);
+                } else {
+                    expander.expand(url, output, optionsOf(request, output), null);
+                }
+                Map<String, Object> result = new LinkedHashMap<>();
+                result.put("url", url);
+                result.put("status", sync ? "syncing" : "listing");
+                send(exchange, 202, result);
+            } catch (IllegalArgumentException e) {
+                send(exchange, 400, error(e.getMessage()));
+            }
+        }
+    }
+
+    private void handleLimit(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            try {
+                BandwidthLimiter limiter = BandwidthLimiter.shared();
+                if (exchange.getRequestMethod().equals("POST")) {
+                    limiter.setLimit(Json.getLong(readObject(exchange), "bytesPerSecond", limiter.getLimit()));
+                }
+                Map<String, Object> result = new LinkedHashMap<>();
+                result.put("bytesPerSecond", limiter.getLimit());
+                result.put("activeShares", limiter.getActiveShares());
+                send(exchange, 200, result);
+            } catch (IllegalArgumentException e) {
+                send(exchange, 400, error(e.getMessage()));
+            }
+        }
+    }
+
+    private void handleStats(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            Map<String, Object> result = new LinkedHashMap<>();
+            Map<String, Object> states = new LinkedHashMap<>();
+            for (DownloadJob.State state : DownloadJob.State.values()) {
+                states.put(state.name(), scheduler.countJobs(state));
+            }
+            result.put("jobs", states);
+            result.put("workers", scheduler.getWorkerCount());
+            result.put("completed", scheduler.getCompletedJobs());
+            result.put("completionsPerMinute", scheduler.getCompletionsPerMinute());
+            result.put("bytesPerSecond", scheduler.getBytesPerSecond());
+            result.put("totalBytes", scheduler.getTotalBytes());
+            result.put("bandwidthLimit", BandwidthLimiter.shared().getLimit());
+            result.put("eventSubscribers", scheduler.getEvents().getSubscriberCount());
+            JobStore store = scheduler.getJobStore();
+            if (store != null) {
+                Map<String, Object> stored = new LinkedHashMap<>();
+                stored.put("file", store.getFile().toString());
+                stored.put("liveJobs", store.getLiveJobs());
+                stored.put("commits", store.getCommits());
+                result.put("jobStore", stored);
+            }
+            ProbeCache cache = ProbeCache.shared();
+            Map<String, Object> probes = new LinkedHashMap<>();
+            probes.put("hits", cache.getHits());
+            probes.put("misses", cache.getMisses());
+            probes.put("entries", cache.size());
+            result.put("probeCache", probes);
+            PostProcessor post = PostProcessor.shared();
+            Map<String, Object> postProcessing = new LinkedHashMap<>();
+            postProcessing.put("threads", post.getThreads());
+            postProcessing.put("active", post.getActiveCount());
+            postProcessing.put("queued", post.getQueueDepth());
+            result.put("postProcessing", postProcessing);
+            Map<String, Object> hosts = new LinkedHashMap<>();
+            for (HostConcurrency.Host host : HostConcurrency.shared().getHosts().values()) {
+                Map<String, Object> entry = new LinkedHashMap<>();
+                entry.put("connections", host.getConnections());
+                entry.put("jobLimit", host.getJobLimit());
+                entry.put("running", host.getRunning());
+                entry.put("waiting", host.getWaiting());
+                entry.put("bytesPerSecond", host.getBytesPerSecond());
+                entry.put("throttles", host.getThrottles());
+                hosts.put(host.getName(), entry);
+            }
+            result.put("hosts", hosts);
+            Map<String, Object> volumes = new LinkedHashMap<>();
+            for (DiskAdmission.Volume volume : DiskAdmission.shared().getVolumes().values()) {
+                Map<String, Object> entry = new LinkedHashMap<>();
+                entry.put("type", volume.getType());
+                entry.put("writerLimit", volume.getWriterLimit());
+                entry.put("running", volume.getRunning());
+                entry.put("waiting", volume.getWaiting());
+                entry.put("reservedBytes", volume.getReservedBytes());
+                entry.put("usableBytes", volume.getUsableBytes());
+                volumes.put(volume.getName(), entry);
+            }
+            result.put("volumes", volumes);
+            send(exchange, 200, result);
+        }
+    }
+
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            StringBuilder out = new StringBuilder(Metrics.toPrometheus());
+            Metrics.writeGaugeHeader(out, "downloader_jobs", "Jobs by state");
+            for (DownloadJob.State state : DownloadJob.State.values()) {
+                Metrics.writeSample(out, "downloader_jobs", "state", state.name(), scheduler.countJobs(state));
+            }
+            Metrics.writeGauge(out, "downloader_workers", "Worker threads", scheduler.getWorkerCount());
+            Metrics.writeGauge(out, "downloader_bytes_per_second", "Recent download rate of all jobs",
+                scheduler.getBytesPerSecond());
+            Metrics.writeGauge(out, "downloader_completions_per_minute", "Recent job completion rate",
+                scheduler.getCompletionsPerMinute());
+            // No per-job series: every job ID would stay a new series in the
+            // scraper for good; GET /jobs has each job's rate
+            Collection<HostConcurrency.Host> hosts = HostConcurrency.shared().getHosts().values();
+            Metrics.writeGaugeHeader(out, "downloader_host_connections", "Connections a new download to the host opens");
+            for (HostConcurrency.Host host : hosts) {
+                Metrics.writeSample(out, "downloader_host_connections", "host", host.getName(), host.getConnections());
+            }
+            Metrics.writeGaugeHeader(out, "downloader_host_jobs", "Jobs running against the host");
+            for (HostConcurrency.Host host : hosts) {
+                Metrics.writeSample(out, "downloader_host_jobs", "host", host.getName(), host.getRunning());
+            }
+            Metrics.writeGaugeHeader(out, "downloader_host_bytes_per_second", "Recent download rate from the host");
+            for (HostConcurrency.Host host : hosts) {
+                Metrics.writeSample(out, "downloader_host_bytes_per_second", "host", host.getName(),
+                    host.getBytesPerSecond());
+            }
+            Collection<DiskAdmission.Volume> volumes = DiskAdmission.shared().getVolumes().values();
+            Metrics.writeGaugeHeader(out, "downloader_volume_jobs", "Jobs writing to the volume");
+            for (DiskAdmission.Volume volume : volumes) {
+                Metrics.writeSample(out, "downloader_volume_jobs", "volume", volume.getName(), volume.getRunning());
+            }
+            Metrics.writeGaugeHeader(out, "downloader_volume_reserved_bytes", "Space held for running downloads");
+            for (DiskAdmission.Volume volume : volumes) {
+                Metrics.writeSample(out, "downloader_volume_reserved_bytes", "volume", volume.getName(),
+                    volume.getReservedBytes());
+            }
+            byte[] bytes = out.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, bytes.length);
+            exchange.getResponseBody().write(bytes);
+        }
+    }
+
+    // Each connection subscribes with LATEST delivery drained on its own
+    // thread. While it writes to a slow client the events wait in the
+    // subscription, progress conflated per job, and after each write it
+    // pauses for the interval, so a client sees at most one update per job
+    // per interval and never holds up a download.
+    private void handleEvents(HttpExchange exchange) throws IOException {
+        String only = query(exchange).get("job");
+        DownloadJob onlyJob = only != null ? findJob(only) : null;
+        long jobId = only == null ? EventBus.ANY_JOB : onlyJob != null ? onlyJob.getId() : -1;
+        BlockingQueue<Runnable> deliveries = new LinkedBlockingQueue<>();
+        Set<Long> changed = new LinkedHashSet<>(); // only touched on this thread
+        Flow.Subscription subscription = scheduler.getEvents().subscribe(
+            event -> changed.add(event.getJobId()), EventBus.Delivery.LATEST, jobId, deliveries::add);
+        try (exchange) {
+            exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+            exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+            exchange.sendResponseHeaders(200, 0);
+            OutputStream out = exchange.getResponseBody();
+            Map<Long, String> sent = new HashMap<>();
+            // Where every job stands, then only what changes
+            if (onlyJob != null) {
+                changed.add(onlyJob.getId());
+            } else if (only == null) {
+                for (DownloadJob job : scheduler.getJobs()) {
+                    changed.add(job.getId());
+                }
+            }
+            boolean delivered = true;
+            while (!Thread.currentThread().isInterrupted()) {
+                StringBuilder batch = new StringBuilder();
+                for (long id : changed) {
+                    DownloadJob job = scheduler.getJob(id);
+                    if (job != null) {
+                        appendEvent(batch, job, sent);
+                    }
+                }
+                changed.clear();
+                sent.keySet().removeIf(id -> scheduler.getJob(id) == null);
+                if (!delivered) {
+                    batch.append(": keepalive\n\n");
+                }
+                if (batch.length() > 0) {
+                    out.write(batch.toString().getBytes(StandardCharsets.UTF_8));
+                    out.flush(); // fails once the client has gone
+                    Thread.sleep(EVENT_INTERVAL_MILLIS);
+                }
+                Runnable drain = deliveries.poll(KEEPALIVE_MILLIS, TimeUnit.MILLISECONDS);
+                delivered = drain != null;
+                if (delivered) {
+                    drain.run(); // fills changed
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            // client disconnected or daemon stopping
+        } finally {
+            subscription.cancel();
+        }
+    }
+
+    private static void appendEvent(StringBuilder batch, DownloadJob job, Map<Long, String> sent) {
+        String json = Json.write(toJson(job));
+        if (!json.equals(sent.put(job.getId(), json))) {
+            batch.append("event: job\nid: ").append(job.getId()).append("\ndata: ").append(json).append("\n\n");
+        }
+    }
+
+    static Map<String, Object> toJson(DownloadJob job) {
+        ProgressEvent progress = job.getProgress();
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("id", job.getId());
+        json.put("url", job.getUrl());
+        json.put("output", job.getOutputPath());
+        json.put("state", job.getState().name());
+        json.put("phase", job.getPhase() != null ? job.getPhase().name() : null);
+        json.put("percent", progress.hasPercent() ? progress.getPercent() : null);
+        json.put("downloadedBytes", progress.getDownloadedBytes());
+        json.put("totalBytes", progress.getTotalBytes());
+        json.put("bytesPerSecond", progress.getBytesPerSecond());
+        json.put("etaSeconds", progress.getEtaSeconds());
+        json.put("destination", job.getDestination());
+        json.put("weight", job.getWeight());
+        json.put("exitCode", job.getExitCode());
+        json.put("error", job.getError());
+        json.put("submittedAt", job.getSubmittedAt());
+        json.put("startedAt", job.getStartedAt());
+        json.put("finishedAt", job.getFinishedAt());
+        return json;
+    }
+
+    private DownloadJob findJob(String id) {
+        try {
+            return scheduler.getJob(Long.parseLong(id));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // yt-dlp gets "--" before the URL as well; this also keeps out file: and
+    // the like, which its generic extractor would read from this machine
+    static String checkUrl(String url) {
+        String lower = url.toLowerCase(Locale.ROOT);
+        if (!(lower.startsWith("http://") || lower.startsWith("https://")) || url.chars().anyMatch(c -> c <= ' ')) {
+            throw new IllegalArgumentException("Only http and https URLs are accepted: " + url);
+        }
+        return url;
+    }
+
+    private String outputOf(Map<String, Object> request) {
+        String output = Json.getString(request, "output");
+        return output != null ? insideRoot(output, "output").toString() : outputRoot.toString();
+    }
+
+    // Resolved against the output root; a symlink inside it that points out counts as leaving it
+    private Path insideRoot(String value, String field) {
+        Path path = outputRoot.resolve(value).normalize();
+        boolean inside = path.startsWith(outputRoot);
+        if (inside) {
+            Path existing = path;
+            while (!Files.exists(existing)) {
+                existing = existing.getParent();
+            }
+            try {
+                inside = existing.toRealPath().startsWith(realOutputRoot);
+            } catch (IOException e) {
+                inside = false;
+            }
+        }
+        if (!inside) {
+            throw new IllegalArgumentException("\"" + field + "\" must stay inside " + outputRoot);
+        }
+        return path;
+    }
+
+    private DownloadOptions optionsOf(Map<String, Object> request, String output) {
+        DownloadOptions options = new DownloadOptions().format(Json.getString(request, "format"));
+        Map<String, Object> quality = Json.getObject(request, "quality");
+        if (quality != null) {
+            options.quality(FormatPolicy.fromJson(quality));
+        }
+        String engine = Json.getString(request, "engine");
+        if (engine != null) {
+            options.engine(DownloadOptions.Engine.valueOf(engine.toUpperCase(Locale.ROOT).replace('-', '_')));
+        }
+        if (request.containsKey("weight")) {
+            options.weight(Json.getDouble(request, "weight", 1));
+        }
+        if (request.containsKey("segments")) {
+            options.segments((int) Json.getLong(request, "segments", SegmentedDownloader.DEFAULT_SEGMENTS));
+        }
+        if (request.containsKey("stallTimeout")) {
+            options.stallTimeout(Json.getLong(request, "stallTimeout", options.getStallTimeout()));
+        }
+        if (request.containsKey("stallRestarts")) {
+            options.stallRestarts((int) Json.getLong(request, "stallRestarts", options.getStallRestarts()));
+        }
+        String container = Json.getString(request, "container");
+        if (container != null && !CONTAINER.matcher(container).matches()) {
+            throw new IllegalArgumentException("Bad \"container\": " + container);
+        }
+        options.container(container);
+        options.extractAudio(Boolean.TRUE.equals(request.get("extractAudio")));
+        if (request.get("deduplicate") instanceof Boolean) {
+            options.deduplicate((Boolean) request.get("deduplicate"));
+        }
+        Object archive = request.get("archive");
+        if (archive instanceof String) {
+            options.archiveFile(insideRoot((String) archive, "archive"));
+        } else if (Boolean.TRUE.equals(archive)) {
+            options.archiveFile(Paths.get(output).resolve("archive.txt"));
+        }
+        return options;
+    }
+
+    // Bearer token on every request, and JSON for any POST that has a body
+    private final class Guard extends Filter {
+        @Override
+        public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+            String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+            byte[] given = authorization != null && authorization.startsWith("Bearer ")
+                ? authorization.substring("Bearer ".length()).trim().getBytes(StandardCharsets.UTF_8) : new byte[0];
+            if (!MessageDigest.isEqual(token, given)) {
+                try (exchange) {
+                    exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer");
+                    send(exchange, 401, error("Missing or wrong token"));
+                }
+                return;
+            }
+            if (exchange.getRequestMethod().equals("POST") && hasBody(exchange) && !isJson(exchange)) {
+                try (exchange) {
+                    send(exchange, 415, error("Send the body as application/json"));
+                }
+                return;
+            }
+            chain.doFilter(exchange);
+        }
+
+        @Override
+        public String description() {
+            return "token and content type check";
+        }
+    }
+
+    private static boolean hasBody(HttpExchange exchange) {
+        String length = exchange.getRequestHeaders().getFirst("Content-Length");
+        return length != null ? !length.trim().equals("0") : exchange.getRequestHeaders().containsKey("Transfer-Encoding");
+    }
+
+    private static boolean isJson(HttpExchange exchange) {
+        String type = exchange.getRequestHeaders().getFirst("Content-Type");
+        return type != null && type.toLowerCase(Locale.ROOT).split(";", 2)[0].trim().equals("application/json");
+    }
+
+    private static Map<String, Object> readObject(HttpExchange exchange) throws IOException {
+        String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+        return body.isBlank() ? new HashMap<>() : Json.parseObject(body);
+    }
+
+    private static String[] pathParts(HttpExchange exchange, String context) {
+        String rest = exchange.getRequestURI().getPath().substring(context.length());
+        while (rest.startsWith("/")) {
+            rest = rest.substring(1);
+        }
+        return rest.isEmpty() ? new String[0] : rest.split("/");
+    }
+
+    private static Map<String, String> query(HttpExchange exchange) {
+        Map<String, String> params = new HashMap<>();
+        URI uri = exchange.getRequestURI();
+        if (uri.getRawQuery() == null) {
+            return params;
+        }
+        for (String pair : uri.getRawQuery().split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                    URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return params;
+    }
+
+    private static Map<String, Object> error(String message) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("error", message);
+        return json;
+    }
+
+    private static void send(HttpExchange exchange, int status, Object body) throws IOException {
+        byte[] bytes = Json.write(body).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+}
@@ -0,0 +1,10 @@
+import java.io.IOException;
+import java.util.function.Consumer;
+
+// Strategy for fetching one URL. An attempt runs on the calling thread and is
+// stopped by interrupting that thread; partial files are left for resuming.
+public interface DownloadEngine {
+    // Returns a process-style exit code, 0 on success
+    int download(String url, String outputPath, DownloadOptions options,
+                 ProgressListener listener, Consumer<String> log) throws IOException, InterruptedException;
+}
@@ -0,0 +1,410 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+// Handle for one queued download. Each job runs its own engine attempt, so
+// any number of them can be paused, resumed or cancelled independently.
+public class DownloadJob implements ProgressListener {
+    public enum State {
+        QUEUED, RUNNING, PAUSED, COMPLETED, FAILED, CANCELLED;
+
+        public boolean isFinished() {
+            return this == COMPLETED || this == FAILED || this == CANCELLED;
+        }
+    }
+
+    private static final AtomicLong NEXT_ID = new AtomicLong(1);
+
+    private final long id;
+    private final String url;
+    private final String outputPath;
+    private final DownloadOptions options;
+    private final DownloadScheduler scheduler;
+    private final long submittedAt;
+
+    private State state = State.QUEUED;
+    private Future<?> future;
+    private int attempt;
+    private int exitCode = -1;
+    private String error;
+    private long startedAt;
+    private long finishedAt;
+    private final ProgressEvent progress = new ProgressEvent();
+    private ProgressParser.Phase phase;
+    private String destination;
+    private long lastDownloaded;
+    // System.nanoTime() readings for the queue wait and first byte metrics
+    private long queuedNanos = System.nanoTime();
+    private long beganNanos;
+    private boolean firstByte;
+    private Consumer<State> onFinished;
+    private PostProcessor.Task postProcessing;
+    private int stalls;
+    private final JobLog jobLog; // null prints to stdout
+    private volatile Consumer<String> logTail;
+
+    DownloadJob(String url, String outputPath, DownloadOptions options, DownloadScheduler scheduler) {
+        this(NEXT_ID.getAndIncrement(), url, outputPath, options, System.currentTimeMillis(), scheduler);
+    }
+
+    private DownloadJob(long id, String url, String outputPath, DownloadOptions options, long submittedAt,
+                        DownloadScheduler scheduler) {
+        this.id = id;
+        this.url = url;
+        this.outputPath = outputPath;
+        this.options = options.copy();
+        this.submittedAt = submittedAt;
+        this.scheduler = scheduler;
+        Path logDirectory = scheduler.getLogDirectory();
+        this.jobLog = logDirectory != null ? new JobLog(logDirectory.resolve(id + ".log")) : null;
+    }
+
+    // A job of an earlier run under its old ID, paused if it was, queued
+    // otherwise. Jobs created after this get higher IDs.
+    static DownloadJob restore(JobStore.Entry entry, DownloadScheduler scheduler) {
+        NEXT_ID.accumulateAndGet(entry.getId() + 1, Math::max);
+        DownloadJob job = new DownloadJob(entry.getId(), entry.getUrl(), entry.getOutputPath(), entry.getOptions(),
+            entry.getSubmittedAt(), scheduler);
+        job.destination = entry.getDestination();
+        if (entry.getState() == State.PAUSED) {
+            job.state = State.PAUSED;
+        }
+        return job;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public String getOutputPath() {
+        return outputPath;
+    }
+
+    public DownloadOptions getOptions() {
+        return options;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized int getExitCode() {
+        return exitCode;
+    }
+
+    public synchronized String getError() {
+        return error;
+    }
+
+    public long getSubmittedAt() {
+        return submittedAt;
+    }
+
+    public synchronized long getStartedAt() {
+        return startedAt;
+    }
+
+    public synchronized long getFinishedAt() {
+        return finishedAt;
+    }
+
+    // Latest parsed progress, copied so callers can keep it
+    public synchronized ProgressEvent getProgress() {
+        return progress.copy();
+    }
+
+    public synchronized ProgressParser.Phase getPhase() {
+        return phase;
+    }
+
+    public synchronized String getDestination() {
+        return destination;
+    }
+
+    @Override
+    public void onProgress(ProgressEvent event) {
+        long delta = 0;
+        synchronized (this) {
+            progress.copyFrom(event);
+            long downloaded = event.getDownloadedBytes();
+            if (downloaded >= 0) {
+                if (!firstByte && downloaded > 0) {
+                    firstByte = true;
+                    Metrics.JOB_FIRST_BYTE.recordSince(beganNanos);
+                }
+                // The first report after a (re)start is the baseline, since --continue
+                // picks up partial files; a smaller count means a new file started
+                if (lastDownloaded >= 0) {
+                    delta = downloaded >= lastDownloaded ? downloaded - lastDownloaded : downloaded;
+                }
+                lastDownloaded = downloaded;
+            }
+        }
+        if (delta > 0) {
+            scheduler.recordBytes(delta);
+        }
+        EventBus events = scheduler.getEvents();
+        if (events.hasSubscribers()) {
+            events.publish(JobEvent.progress(id, event));
+        }
+    }
+
+    @Override
+    public void onPhase(ProgressParser.Phase phase) {
+        synchronized (this) {
+            this.phase = phase;
+        }
+        scheduler.getEvents().publish(JobEvent.phase(id, phase));
+    }
+
+    @Override
+    public void onDestination(String path) {
+        synchronized (this) {
+            destination = path;
+            lastDownloaded = -1;
+        }
+        scheduler.getEvents().publish(JobEvent.destination(id, path));
+    }
+
+    // This job's events; see EventBus for the deliveries
+    public Flow.Publisher<JobEvent> events(EventBus.Delivery delivery) {
+        return scheduler.getEvents().forJob(id, delivery);
+    }
+
+    // Run after the engine returns, so the worker is free while ffmpeg runs
+    @Override
+    public synchronized boolean deferPostProcessing(PostProcessor.Task task) {
+        postProcessing = task;
+        return true;
+    }
+
+    public double getWeight() {
+        return options.getWeight();
+    }
+
+    // Takes effect immediately, including for a job that is already running
+    public void setWeight(double weight) {
+        options.weight(weight);
+        BandwidthLimiter.shared().rebalance();
+    }
+
+    // Stops the process but keeps the partial file; resume() continues it
+    public boolean pause() {
+        synchronized (this) {
+            if (state != State.QUEUED && state != State.RUNNING) {
+                return false;
+            }
+            stop(State.PAUSED);
+        }
+        scheduler.withdraw(this); // outside the lock, it looks at the other jobs of a batch
+        return true;
+    }
+
+    public synchronized boolean resume() {
+        if (state != State.PAUSED) {
+            return false;
+        }
+        setState(State.QUEUED);
+        scheduler.enqueue(this);
+        return true;
+    }
+
+    public boolean cancel() {
+        synchronized (this) {
+            if (state.isFinished()) {
+                return false;
+            }
+            stop(State.CANCELLED);
+        }
+        scheduler.withdraw(this);
+        return true;
+    }
+
+    // Blocks until the job is no longer queued or running
+    public synchronized State await() throws InterruptedException {
+        while (state == State.QUEUED || state == State.RUNNING) {
+            wait();
+        }
+        return state;
+    }
+
+    // Runs action with the final state once the job is completed, failed or
+    // cancelled; a pause doesn't count, the job may still be resumed
+    synchronized void whenFinished(Consumer<State> action) {
+        if (state.isFinished()) {
+            action.accept(state);
+        } else {
+            onFinished = onFinished != null ? onFinished.andThen(action) : action;
+        }
+    }
+
+    // self is the worker's future, which pause() and cancel() stop
+    void run(Future<?> self) {
+        int thisAttempt = begin(self);
+        if (thisAttempt == 0) {
+            return;
+        }
+        long began = System.nanoTime();
+        try {
+            int code = scheduler.engineFor(options).download(url, outputPath, options, this, this::log);
+            PostProcessor.Task task = takePostProcessing();
+            if (code == 0 && task != null) {
+                postProcess(thisAttempt, task);
+            } else {
+                finish(thisAttempt, code, code == 0 ? State.COMPLETED : State.FAILED, null);
+            }
+        } catch (IOException e) {
+            finish(thisAttempt, -1, State.FAILED, e.getMessage());
+        } catch (InterruptedException e) {
+            finish(thisAttempt, -1, State.CANCELLED, "Interrupted");
+            Thread.currentThread().interrupt();
+        } finally {
+            Metrics.DOWNLOAD_STAGE.recordSince(began);
+        }
+    }
+
+    // Stalls seen across batch runs; returns the new count
+    synchronized int recordStall() {
+        return ++stalls;
+    }
+
+    private synchronized PostProcessor.Task takePostProcessing() {
+        PostProcessor.Task task = postProcessing;
+        postProcessing = null;
+        return task;
+    }
+
+    // The job stays RUNNING until the task is done; pause and cancel stop ffmpeg
+    private synchronized void postProcess(int thisAttempt, PostProcessor.Task task) {
+        if (attempt != thisAttempt || state != State.RUNNING) {
+            return;
+        }
+        future = PostProcessor.shared().submit(() -> {
+            try {
+                int code = task.run(this);
+                finish(thisAttempt, code, code == 0 ? State.COMPLETED : State.FAILED,
+                    code == 0 ? null : "ffmpeg exited with code " + code);
+            } catch (IOException e) {
+                finish(thisAttempt, -1, State.FAILED, e.getMessage());
+            } catch (InterruptedException e) {
+                finish(thisAttempt, -1, State.CANCELLED, "Interrupted");
+            }
+        });
+    }
+
+    // Marks a queued job as running on the worker behind future; returns the
+    // attempt number, or 0 if it was paused or cancelled while waiting. Only
+    // the attempt that began holds the future, so a second dispatch of the
+    // same job can't replace it.
+    synchronized int begin(Future<?> future) {
+        if (state != State.QUEUED) {
+            return 0;
+        }
+        this.future = future;
+        startedAt = System.currentTimeMillis();
+        beganNanos = System.nanoTime();
+        Metrics.QUEUE_WAIT.recordNanos(beganNanos - queuedNanos);
+        firstByte = false;
+        postProcessing = null;
+        lastDownloaded = -1;
+        setState(State.RUNNING);
+        return ++attempt;
+    }
+
+    synchronized void finish(int thisAttempt, int code, State result, String message) {
+        if (attempt != thisAttempt || state != State.RUNNING) {
+            return; // paused, cancelled or already resumed; keep that state
+        }
+        future = null;
+        exitCode = code;
+        error = message;
+        finishedAt = System.currentTimeMillis();
+        setState(result);
+        if (result == State.COMPLETED) {
+            Metrics.JOBS_COMPLETED.increment();
+        } else if (result == State.FAILED) {
+            Metrics.JOBS_FAILED.increment();
+        }
+        scheduler.onJobFinished(this);
+    }
+
+    // Puts a running job back in the queue, e.g. when a batch it shared with
+    // a paused job had to be stopped
+    synchronized void requeue(int thisAttempt) {
+        if (attempt != thisAttempt || state != State.RUNNING) {
+            return;
+        }
+        future = null;
+        setState(State.QUEUED);
+        try {
+            scheduler.enqueue(this);
+        } catch (RejectedExecutionException e) {
+            stop(State.CANCELLED); // scheduler is shutting down
+        }
+    }
+
+    void log(String line) {
+        if (jobLog != null) {
+            jobLog.append(line);
+        } else {
+            System.out.println("#" + id + "> " + line);
+        }
+        Consumer<String> tail = logTail;
+        if (tail != null) {
+            tail.accept(line);
+        }
+    }
+
+    // Null when the scheduler prints job output instead of keeping it
+    public JobLog getLog() {
+        return jobLog;
+    }
+
+    // Hands every further line to consumer, e.g. while the job is selected
+    // in a view; null stops
+    public void tailLog(Consumer<String> consumer) {
+        logTail = consumer;
+    }
+
+    // Interrupting the worker makes the engine stop its process or connections
+    private void stop(State newState) {
+        if (future != null) {
+            future.cancel(true);
+            future = null;
+        }
+        if (newState.isFinished()) {
+            finishedAt = System.currentTimeMillis();
+        }
+        setState(newState);
+    }
+
+    private void setState(State newState) {
+        if (newState == State.QUEUED) {
+            queuedNanos = System.nanoTime();
+        }
+        state = newState;
+        if (jobLog != null && newState != State.RUNNING) {
+            jobLog.close();
+        }
+        scheduler.getEvents().publish(JobEvent.state(id, newState)); // never blocks, so fine under the lock
+        notifyAll();
+        if (onFinished != null && newState.isFinished()) {
+            Consumer<State> action = onFinished;
+            onFinished = null;
+            action.accept(newState);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "#" + id + " [" + getState() + "] " + url;
+    }
+}
@@ -0,0 +1,249 @@
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Per-job settings. Setters return this so options can be built inline:
+// new DownloadOptions().format("bestaudio").engine(DownloadOptions.Engine.NATIVE)
+public class DownloadOptions {
+    public enum Engine {
+        YT_DLP,  // yt-dlp's own downloader
+        ARIA2C,  // yt-dlp with aria2c as external downloader
+        NATIVE   // yt-dlp only resolves URLs, segments are fetched in-process
+    }
+
+    private String format;
+    private FormatPolicy quality;
+    private Engine engine = Engine.YT_DLP;
+    private int segments = SegmentedDownloader.DEFAULT_SEGMENTS;
+    private long segmentSize = SegmentedDownloader.DEFAULT_SEGMENT_SIZE;
+    private Path archiveFile;
+    private volatile double weight = 1;
+    private String container;
+    private long stallTimeout = Long.getLong("downloader.stallTimeout", 120);
+    private int stallRestarts = Integer.getInteger("downloader.stallRestarts", 3);
+    private boolean extractAudio;
+    private boolean deduplicate = Boolean.parseBoolean(System.getProperty("downloader.dedup", "true"));
+
+    public String getFormat() {
+        return format;
+    }
+
+    // yt-dlp format selector; null leaves it to yt-dlp
+    public DownloadOptions format(String format) {
+        this.format = format;
+        return this;
+    }
+
+    public FormatPolicy getQuality() {
+        return quality;
+    }
+
+    // Chooses the format from what the probe offers when no format is set
+    public DownloadOptions quality(FormatPolicy quality) {
+        this.quality = quality;
+        return this;
+    }
+
+    public Engine getEngine() {
+        return engine;
+    }
+
+    public DownloadOptions engine(Engine engine) {
+        this.engine = engine;
+        return this;
+    }
+
+    public int getSegments() {
+        return segments;
+    }
+
+    // Parallel connections per file (aria2c -s/-x, or native range requests)
+    public DownloadOptions segments(int segments) {
+        if (segments < 1) {
+            throw new IllegalArgumentException("segments must be positive");
+        }
+        this.segments = segments;
+        return this;
+    }
+
+    public long getSegmentSize() {
+        return segmentSize;
+    }
+
+    // Bytes per range request for the native engine
+    public DownloadOptions segmentSize(long segmentSize) {
+        if (segmentSize < 1) {
+            throw new IllegalArgumentException("segmentSize must be positive");
+        }
+        this.segmentSize = segmentSize;
+        return this;
+    }
+
+    public Path getArchiveFile() {
+        return archiveFile;
+    }
+
+    public DownloadOptions archiveFile(Path archiveFile) {
+        this.archiveFile = archiveFile;
+        return this;
+    }
+
+    public double getWeight() {
+        return weight;
+    }
+
+    // Relative share of the global bandwidth limit; see DownloadJob.setWeight
+    // for changing it while the job runs
+    public DownloadOptions weight(double weight) {
+        if (!(weight > 0)) {
+            throw new IllegalArgumentException("weight must be positive");
+        }
+        this.weight = weight;
+        return this;
+    }
+
+    public String getContainer() {
+        return container;
+    }
+
+    // Output container for merges and remuxes, e.g. "mp4" or "mkv"; null
+    // keeps what the streams came in, or what yt-dlp would merge into
+    public DownloadOptions container(String container) {
+        this.container = container;
+        return this;
+    }
+
+    public boolean isExtractAudio() {
+        return extractAudio;
+    }
+
+    // Keeps only the audio of a single-file download
+    public DownloadOptions extractAudio(boolean extractAudio) {
+        this.extractAudio = extractAudio;
+        return this;
+    }
+
+    public boolean isDeduplicate() {
+        return deduplicate;
+    }
+
+    // Replaces a finished file with a hard link to an identical one already
+    // in the output directory, or skips media that is there already
+    public DownloadOptions deduplicate(boolean deduplicate) {
+        this.deduplicate = deduplicate;
+        return this;
+    }
+
+    public long getStallTimeout() {
+        return stallTimeout;
+    }
+
+    // Seconds without progress before a download counts as stalled; 0 never does
+    public DownloadOptions stallTimeout(long seconds) {
+        if (seconds < 0) {
+            throw new IllegalArgumentException("stallTimeout must not be negative");
+        }
+        this.stallTimeout = seconds;
+        return this;
+    }
+
+    public int getStallRestarts() {
+        return stallRestarts;
+    }
+
+    // How often a stalled download is restarted before it fails
+    public DownloadOptions stallRestarts(int restarts) {
+        if (restarts < 0) {
+            throw new IllegalArgumentException("stallRestarts must not be negative");
+        }
+        this.stallRestarts = restarts;
+        return this;
+    }
+
+    // For JobStore; only what differs from the defaults, fromJson reads it back
+    public Map<String, Object> toJson() {
+        DownloadOptions defaults = new DownloadOptions();
+        Map<String, Object> json = new LinkedHashMap<>();
+        if (format != null) {
+            json.put("format", format);
+        }
+        if (quality != null) {
+            json.put("quality", quality.toJson());
+        }
+        if (engine != defaults.engine) {
+            json.put("engine", engine.name());
+        }
+        if (segments != defaults.segments) {
+            json.put("segments", segments);
+        }
+        if (segmentSize != defaults.segmentSize) {
+            json.put("segmentSize", segmentSize);
+        }
+        if (archiveFile != null) {
+            json.put("archiveFile", archiveFile.toString());
+        }
+        if (weight != defaults.weight) {
+            json.put("weight", weight);
+        }
+        if (container != null) {
+            json.put("container", container);
+        }
+        if (extractAudio) {
+            json.put("extractAudio", true);
+        }
+        if (deduplicate != defaults.deduplicate) {
+            json.put("deduplicate", deduplicate);
+        }
+        if (stallTimeout != defaults.stallTimeout) {
+            json.put("stallTimeout", stallTimeout);
+        }
+        if (stallRestarts != defaults.stallRestarts) {
+            json.put("stallRestarts", stallRestarts);
+        }
+        return json;
+    }
+
+    // Missing keys keep their defaults
+    public static DownloadOptions fromJson(Map<String, Object> json) {
+        DownloadOptions options = new DownloadOptions();
+        options.format = Json.getString(json, "format");
+        Map<String, Object> quality = Json.getObject(json, "quality");
+        options.quality = quality != null ? FormatPolicy.fromJson(quality) : null;
+        String engine = Json.getString(json, "engine");
+        if (engine != null) {
+            options.engine = Engine.valueOf(engine);
+        }
+        options.segments = (int) Json.getLong(json, "segments", options.segments);
+        options.segmentSize = Json.getLong(json, "segmentSize", options.segmentSize);
+        String archive = Json.getString(json, "archiveFile");
+        options.archiveFile = archive != null ? Paths.get(archive) : null;
+        options.weight = Json.getDouble(json, "weight", options.weight);
+        options.container = Json.getString(json, "container");
+        options.extractAudio = Boolean.TRUE.equals(json.get("extractAudio"));
+        if (json.get("deduplicate") instanceof Boolean) {
+            options.deduplicate = (Boolean) json.get("deduplicate");
+        }
+        options.stallTimeout = Json.getLong(json, "stallTimeout", options.stallTimeout);
+        options.stallRestarts = (int) Json.getLong(json, "stallRestarts", options.stallRestarts);
+        return options;
+    }
+
+    // Jobs keep their own copy, so one options object can be reused for many
+    public DownloadOptions copy() {
+        DownloadOptions copy = new DownloadOptions();
+        copy.format = format;
+        copy.quality = quality;
+        copy.engine = engine;
+        copy.segments = segments;
+        copy.segmentSize = segmentSize;
+        copy.archiveFile = archiveFile;
+        copy.weight = weight;
+        copy.container = container;
+        copy.extractAudio = extractAudio;
+        copy.deduplicate = deduplicate;
+        copy.stallTimeout = stallTimeout;
+        copy.stallRestarts = stallRestarts;
+        return copy;
+    }
+}
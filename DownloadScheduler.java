@@ -0,0 +1,465 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+// Runs any number of submitted jobs on a fixed number of workers. Workers
+// spend nearly all their time waiting on a child process, so the pool size
+// is about how many downloads should share the link, not about CPU. On top
+// of that, HostConcurrency holds jobs back while their host is at its limit.
+public class DownloadScheduler {
+    private static final ScheduledExecutorService BATCH_TIMER =
+        Executors.newSingleThreadScheduledExecutor(daemonThreads("batch-flush"));
+
+    private final int workerCount;
+    private final ExecutorService workers;
+    private final Map<Long, DownloadJob> jobs = new ConcurrentHashMap<>();
+    private final ThroughputMeter completions = new ThroughputMeter(60);
+    private final ThroughputMeter bytes = new ThroughputMeter();
+    private final DownloadEngine ytDlpEngine = new ArchivingEngine(new DeduplicatingEngine(
+        new FormatSelectingEngine(new YtDlpEngine())));
+    private final DownloadEngine nativeEngine = new ArchivingEngine(new DeduplicatingEngine(
+        new FormatSelectingEngine(new NativeEngine())));
+    private final Map<String, List<DownloadJob>> pendingBatches = new HashMap<>();
+    private final EventBus events = new EventBus();
+    private volatile int maxBatchSize = 1;
+    private volatile long batchDelayMillis;
+    // Dispatched work still waiting for a volume or host slot; shutdown() lets it run first
+    private final Set<Dispatch> waitingForSlot = ConcurrentHashMap.newKeySet();
+    private volatile boolean shuttingDown;
+    private volatile boolean stopped;
+    private volatile Path logDirectory;
+    private volatile JobStore store;
+
+    public DownloadScheduler(int workerCount) {
+        this(workerCount, daemonThreads("download-worker"));
+    }
+
+    // Pass Thread.ofVirtual().factory() on Java 21+ to run workers as virtual threads
+    public DownloadScheduler(int workerCount, ThreadFactory threadFactory) {
+        if (workerCount < 1) {
+            throw new IllegalArgumentException("workerCount must be positive");
+        }
+        this.workerCount = workerCount;
+        this.workers = Executors.newFixedThreadPool(workerCount, threadFactory);
+    }
+
+    public static int defaultWorkers() {
+        return Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+    }
+
+    public DownloadJob submit(String url, String outputPath) {
+        return submit(url, outputPath, new DownloadOptions());
+    }
+
+    // With a job store, the job is on disk after the store's next commit;
+    // awaitStored() waits for that
+    public DownloadJob submit(String url, String outputPath, DownloadOptions options) {
+        DownloadJob job = new DownloadJob(url, outputPath, options, this);
+        jobs.put(job.getId(), job);
+        JobStore current = store;
+        if (current != null) {
+            current.submitted(job);
+        }
+        enqueue(job);
+        return job;
+    }
+
+    public List<DownloadJob> submitAll(Collection<String> urls, String outputPath) {
+        return submitAll(urls, outputPath, new DownloadOptions());
+    }
+
+    public List<DownloadJob> submitAll(Collection<String> urls, String outputPath, DownloadOptions options) {
+        List<DownloadJob> submitted = new ArrayList<>(urls.size());
+        for (String url : urls) {
+            submitted.add(submit(url, outputPath, options));
+        }
+        return submitted;
+    }
+
+    // Blocks until the job store has every job submitted so far, which for
+    // a whole submitAll() is one commit; throws if the store couldn't write
+    // them. The jobs run either way, but a restart won't know them.
+    public void awaitStored() throws IOException, InterruptedException {
+        JobStore current = store;
+        if (current != null) {
+            current.awaitDurable();
+        }
+    }
+
+    // Keeps the queue in store from now on and takes back the jobs an earlier
+    // run left there: paused ones stay paused, the rest are queued again and
+    // continue from their partial files. Call before submitting anything.
+    public List<DownloadJob> restore(JobStore store) {
+        this.store = store;
+        events.subscribe(store::record, EventBus.Delivery.CHANGES, EventBus.ANY_JOB, Runnable::run);
+        List<DownloadJob> restored = new ArrayList<>();
+        for (JobStore.Entry entry : store.getRecovered()) {
+            DownloadJob job = DownloadJob.restore(entry, this);
+            jobs.put(job.getId(), job);
+            restored.add(job);
+        }
+        for (DownloadJob job : restored) {
+            if (job.getState() == DownloadJob.State.QUEUED) {
+                enqueue(job);
+            }
+        }
+        return restored;
+    }
+
+    // Null without one
+    public JobStore getJobStore() {
+        return store;
+    }
+
+    // Lets up to maxBatchSize queued yt-dlp jobs with the same options share
+    // one process. A partial batch starts flushDelayMillis after its first
+    // job was queued; a size of 1 turns batching off.
+    public void setBatching(int maxBatchSize, long flushDelayMillis) {
+        if (maxBatchSize < 1 || flushDelayMillis < 0) {
+            throw new IllegalArgumentException("maxBatchSize must be positive and flushDelayMillis not negative");
+        }
+        this.maxBatchSize = maxBatchSize;
+        this.batchDelayMillis = flushDelayMillis;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public long getBatchDelayMillis() {
+        return batchDelayMillis;
+    }
+
+    void enqueue(DownloadJob job) {
+        if (maxBatchSize > 1 && YtDlpBatch.canBatch(job)) {
+            addToBatch(job);
+        } else {
+            dispatch(List.of(job), job::run);
+        }
+    }
+
+    private void addToBatch(DownloadJob job) {
+        String key = YtDlpBatch.groupKey(job);
+        List<DownloadJob> full = null;
+        synchronized (pendingBatches) {
+            List<DownloadJob> group = pendingBatches.get(key);
+            if (group == null) {
+                group = new ArrayList<>();
+                pendingBatches.put(key, group);
+                List<DownloadJob> scheduled = group;
+                BATCH_TIMER.schedule(() -> flushBatch(key, scheduled), batchDelayMillis, TimeUnit.MILLISECONDS);
+            }
+            group.add(job);
+            if (group.size() >= maxBatchSize) {
+                pendingBatches.remove(key);
+                full = group;
+            }
+        }
+        if (full != null) {
+            startBatch(full);
+        }
+    }
+
+    private void flushBatch(String key, List<DownloadJob> group) {
+        synchronized (pendingBatches) {
+            if (!pendingBatches.remove(key, group)) {
+                return; // already started because it filled up
+            }
+        }
+        startBatch(group);
+    }
+
+    private void flushAllBatches() {
+        List<List<DownloadJob>> groups;
+        synchronized (pendingBatches) {
+            groups = new ArrayList<>(pendingBatches.values());
+            pendingBatches.clear();
+        }
+        for (List<DownloadJob> group : groups) {
+            startBatch(group);
+        }
+    }
+
+    private void startBatch(List<DownloadJob> group) {
+        if (group.size() == 1) {
+            DownloadJob job = group.get(0);
+            dispatch(group, job::run);
+            return;
+        }
+        dispatch(group, new YtDlpBatch(group)::run); // batches are grouped by host
+    }
+
+    // Runs work on a worker once its volume and the host of its jobs both have a free slot
+    private void dispatch(List<DownloadJob> group, Consumer<Future<?>> work) {
+        Dispatch dispatch = new Dispatch(group, work);
+        waitingForSlot.add(dispatch);
+        dispatch.volume.submit(dispatch.onVolume);
+    }
+
+    // Work waiting for its volume and host slots. Neither is held while it
+    // waits for the other: whichever comes free first is kept only if the
+    // other one is free too, otherwise it is passed on and the work queues
+    // for the other. Work whose jobs were all paused or cancelled meanwhile,
+    // or that shutdownNow() stopped, passes its slot on.
+    private final class Dispatch {
+        final List<DownloadJob> group;
+        final Consumer<Future<?>> work; // gets its own future, for the jobs that begin on it
+        final HostConcurrency.Host host;
+        final DiskAdmission.Volume volume;
+        final Runnable onVolume = this::volumeFree;
+        final Runnable onHost = this::hostFree;
+
+        private FutureTask<Void> future;
+
+        Dispatch(List<DownloadJob> group, Consumer<Future<?>> work) {
+            this.group = group;
+            this.work = work;
+            this.host = HostConcurrency.shared().host(group.get(0).getUrl());
+            this.volume = DiskAdmission.shared().writeVolume(group.get(0).getOutputPath());
+        }
+
+        private void volumeFree() {
+            if (skipped()) {
+                volume.release();
+                done();
+                return;
+            }
+            if (host.tryAcquire()) {
+                start();
+                return;
+            }
+            volume.release();
+            host.submit(onHost);
+        }
+
+        private void hostFree() {
+            if (skipped()) {
+                host.release();
+                done();
+                return;
+            }
+            if (volume.tryAcquire()) {
+                start();
+                return;
+            }
+            host.release();
+            volume.submit(onVolume);
+        }
+
+        // Holds both slots
+        private void start() {
+            future = new FutureTask<>(this::runWork, null);
+            try {
+                workers.execute(future);
+            } catch (RejectedExecutionException e) {
+                host.release();
+                volume.release();
+                if (!stopped) {
+                    throw e;
+                }
+                return; // shutdownNow() got in between
+            } finally {
+                done();
+            }
+        }
+
+        private void runWork() {
+            try {
+                work.accept(future);
+            } finally {
+                host.release();
+                volume.release();
+            }
+        }
+
+        private boolean skipped() {
+            if (stopped) {
+                return true;
+            }
+            for (DownloadJob job : group) {
+                if (job.getState() == DownloadJob.State.QUEUED) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Out of both queues for shutdownNow(); a start already on its way sees stopped
+        void withdraw() {
+            if (volume.withdraw(onVolume) | host.withdraw(onHost)) {
+                done();
+            }
+        }
+
+        private void done() {
+            if (waitingForSlot.remove(this) && waitingForSlot.isEmpty() && shuttingDown) {
+                workers.shutdown();
+            }
+        }
+    }
+
+    // Takes work for a job that was just paused or cancelled out of the slot
+    // queues, unless another job of its batch still waits for it
+    void withdraw(DownloadJob job) {
+        for (Dispatch dispatch : waitingForSlot) {
+            if (dispatch.group.contains(job) && dispatch.skipped()) {
+                dispatch.withdraw();
+            }
+        }
+    }
+
+    DownloadEngine engineFor(DownloadOptions options) {
+        return options.getEngine() == DownloadOptions.Engine.NATIVE ? nativeEngine : ytDlpEngine;
+    }
+
+    void onJobFinished(DownloadJob job) {
+        completions.record(1);
+    }
+
+    void recordBytes(long count) {
+        bytes.record(count);
+        Metrics.BYTES.add(count);
+    }
+
+    // State changes and progress of all jobs
+    public EventBus getEvents() {
+        return events;
+    }
+
+    public DownloadJob getJob(long id) {
+        return jobs.get(id);
+    }
+
+    public Collection<DownloadJob> getJobs() {
+        return jobs.values();
+    }
+
+    // Forget finished jobs so long-running schedulers don't grow without bound
+    public int removeFinished() {
+        int before = jobs.size();
+        jobs.values().removeIf(job -> {
+            if (!job.getState().isFinished()) {
+                return false;
+            }
+            if (job.getLog() != null) {
+                job.getLog().delete();
+            }
+            return true;
+        });
+        return before - jobs.size();
+    }
+
+    // Jobs submitted from now on keep their output in <id>.log files here
+    // instead of printing it; null prints
+    public void setLogDirectory(Path directory) {
+        this.logDirectory = directory;
+    }
+
+    public Path getLogDirectory() {
+        return logDirectory;
+    }
+
+    public int getWorkerCount() {
+        return workerCount;
+    }
+
+    public int countJobs(DownloadJob.State state) {
+        int count = 0;
+        for (DownloadJob job : jobs.values()) {
+            if (job.getState() == state) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public long getCompletedJobs() {
+        return completions.total();
+    }
+
+    public double getCompletionsPerMinute() {
+        return completions.ratePerSecond() * 60;
+    }
+
+    // Aggregate download rate of all running jobs
+    public double getBytesPerSecond() {
+        return bytes.ratePerSecond();
+    }
+
+    public long getTotalBytes() {
+        return bytes.total();
+    }
+
+    // Queued jobs, including partial batches, still run
+    public void shutdown() {
+        flushAllBatches();
+        shuttingDown = true;
+        if (waitingForSlot.isEmpty()) {
+            workers.shutdown();
+        }
+    }
+
+    // Cancels everything still queued or running. A job store is closed
+    // first, so it still has those jobs for the next run.
+    public void shutdownNow() {
+        closeStore();
+        for (DownloadJob job : jobs.values()) {
+            job.cancel();
+        }
+        synchronized (pendingBatches) {
+            pendingBatches.clear();
+        }
+        stopped = true;
+        // Left in the shared host and volume queues, they would be started
+        // by some later release() and find the workers gone
+        for (Dispatch dispatch : new ArrayList<>(waitingForSlot)) {
+            dispatch.withdraw();
+        }
+        workers.shutdownNow();
+    }
+
+    // A job store is closed once the workers are done
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        boolean terminated = workers.awaitTermination(timeout, unit);
+        if (terminated) {
+            closeStore();
+        }
+        return terminated;
+    }
+
+    private void closeStore() {
+        JobStore current = store;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                System.err.println("Could not close job store " + current.getFile() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger counter = new AtomicInteger(1);
+        return r -> {
+            Thread t = new Thread(r, prefix + "-" + counter.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
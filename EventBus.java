@@ -0,0 +1,249 @@
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+// Job events for any number of subscribers, as a Flow.Publisher. Publishing
+// never blocks: each subscription has its own buffer and is drained on the
+// executor the subscriber chose, e.g. the EDT or an HTTP handler's thread.
+// What piles up while that executor is busy depends on the delivery: LATEST
+// keeps only the newest progress of each job, so a slow consumer can't hold
+// up the threads reading a child process's output and its buffer stays
+// bounded by the number of jobs, while state, phase and destination changes
+// are always delivered in order.
+public class EventBus implements Flow.Publisher<JobEvent> {
+    public enum Delivery {
+        ALL,     // every event; the buffer grows while the subscriber lags
+        LATEST,  // progress conflated to the newest per job, everything else kept
+        CHANGES  // no progress at all, e.g. for a journal
+    }
+
+    // Subscribe to every job
+    public static final long ANY_JOB = 0;
+
+    private static final ExecutorService DELIVERY = Executors.newCachedThreadPool(
+        DownloadScheduler.daemonThreads("event-delivery"));
+
+    private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    public static Executor defaultExecutor() {
+        return DELIVERY;
+    }
+
+    // Lossless, for every job, on the shared delivery threads
+    @Override
+    public void subscribe(Flow.Subscriber<? super JobEvent> subscriber) {
+        subscribe(subscriber, Delivery.ALL, ANY_JOB, DELIVERY);
+    }
+
+    public void subscribe(Flow.Subscriber<? super JobEvent> subscriber, Delivery delivery, long jobId, Executor executor) {
+        Subscription subscription = new Subscription(subscriber, delivery, jobId, executor);
+        subscriber.onSubscribe(subscription);
+        subscriptions.add(subscription);
+    }
+
+    // Calls onEvent for everything matching, without flow control; cancel
+    // the returned subscription to stop
+    public Flow.Subscription subscribe(Consumer<? super JobEvent> onEvent, Delivery delivery, long jobId,
+                                       Executor executor) {
+        Subscription[] holder = new Subscription[1];
+        subscribe(new Flow.Subscriber<JobEvent>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                holder[0] = (Subscription) subscription;
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(JobEvent event) {
+                onEvent.accept(event);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                System.err.println("Event subscriber failed: " + throwable);
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        }, delivery, jobId, executor);
+        return holder[0];
+    }
+
+    // The events of one job
+    public Flow.Publisher<JobEvent> forJob(long jobId, Delivery delivery) {
+        return subscriber -> subscribe(subscriber, delivery, jobId, DELIVERY);
+    }
+
+    public boolean hasSubscribers() {
+        return !subscriptions.isEmpty();
+    }
+
+    public int getSubscriberCount() {
+        return subscriptions.size();
+    }
+
+    public void publish(JobEvent event) {
+        for (Subscription subscription : subscriptions) {
+            subscription.offer(event);
+        }
+    }
+
+    // Publishes what an engine reports as events of jobId
+    public ProgressListener listener(long jobId) {
+        return new ProgressListener() {
+            @Override
+            public void onProgress(ProgressEvent event) {
+                if (hasSubscribers()) { // saves the copy
+                    publish(JobEvent.progress(jobId, event));
+                }
+            }
+
+            @Override
+            public void onPhase(ProgressParser.Phase phase) {
+                publish(JobEvent.phase(jobId, phase));
+            }
+
+            @Override
+            public void onDestination(String path) {
+                publish(JobEvent.destination(jobId, path));
+            }
+        };
+    }
+
+    private final class Subscription implements Flow.Subscription, Runnable {
+        private final Flow.Subscriber<? super JobEvent> subscriber;
+        private final Delivery delivery;
+        private final long jobId;
+        private final Executor executor;
+        // JobEvents, or the Latest holding a job's newest progress
+        private final Queue<Object> queue = new ConcurrentLinkedQueue<>();
+        private final Map<Long, Latest> latest = new ConcurrentHashMap<>();
+        private final AtomicLong sequence = new AtomicLong(); // counts what was queued
+        private volatile long lastChange; // sequence of the newest queued JobEvent
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger pending = new AtomicInteger(); // drains asked for, at most one runs
+        private volatile boolean cancelled;
+
+        Subscription(Flow.Subscriber<? super JobEvent> subscriber, Delivery delivery, long jobId, Executor executor) {
+            this.subscriber = subscriber;
+            this.delivery = delivery;
+            this.jobId = jobId;
+            this.executor = executor;
+        }
+
+        void offer(JobEvent event) {
+            if (cancelled || (jobId != ANY_JOB && event.getJobId() != jobId)) {
+                return;
+            }
+            if (event.getType() == JobEvent.Type.PROGRESS && delivery != Delivery.ALL) {
+                if (delivery == Delivery.CHANGES) {
+                    return;
+                }
+                // Newer progress takes the place of the undelivered one unless a
+                // change was queued since, which it must not overtake; then it
+                // goes to the tail and the old place is skipped
+                boolean[] queued = {false};
+                Latest entry = latest.compute(event.getJobId(), (id, old) -> {
+                    if (old != null) {
+                        Metrics.EVENTS_CONFLATED.increment(); // replaced one that wasn't delivered yet
+                        if (old.sequence > lastChange) {
+                            old.event = event;
+                            return old;
+                        }
+                    }
+                    queued[0] = true;
+                    return new Latest(event, sequence.incrementAndGet());
+                });
+                if (!queued[0]) {
+                    return;
+                }
+                queue.add(entry);
+            } else {
+                lastChange = sequence.incrementAndGet();
+                queue.add(event);
+            }
+            drainLater();
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                cancel();
+                subscriber.onError(new IllegalArgumentException("request must be positive, was " + n));
+                return;
+            }
+            demand.accumulateAndGet(n, (current, added) -> current + added < 0 ? Long.MAX_VALUE : current + added);
+            drainLater();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            subscriptions.remove(this);
+            queue.clear();
+            latest.clear();
+        }
+
+        private void drainLater() {
+            if (pending.getAndIncrement() == 0) {
+                executor.execute(this);
+            }
+        }
+
+        // Runs on the subscriber's executor; never twice at the same time
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                while (!cancelled && demand.get() > 0) {
+                    Object next = queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    JobEvent event;
+                    if (next instanceof Latest) {
+                        Latest entry = (Latest) next;
+                        event = latest.remove(entry.event.getJobId(), entry) ? entry.event : null;
+                    } else {
+                        event = (JobEvent) next;
+                    }
+                    if (event == null) {
+                        continue;
+                    }
+                    if (demand.get() != Long.MAX_VALUE) {
+                        demand.decrementAndGet();
+                    }
+                    try {
+                        subscriber.onNext(event);
+                    } catch (RuntimeException e) {
+                        cancel();
+                        subscriber.onError(e);
+                        return;
+                    }
+                }
+                missed = pending.addAndGet(-missed);
+            } while (missed != 0);
+        }
+    }
+
+    // A job's newest undelivered progress and where it waits in the queue
+    private static final class Latest {
+        final long sequence;
+        volatile JobEvent event;
+
+        Latest(JobEvent event, long sequence) {
+            this.event = event;
+            this.sequence = sequence;
+        }
+    }
+}
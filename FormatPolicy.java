@@ -0,0 +1,485 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// What quality a download should have, as opposed to which yt-dlp selector
+// gets it. choose() looks at every format the probe found and takes the
+// highest resolution the policy allows, then the smallest combination of
+// streams at that resolution: an AV1 or VP9 stream is often half the size of
+// the H.264 one that yt-dlp's "best" would take. Where nothing was probed,
+// e.g. in a batch, toSelector() says roughly the same in yt-dlp's syntax.
+public class FormatPolicy {
+    // Video codecs by the name policies use, and the vcodec prefixes yt-dlp reports for them
+    private static final Map<String, List<String>> CODECS = new LinkedHashMap<>();
+    private static final List<String> EXTS = List.of("mp4", "webm");
+
+    static {
+        CODECS.put("av1", List.of("av01"));
+        CODECS.put("vp9", List.of("vp09", "vp9"));
+        CODECS.put("h265", List.of("hev1", "hvc1"));
+        CODECS.put("h264", List.of("avc1", "h264"));
+    }
+
+    private int maxHeight;
+    private List<String> codecs = List.of();
+    private int maxBitrate;
+    private int minAudioBitrate;
+    private boolean audioOnly;
+    private String ext;
+
+    // The choices the GUI offers, by their label
+    public static FormatPolicy preset(String name) {
+        return switch (name) {
+            case "MP4" -> new FormatPolicy().ext("mp4").minAudioBitrate(128);
+            case "WEBM" -> new FormatPolicy().ext("webm").minAudioBitrate(128);
+            case "720p" -> new FormatPolicy().maxHeight(720).minAudioBitrate(128);
+            case "1080p" -> new FormatPolicy().maxHeight(1080).minAudioBitrate(128);
+            case "Audio Only" -> new FormatPolicy().audioOnly(true).minAudioBitrate(128);
+            default -> new FormatPolicy().minAudioBitrate(128);
+        };
+    }
+
+    public int getMaxHeight() {
+        return maxHeight;
+    }
+
+    // Highest resolution wanted, e.g. 1080; 0 takes the highest on offer
+    public FormatPolicy maxHeight(int maxHeight) {
+        if (maxHeight < 0) {
+            throw new IllegalArgumentException("maxHeight must not be negative");
+        }
+        this.maxHeight = maxHeight;
+        return this;
+    }
+
+    public List<String> getCodecs() {
+        return codecs;
+    }
+
+    // Video codecs to use if the site has them: "av1", "vp9", "h265", "h264".
+    // Equal sizes go to the one named first; none given allows any.
+    public FormatPolicy codecs(String... codecs) {
+        List<String> names = new ArrayList<>();
+        for (String codec : codecs) {
+            String name = codec.trim().toLowerCase(Locale.ROOT);
+            if (!CODECS.containsKey(name)) {
+                throw new IllegalArgumentException("Unknown codec " + codec + ", expected one of " + CODECS.keySet());
+            }
+            names.add(name);
+        }
+        this.codecs = List.copyOf(names);
+        return this;
+    }
+
+    public int getMaxBitrate() {
+        return maxBitrate;
+    }
+
+    // Video and audio together, in kbit/s; 0 for no limit
+    public FormatPolicy maxBitrate(int kbps) {
+        if (kbps < 0) {
+            throw new IllegalArgumentException("maxBitrate must not be negative");
+        }
+        this.maxBitrate = kbps;
+        return this;
+    }
+
+    public int getMinAudioBitrate() {
+        return minAudioBitrate;
+    }
+
+    // The smallest audio stream at or above this many kbit/s is taken;
+    // if none is that good, the best there is
+    public FormatPolicy minAudioBitrate(int kbps) {
+        if (kbps < 0) {
+            throw new IllegalArgumentException("minAudioBitrate must not be negative");
+        }
+        this.minAudioBitrate = kbps;
+        return this;
+    }
+
+    public boolean isAudioOnly() {
+        return audioOnly;
+    }
+
+    public FormatPolicy audioOnly(boolean audioOnly) {
+        this.audioOnly = audioOnly;
+        return this;
+    }
+
+    public String getExt() {
+        return ext;
+    }
+
+    // Only streams in this container, "mp4" (with m4a audio) or "webm"; null for any
+    public FormatPolicy ext(String ext) {
+        String name = ext != null ? ext.trim().toLowerCase(Locale.ROOT) : null;
+        if (name != null && !EXTS.contains(name)) {
+            throw new IllegalArgumentException("Unknown ext " + ext + ", expected one of " + EXTS);
+        }
+        this.ext = name;
+        return this;
+    }
+
+    // The formats to download out of those in a probe's info JSON, or null if none fits
+    public Selection choose(Map<String, Object> info) {
+        List<Format> formats = new ArrayList<>();
+        List<Object> raw = Json.getArray(info, "formats");
+        if (raw != null) {
+            double duration = Json.getDouble(info, "duration", -1);
+            for (Object item : raw) {
+                @SuppressWarnings("unchecked")
+                Map<String, Object> format = (Map<String, Object>) item;
+                Format parsed = new Format(format, duration);
+                if (parsed.isUsable()) {
+                    formats.add(parsed);
+                }
+            }
+        }
+        return choose(formats);
+    }
+
+    Selection choose(List<Format> formats) {
+        List<Format> audios = new ArrayList<>();
+        for (Format format : formats) {
+            if (format.isAudioOnly() && extMatches(format)) {
+                audios.add(format);
+            }
+        }
+        Format audio = chooseAudio(audios);
+        if (audioOnly) {
+            return audio != null ? new Selection(List.of(audio)) : null;
+        }
+
+        List<Format> videos = videos(formats, audio, true);
+        if (videos.isEmpty() && !codecs.isEmpty()) {
+            videos = videos(formats, audio, false); // preferred, not required
+        }
+        if (videos.isEmpty()) {
+            return null;
+        }
+        int height = 0;
+        for (Format video : videos) {
+            height = Math.max(height, video.height);
+        }
+        Selection best = null;
+        for (Format video : videos) {
+            if (video.height != height) {
+                continue;
+            }
+            Selection candidate = new Selection(video.hasAudio() ? List.of(video) : List.of(video, audio));
+            if (best == null || compare(candidate, best) < 0) {
+                best = candidate;
+            }
+        }
+        return best;
+    }
+
+    // Roughly the same policy in yt-dlp's selector syntax: alternatives tried in order
+    public String toSelector() {
+        String audioFilter = (ext != null ? "[ext=" + audioExt() + "]" : "");
+        // worstaudio above the floor is the smallest one good enough
+        String audio = minAudioBitrate > 0
+            ? "wa" + audioFilter + "[abr>=" + minAudioBitrate + "]/ba" + audioFilter
+            : "ba" + audioFilter;
+        if (audioOnly) {
+            return ext != null ? audio + "/ba" : audio;
+        }
+        StringBuilder filter = new StringBuilder();
+        if (maxHeight > 0) {
+            filter.append("[height<=").append(maxHeight).append(']');
+        }
+        if (maxBitrate > 0) {
+            filter.append("[tbr<=").append(maxBitrate).append(']');
+        }
+        if (ext != null) {
+            filter.append("[ext=").append(ext).append(']');
+        }
+        List<String> alternatives = new ArrayList<>();
+        String bestAudio = "ba" + audioFilter;
+        for (String codec : codecs) {
+            for (String prefix : CODECS.get(codec)) {
+                alternatives.add("bv" + filter + "[vcodec^=" + prefix + "]+" + bestAudio);
+            }
+        }
+        alternatives.add("bv" + filter + "+" + bestAudio);
+        alternatives.add("b" + filter);
+        alternatives.add("b");
+        return String.join("/", alternatives);
+    }
+
+    public Map<String, Object> toJson() {
+        Map<String, Object> json = new LinkedHashMap<>();
+        if (maxHeight > 0) {
+            json.put("maxHeight", maxHeight);
+        }
+        if (!codecs.isEmpty()) {
+            json.put("codecs", codecs);
+        }
+        if (maxBitrate > 0) {
+            json.put("maxBitrate", maxBitrate);
+        }
+        if (minAudioBitrate > 0) {
+            json.put("minAudioBitrate", minAudioBitrate);
+        }
+        if (audioOnly) {
+            json.put("audioOnly", true);
+        }
+        if (ext != null) {
+            json.put("ext", ext);
+        }
+        return json;
+    }
+
+    // Missing keys keep their defaults; throws IllegalArgumentException for bad values
+    public static FormatPolicy fromJson(Map<String, Object> json) {
+        FormatPolicy policy = new FormatPolicy()
+            .maxHeight(intOf(json, "maxHeight"))
+            .maxBitrate(intOf(json, "maxBitrate"))
+            .minAudioBitrate(intOf(json, "minAudioBitrate"))
+            .audioOnly(Boolean.TRUE.equals(json.get("audioOnly")))
+            .ext(Json.getString(json, "ext"));
+        List<Object> codecs = Json.getArray(json, "codecs");
+        if (codecs != null) {
+            policy.codecs(codecs.stream().map(String::valueOf).toArray(String[]::new));
+        }
+        return policy;
+    }
+
+    private static int intOf(Map<String, Object> json, String key) {
+        long value = Json.getLong(json, key, 0);
+        if (value != (int) value) {
+            throw new IllegalArgumentException(key + " is out of range: " + value);
+        }
+        return (int) value;
+    }
+
+    // Stable text for keys, e.g. ContentIndex.mediaKey
+    @Override
+    public String toString() {
+        return Json.write(toJson());
+    }
+
+    private List<Format> videos(List<Format> formats, Format audio, boolean codecsOnly) {
+        List<Format> videos = new ArrayList<>();
+        for (Format format : formats) {
+            if (!format.hasVideo() || !extMatches(format)) {
+                continue;
+            }
+            if (!format.hasAudio() && audio == null) {
+                continue; // nothing to merge it with
+            }
+            if (maxHeight > 0 && format.height > maxHeight) {
+                continue;
+            }
+            if (codecsOnly && !codecs.isEmpty() && !codecs.contains(format.codec)) {
+                continue;
+            }
+            double bitrate = format.tbr + (format.hasAudio() ? 0 : audio.tbr);
+            if (maxBitrate > 0 && bitrate > maxBitrate) {
+                continue; // an unknown bitrate (0) passes
+            }
+            videos.add(format);
+        }
+        return videos;
+    }
+
+    private Format chooseAudio(List<Format> audios) {
+        Format smallest = null;
+        Format best = null;
+        for (Format audio : audios) {
+            if (best == null || audio.tbr > best.tbr) {
+                best = audio;
+            }
+            if (audio.tbr >= minAudioBitrate && (smallest == null || smaller(audio, smallest))) {
+                smallest = audio;
+            }
+        }
+        return smallest != null ? smallest : best;
+    }
+
+    // Known sizes first and smallest first; unknown ones by bitrate. Ties go
+    // to the codec listed first, then to the fuller stream.
+    private int compare(Selection a, Selection b) {
+        if ((a.bytes >= 0) != (b.bytes >= 0)) {
+            return a.bytes >= 0 ? -1 : 1;
+        }
+        int bySize = a.bytes >= 0 ? Long.compare(a.bytes, b.bytes) : Double.compare(a.bitrate(), b.bitrate());
+        if (bySize != 0) {
+            return bySize;
+        }
+        return Comparator.<Selection>comparingInt(s -> codecRank(s.formats.get(0)))
+            .thenComparing(Comparator.<Selection>comparingDouble(Selection::bitrate).reversed())
+            .compare(a, b);
+    }
+
+    private static boolean smaller(Format a, Format b) {
+        if ((a.bytes >= 0) != (b.bytes >= 0)) {
+            return a.bytes >= 0;
+        }
+        return a.bytes >= 0 ? a.bytes < b.bytes : a.tbr < b.tbr;
+    }
+
+    private int codecRank(Format format) {
+        int rank = codecs.indexOf(format.codec);
+        return rank >= 0 ? rank : codecs.size();
+    }
+
+    private boolean extMatches(Format format) {
+        if (ext == null) {
+            return true;
+        }
+        return format.hasVideo() ? ext.equals(format.ext) : audioExt().equals(format.ext) || ext.equals(format.ext);
+    }
+
+    private String audioExt() {
+        return ext.equals("mp4") ? "m4a" : ext;
+    }
+
+    // One entry of the "formats" list in yt-dlp's info JSON
+    static final class Format {
+        final Map<String, Object> json;
+        final String id;
+        final String ext;
+        final String codec; // a CODECS name, or the raw vcodec
+        final boolean video;
+        final boolean audio;
+        final int height;
+        final double tbr; // kbit/s, 0 if unknown
+        final long bytes; // -1 if unknown
+
+        Format(Map<String, Object> json, double duration) {
+            this.json = json;
+            this.id = Json.getString(json, "format_id");
+            this.ext = String.valueOf(Json.getString(json, "ext")).toLowerCase(Locale.ROOT);
+            String vcodec = Json.getString(json, "vcodec");
+            String acodec = Json.getString(json, "acodec");
+            this.video = vcodec != null && !vcodec.equals("none");
+            // Progressive formats often leave acodec out
+            this.audio = acodec != null ? !acodec.equals("none") : video && vcodec != null;
+            this.codec = codecName(vcodec);
+            this.height = (int) Json.getLong(json, "height", 0);
+            double rate = Json.getDouble(json, "tbr", 0);
+            if (rate <= 0) {
+                rate = Json.getDouble(json, video ? "vbr" : "abr", 0);
+            }
+            long size = Json.getLong(json, "filesize", -1);
+            if (size < 0) {
+                size = Json.getLong(json, "filesize_approx", -1);
+            }
+            if (size < 0 && rate > 0 && duration > 0) {
+                size = (long) (rate * 125 * duration);
+            }
+            if (rate <= 0 && size > 0 && duration > 0) {
+                rate = size / (125 * duration);
+            }
+            this.tbr = rate;
+            this.bytes = size;
+        }
+
+        // Storyboards, DRM and formats without a URL can't be downloaded
+        boolean isUsable() {
+            return id != null && (video || audio) && !Boolean.TRUE.equals(json.get("has_drm"))
+                && !"mhtml".equals(Json.getString(json, "protocol"))
+                && (json.get("url") != null || json.get("manifest_url") != null);
+        }
+
+        boolean hasVideo() {
+            return video;
+        }
+
+        boolean hasAudio() {
+            return audio;
+        }
+
+        boolean isAudioOnly() {
+            return audio && !video;
+        }
+
+        private static String codecName(String vcodec) {
+            if (vcodec == null) {
+                return "";
+            }
+            String lower = vcodec.toLowerCase(Locale.ROOT);
+            for (Map.Entry<String, List<String>> entry : CODECS.entrySet()) {
+                for (String prefix : entry.getValue()) {
+                    if (lower.startsWith(prefix)) {
+                        return entry.getKey();
+                    }
+                }
+            }
+            return lower;
+        }
+    }
+
+    // The formats choose() settled on
+    public static final class Selection {
+        private final List<Format> formats;
+        private final long bytes;
+
+        private Selection(List<Format> formats) {
+            this.formats = formats;
+            long total = 0;
+            for (Format format : formats) {
+                total = format.bytes >= 0 && total >= 0 ? total + format.bytes : -1;
+            }
+            this.bytes = total;
+        }
+
+        // "137+251", or a single format ID
+        public String getSelector() {
+            List<String> ids = new ArrayList<>();
+            for (Format format : formats) {
+                ids.add(format.id);
+            }
+            return String.join("+", ids);
+        }
+
+        // Of all streams together; -1 if the site gives neither sizes nor bitrates
+        public long getEstimatedBytes() {
+            return bytes;
+        }
+
+        public List<String> getExtensions() {
+            List<String> exts = new ArrayList<>();
+            for (Format format : formats) {
+                exts.add(format.ext);
+            }
+            return exts;
+        }
+
+        // yt-dlp's format dicts, for an info JSON limited to this selection
+        public List<Map<String, Object>> getFormatJson() {
+            List<Map<String, Object>> json = new ArrayList<>();
+            for (Format format : formats) {
+                json.add(format.json);
+            }
+            return Collections.unmodifiableList(json);
+        }
+
+        // "1080p vp9 + m4a 129k"
+        public String describe() {
+            List<String> parts = new ArrayList<>();
+            for (Format format : formats) {
+                if (format.hasVideo()) {
+                    parts.add((format.height > 0 ? format.height + "p " : "") + format.codec);
+                } else {
+                    parts.add(format.ext + (format.tbr > 0 ? " " + Math.round(format.tbr) + "k" : ""));
+                }
+            }
+            return String.join(" + ", parts);
+        }
+
+        private double bitrate() {
+            double total = 0;
+            for (Format format : formats) {
+                total += format.tbr;
+            }
+            return total;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+// Wraps an engine for downloads that ask for a quality instead of a format.
+// The formats on offer are probed first, the FormatPolicy picks the
+// smallest combination that meets it, and the engine gets those format IDs.
+// The probe is stored as the chosen selector's, so the engine doesn't
+// extract a second time. URLs that download a whole list get the policy's
+// selector instead, since IDs picked for one entry don't fit the others.
+public class FormatSelectingEngine implements DownloadEngine {
+    private final DownloadEngine engine;
+    private final ProbeCache cache;
+    private final MediaResolver resolver;
+
+    public FormatSelectingEngine(DownloadEngine engine) {
+        this(engine, ProbeCache.shared());
+    }
+
+    // A null cache extracts every time
+    public FormatSelectingEngine(DownloadEngine engine, ProbeCache cache) {
+        this.engine = engine;
+        this.cache = cache;
+        this.resolver = new MediaResolver(cache);
+    }
+
+    @Override
+    public int download(String url, String outputPath, DownloadOptions options,
+                        ProgressListener listener, Consumer<String> log) throws IOException, InterruptedException {
+        FormatPolicy policy = options.getQuality();
+        if (policy == null || options.getFormat() != null) {
+            return engine.download(url, outputPath, options, listener, log);
+        }
+        String format = choose(url, outputPath, policy, listener, log);
+        return engine.download(url, outputPath, options.copy().format(format), listener, log);
+    }
+
+    // The chosen format IDs; the policy's own selector if the formats can't
+    // be listed or none fits, which leaves the choice to yt-dlp
+    private String choose(String url, String outputPath, FormatPolicy policy,
+                          ProgressListener listener, Consumer<String> log) throws InterruptedException {
+        if (listsSeveral(url)) {
+            log.accept("[format] " + url + " downloads a playlist, leaving the choice to yt-dlp");
+            return policy.toSelector();
+        }
+        listener.onPhase(ProgressParser.Phase.EXTRACTING);
+        Map<String, Object> info;
+        try {
+            info = resolver.resolveInfo(url, outputPath);
+        } catch (IOException | IllegalArgumentException e) {
+            // e.g. a playlist, which prints one object per entry
+            log.accept("[format] Could not list the formats (" + e.getMessage() + "), leaving the choice to yt-dlp");
+            return policy.toSelector();
+        }
+        FormatPolicy.Selection selection = policy.choose(info);
+        if (selection == null) {
+            log.accept("[format] No format fits " + policy + ", leaving the choice to yt-dlp");
+            return policy.toSelector();
+        }
+
+        String selector = selection.getSelector();
+        long estimate = selection.getEstimatedBytes();
+        long usual = ResolvedMedia.fromJson(info).getExpectedSize();
+        boolean saves = estimate >= 0 && usual > estimate;
+        log.accept("[format] " + selector + " (" + selection.describe() + "), about " + ProgressEvent.formatBytes(estimate)
+            + (saves ? " instead of " + ProgressEvent.formatBytes(usual) + " for yt-dlp's default" : ""));
+        if (saves) {
+            Metrics.FORMAT_SAVED_BYTES.add(usual - estimate);
+        }
+        if (estimate >= 0) {
+            ProgressEvent event = new ProgressEvent();
+            event.setTotalBytes(estimate, true);
+            listener.onProgress(event);
+        }
+        if (cache != null) {
+            remember(url, outputPath, info, selection);
+        }
+        return selector;
+    }
+
+    // A watch URL with list= gets yt-dlp the whole playlist, while the probe
+    // runs with --no-playlist and only sees the one video
+    static boolean listsSeveral(String url) {
+        String query;
+        try {
+            query = URI.create(url).getRawQuery();
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        if (query == null) {
+            return false;
+        }
+        for (String param : query.split("&")) {
+            if (param.startsWith("list=")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The probe with the selection as what yt-dlp picked
+    private void remember(String url, String outputPath, Map<String, Object> info, FormatPolicy.Selection selection) {
+        List<String> extensions = selection.getExtensions();
+        String ext = extensions.size() > 1 ? PostProcessor.mergeExtensionOf(extensions) : extensions.get(0);
+        Map<String, Object> chosen = new LinkedHashMap<>(info);
+        chosen.put("requested_formats", selection.getFormatJson());
+        chosen.put("format_id", selection.getSelector());
+        chosen.put("ext", ext);
+        for (String key : List.of("filename", "_filename")) {
+            String filename = Json.getString(info, key);
+            if (filename != null) {
+                chosen.put(key, PostProcessor.withExtension(Paths.get(filename), ext).toString());
+            }
+        }
+        try {
+            cache.put(url, outputPath, selection.getSelector(), Json.write(chosen));
+        } catch (IOException e) {
+            System.err.println("Could not cache probe for " + url + ": " + e.getMessage());
+        }
+    }
+}
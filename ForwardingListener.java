@@ -0,0 +1,49 @@
+// Passes every callback on to another listener; subclasses override the
+// ones they want to watch
+class ForwardingListener implements ProgressListener {
+    protected final ProgressListener listener;
+
+    ForwardingListener(ProgressListener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void onProgress(ProgressEvent event) {
+        listener.onProgress(event);
+    }
+
+    @Override
+    public void onPhase(ProgressParser.Phase phase) {
+        listener.onPhase(phase);
+    }
+
+    @Override
+    public void onDestination(String path) {
+        listener.onDestination(path);
+    }
+
+    @Override
+    public void onMediaId(String extractor, String id) {
+        listener.onMediaId(extractor, id);
+    }
+
+    @Override
+    public void onAllocated(String path, long bytes) {
+        listener.onAllocated(path, bytes);
+    }
+
+    @Override
+    public void onContentHash(String path, long size, String digest) {
+        listener.onContentHash(path, size, digest);
+    }
+
+    @Override
+    public boolean reuseExisting(String path) {
+        return listener.reuseExisting(path);
+    }
+
+    @Override
+    public boolean deferPostProcessing(PostProcessor.Task task) {
+        return listener.deferPostProcessing(task);
+    }
+}
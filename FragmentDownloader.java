@@ -0,0 +1,494 @@
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Fetches the fragments of an HLS or DASH stream over several connections
+// and writes them to one file in playback order. Connections take fragments
+// in order; one that finishes ahead of the next fragment to write waits in a
+// reorder buffer. The window caps how far past that fragment connections
+// may start, and once the buffer holds bufferBytes they only start the
+// fragment everything waits for, so memory stays bounded even when one
+// fragment is slow. A fragment too big for its share of that budget, or of
+// unknown size and growing past it, is not buffered: once everything before
+// it is written, its connection streams the rest straight into the file.
+// The file only ever grows by whole fragments in order, which makes
+// resuming a matter of remembering how many were written.
+public class FragmentDownloader {
+    // Remembers how far the file got
+    public interface Checkpoint {
+        // Called once the manifest is known. Returns how many fragments from
+        // the start the file already holds, 0 if it was written from another
+        // manifest; getFragmentBytes() then says where they end.
+        int beginFragments(String fingerprint) throws IOException;
+
+        long getFragmentBytes();
+
+        // Fragment index ends at byte end of the file
+        void fragmentWritten(int index, long end) throws IOException;
+    }
+
+    public static final int DEFAULT_WINDOW = Integer.getInteger("downloader.fragmentWindow", 32);
+    public static final long DEFAULT_BUFFER_BYTES = Long.getLong("downloader.fragmentBuffer", 64L << 20);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long REPORT_INTERVAL_NANOS = 250_000_000L;
+    private static final long THROTTLE_BACKOFF_MILLIS = 1000;
+    // Fragments written between forcing the file and journaling them
+    private static final int JOURNAL_EVERY = 16;
+    private static final ExecutorService CONNECTIONS = Executors.newCachedThreadPool(
+        DownloadScheduler.daemonThreads("fragment"));
+
+    private final HttpClient client;
+    private final int connections;
+    private final int window;
+    private final long bufferBytes;
+    private final long fragmentLimit; // most one connection buffers of a fragment
+    private final BandwidthLimiter.Share share;
+    private Runnable onThrottled = () -> { };
+
+    // All connections draw from share, if given, so their sum stays within its rate
+    public FragmentDownloader(HttpClient client, int connections, int window, long bufferBytes,
+                              BandwidthLimiter.Share share) {
+        if (connections < 1 || window < 1 || bufferBytes < 1) {
+            throw new IllegalArgumentException("connections, window and bufferBytes must be positive");
+        }
+        this.client = client;
+        this.connections = connections;
+        this.window = Math.max(window, connections);
+        this.bufferBytes = bufferBytes;
+        this.fragmentLimit = Math.max(BUFFER_SIZE, bufferBytes / connections);
+        this.share = share;
+    }
+
+    // Called for every HTTP 429 or 503, e.g. to lower the host's concurrency
+    public FragmentDownloader onThrottled(Runnable onThrottled) {
+        this.onThrottled = onThrottled;
+        return this;
+    }
+
+    // Writes every fragment of manifest to target and returns its size. With
+    // a checkpoint, fragments it says target holds are kept and skipped; with
+    // a hasher, fragments are hashed as they are written.
+    public long download(FragmentManifest manifest, Map<String, String> headers, Path target,
+                         ProgressListener listener, Checkpoint checkpoint, ContentHasher hasher)
+            throws IOException, InterruptedException {
+        int first = 0;
+        long position = 0;
+        // Read as well, to hash fragments that were streamed into it
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            if (checkpoint != null) {
+                first = checkpoint.beginFragments(manifest.getFingerprint());
+                position = checkpoint.getFragmentBytes();
+                if (channel.size() < position) {
+                    first = 0; // the file lost what the checkpoint says it holds
+                    position = 0;
+                }
+            }
+            channel.truncate(position); // drops a fragment that was cut off midway
+
+            Assembly assembly = new Assembly(manifest.size(), first, position, channel, checkpoint,
+                hasher != null ? hasher.writer(position) : null, new Progress(manifest.size(), first, position, listener));
+            int count = Math.min(connections, manifest.size() - first);
+            List<Future<?>> workers = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                workers.add(CONNECTIONS.submit(() -> {
+                    try {
+                        int index;
+                        while ((index = assembly.claim()) >= 0) {
+                            byte[] data = fetch(index, manifest.getFragments().get(index), headers, assembly);
+                            if (data != null) {
+                                assembly.complete(index, data);
+                            }
+                        }
+                        return null;
+                    } catch (IOException | InterruptedException | RuntimeException e) {
+                        // Wakes the other connections, which may wait for this fragment's turn
+                        assembly.fail();
+                        throw e;
+                    }
+                }));
+            }
+            awaitAll(workers, assembly);
+            assembly.progress.report();
+            if (assembly.next != manifest.size()) {
+                throw new IOException("Wrote " + assembly.next + " of " + manifest.size() + " fragments");
+            }
+            if (assembly.hash != null) {
+                assembly.hash.close();
+            }
+            channel.truncate(assembly.position); // past it only if a streamed attempt was longer
+            return assembly.position;
+        }
+    }
+
+    // Retries a fragment from the start; it is only kept once complete.
+    // Returns the fragment, or null if it was streamed into the file.
+    private byte[] fetch(int index, FragmentManifest.Fragment fragment, Map<String, String> headers, Assembly assembly)
+            throws IOException, InterruptedException {
+        Progress progress = assembly.progress;
+        for (int attempt = 1; ; attempt++) {
+            long counted = 0;
+            boolean streaming = false;
+            try {
+                HttpRequest.Builder request = SegmentedDownloader.request(fragment.getUri(), headers);
+                if (fragment.range() != null) {
+                    request.header("Range", fragment.range());
+                }
+                long sentAt = System.nanoTime();
+                HttpResponse<InputStream> response = client.send(request.build(), HttpResponse.BodyHandlers.ofInputStream());
+                Metrics.TTFB.recordSince(sentAt);
+                if (response.statusCode() >= 400) {
+                    response.body().close();
+                    SegmentedDownloader.HttpStatusException e = new SegmentedDownloader.HttpStatusException(
+                        response.statusCode(), "HTTP " + response.statusCode() + " for " + fragment.getUri().getHost());
+                    if (e.isThrottled()) {
+                        onThrottled.run();
+                    }
+                    throw e;
+                }
+                long expected = fragment.getLength() >= 0 ? fragment.getLength()
+                    : response.headers().firstValueAsLong("Content-Length").orElse(-1);
+                if (fragment.range() != null && response.statusCode() != 206) {
+                    response.body().close();
+                    throw new IOException("Range request for a fragment returned HTTP " + response.statusCode());
+                }
+                ByteArrayOutputStream out = new ByteArrayOutputStream(
+                    expected > 0 ? (int) Math.min(expected, fragmentLimit) : BUFFER_SIZE);
+                long start = -1;
+                long at = -1;
+                byte[] buffer = new byte[BUFFER_SIZE];
+                try (InputStream in = response.body()) {
+                    if (expected > fragmentLimit) {
+                        assembly.awaitTurn(index);
+                        streaming = true;
+                        start = at = assembly.position;
+                    }
+                    int n;
+                    while ((n = in.read(buffer)) >= 0) {
+                        if (!streaming && out.size() + n > fragmentLimit) {
+                            assembly.awaitTurn(index);
+                            streaming = true;
+                            start = at = assembly.position;
+                            at = assembly.write(out.toByteArray(), 0, out.size(), at);
+                            out = null;
+                        }
+                        if (streaming) {
+                            at = assembly.write(buffer, 0, n, at);
+                        } else {
+                            out.write(buffer, 0, n);
+                        }
+                        counted += n;
+                        progress.add(n);
+                        if (share != null) {
+                            share.acquire(n);
+                        }
+                    }
+                }
+                if (expected >= 0 && counted != expected) {
+                    throw new IOException("Fragment ended after " + counted + " of " + expected + " bytes");
+                }
+                progress.fragmentFetched();
+                if (streaming) {
+                    streaming = false;
+                    assembly.streamed(start, at);
+                    return null;
+                }
+                return out.toByteArray();
+            } catch (IOException e) {
+                if (streaming) {
+                    assembly.yieldTurn(); // the next attempt writes from the same place
+                }
+                progress.add(-counted);
+                if (attempt >= MAX_ATTEMPTS || Thread.currentThread().isInterrupted() || assembly.isFailed()
+                        || (e instanceof SegmentedDownloader.HttpStatusException
+                            && ((SegmentedDownloader.HttpStatusException) e).isExpired())) {
+                    throw e;
+                }
+                Metrics.SEGMENT_RETRIES.increment();
+                if (e instanceof SegmentedDownloader.HttpStatusException
+                        && ((SegmentedDownloader.HttpStatusException) e).isThrottled()) {
+                    Thread.sleep(THROTTLE_BACKOFF_MILLIS << (attempt - 1));
+                }
+            }
+        }
+    }
+
+    private static void awaitAll(List<Future<?>> workers, Assembly assembly) throws IOException, InterruptedException {
+        try {
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } finally {
+            assembly.fail(); // wakes connections waiting for the window
+            for (Future<?> worker : workers) {
+                worker.cancel(true);
+            }
+        }
+    }
+
+    // The reorder buffer and the file it drains into
+    private final class Assembly {
+        private final int count;
+        private final FileChannel channel;
+        private final Checkpoint checkpoint;
+        private final ContentHasher.Writer hash; // only the writing thread uses it
+        private final Progress progress;
+        private final Map<Integer, byte[]> waiting = new HashMap<>();
+        private int claimed;   // next fragment to fetch
+        private int next;      // next fragment to write
+        private long position; // end of the file; only the writing thread moves it
+        private long buffered; // bytes in waiting, or being written
+        private boolean writing;
+        private boolean failed;
+
+        Assembly(int count, int first, long position, FileChannel channel, Checkpoint checkpoint,
+                 ContentHasher.Writer hash, Progress progress) {
+            this.count = count;
+            this.claimed = first;
+            this.next = first;
+            this.position = position;
+            this.channel = channel;
+            this.checkpoint = checkpoint;
+            this.hash = hash;
+            this.progress = progress;
+        }
+
+        // The next fragment to fetch, once the window and the budget allow; -1 when done
+        synchronized int claim() throws InterruptedException {
+            while (!failed && claimed < count && claimed != next
+                    && (claimed >= next + window || buffered >= bufferBytes)) {
+                wait();
+            }
+            return failed || claimed >= count ? -1 : claimed++;
+        }
+
+        // Makes the caller the writer once index is the next fragment to
+        // write; throws if the download failed meanwhile
+        synchronized void awaitTurn(int index) throws IOException {
+            while (!failed && (next != index || writing)) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting to write fragment " + index);
+                }
+            }
+            if (failed) {
+                throw new IOException("Download failed while fragment " + index + " waited");
+            }
+            writing = true;
+        }
+
+        synchronized boolean isFailed() {
+            return failed;
+        }
+
+        synchronized void yieldTurn() {
+            writing = false;
+            notifyAll();
+        }
+
+        // For the writer: bytes of the fragment at next, at the given offset
+        long write(byte[] bytes, int offset, int length, long at) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+            while (buffer.hasRemaining()) {
+                at += channel.write(buffer, at);
+            }
+            return at;
+        }
+
+        // The writer streamed the fragment at next into [start, end); it is
+        // hashed from the file, journaled, and the buffered ones after it follow
+        void streamed(long start, long end) throws IOException {
+            try {
+                if (hash != null) {
+                    ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                    for (long at = start; at < end; ) {
+                        buffer.clear().limit((int) Math.min(BUFFER_SIZE, end - at));
+                        int n = channel.read(buffer, at);
+                        if (n < 0) {
+                            throw new EOFException("Fragment shorter on disk than written");
+                        }
+                        hash.update(buffer.array(), 0, n);
+                        at += n;
+                    }
+                }
+                position = end;
+                int index;
+                synchronized (this) {
+                    index = next;
+                }
+                if (checkpoint != null) {
+                    journal(index);
+                }
+                progress.fragmentWritten();
+                synchronized (this) {
+                    next++;
+                    notifyAll();
+                }
+            } catch (IOException | RuntimeException e) {
+                yieldTurn();
+                fail();
+                throw e;
+            }
+            drain();
+        }
+
+        // Buffers a fetched fragment and writes whatever is now in order.
+        // One thread writes at a time; the others just leave their fragment.
+        // The file is forced before the checkpoint hears of a fragment, once
+        // the writer has caught up or every JOURNAL_EVERY fragments.
+        void complete(int index, byte[] data) throws IOException {
+            synchronized (this) {
+                waiting.put(index, data);
+                buffered += data.length;
+                if (writing) {
+                    return;
+                }
+                writing = true;
+            }
+            drain();
+        }
+
+        // Run by the writer until nothing in order is left
+        private void drain() throws IOException {
+            int unjournaled = 0;
+            try {
+                while (true) {
+                    byte[] chunk;
+                    int written;
+                    synchronized (this) {
+                        chunk = failed ? null : waiting.remove(next);
+                        if (chunk == null && (unjournaled == 0 || failed)) {
+                            writing = false;
+                            notifyAll(); // a streaming fragment may wait for its turn
+                            return;
+                        }
+                        written = next;
+                    }
+                    if (chunk == null) {
+                        // Still the writer, so no later fragment is journaled first
+                        journal(written - 1);
+                        unjournaled = 0;
+                        continue;
+                    }
+                    ByteBuffer buffer = ByteBuffer.wrap(chunk);
+                    while (buffer.hasRemaining()) {
+                        position += channel.write(buffer, position);
+                    }
+                    if (hash != null) {
+                        hash.update(chunk, 0, chunk.length);
+                    }
+                    if (checkpoint != null && ++unjournaled >= JOURNAL_EVERY) {
+                        journal(written);
+                        unjournaled = 0;
+                    }
+                    progress.fragmentWritten();
+                    synchronized (this) {
+                        next++;
+                        buffered -= chunk.length;
+                        notifyAll();
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                yieldTurn();
+                fail();
+                throw e;
+            }
+        }
+
+        synchronized void fail() {
+            failed = true;
+            notifyAll();
+        }
+
+        // Fragment index, the last one written, ends at position
+        private void journal(int index) throws IOException {
+            channel.force(false);
+            checkpoint.fragmentWritten(index, position);
+        }
+    }
+
+    // Shared by all connections of one download; reports at most every 250 ms
+    private final class Progress {
+        private final int count;
+        private final ProgressListener listener;
+        private final AtomicLong downloaded = new AtomicLong();
+        private final AtomicInteger fetched = new AtomicInteger();
+        private final AtomicInteger written = new AtomicInteger();
+        private final AtomicLong lastReport = new AtomicLong(System.nanoTime());
+        private final ThroughputMeter meter = new ThroughputMeter(3);
+        private final ProgressEvent event = new ProgressEvent();
+
+        Progress(int count, int alreadyWritten, long alreadyDone, ProgressListener listener) {
+            this.count = count;
+            this.listener = listener;
+            downloaded.set(alreadyDone);
+            fetched.set(alreadyWritten);
+            written.set(alreadyWritten);
+            report();
+        }
+
+        void add(long bytes) {
+            downloaded.addAndGet(bytes);
+            if (bytes > 0) {
+                meter.record(bytes);
+            }
+            long last = lastReport.get();
+            long now = System.nanoTime();
+            if (now - last >= REPORT_INTERVAL_NANOS && lastReport.compareAndSet(last, now)) {
+                report();
+            }
+        }
+
+        void fragmentFetched() {
+            fetched.incrementAndGet();
+        }
+
+        void fragmentWritten() {
+            written.incrementAndGet();
+        }
+
+        synchronized void report() {
+            long done = downloaded.get();
+            int fragments = fetched.get();
+            double speed = meter.ratePerSecond();
+            event.reset();
+            event.setDownloadedBytes(done);
+            event.setFragment(written.get(), count);
+            event.setBytesPerSecond(speed);
+            event.setConnections(connections);
+            if (fragments > 0) {
+                // Sizes are only known per fragment; assume the rest are like these
+                long total = fragments >= count ? done : done * count / fragments;
+                event.setTotalBytes(total, fragments < count);
+                event.setPercent(fragments * 100.0 / count);
+                event.setEtaSeconds(fragments >= count ? 0 : speed > 0 ? (long) ((total - done) / speed) : -1);
+            }
+            listener.onProgress(event);
+        }
+    }
+}
@@ -0,0 +1,486 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+// The fragments of one HLS or DASH stream in playback order, an init segment
+// first if the stream has one. Covers what finished (VOD) streams use: HLS
+// media playlists with byte ranges and EXT-X-MAP, master playlists (the
+// highest bandwidth wins), and single-period MPDs with SegmentTemplate
+// (numbers or a timeline), SegmentList or one file per representation.
+// Live and encrypted streams are left to yt-dlp.
+public class FragmentManifest {
+    // Thrown for streams this can't fetch; the caller hands them to yt-dlp
+    public static class UnsupportedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public UnsupportedException(String message) {
+            super(message);
+        }
+    }
+
+    public static class Fragment {
+        private final URI uri;
+        private final long offset;
+        private final long length;
+
+        Fragment(URI uri, long offset, long length) {
+            this.uri = uri;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public URI getUri() {
+            return uri;
+        }
+
+        // -1 for the whole resource
+        public long getOffset() {
+            return offset;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        // "bytes=a-b" or null
+        String range() {
+            return offset < 0 ? null : "bytes=" + offset + "-" + (offset + length - 1);
+        }
+    }
+
+    private static final Pattern ATTRIBUTE = Pattern.compile("([A-Z0-9-]+)=(\"[^\"]*\"|[^,]*)");
+    private static final Pattern DURATION = Pattern.compile(
+        "P(?:(\\d+(?:\\.\\d+)?)D)?(?:T(?:(\\d+(?:\\.\\d+)?)H)?(?:(\\d+(?:\\.\\d+)?)M)?(?:(\\d+(?:\\.\\d+)?)S)?)?");
+    private static final Pattern TEMPLATE = Pattern.compile("\\$(RepresentationID|Number|Time|Bandwidth)(%0(\\d+)d)?\\$");
+
+    private final List<Fragment> fragments;
+    private final boolean transportStream;
+
+    FragmentManifest(List<Fragment> fragments, boolean transportStream) {
+        this.fragments = Collections.unmodifiableList(fragments);
+        this.transportStream = transportStream;
+    }
+
+    // Downloads and parses the manifest; formatId picks the DASH representation
+    public static FragmentManifest fetch(HttpClient client, URI uri, Map<String, String> headers, String formatId)
+            throws IOException, InterruptedException {
+        String text = get(client, uri, headers);
+        if (isHls(text)) {
+            URI variant = bestVariant(uri, text);
+            if (variant != null) {
+                uri = variant;
+                text = get(client, uri, headers);
+            }
+        }
+        return parse(uri, text, formatId);
+    }
+
+    public static FragmentManifest parse(URI uri, String text, String formatId) throws IOException {
+        if (isHls(text)) {
+            return parseHls(uri, text);
+        }
+        if (text.contains("<MPD")) {
+            return parseDash(uri, text, formatId);
+        }
+        throw new UnsupportedException("Not an HLS or DASH manifest: " + uri);
+    }
+
+    public List<Fragment> getFragments() {
+        return fragments;
+    }
+
+    public int size() {
+        return fragments.size();
+    }
+
+    // One whole resource, as a DASH SegmentBase or single-file representation
+    // gives; better fetched in ranges like any plain file
+    public boolean isSingleFile() {
+        return fragments.size() == 1 && fragments.get(0).getOffset() < 0;
+    }
+
+    // HLS without EXT-X-MAP: MPEG-TS segments, which need a remux to end up in an MP4
+    public boolean isTransportStream() {
+        return transportStream;
+    }
+
+    // Same for the same fragments, even after re-resolving gave new signed URLs
+    public String getFingerprint() {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            for (Fragment fragment : fragments) {
+                sha1.update((fragment.uri.getPath() + "@" + fragment.offset + "+" + fragment.length + "\n")
+                    .getBytes(StandardCharsets.UTF_8));
+            }
+            byte[] hash = sha1.digest();
+            StringBuilder hex = new StringBuilder(fragments.size() + ":");
+            for (int i = 0; i < 8; i++) {
+                hex.append(String.format("%02x", hash[i]));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static boolean isHls(String text) {
+        return text.stripLeading().startsWith("#EXTM3U");
+    }
+
+    // The highest-bandwidth variant of a master playlist, null for a media playlist
+    private static URI bestVariant(URI uri, String text) {
+        URI best = null;
+        long bestBandwidth = -1;
+        Map<String, String> streamInf = null;
+        for (String line : text.split("\\r?\\n")) {
+            line = line.trim();
+            if (line.startsWith("#EXT-X-STREAM-INF:")) {
+                streamInf = attributes(line.substring(line.indexOf(':') + 1));
+            } else if (streamInf != null && !line.isEmpty() && !line.startsWith("#")) {
+                long bandwidth = parseLong(streamInf.get("BANDWIDTH"), 0);
+                if (bandwidth > bestBandwidth) {
+                    bestBandwidth = bandwidth;
+                    best = uri.resolve(line);
+                }
+                streamInf = null;
+            }
+        }
+        return best;
+    }
+
+    static FragmentManifest parseHls(URI uri, String text) throws UnsupportedException {
+        List<Fragment> fragments = new ArrayList<>();
+        Fragment init = null;
+        long rangeLength = -1;
+        long rangeOffset = -1;
+        URI lastUri = null;
+        long lastEnd = 0;
+        boolean ended = false;
+        for (String line : text.split("\\r?\\n")) {
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            if (line.startsWith("#EXT-X-STREAM-INF:")) {
+                throw new UnsupportedException("Master playlist without a usable variant");
+            } else if (line.startsWith("#EXT-X-KEY:") || line.startsWith("#EXT-X-SESSION-KEY:")) {
+                String method = attributes(line.substring(line.indexOf(':') + 1)).get("METHOD");
+                if (method != null && !method.equals("NONE")) {
+                    throw new UnsupportedException("Encrypted HLS (" + method + ")");
+                }
+            } else if (line.startsWith("#EXT-X-MAP:")) {
+                Map<String, String> map = attributes(line.substring(line.indexOf(':') + 1));
+                long[] range = byteRange(map.get("BYTERANGE"), 0);
+                init = new Fragment(uri.resolve(map.get("URI")), range != null ? range[1] : -1,
+                    range != null ? range[0] : -1);
+            } else if (line.startsWith("#EXT-X-BYTERANGE:")) {
+                long[] range = byteRange(line.substring(line.indexOf(':') + 1), -1);
+                rangeLength = range[0];
+                rangeOffset = range[1];
+            } else if (line.equals("#EXT-X-ENDLIST") || line.equals("#EXT-X-PLAYLIST-TYPE:VOD")) {
+                ended = true;
+            } else if (!line.startsWith("#")) {
+                URI fragmentUri = uri.resolve(line);
+                if (rangeLength >= 0) {
+                    // Without an offset a range continues where the last one of this resource ended
+                    long offset = rangeOffset >= 0 ? rangeOffset : fragmentUri.equals(lastUri) ? lastEnd : 0;
+                    fragments.add(new Fragment(fragmentUri, offset, rangeLength));
+                    lastEnd = offset + rangeLength;
+                } else {
+                    fragments.add(new Fragment(fragmentUri, -1, -1));
+                }
+                lastUri = fragmentUri;
+                rangeLength = -1;
+                rangeOffset = -1;
+            }
+        }
+        if (!ended) {
+            throw new UnsupportedException("Live HLS playlist");
+        }
+        if (fragments.isEmpty()) {
+            throw new UnsupportedException("HLS playlist without fragments");
+        }
+        if (init != null) {
+            fragments.add(0, init);
+        }
+        return new FragmentManifest(fragments, init == null);
+    }
+
+    static FragmentManifest parseDash(URI uri, String text, String formatId) throws UnsupportedException {
+        Element mpd = parseXml(text);
+        if ("dynamic".equals(mpd.getAttribute("type"))) {
+            throw new UnsupportedException("Live DASH manifest");
+        }
+        List<Element> periods = children(mpd, "Period");
+        if (periods.size() != 1) {
+            throw new UnsupportedException("DASH manifest with " + periods.size() + " periods");
+        }
+        Element period = periods.get(0);
+        Element chosenSet = null;
+        Element chosen = null;
+        long bestBandwidth = -1;
+        for (Element set : children(period, "AdaptationSet")) {
+            for (Element representation : children(set, "Representation")) {
+                String id = representation.getAttribute("id");
+                if (formatId != null) {
+                    // yt-dlp names them "<id>" or "<manifest id>-<id>"
+                    if (formatId.equals(id) || formatId.endsWith("-" + id)) {
+                        chosenSet = set;
+                        chosen = representation;
+                    }
+                    continue;
+                }
+                long bandwidth = parseLong(representation.getAttribute("bandwidth"), 0);
+                if (bandwidth > bestBandwidth) {
+                    bestBandwidth = bandwidth;
+                    chosenSet = set;
+                    chosen = representation;
+                }
+            }
+        }
+        if (chosen == null) {
+            throw new UnsupportedException("No DASH representation " + (formatId != null ? formatId : "found"));
+        }
+
+        URI base = baseUrl(baseUrl(baseUrl(baseUrl(uri, mpd), period), chosenSet), chosen);
+        String representationId = chosen.getAttribute("id");
+        String bandwidth = chosen.getAttribute("bandwidth");
+        List<Fragment> fragments = new ArrayList<>();
+
+        Map<String, String> template = inherited("SegmentTemplate", period, chosenSet, chosen);
+        Element timeline = null;
+        for (Element element : List.of(chosen, chosenSet, period)) {
+            Element segmentTemplate = child(element, "SegmentTemplate");
+            if (segmentTemplate != null && (timeline = child(segmentTemplate, "SegmentTimeline")) != null) {
+                break;
+            }
+        }
+        Element segmentList = child(chosen, "SegmentList");
+        if (segmentList == null) {
+            segmentList = child(chosenSet, "SegmentList");
+        }
+
+        if (template.containsKey("media")) {
+            String media = template.get("media");
+            long number = parseLong(template.get("startNumber"), 1);
+            if (template.containsKey("initialization")) {
+                fragments.add(new Fragment(base.resolve(fill(template.get("initialization"),
+                    representationId, number, 0, bandwidth)), -1, -1));
+            }
+            if (timeline != null) {
+                long time = 0;
+                for (Element s : children(timeline, "S")) {
+                    if (s.hasAttribute("t")) {
+                        time = parseLong(s.getAttribute("t"), time);
+                    }
+                    long duration = parseLong(s.getAttribute("d"), 0);
+                    long repeat = parseLong(s.getAttribute("r"), 0);
+                    if (repeat < 0) {
+                        throw new UnsupportedException("Open-ended SegmentTimeline");
+                    }
+                    for (long i = 0; i <= repeat; i++) {
+                        fragments.add(new Fragment(base.resolve(fill(media, representationId, number++, time, bandwidth)), -1, -1));
+                        time += duration;
+                    }
+                }
+            } else {
+                double timescale = parseLong(template.get("timescale"), 1);
+                double segmentSeconds = parseLong(template.get("duration"), 0) / timescale;
+                double total = seconds(period.getAttribute("duration"));
+                if (total <= 0) {
+                    total = seconds(mpd.getAttribute("mediaPresentationDuration"));
+                }
+                if (segmentSeconds <= 0 || total <= 0) {
+                    throw new UnsupportedException("SegmentTemplate without a duration");
+                }
+                long count = (long) Math.ceil(total / segmentSeconds - 1e-9);
+                for (long i = 0; i < count; i++, number++) {
+                    long time = (long) (i * segmentSeconds * timescale);
+                    fragments.add(new Fragment(base.resolve(fill(media, representationId, number, time, bandwidth)), -1, -1));
+                }
+            }
+        } else if (segmentList != null) {
+            Element initialization = child(segmentList, "Initialization");
+            if (initialization != null) {
+                fragments.add(fragment(base, initialization.getAttribute("sourceURL"), initialization.getAttribute("range")));
+            }
+            for (Element segment : children(segmentList, "SegmentURL")) {
+                fragments.add(fragment(base, segment.getAttribute("media"), segment.getAttribute("mediaRange")));
+            }
+        } else {
+            fragments.add(new Fragment(base, -1, -1)); // SegmentBase or a plain file
+        }
+        if (fragments.isEmpty()) {
+            throw new UnsupportedException("DASH representation without segments");
+        }
+        return new FragmentManifest(fragments, false);
+    }
+
+    private static Element parseXml(String text) throws UnsupportedException {
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            // Manifests come from the network; no DTDs or external entities
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            factory.setAttribute(XMLConstants.ACCESS_EXTERNAL_DTD, "");
+            factory.setAttribute(XMLConstants.ACCESS_EXTERNAL_SCHEMA, "");
+            InputStream in = new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8));
+            return factory.newDocumentBuilder().parse(in).getDocumentElement();
+        } catch (ParserConfigurationException | SAXException | IOException e) {
+            throw new UnsupportedException("Unreadable DASH manifest: " + e.getMessage());
+        }
+    }
+
+    // Attributes of the element named tag on every level, inner ones winning
+    private static Map<String, String> inherited(String tag, Element... levels) {
+        Map<String, String> attributes = new LinkedHashMap<>();
+        for (Element level : levels) {
+            Element element = child(level, tag);
+            if (element != null) {
+                for (int i = 0; i < element.getAttributes().getLength(); i++) {
+                    Node attribute = element.getAttributes().item(i);
+                    attributes.put(attribute.getLocalName() != null ? attribute.getLocalName() : attribute.getNodeName(),
+                        attribute.getNodeValue());
+                }
+            }
+        }
+        return attributes;
+    }
+
+    private static URI baseUrl(URI base, Element element) {
+        Element baseUrl = child(element, "BaseURL");
+        return baseUrl != null ? base.resolve(baseUrl.getTextContent().trim()) : base;
+    }
+
+    private static Fragment fragment(URI base, String url, String range) {
+        URI uri = url == null || url.isEmpty() ? base : base.resolve(url);
+        if (range == null || range.isEmpty()) {
+            return new Fragment(uri, -1, -1);
+        }
+        int dash = range.indexOf('-');
+        long start = Long.parseLong(range.substring(0, dash).trim());
+        long end = Long.parseLong(range.substring(dash + 1).trim());
+        return new Fragment(uri, start, end - start + 1);
+    }
+
+    private static String fill(String template, String representationId, long number, long time, String bandwidth) {
+        Matcher m = TEMPLATE.matcher(template);
+        StringBuilder out = new StringBuilder();
+        while (m.find()) {
+            String value = switch (m.group(1)) {
+                case "RepresentationID" -> representationId;
+                case "Number" -> m.group(3) != null ? String.format("%0" + m.group(3) + "d", number) : Long.toString(number);
+                case "Time" -> Long.toString(time);
+                default -> bandwidth;
+            };
+            m.appendReplacement(out, Matcher.quoteReplacement(value));
+        }
+        m.appendTail(out);
+        return out.toString().replace("$$", "$");
+    }
+
+    private static List<Element> children(Element parent, String name) {
+        List<Element> result = new ArrayList<>();
+        if (parent == null) {
+            return result;
+        }
+        NodeList nodes = parent.getChildNodes();
+        for (int i = 0; i < nodes.getLength(); i++) {
+            Node node = nodes.item(i);
+            if (node instanceof Element && name.equals(node.getLocalName() != null ? node.getLocalName() : node.getNodeName())) {
+                result.add((Element) node);
+            }
+        }
+        return result;
+    }
+
+    private static Element child(Element parent, String name) {
+        List<Element> found = children(parent, name);
+        return found.isEmpty() ? null : found.get(0);
+    }
+
+    // "PT1H2M3.5S" in seconds, 0 if absent
+    private static double seconds(String duration) {
+        if (duration == null || duration.isEmpty()) {
+            return 0;
+        }
+        Matcher m = DURATION.matcher(duration.trim());
+        if (!m.matches()) {
+            return 0;
+        }
+        double[] factors = {86400, 3600, 60, 1};
+        double total = 0;
+        for (int i = 0; i < factors.length; i++) {
+            if (m.group(i + 1) != null) {
+                total += Double.parseDouble(m.group(i + 1)) * factors[i];
+            }
+        }
+        return total;
+    }
+
+    // HLS attribute lists: KEY=value,KEY="quoted, value"
+    private static Map<String, String> attributes(String list) {
+        Map<String, String> attributes = new LinkedHashMap<>();
+        Matcher m = ATTRIBUTE.matcher(list);
+        while (m.find()) {
+            String value = m.group(2);
+            if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+                value = value.substring(1, value.length() - 1);
+            }
+            attributes.put(m.group(1), value);
+        }
+        return attributes;
+    }
+
+    // "length[@offset]" as {length, offset}, offset defaulting to fallback
+    private static long[] byteRange(String value, long fallback) {
+        if (value == null) {
+            return null;
+        }
+        int at = value.indexOf('@');
+        return at < 0 ? new long[] {Long.parseLong(value.trim()), fallback}
+            : new long[] {Long.parseLong(value.substring(0, at).trim()), Long.parseLong(value.substring(at + 1).trim())};
+    }
+
+    private static long parseLong(String value, long fallback) {
+        if (value == null || value.isEmpty()) {
+            return fallback;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    private static String get(HttpClient client, URI uri, Map<String, String> headers)
+            throws IOException, InterruptedException {
+        HttpResponse<String> response = client.send(SegmentedDownloader.request(uri, headers).build(),
+            HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() >= 400) {
+            throw new SegmentedDownloader.HttpStatusException(response.statusCode(),
+                "HTTP " + response.statusCode() + " for manifest " + uri.getHost());
+        }
+        return response.body();
+    }
+}
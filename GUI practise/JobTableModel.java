@@ -0,0 +1,205 @@
+import javax.swing.*;
+import javax.swing.table.AbstractTableModel;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Rows for every job of a scheduler, for a JTable that renders only what is
+// visible. Cells come from a snapshot taken per row, so painting never locks
+// a job. Job events only mark rows dirty; at most every refresh interval the
+// dirty rows are snapshotted again and the table hears about the changed
+// ranges, not about every progress line.
+public class JobTableModel extends AbstractTableModel {
+    public enum Column {
+        URL("URL"), TITLE("Title"), STATE("State"), PERCENT("Progress"), SPEED("Speed"), ETA("ETA"), SIZE("Size");
+
+        private final String title;
+
+        Column(String title) {
+            this.title = title;
+        }
+    }
+
+    private static final long serialVersionUID = 1L;
+    private static final Column[] COLUMNS = Column.values();
+
+    private final DownloadScheduler scheduler;
+    private final List<Row> rows = new ArrayList<>();
+    private final Map<Long, Integer> rowOfJob = new HashMap<>();
+    private final Set<Long> dirty = ConcurrentHashMap.newKeySet();
+    private final Timer refresh;
+
+    public JobTableModel(DownloadScheduler scheduler, int refreshMillis) {
+        this.scheduler = scheduler;
+        refresh = new Timer(refreshMillis, e -> refreshDirty());
+        refresh.setRepeats(false); // only runs when something changed
+        scheduler.getEvents().subscribe(this::markDirty, EventBus.Delivery.LATEST, EventBus.ANY_JOB,
+            EventBus.defaultExecutor());
+    }
+
+    // On the EDT
+    public void addJobs(List<DownloadJob> jobs) {
+        int first = rows.size();
+        for (DownloadJob job : jobs) {
+            if (!rowOfJob.containsKey(job.getId())) {
+                rowOfJob.put(job.getId(), rows.size());
+                rows.add(new Row(job));
+            }
+        }
+        if (rows.size() > first) {
+            fireTableRowsInserted(first, rows.size() - 1);
+        }
+    }
+
+    // Drops finished jobs from the scheduler and the table; on the EDT
+    public int removeFinished() {
+        int removed = scheduler.removeFinished();
+        if (removed > 0) {
+            rows.removeIf(row -> scheduler.getJob(row.job.getId()) == null);
+            rowOfJob.clear();
+            for (int i = 0; i < rows.size(); i++) {
+                rowOfJob.put(rows.get(i).job.getId(), i);
+            }
+            fireTableDataChanged();
+        }
+        return removed;
+    }
+
+    public DownloadJob getJob(int row) {
+        return rows.get(row).job;
+    }
+
+    @Override
+    public int getRowCount() {
+        return rows.size();
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMNS.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMNS[column].title;
+    }
+
+    @Override
+    public Class<?> getColumnClass(int column) {
+        return COLUMNS[column] == Column.PERCENT ? Integer.class : String.class;
+    }
+
+    @Override
+    public Object getValueAt(int rowIndex, int column) {
+        Row row = rows.get(rowIndex);
+        return switch (COLUMNS[column]) {
+            case URL -> row.job.getUrl();
+            case TITLE -> row.title;
+            case STATE -> row.state;
+            case PERCENT -> row.percent;
+            case SPEED -> row.speed;
+            case ETA -> row.eta;
+            case SIZE -> row.size;
+        };
+    }
+
+    // On a delivery thread; cheap, whatever the rate of events. The timer
+    // is only touched on the EDT, at most once per job per refresh.
+    private void markDirty(JobEvent event) {
+        if (dirty.add(event.getJobId())) {
+            SwingUtilities.invokeLater(this::scheduleRefresh);
+        }
+    }
+
+    private void scheduleRefresh() {
+        if (!refresh.isRunning()) {
+            refresh.start();
+        }
+    }
+
+    private void refreshDirty() {
+        Long[] ids = dirty.toArray(new Long[0]);
+        int[] changed = new int[ids.length];
+        int count = 0;
+        for (Long id : ids) {
+            dirty.remove(id);
+            Integer index = rowOfJob.get(id);
+            if (index != null && rows.get(index).update()) {
+                changed[count++] = index;
+            }
+        }
+        Arrays.sort(changed, 0, count);
+        // One event per run of adjacent rows
+        for (int i = 0; i < count; ) {
+            int end = i;
+            while (end + 1 < count && changed[end + 1] == changed[end] + 1) {
+                end++;
+            }
+            fireTableRowsUpdated(changed[i], changed[end]);
+            i = end + 1;
+        }
+        if (!dirty.isEmpty()) {
+            refresh.restart(); // marked while this ran
+        }
+    }
+
+    private static final class Row {
+        final DownloadJob job;
+        String title = "";
+        String state;
+        int percent;
+        String speed = "";
+        String eta = "";
+        String size = "";
+
+        Row(DownloadJob job) {
+            this.job = job;
+            update();
+        }
+
+        // Returns whether anything shown changed
+        boolean update() {
+            ProgressEvent progress = job.getProgress();
+            String newTitle = titleOf(job.getDestination());
+            String newState = job.getState().name();
+            int newPercent = progress.hasPercent() ? (int) progress.getPercent() : 0;
+            String newSpeed = progress.getBytesPerSecond() >= 0
+                ? ProgressEvent.formatBytes(progress.getBytesPerSecond()) + "/s" : "";
+            String newEta = job.getState() == DownloadJob.State.RUNNING && progress.getEtaSeconds() >= 0
+                ? ProgressEvent.formatEta(progress.getEtaSeconds()) : "";
+            String newSize = progress.getTotalBytes() > 0
+                ? (progress.isTotalEstimated() ? "~" : "") + ProgressEvent.formatBytes(progress.getTotalBytes()) : "";
+            boolean changed = !newTitle.equals(title) || !newState.equals(state) || newPercent != percent
+                || !newSpeed.equals(speed) || !newEta.equals(eta) || !newSize.equals(size);
+            title = newTitle;
+            state = newState;
+            percent = newPercent;
+            speed = newSpeed;
+            eta = newEta;
+            size = newSize;
+            return changed;
+        }
+
+        // "/downloads/Some Title.f137.mp4" shows as "Some Title"
+        private static String titleOf(String destination) {
+            if (destination == null) {
+                return "";
+            }
+            String name = Paths.get(destination).getFileName().toString();
+            int dot = name.lastIndexOf('.');
+            if (dot > 0) {
+                name = name.substring(0, dot);
+            }
+            int format = name.lastIndexOf(".f");
+            if (format > 0 && name.substring(format + 2).chars().allMatch(Character::isLetterOrDigit)) {
+                name = name.substring(0, format);
+            }
+            return name;
+        }
+    }
+}
@@ -1,33 +1,73 @@
 import javax.swing.*;
 import javax.swing.plaf.basic.BasicProgressBarUI;
+import javax.swing.table.TableCellRenderer;
 import java.awt.*;
 import java.awt.event.ActionEvent;
-import java.io.BufferedReader;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.awt.image.BufferedImage;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 public class YoutubeDownloaderGUI extends JFrame {
+    private static final int LOG_HISTORY_LINES = Integer.getInteger("downloader.logLines", 5000);
+    private static final long LOG_FLUSH_MILLIS = 16; // about one frame
+    private static final int TABLE_REFRESH_MILLIS = 250;
+    private static final Path JOB_LOG_DIRECTORY = Paths.get(System.getProperty("java.io.tmpdir"), "youtube-downloader-jobs");
+    // The glow only; the bar itself repaints when its value changes
+    private static final int GLOW_FRAME_MILLIS = 100;
+    private static final int GLOW_WIDTH = 20;
+    private static final Color BACKGROUND_START = new Color(28, 28, 28);
+    private static final Color BACKGROUND_END = new Color(40, 40, 40);
+    private static final Color OVERLAY = new Color(40, 40, 40);
+    private static final Color TRACK = new Color(50, 50, 50);
+    private static final Color FILL_START = new Color(0, 191, 165);
+    private static final Color FILL_END = new Color(0, 150, 135);
+    private static final AlphaComposite GLOW = AlphaComposite.getInstance(AlphaComposite.SRC_OVER, 0.3f);
+    private static final AlphaComposite DIM = AlphaComposite.getInstance(AlphaComposite.SRC_OVER, 0.7f);
+
     private JTextField urlField;
     private JTextArea logArea;
     private JButton downloadButton;
     private JButton pauseButton;
     private JProgressBar progressBar;
     private JComboBox<String> formatCombo;
+    private JComboBox<String> engineCombo;
+    private JComboBox<String> limitCombo;
     private JTextField outputPathField;
     private volatile boolean isDownloading = false;
-    private Process currentProcess;
+    private SwingWorker<Void, String> currentWorker;
     private JLabel statusLabel;
-    private Timer progressTimer;
+    private Timer glowTimer;
+    private GradientProgressBarUI progressUI;
     private boolean isPaused = false;
+    private LogSink logSink;
+    // Engines publish here; the EDT takes the newest progress whenever it gets to it
+    private final EventBus events = new EventBus();
+    private long currentDownload;
+    // The queue runs next to the single download above; its jobs log to files
+    private final DownloadScheduler queue = new DownloadScheduler(DownloadScheduler.defaultWorkers());
+    private JobTableModel jobModel;
+    private JTable jobTable;
+    private DownloadJob shownJob;
 
     public YoutubeDownloaderGUI() {
         super("Professional YouTube Downloader");
+        queue.setLogDirectory(JOB_LOG_DIRECTORY);
+        List<DownloadJob> restored = restoreQueue();
+        clearOldLogs(restored);
+        // Stops the processes; the store keeps the unfinished jobs for next time
+        Runtime.getRuntime().addShutdownHook(new Thread(queue::shutdownNow, "queue-shutdown"));
         initializeUI();
+        jobModel.addJobs(restored);
+        events.subscribe(this::showEvent, EventBus.Delivery.LATEST, EventBus.ANY_JOB, SwingUtilities::invokeLater);
     }
 
     private void initializeUI() {
@@ -36,18 +76,7 @@ public class YoutubeDownloaderGUI extends JFrame {
         setLocationRelativeTo(null);
         
         // Main panel with gradient background
-        JPanel mainPanel = new JPanel(new BorderLayout(10, 10)) {
-            @Override
-            protected void paintComponent(Graphics g) {
-                super.paintComponent(g);
-                Graphics2D g2d = (Graphics2D) g;
-                Color color1 = new Color(28, 28, 28);
-                Color color2 = new Color(40, 40, 40);
-                GradientPaint gp = new GradientPaint(0, 0, color1, getWidth(), getHeight(), color2);
-                g2d.setPaint(gp);
-                g2d.fillRect(0, 0, getWidth(), getHeight());
-            }
-        };
+        JPanel mainPanel = new GradientPanel(new BorderLayout(10, 10));
         mainPanel.setBorder(BorderFactory.createEmptyBorder(20, 20, 20, 20));
 
         // Input panel
@@ -67,6 +96,7 @@ public class YoutubeDownloaderGUI extends JFrame {
         logArea.setBackground(new Color(40, 40, 40, 200));
         logArea.setForeground(new Color(220, 220, 220));
         logArea.setCaretColor(Color.WHITE);
+        logSink = createLogSink();
         
         JScrollPane scrollPane = new JScrollPane(logArea);
         scrollPane.setBorder(BorderFactory.createCompoundBorder(
@@ -78,7 +108,8 @@ public class YoutubeDownloaderGUI extends JFrame {
 
         // Progress bar
         progressBar = new JProgressBar();
-        progressBar.setUI(new GradientProgressBarUI());
+        progressUI = new GradientProgressBarUI();
+        progressBar.setUI(progressUI);
         progressBar.setStringPainted(true);
         progressBar.setFont(new Font("Segoe UI", Font.BOLD, 14));
         progressBar.setForeground(Color.WHITE);
@@ -90,8 +121,8 @@ public class YoutubeDownloaderGUI extends JFrame {
             protected void paintComponent(Graphics g) {
                 Graphics2D g2d = (Graphics2D) g.create();
                 g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-                g2d.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, 0.7f));
-                g2d.setColor(new Color(40, 40, 40));
+                g2d.setComposite(DIM);
+                g2d.setColor(OVERLAY);
                 g2d.fillRect(0, 0, getWidth(), getHeight());
                 g2d.dispose();
             }
@@ -106,10 +137,35 @@ public class YoutubeDownloaderGUI extends JFrame {
         progressContainer.setBorder(BorderFactory.createEmptyBorder(20, 50, 20, 50));
         glassPane.add(progressContainer);
 
-        mainPanel.add(scrollPane, BorderLayout.CENTER);
+        JSplitPane split = new JSplitPane(JSplitPane.VERTICAL_SPLIT, createJobTable(), scrollPane);
+        split.setOpaque(false);
+        split.setBorder(null);
+        split.setResizeWeight(0.5);
+        mainPanel.add(split, BorderLayout.CENTER);
         add(mainPanel);
         createMenuBar();
         setupProgressAnimation();
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowActivated(WindowEvent e) {
+                updateAnimation();
+            }
+
+            @Override
+            public void windowDeactivated(WindowEvent e) {
+                updateAnimation();
+            }
+
+            @Override
+            public void windowIconified(WindowEvent e) {
+                updateAnimation();
+            }
+
+            @Override
+            public void windowDeiconified(WindowEvent e) {
+                updateAnimation();
+            }
+        });
     }
 
     private JPanel createInputPanel() {
@@ -143,6 +199,21 @@ public class YoutubeDownloaderGUI extends JFrame {
         browseBtn.addActionListener(e -> browseFolder());
         panel.add(browseBtn, position(gbc, 2, 2));
 
+        // Download Engine
+        addLabeledComponent(panel, "Engine:", 0, 3, gbc);
+        String[] engines = {"aria2c", "yt-dlp", "Built-in"};
+        engineCombo = new JComboBox<>(engines);
+        styleComboBox(engineCombo);
+        panel.add(engineCombo, position(gbc, 1, 3));
+
+        // Bandwidth cap shared by all downloads; applies to running ones too
+        addLabeledComponent(panel, "Speed Limit:", 0, 4, gbc);
+        String[] limits = {"Unlimited", "500 KB/s", "1 MB/s", "2 MB/s", "5 MB/s", "10 MB/s"};
+        limitCombo = new JComboBox<>(limits);
+        styleComboBox(limitCombo);
+        limitCombo.addActionListener(e -> BandwidthLimiter.shared().setLimit(getSelectedLimit()));
+        panel.add(limitCombo, position(gbc, 1, 4));
+
         // Control Buttons
         JPanel btnPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT, 10, 0));
         btnPanel.setOpaque(false);
@@ -155,11 +226,21 @@ public class YoutubeDownloaderGUI extends JFrame {
         pauseButton.setEnabled(false);
         pauseButton.addActionListener(e -> togglePause());
 
+        JButton queueButton = createHoverButton("Add to Queue", new Color(100, 100, 100), new Color(150, 150, 150));
+        queueButton.setPreferredSize(new Dimension(140, 40));
+        queueButton.addActionListener(e -> addToQueue());
+
+        JButton clearButton = createHoverButton("Clear Finished", new Color(100, 100, 100), new Color(150, 150, 150));
+        clearButton.setPreferredSize(new Dimension(140, 40));
+        clearButton.addActionListener(e -> jobModel.removeFinished());
+
+        btnPanel.add(clearButton);
+        btnPanel.add(queueButton);
         btnPanel.add(pauseButton);
         btnPanel.add(downloadButton);
 
         gbc.gridwidth = 4;
-        panel.add(btnPanel, position(gbc, 0, 3));
+        panel.add(btnPanel, position(gbc, 0, 5));
 
         return panel;
     }
@@ -179,13 +260,27 @@ public class YoutubeDownloaderGUI extends JFrame {
     }
 
     private void setupProgressAnimation() {
-        progressTimer = new Timer(50, e -> {
-            if (isDownloading && !isPaused) {
-                progressBar.repaint();
-            }
+        glowTimer = new Timer(GLOW_FRAME_MILLIS, e -> {
+            // Only the strip the glow covers, before and after this step
+            Rectangle glow = progressUI.getGlowBounds();
+            progressUI.advanceGlow(GLOW_FRAME_MILLIS);
+            progressBar.repaint(glow.union(progressUI.getGlowBounds()));
         });
     }
 
+    // The glow runs while a download runs and somebody can see it
+    private void updateAnimation() {
+        boolean animate = isDownloading && !isPaused && isActive() && (getExtendedState() & ICONIFIED) == 0;
+        if (animate != glowTimer.isRunning()) {
+            if (animate) {
+                glowTimer.start();
+            } else {
+                glowTimer.stop();
+                progressBar.repaint(progressUI.getGlowBounds());
+            }
+        }
+    }
+
     private void toggleDownload(ActionEvent e) {
         if (isDownloading) {
             stopDownload();
@@ -204,39 +299,27 @@ public class YoutubeDownloaderGUI extends JFrame {
         }
 
         isDownloading = true;
+        jobTable.clearSelection(); // the log area shows this download now
         getGlassPane().setVisible(true);
         statusLabel.setText("Downloading...");
-        progressTimer.start();
+        updateAnimation();
         downloadButton.setText("Stop Download");
         pauseButton.setEnabled(true);
+        logSink.clear();
         logArea.setText("");
         progressBar.setValue(0);
 
-        new SwingWorker<Void, String>() {
+        long download = ++currentDownload;
+        DownloadOptions options = createOptions(outputPath);
+
+        currentWorker = new SwingWorker<Void, String>() {
             @Override
             protected Void doInBackground() throws Exception {
+                DownloadEngine engine = new ArchivingEngine(new DeduplicatingEngine(new FormatSelectingEngine(
+                    options.getEngine() == DownloadOptions.Engine.NATIVE ? new NativeEngine() : new YtDlpEngine())));
                 try {
-                    Path outputDir = Paths.get(outputPath);
-                    Path archivePath = outputDir.resolve("archive.txt");
-
-                    ProcessBuilder pb = new ProcessBuilder(
-                        "yt-dlp",
-                        "--newline",
-                        "--download-archive", archivePath.toString(),
-                        "--continue",
-                        "--external-downloader", "aria2c",
-                        "--external-downloader-args", "-c -j 3 -s 3 -x 3",
-                        "-o", outputPath + "/%(title)s.%(ext)s",
-                        "--format", getSelectedFormat(),
-                        "--no-warnings",
-                        url
-                    );
-
-                    currentProcess = pb.start();
-                    readStream(currentProcess.getInputStream(), false);
-                    readStream(currentProcess.getErrorStream(), true);
-
-                    int exitCode = currentProcess.waitFor();
+                    // Lines go straight to the log sink, progress through the event bus
+                    int exitCode = engine.download(url, outputPath, options, events.listener(download), logSink::append);
                     publish("\nProcess exited with code: " + exitCode);
                 } catch (IOException | InterruptedException ex) {
                     publish("Error: " + ex.getMessage());
@@ -246,89 +329,221 @@ public class YoutubeDownloaderGUI extends JFrame {
 
             @Override
             protected void process(java.util.List<String> chunks) {
-                chunks.forEach(line -> {
-                    logArea.append(line + "\n");
-                    parseProgress(line);
-                });
+                chunks.forEach(logSink::append);
             }
 
             @Override
             protected void done() {
                 isDownloading = false;
                 getGlassPane().setVisible(false);
-                progressTimer.stop();
+                updateAnimation();
                 downloadButton.setText("Start Download");
                 pauseButton.setEnabled(false);
-                statusLabel.setText("Download Complete");
+                if (!isCancelled()) {
+                    statusLabel.setText("Download Complete");
+                }
+            }
+        };
+        currentWorker.execute();
+    }
+
+    private DownloadOptions createOptions(String outputPath) {
+        return new DownloadOptions()
+            .quality(FormatPolicy.preset((String) formatCombo.getSelectedItem()))
+            .engine(getSelectedEngine())
+            .segments(3)
+            .archiveFile(Paths.get(outputPath).resolve("archive.txt"));
+    }
+
+    private JScrollPane createJobTable() {
+        jobModel = new JobTableModel(queue, TABLE_REFRESH_MILLIS);
+        jobTable = new JTable(jobModel);
+        jobTable.setFillsViewportHeight(true);
+        jobTable.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        jobTable.setBackground(new Color(40, 40, 40));
+        jobTable.setForeground(new Color(220, 220, 220));
+        jobTable.setGridColor(new Color(60, 60, 60));
+        jobTable.setDefaultRenderer(Integer.class, new PercentRenderer());
+        jobTable.getSelectionModel().addListSelectionListener(e -> {
+            if (!e.getValueIsAdjusting()) {
+                int row = jobTable.getSelectedRow();
+                showJobLog(row >= 0 ? jobModel.getJob(row) : null);
+            }
+        });
+        JScrollPane scroll = new JScrollPane(jobTable);
+        scroll.setBorder(BorderFactory.createMatteBorder(1, 1, 1, 1, new Color(60, 60, 60)));
+        return scroll;
+    }
+
+    // Every whitespace-separated URL in the field becomes a job of the queue
+    private void addToQueue() {
+        String outputPath = outputPathField.getText().trim();
+        List<String> urls = Arrays.stream(urlField.getText().trim().split("\\s+")).filter(u -> !u.isEmpty()).toList();
+        if (urls.isEmpty() || outputPath.isEmpty()) {
+            showError("Input Error", "Please fill in all required fields");
+            return;
+        }
+        jobModel.addJobs(queue.submitAll(urls, outputPath, createOptions(outputPath)));
+        statusLabel.setText(urls.size() + (urls.size() == 1 ? " job" : " jobs") + " queued");
+    }
+
+    // The log area follows the selected job: its file's tail first, then new lines
+    private void showJobLog(DownloadJob job) {
+        if (shownJob != null) {
+            shownJob.tailLog(null);
+        }
+        shownJob = job;
+        if (job == null || isDownloading) {
+            return;
+        }
+        logSink.clear();
+        logArea.setText("");
+        new SwingWorker<List<String>, Void>() {
+            @Override
+            protected List<String> doInBackground() throws IOException {
+                return job.getLog().tail(logSink.getMaxLines());
+            }
+
+            @Override
+            protected void done() {
+                if (shownJob != job) {
+                    return; // selection moved on meanwhile
+                }
+                try {
+                    get().forEach(logSink::append);
+                } catch (Exception ex) {
+                    logSink.append("Could not read the log: " + ex.getMessage());
+                }
+                job.tailLog(logSink::append);
             }
         }.execute();
     }
 
-    private String getSelectedFormat() {
-        String selected = (String) formatCombo.getSelectedItem();
-        return switch (selected) {
-            case "MP4" -> "mp4";
-            case "WEBM" -> "webm";
-            case "720p" -> "bestvideo[height<=720]+bestaudio";
-            case "1080p" -> "bestvideo[height<=1080]+bestaudio";
-            case "Audio Only" -> "bestaudio";
-            default -> "best";
-        };
+    // The unfinished jobs of the last session; without a store the queue starts empty
+    private List<DownloadJob> restoreQueue() {
+        try {
+            return queue.restore(JobStore.open(JobStore.defaultFile("gui-jobs.log")));
+        } catch (IOException e) {
+            System.err.println("Running without a job store: " + e.getMessage());
+            return List.of();
+        }
     }
 
-    private void readStream(InputStream stream, boolean isError) {
-        new Thread(() -> {
-            try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    final String finalLine = line;
-                    SwingUtilities.invokeLater(() -> {
-                        logArea.append((isError ? "ERROR: " : "") + finalLine + "\n");
-                        parseProgress(finalLine);
-                    });
+    // Logs of an earlier session are dropped unless their job came back
+    private static void clearOldLogs(List<DownloadJob> restored) {
+        if (!Files.isDirectory(JOB_LOG_DIRECTORY)) {
+            return;
+        }
+        Set<Path> keep = new HashSet<>();
+        for (DownloadJob job : restored) {
+            keep.add(job.getLog().getFile());
+        }
+        try (DirectoryStream<Path> logs = Files.newDirectoryStream(JOB_LOG_DIRECTORY, "*.log")) {
+            for (Path log : logs) {
+                if (!keep.contains(log)) {
+                    Files.deleteIfExists(log);
                 }
-            } catch (IOException ex) {
-                SwingUtilities.invokeLater(() -> 
-                    logArea.append("Stream error: " + ex.getMessage() + "\n"));
             }
-        }).start();
+        } catch (IOException e) {
+            System.err.println("Could not clear old job logs: " + e.getMessage());
+        }
     }
 
-    private void parseProgress(String line) {
-        Matcher matcher = Pattern.compile("(\\d+\\.\\d)%").matcher(line);
-        if (matcher.find()) {
-            int progress = (int) Float.parseFloat(matcher.group(1));
-            progressBar.setValue(progress);
+    private DownloadOptions.Engine getSelectedEngine() {
+        String selected = (String) engineCombo.getSelectedItem();
+        return switch (selected) {
+            case "yt-dlp" -> DownloadOptions.Engine.YT_DLP;
+            case "Built-in" -> DownloadOptions.Engine.NATIVE;
+            default -> DownloadOptions.Engine.ARIA2C;
+        };
+    }
+
+    // Bytes per second, 0 for no limit
+    private long getSelectedLimit() {
+        String selected = (String) limitCombo.getSelectedItem();
+        return switch (selected) {
+            case "500 KB/s" -> 500L << 10;
+            case "1 MB/s" -> 1L << 20;
+            case "2 MB/s" -> 2L << 20;
+            case "5 MB/s" -> 5L << 20;
+            case "10 MB/s" -> 10L << 20;
+            default -> 0;
+        };
+    }
+
+    // On the EDT; a stopped download may still report for a moment
+    private void showEvent(JobEvent event) {
+        if (event.getJobId() == currentDownload && event.getType() == JobEvent.Type.PROGRESS) {
+            Metrics.EDT_LATENCY.recordSince(event.getPublishedNanos());
+            showProgress(event.getProgress());
+        }
+    }
+
+    private void showProgress(ProgressEvent event) {
+        if (!event.hasPercent()) {
+            if (event.getTotalBytes() >= 0) {
+                // The quality policy's estimate, before anything is downloaded
+                statusLabel.setText("Downloading about " + ProgressEvent.formatBytes(event.getTotalBytes()) + "...");
+            }
+            return;
+        }
+        int progress = (int) event.getPercent();
+        progressBar.setValue(progress);
+        if (event.getBytesPerSecond() >= 0) {
+            statusLabel.setText(String.format("Downloading... %d%% Complete (%s/s, ETA %s)", progress,
+                ProgressEvent.formatBytes(event.getBytesPerSecond()), ProgressEvent.formatEta(event.getEtaSeconds())));
+        } else {
             statusLabel.setText(String.format("Downloading... %d%% Complete", progress));
         }
     }
 
     private void stopDownload() {
-        if (currentProcess != null && currentProcess.isAlive()) {
-            currentProcess.destroy();
+        if (currentWorker != null) {
+            currentWorker.cancel(true);
         }
         isDownloading = false;
         getGlassPane().setVisible(false);
-        progressTimer.stop();
+        updateAnimation();
         statusLabel.setText("Download Stopped");
-        logArea.append("\nDownload stopped by user\n");
+        logSink.append("Download stopped by user");
     }
 
     private void togglePause() {
         isPaused = !isPaused;
         if (isPaused) {
-            if (currentProcess != null && currentProcess.isAlive()) {
-                currentProcess.destroy();
+            if (currentWorker != null) {
+                currentWorker.cancel(true);
             }
+            updateAnimation();
             statusLabel.setText("Download Paused");
             pauseButton.setText("Resume");
-            logArea.append("Download paused\n");
+            logSink.append("Download paused");
         } else {
             startDownload();
             pauseButton.setText("Pause");
         }
     }
 
+    private LogSink createLogSink() {
+        Path spillFile = Paths.get(System.getProperty("java.io.tmpdir"), "youtube-downloader.log");
+        return new LogSink(LOG_HISTORY_LINES, spillFile, LOG_FLUSH_MILLIS, SwingUtilities::invokeLater, this::showLog);
+    }
+
+    private void showLog(String lines, boolean replace) {
+        if (replace) {
+            logArea.setText(lines);
+        } else {
+            logArea.append(lines);
+        }
+        // Keep the last LOG_HISTORY_LINES lines on screen; the rest is in the spill file
+        int excess = logArea.getLineCount() - 1 - LOG_HISTORY_LINES;
+        if (excess > 0) {
+            try {
+                logArea.replaceRange("", 0, logArea.getLineEndOffset(excess - 1));
+            } catch (javax.swing.text.BadLocationException ignored) {}
+        }
+    }
+
     private void browseFolder() {
         JFileChooser chooser = new JFileChooser();
         chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
@@ -419,7 +634,64 @@ public class YoutubeDownloaderGUI extends JFrame {
         panel.add(label, position(gbc, x, y));
     }
 
+    // Draws the percent column; one bar paints every cell
+    static class PercentRenderer extends JProgressBar implements TableCellRenderer {
+        private static final long serialVersionUID = 1L;
+
+        PercentRenderer() {
+            super(0, 100);
+            setStringPainted(true);
+        }
+
+        @Override
+        public Component getTableCellRendererComponent(JTable table, Object value, boolean isSelected,
+                                                       boolean hasFocus, int row, int column) {
+            setValue(value instanceof Integer ? (Integer) value : 0);
+            return this;
+        }
+    }
+
+    // Draws the gradient once per size and copies it for every paint after that
+    static class GradientPanel extends JPanel {
+        private static final long serialVersionUID = 1L;
+        private BufferedImage background;
+
+        GradientPanel(LayoutManager layout) {
+            super(layout);
+        }
+
+        @Override
+        protected void paintComponent(Graphics g) {
+            int width = getWidth();
+            int height = getHeight();
+            if (background == null || background.getWidth() != width || background.getHeight() != height) {
+                GraphicsConfiguration config = getGraphicsConfiguration();
+                background = config != null // null when painted off screen
+                    ? config.createCompatibleImage(Math.max(1, width), Math.max(1, height))
+                    : new BufferedImage(Math.max(1, width), Math.max(1, height), BufferedImage.TYPE_INT_RGB);
+                Graphics2D g2d = background.createGraphics();
+                g2d.setPaint(new GradientPaint(0, 0, BACKGROUND_START, width, height, BACKGROUND_END));
+                g2d.fillRect(0, 0, width, height);
+                g2d.dispose();
+            }
+            g.drawImage(background, 0, 0, null);
+        }
+    }
+
     class GradientProgressBarUI extends BasicProgressBarUI {
+        private GradientPaint fill;
+        private int fillWidth = -1;
+        private long glowMillis;
+        private int progress; // where the last paint ended the bar
+
+        void advanceGlow(long millis) {
+            glowMillis = (glowMillis + millis) % 1000;
+        }
+
+        Rectangle getGlowBounds() {
+            return new Rectangle(Math.max(0, progress - GLOW_WIDTH), 0, GLOW_WIDTH, progressBar.getHeight());
+        }
+
         @Override
         protected void paintDeterminate(Graphics g, JComponent c) {
             Graphics2D g2d = (Graphics2D) g.create();
@@ -427,24 +699,24 @@ public class YoutubeDownloaderGUI extends JFrame {
 
             int width = progressBar.getWidth();
             int height = progressBar.getHeight();
-            int progress = getAmountFull(progressBar.getInsets(), width, height);
+            progress = getAmountFull(progressBar.getInsets(), width, height);
 
             // Background
-            g2d.setColor(new Color(50, 50, 50));
+            g2d.setColor(TRACK);
             g2d.fillRoundRect(0, 0, width, height, 15, 15);
 
             // Progress gradient
-            GradientPaint gp = new GradientPaint(
-                0, 0, new Color(0, 191, 165),
-                width, 0, new Color(0, 150, 135)
-            );
-            g2d.setPaint(gp);
+            if (width != fillWidth) {
+                fill = new GradientPaint(0, 0, FILL_START, width, 0, FILL_END);
+                fillWidth = width;
+            }
+            g2d.setPaint(fill);
             g2d.fillRoundRect(2, 2, progress - 4, height - 4, 10, 10);
 
-            // Glow effect
-            if (isDownloading && !isPaused) {
-                int glowWidth = (int) (20 * Math.sin(System.currentTimeMillis() % 1000 / 1000.0 * Math.PI * 2));
-                g2d.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, 0.3f));
+            // Glow effect, only while it is animated
+            if (glowTimer.isRunning()) {
+                int glowWidth = (int) (GLOW_WIDTH * Math.sin(glowMillis / 1000.0 * Math.PI * 2));
+                g2d.setComposite(GLOW);
                 g2d.setColor(Color.WHITE);
                 g2d.fillRoundRect(progress - glowWidth, 2, glowWidth, height - 4, 10, 10);
             }
@@ -462,6 +734,7 @@ public class YoutubeDownloaderGUI extends JFrame {
     }
 
     public static void main(String[] args) {
+        Metrics.registerMBean(); // EDT latency and download timings show up in jconsole
         SwingUtilities.invokeLater(() -> {
             try {
                 UIManager.setLookAndFeel("javax.swing.plaf.nimbus.NimbusLookAndFeel");
@@ -4,7 +4,6 @@ import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
 import java.nio.file.Paths;
-import java.util.regex.*;
 
 public class YoutubeDownloaderGUI extends JFrame {
     private JTextField urlField = new JTextField(25), outputPathField = new JTextField("downloads", 25);
@@ -32,12 +31,17 @@ public class YoutubeDownloaderGUI extends JFrame {
     private JComboBox<String> formatCombo = new JComboBox<>(new String[]{"Best Quality","MP4","WEBM","720p","1080p","Audio Only"});
     private Process currentProcess;
     private volatile boolean isDownloading = false, isPaused = false;
+    // The reader thread only publishes; the bar is set on the EDT with the newest progress
+    private final EventBus events = new EventBus();
+    private final ProgressParser progressParser = new ProgressParser(events.listener(1));
 
     public YoutubeDownloaderGUI() {
         super("Professional YouTube Downloader");
         setSize(1000,700);
         setLocationRelativeTo(null);
         setDefaultCloseOperation(EXIT_ON_CLOSE);
+        events.subscribe(e -> { if(e.getType()==JobEvent.Type.PROGRESS && e.getProgress().hasPercent()) progressBar.setValue((int)e.getProgress().getPercent()); },
+            EventBus.Delivery.LATEST, EventBus.ANY_JOB, SwingUtilities::invokeLater);
         
         JPanel mainPanel = new JPanel(new BorderLayout(10,10)) {
             protected void paintComponent(Graphics g) {
@@ -81,7 +85,7 @@ public class YoutubeDownloaderGUI extends JFrame {
         pauseBtn.setEnabled(false);
         pauseBtn.addActionListener(e -> {
             isPaused = !isPaused;
-            if(isPaused) { currentProcess.destroy(); pauseBtn.setText("Resume"); }
+            if(isPaused) { ProcessSupervisor.destroyTree(currentProcess); pauseBtn.setText("Resume"); }
             else startDownload();
         });
         downloadBtn.addActionListener(e -> {
@@ -112,22 +116,21 @@ public class YoutubeDownloaderGUI extends JFrame {
         pauseBtn.setEnabled(true);
         new SwingWorker<Void, String>() {
             protected Void doInBackground() throws Exception {
+                HostConcurrency.Host host = HostConcurrency.shared().host(urlField.getText());
+                int n = host.connections(3);
                 ProcessBuilder pb = new ProcessBuilder("yt-dlp", "--newline", "--download-archive", 
                     Paths.get(outputPathField.getText(), "archive.txt").toString(), "--continue",
-                    "--external-downloader", "aria2c", "--external-downloader-args", "-c -j 3 -s 3 -x 3",
+                    "--external-downloader", "aria2c", "--external-downloader-args", "-c -j "+n+" -s "+n+" -x "+n,
                     "-o", outputPathField.getText()+"/%(title)s.%(ext)s", "--format", 
-                    formatCombo.getSelectedIndex()==0?"best":formatCombo.getSelectedIndex()==1?"mp4":
-                    formatCombo.getSelectedIndex()==2?"webm":formatCombo.getSelectedIndex()==3?
-                    "bestvideo[height<=720]+bestaudio":formatCombo.getSelectedIndex()==4?
-                    "bestvideo[height<=1080]+bestaudio":"bestaudio", urlField.getText());
+                    FormatPolicy.preset((String)formatCombo.getSelectedItem()).toSelector(), "--", urlField.getText());
                 try {
                     currentProcess = pb.start();
                     BufferedReader reader = new BufferedReader(new InputStreamReader(currentProcess.getInputStream()));
                     String line;
                     while((line = reader.readLine()) != null) {
                         publish(line);
-                        Matcher m = Pattern.compile("(\\d+\\.\\d)%").matcher(line);
-                        if(m.find()) progressBar.setValue((int)Float.parseFloat(m.group(1)));
+                        progressParser.parse(line);
+                        host.onLine(line);
                     }
                 } catch (IOException ex) { publish("Error: "+ex.getMessage()); }
                 return null;
@@ -144,7 +147,7 @@ public class YoutubeDownloaderGUI extends JFrame {
     }
 
     private void stopDownload() {
-        if(currentProcess != null) currentProcess.destroy();
+        if(currentProcess != null) ProcessSupervisor.destroyTree(currentProcess);
         isDownloading = false;
     }
 
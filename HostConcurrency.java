@@ -0,0 +1,315 @@
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+// Decides how hard each host is pushed. Per host it keeps the number of
+// connections a new download opens (aria2c -j/-s/-x, or the native engine's
+// range requests) and how many jobs may run against it at once, and tunes
+// both AIMD-style from what the downloads observe: after every quiet
+// interval one of them goes up by one, and an increase that didn't raise the
+// host's combined throughput is taken back. An HTTP 429 or 503 halves both
+// and holds them there for a while. Hosts are keyed by the page URL, which
+// is known before extraction; a site's media comes from its own CDN anyway.
+public class HostConcurrency {
+    private static final HostConcurrency SHARED = new HostConcurrency(
+        !Boolean.getBoolean("downloader.fixedConcurrency"));
+
+    // aria2c refuses more than 16 connections per server
+    static final int MAX_CONNECTIONS = 16;
+    private static final int MAX_JOBS = 32;
+    private static final int INITIAL_JOBS = Integer.getInteger("downloader.hostJobs", 4);
+    private static final int INTERVAL_SECONDS = 10;
+    private static final long INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(INTERVAL_SECONDS);
+    private static final long HOLD_NANOS = TimeUnit.SECONDS.toNanos(60);
+    // Every connection of a job sees the same 429; reports this close together count once
+    private static final long DECREASE_GAP_NANOS = TimeUnit.SECONDS.toNanos(5);
+    // An increase is only kept if it adds this much throughput
+    private static final double MIN_GAIN = 1.05;
+    private static final Pattern THROTTLED = Pattern.compile(
+        "HTTP Error (429|503)|status=(429|503)\\b|Too Many Requests|Service Unavailable");
+
+    private enum Step {
+        NONE, CONNECTIONS, JOBS
+    }
+
+    private final boolean adaptive;
+    private final Map<String, Host> hosts = new ConcurrentHashMap<>();
+
+    // Without adaptive, jobs use the connections they ask for and hosts have no job limit
+    public HostConcurrency(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+
+    public static HostConcurrency shared() {
+        return SHARED;
+    }
+
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    public Host host(String url) {
+        return hosts.computeIfAbsent(hostName(url), Host::new);
+    }
+
+    // Current state of every host seen so far, by name
+    public Map<String, Host> getHosts() {
+        return new TreeMap<>(hosts);
+    }
+
+    static boolean isThrottled(String line) {
+        return THROTTLED.matcher(line).find();
+    }
+
+    // "https://www.youtube.com/watch?v=..." and "https://youtu.be/..." are both youtube.com
+    static String hostName(String url) {
+        String host;
+        try {
+            host = URI.create(url.trim()).getHost();
+        } catch (IllegalArgumentException e) {
+            host = null;
+        }
+        if (host == null) {
+            return "";
+        }
+        host = host.toLowerCase(Locale.ROOT);
+        if (host.startsWith("www.") || host.startsWith("m.")) {
+            host = host.substring(host.indexOf('.') + 1);
+        }
+        return host.equals("youtu.be") ? "youtube.com" : host;
+    }
+
+    public final class Host {
+        private final String name;
+        private final ThroughputMeter meter = new ThroughputMeter(INTERVAL_SECONDS);
+        private final Deque<Runnable> waiting = new ArrayDeque<>();
+        private int connections; // set by the first download
+        private int jobLimit = Math.max(1, Math.min(MAX_JOBS, INITIAL_JOBS));
+        private int running;
+        private long throttles;
+        private Step lastStep = Step.NONE;
+        private double baseline; // throughput before the last increase
+        private boolean tried; // a download started since connections went up
+        private long adjustedAt = System.nanoTime();
+        private long holdUntil = adjustedAt;
+        private long throttledAt = adjustedAt - DECREASE_GAP_NANOS;
+
+        private Host(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        // Connections for a download starting now; requested is where a new
+        // host starts, and all a non-adaptive controller returns
+        public synchronized int connections(int requested) {
+            if (!adaptive) {
+                return requested;
+            }
+            if (connections == 0) {
+                connections = Math.max(1, Math.min(MAX_CONNECTIONS, requested));
+            }
+            tried = true;
+            return connections;
+        }
+
+        // What a yt-dlp process starting now runs with: aria2c gets the host's
+        // connection count, other engines are left alone
+        public DownloadOptions adapt(DownloadOptions options) {
+            if (options.getEngine() != DownloadOptions.Engine.ARIA2C) {
+                return options;
+            }
+            return options.copy().segments(connections(options.getSegments()));
+        }
+
+        public synchronized int getConnections() {
+            return connections;
+        }
+
+        public synchronized int getJobLimit() {
+            return adaptive ? jobLimit : Integer.MAX_VALUE;
+        }
+
+        public synchronized int getRunning() {
+            return running;
+        }
+
+        public synchronized int getWaiting() {
+            return waiting.size();
+        }
+
+        public synchronized long getThrottles() {
+            return throttles;
+        }
+
+        public double getBytesPerSecond() {
+            return meter.ratePerSecond();
+        }
+
+        // Runs start now if the host is below its job limit, otherwise once a
+        // running job calls release(). Every start has to be paired with one release.
+        public void submit(Runnable start) {
+            synchronized (this) {
+                if (adaptive && running >= jobLimit) {
+                    waiting.add(start);
+                    return;
+                }
+                running++;
+            }
+            start.run();
+        }
+
+        // Takes a slot only if one is free now, without queueing; true has to
+        // be paired with one release()
+        public synchronized boolean tryAcquire() {
+            if (adaptive && running >= jobLimit) {
+                return false;
+            }
+            running++;
+            return true;
+        }
+
+        // Takes a start back out of the queue; false once it has left it
+        public synchronized boolean withdraw(Runnable start) {
+            return waiting.remove(start);
+        }
+
+        public void release() {
+            Runnable next;
+            synchronized (this) {
+                running--;
+                next = takeWaiting();
+            }
+            if (next != null) {
+                next.run();
+            }
+        }
+
+        public void recordBytes(long bytes) {
+            meter.record(bytes);
+            Runnable next;
+            synchronized (this) {
+                next = adjust(System.nanoTime());
+            }
+            if (next != null) {
+                next.run();
+            }
+        }
+
+        // An HTTP 429 or 503: halve both limits and leave them for a while
+        public synchronized void throttled() {
+            throttles++;
+            Metrics.THROTTLES.increment();
+            long now = System.nanoTime();
+            if (!adaptive || now - throttledAt < DECREASE_GAP_NANOS) {
+                return;
+            }
+            throttledAt = now;
+            if (connections > 0) {
+                connections = Math.max(1, connections / 2);
+            }
+            jobLimit = Math.max(1, jobLimit / 2);
+            lastStep = Step.NONE;
+            adjustedAt = now;
+            holdUntil = now + HOLD_NANOS;
+        }
+
+        // Wraps a download's listener to count its bytes towards the host's throughput
+        public ProgressListener watch(ProgressListener listener) {
+            return new ForwardingListener(listener) {
+                private long downloaded = -1;
+
+                @Override
+                public void onProgress(ProgressEvent event) {
+                    long bytes = event.getDownloadedBytes();
+                    if (bytes >= 0) {
+                        // Same baseline rules as DownloadJob: the first report after a restart
+                        // or a new file doesn't count, a smaller count means a new file began
+                        if (downloaded >= 0) {
+                            long delta = bytes >= downloaded ? bytes - downloaded : bytes;
+                            if (delta > 0) {
+                                recordBytes(delta);
+                            }
+                        }
+                        downloaded = bytes;
+                    }
+                    super.onProgress(event);
+                }
+
+                @Override
+                public void onDestination(String path) {
+                    downloaded = -1;
+                    super.onDestination(path);
+                }
+            };
+        }
+
+        // Wraps a process's log to pick up throttling reported by yt-dlp or aria2c
+        public Consumer<String> log(Consumer<String> log) {
+            return line -> {
+                onLine(line);
+                log.accept(line);
+            };
+        }
+
+        public void onLine(String line) {
+            if (isThrottled(line)) {
+                throttled();
+            }
+        }
+
+        // Returns a waiting job to start if the limit went up
+        private Runnable adjust(long now) {
+            if (!adaptive || running == 0 || now - adjustedAt < INTERVAL_NANOS || now < holdUntil) {
+                return null;
+            }
+            if (lastStep == Step.CONNECTIONS && !tried) {
+                return null; // nothing has used the new count yet
+            }
+            double rate = meter.ratePerSecond();
+            adjustedAt = now;
+            if (lastStep != Step.NONE && rate < baseline * MIN_GAIN) {
+                // The host is as fast as it gets; back off and look again later
+                if (lastStep == Step.CONNECTIONS) {
+                    connections = Math.max(1, connections - 1);
+                } else {
+                    jobLimit = Math.max(1, jobLimit - 1);
+                }
+                lastStep = Step.NONE;
+                holdUntil = now + HOLD_NANOS;
+                return null;
+            }
+            baseline = rate;
+            if (!waiting.isEmpty() && running >= jobLimit && jobLimit < MAX_JOBS) {
+                jobLimit++;
+                lastStep = Step.JOBS;
+                return takeWaiting();
+            }
+            if (connections > 0 && connections < MAX_CONNECTIONS) {
+                connections++;
+                tried = false;
+                lastStep = Step.CONNECTIONS;
+            } else {
+                lastStep = Step.NONE;
+            }
+            return null;
+        }
+
+        private Runnable takeWaiting() {
+            if (running >= getJobLimit() || waiting.isEmpty()) {
+                return null;
+            }
+            running++;
+            return waiting.poll();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+// One change to a job, as delivered by EventBus. Progress carries its own
+// copy of the parsed event, so subscribers may keep it.
+public final class JobEvent {
+    public enum Type {
+        STATE, PHASE, DESTINATION, PROGRESS
+    }
+
+    private final long jobId;
+    private final Type type;
+    private final long publishedNanos = System.nanoTime();
+    private final DownloadJob.State state;
+    private final ProgressParser.Phase phase;
+    private final String destination;
+    private final ProgressEvent progress;
+
+    private JobEvent(long jobId, Type type, DownloadJob.State state, ProgressParser.Phase phase,
+                     String destination, ProgressEvent progress) {
+        this.jobId = jobId;
+        this.type = type;
+        this.state = state;
+        this.phase = phase;
+        this.destination = destination;
+        this.progress = progress;
+    }
+
+    public static JobEvent state(long jobId, DownloadJob.State state) {
+        return new JobEvent(jobId, Type.STATE, state, null, null, null);
+    }
+
+    public static JobEvent phase(long jobId, ProgressParser.Phase phase) {
+        return new JobEvent(jobId, Type.PHASE, null, phase, null, null);
+    }
+
+    public static JobEvent destination(long jobId, String destination) {
+        return new JobEvent(jobId, Type.DESTINATION, null, null, destination, null);
+    }
+
+    public static JobEvent progress(long jobId, ProgressEvent progress) {
+        return new JobEvent(jobId, Type.PROGRESS, null, null, null, progress.copy());
+    }
+
+    public long getJobId() {
+        return jobId;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    // System.nanoTime() when it was published, for delivery latency
+    public long getPublishedNanos() {
+        return publishedNanos;
+    }
+
+    public DownloadJob.State getState() {
+        return state;
+    }
+
+    public ProgressParser.Phase getPhase() {
+        return phase;
+    }
+
+    public String getDestination() {
+        return destination;
+    }
+
+    public ProgressEvent getProgress() {
+        return progress;
+    }
+
+    @Override
+    public String toString() {
+        Object value = switch (type) {
+            case STATE -> state;
+            case PHASE -> phase;
+            case DESTINATION -> destination;
+            case PROGRESS -> progress;
+        };
+        return "#" + jobId + " " + type + " " + value;
+    }
+}
@@ -0,0 +1,110 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+// The output of one job, kept in a file so that a queue of thousands of jobs
+// holds no lines in memory that nobody looks at. The file is only open while
+// the job runs; tail() reads the end back when someone wants to see it.
+public class JobLog {
+    private static final int CHUNK = 8192;
+
+    private final Path file;
+    private BufferedWriter writer;
+    private boolean failed;
+
+    public JobLog(Path file) {
+        this.file = file;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public synchronized void append(String line) {
+        if (failed) {
+            return;
+        }
+        try {
+            if (writer == null) {
+                Files.createDirectories(file.getParent());
+                writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            writer.write(line);
+            writer.newLine();
+        } catch (IOException e) {
+            failed = true; // one message, not one per line
+            System.err.println("Could not write job log " + file + ": " + e.getMessage());
+        }
+    }
+
+    // Called when the job stops running; a later line opens the file again
+    public synchronized void close() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                System.err.println("Could not close job log " + file + ": " + e.getMessage());
+            }
+            writer = null;
+        }
+    }
+
+    public synchronized void delete() {
+        close();
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            System.err.println("Could not delete job log " + file + ": " + e.getMessage());
+        }
+    }
+
+    // The last maxLines lines, read backwards from the end of the file
+    public List<String> tail(int maxLines) throws IOException {
+        synchronized (this) {
+            if (writer != null) {
+                writer.flush();
+            }
+        }
+        if (!Files.exists(file)) {
+            return List.of();
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long end = channel.size();
+            long start = end;
+            int newlines = 0;
+            ByteBuffer buffer = ByteBuffer.allocate(CHUNK);
+            // The final newline ends the last line rather than starting a new one
+            while (start > 0 && newlines <= maxLines) {
+                int length = (int) Math.min(CHUNK, start);
+                start -= length;
+                buffer.clear().limit(length);
+                readFully(channel, buffer, start);
+                for (int i = length - 1; i >= 0; i--) {
+                    if (buffer.get(i) == '\n' && ++newlines > maxLines) {
+                        start += i + 1;
+                        break;
+                    }
+                }
+            }
+            ByteBuffer text = ByteBuffer.allocate((int) (end - start));
+            readFully(channel, text, start);
+            List<String> lines = new String(text.array(), StandardCharsets.UTF_8).lines().toList();
+            return lines.size() > maxLines ? lines.subList(lines.size() - maxLines, lines.size()) : lines;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+    }
+}
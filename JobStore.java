@@ -0,0 +1,372 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Write-ahead log of a scheduler's jobs, so a restart picks up the queue
+// where the last run stopped instead of losing it. One JSON object per line:
+// a submission holds everything needed to run the job again, later lines
+// its state changes and checkpoints. Records are queued in memory and one
+// writer thread appends whatever piled up since its last write with a
+// single fsync, so a burst of submissions costs one sync, not one each.
+// Finished jobs are dropped, and once the file holds far more lines than
+// there are live jobs it is rewritten with one line per job. A failed write
+// is retried as such a rewrite, since the file may end in part of a batch;
+// until one goes through, awaitDurable() reports the failure.
+public class JobStore implements Closeable {
+    private static final int COMPACT_MIN_RECORDS = 1024;
+    private static final int COMPACT_RATIO = 4;
+    private static final long RETRY_MILLIS = 1000;
+
+    private final Path file;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    // Live jobs as the log has them; a compaction writes these
+    private final Map<Long, Map<String, Object>> jobs = new LinkedHashMap<>();
+    private final List<Entry> recovered = new ArrayList<>();
+    private final Thread writer;
+    private FileChannel channel;
+    private StringBuilder pending = new StringBuilder();
+    private long appended; // records queued so far
+    private long durable;  // records known to be on disk
+    private IOException failure; // the last write's, until a rewrite goes through
+    private int lines;     // lines in the file, for deciding on compaction
+    private long commits;
+    private boolean closed;
+
+    private JobStore(Path file) throws IOException {
+        this.file = file;
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        lockChannel = FileChannel.open(file.resolveSibling(file.getFileName() + ".lock"),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        lock = lockChannel.tryLock();
+        if (lock == null) {
+            lockChannel.close();
+            throw new IOException(file + " is in use by another process");
+        }
+        writer = new Thread(this::writeLoop, "job-store");
+        writer.setDaemon(true);
+    }
+
+    // Under downloader.stateDir, by default ~/.youtube-downloader
+    public static Path defaultFile(String name) {
+        return Paths.get(System.getProperty("downloader.stateDir",
+            Paths.get(System.getProperty("user.home"), ".youtube-downloader").toString())).resolve(name);
+    }
+
+    // Reads what an earlier run left behind; see getRecovered()
+    public static JobStore open(Path file) throws IOException {
+        JobStore store = new JobStore(file);
+        try {
+            if (!store.replay() || store.needsCompaction()) {
+                store.rewrite(store.snapshot()); // drops finished jobs and a torn tail
+            } else {
+                store.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+            }
+        } catch (IOException | RuntimeException e) {
+            store.lock.release();
+            store.lockChannel.close();
+            throw e;
+        }
+        store.writer.start();
+        return store;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    // Jobs that were queued, running or paused when the last run ended, by ID
+    public List<Entry> getRecovered() {
+        return recovered;
+    }
+
+    public synchronized long getCommits() {
+        return commits;
+    }
+
+    public synchronized int getLiveJobs() {
+        return jobs.size();
+    }
+
+    void submitted(DownloadJob job) {
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put("id", job.getId());
+        record.put("url", job.getUrl());
+        record.put("output", job.getOutputPath());
+        record.put("at", job.getSubmittedAt());
+        record.put("options", job.getOptions().toJson());
+        record.put("state", job.getState().name());
+        append(record);
+    }
+
+    // Fed from the scheduler's events, with CHANGES delivery
+    void record(JobEvent event) {
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put("id", event.getJobId());
+        switch (event.getType()) {
+            case STATE -> record.put("state", event.getState().name());
+            case DESTINATION -> record.put("destination", event.getDestination());
+            default -> {
+                return; // phases come back when the download does
+            }
+        }
+        append(record);
+    }
+
+    // Blocks until everything recorded so far is on disk; throws if the
+    // writer failed to get it there
+    public void awaitDurable() throws InterruptedException, IOException {
+        synchronized (this) {
+            long target = appended;
+            while (durable < target && failure == null && !closed) {
+                wait();
+            }
+            if (durable < target && failure != null) {
+                throw new IOException("Could not write job store " + file + ": " + failure.getMessage(), failure);
+            }
+        }
+    }
+
+    // Writes what is still queued; records after this are dropped
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        }
+        lock.release();
+        lockChannel.close();
+    }
+
+    private synchronized void append(Map<String, Object> record) {
+        if (closed) {
+            return;
+        }
+        apply(record);
+        pending.append(Json.write(record)).append('\n');
+        appended++;
+        lines++;
+        notifyAll();
+    }
+
+    // A submission starts a job, later records update it, a finished state ends it
+    private void apply(Map<String, Object> record) {
+        long id = Json.getLong(record, "id", -1);
+        if (record.containsKey("url")) {
+            jobs.put(id, new LinkedHashMap<>(record));
+            return;
+        }
+        Map<String, Object> job = jobs.get(id);
+        if (job == null) {
+            return;
+        }
+        String state = Json.getString(record, "state");
+        if (state != null && DownloadJob.State.valueOf(state).isFinished()) {
+            jobs.remove(id);
+            return;
+        }
+        for (Map.Entry<String, Object> e : record.entrySet()) {
+            job.put(e.getKey(), e.getValue());
+        }
+    }
+
+    // Returns false if the file has a torn tail or unreadable lines, which
+    // the rewrite that follows leaves out
+    private boolean replay() throws IOException {
+        if (!Files.isRegularFile(file)) {
+            return true;
+        }
+        byte[] bytes = Files.readAllBytes(file);
+        int start = 0;
+        int skipped = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] != '\n') {
+                continue;
+            }
+            try {
+                apply(Json.parseObject(new String(bytes, start, i - start, StandardCharsets.UTF_8)));
+                lines++;
+            } catch (IllegalArgumentException e) {
+                // A crash only tears the last line; one further up is damage,
+                // and the records after it are still good
+                if (i + 1 < bytes.length) {
+                    System.err.println("Skipping unreadable line in job store " + file + ": " + e.getMessage());
+                }
+                skipped++;
+            }
+            start = i + 1;
+        }
+        for (Map<String, Object> job : jobs.values()) {
+            recovered.add(new Entry(job));
+        }
+        return skipped == 0 && start == bytes.length;
+    }
+
+    private boolean needsCompaction() {
+        return lines > Math.max(COMPACT_MIN_RECORDS, jobs.size() * COMPACT_RATIO);
+    }
+
+    private String snapshot() {
+        StringBuilder out = new StringBuilder();
+        for (Map<String, Object> job : jobs.values()) {
+            out.append(Json.write(job)).append('\n');
+        }
+        lines = jobs.size();
+        return out.toString();
+    }
+
+    private void writeLoop() {
+        while (true) {
+            String batch;
+            long upTo;
+            boolean compact;
+            synchronized (this) {
+                try {
+                    while (pending.length() == 0 && failure == null && !closed) {
+                        wait();
+                    }
+                    if (pending.length() == 0 && (failure == null || closed)) {
+                        return; // closed and drained, or nothing left that could be written
+                    }
+                    if (failure != null && !closed) {
+                        wait(RETRY_MILLIS);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                upTo = appended;
+                // The snapshot already includes this batch, so it replaces it
+                compact = failure != null || needsCompaction();
+                batch = compact ? snapshot() : pending.toString();
+                pending = new StringBuilder();
+            }
+            try {
+                if (compact) {
+                    rewrite(batch);
+                } else {
+                    write(batch);
+                }
+            } catch (IOException e) {
+                synchronized (this) {
+                    if (failure == null) {
+                        System.err.println("Could not write job store " + file + ", retrying: " + e.getMessage());
+                    }
+                    failure = e;
+                    notifyAll();
+                }
+                continue;
+            }
+            synchronized (this) {
+                durable = upTo;
+                failure = null;
+                commits++;
+                notifyAll();
+            }
+        }
+    }
+
+    private void write(String batch) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(batch.getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+    }
+
+    // Writes a compact copy next to the log and swaps it in atomically
+    private void rewrite(String content) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel tempChannel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(content.getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                tempChannel.write(buffer);
+            }
+            tempChannel.force(true);
+        }
+        if (channel != null) {
+            channel.close();
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    // A job as the last run left it
+    public static final class Entry {
+        private final long id;
+        private final String url;
+        private final String outputPath;
+        private final long submittedAt;
+        private final DownloadOptions options;
+        private final DownloadJob.State state;
+        private final String destination;
+
+        private Entry(Map<String, Object> job) {
+            id = Json.getLong(job, "id", -1);
+            url = Json.getString(job, "url");
+            outputPath = Json.getString(job, "output");
+            submittedAt = Json.getLong(job, "at", System.currentTimeMillis());
+            Map<String, Object> optionsJson = Json.getObject(job, "options");
+            options = optionsJson != null ? DownloadOptions.fromJson(optionsJson) : new DownloadOptions();
+            state = DownloadJob.State.valueOf(Json.getString(job, "state"));
+            destination = Json.getString(job, "destination");
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public String getOutputPath() {
+            return outputPath;
+        }
+
+        public long getSubmittedAt() {
+            return submittedAt;
+        }
+
+        public DownloadOptions getOptions() {
+            return options;
+        }
+
+        // QUEUED, RUNNING or PAUSED
+        public DownloadJob.State getState() {
+            return state;
+        }
+
+        // The file it was writing, or null
+        public String getDestination() {
+            return destination;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Buffers log lines from any thread and hands them to a view in batches, at
+// most once per flush interval. Only the last maxLines lines are kept in
+// memory; older lines are appended to the spill file instead. However chatty
+// the process is, the view sees one pending update and a bounded amount of text.
+// The spill file is rotated once it passes downloader.logSpillBytes, keeping
+// SPILL_FILES files in all (log, log.1, log.2), so the disk use is bounded too.
+public class LogSink implements Closeable {
+    public interface View {
+        // Appends the batch, or replaces everything when lines were skipped
+        void show(String lines, boolean replace);
+    }
+
+    private static final ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor(
+        DownloadScheduler.daemonThreads("log-flusher"));
+    static final long MAX_SPILL_BYTES = Long.getLong("downloader.logSpillBytes", 16L << 20);
+    static final int SPILL_FILES = 3;
+
+    private final String[] ring;
+    private final long flushIntervalNanos;
+    private final Executor dispatcher;
+    private final View view;
+    private final Path spillFile;
+    private final long maxSpillBytes;
+    private BufferedWriter spill;
+    private long spillBytes; // roughly; counts chars, not encoded bytes
+
+    private long written;   // lines appended so far
+    private long shown;     // lines handed to the view
+    private boolean flushScheduled;
+    private boolean batchInFlight;
+    private long lastFlush;
+
+    public LogSink(int maxLines, Path spillFile, long flushIntervalMillis, Executor dispatcher, View view) {
+        this(maxLines, spillFile, MAX_SPILL_BYTES, flushIntervalMillis, dispatcher, view);
+    }
+
+    public LogSink(int maxLines, Path spillFile, long maxSpillBytes, long flushIntervalMillis,
+                   Executor dispatcher, View view) {
+        if (maxLines < 1) {
+            throw new IllegalArgumentException("maxLines must be positive");
+        }
+        this.ring = new String[maxLines];
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+        this.dispatcher = dispatcher;
+        this.view = view;
+        this.spillFile = spillFile;
+        this.maxSpillBytes = maxSpillBytes;
+        if (spillFile != null) {
+            openSpill();
+        }
+        this.lastFlush = System.nanoTime() - flushIntervalNanos;
+    }
+
+    public int getMaxLines() {
+        return ring.length;
+    }
+
+    public void append(String line) {
+        long wait;
+        synchronized (this) {
+            int slot = (int) (written % ring.length);
+            String evicted = ring[slot];
+            ring[slot] = line;
+            written++;
+            if (evicted != null && spill != null) {
+                try {
+                    spill.write(evicted);
+                    spill.newLine();
+                    spillBytes += evicted.length() + 1;
+                    if (spillBytes >= maxSpillBytes) {
+                        rotateSpill();
+                    }
+                } catch (IOException e) {
+                    System.err.println("Log spill failed: " + e.getMessage());
+                }
+            }
+            if (flushScheduled) {
+                return;
+            }
+            flushScheduled = true;
+            wait = lastFlush + flushIntervalNanos - System.nanoTime();
+        }
+        FLUSHER.schedule(this::flush, Math.max(0, wait), TimeUnit.NANOSECONDS);
+    }
+
+    // Drops lines not yet shown; the caller clears the view itself
+    public synchronized void clear() {
+        shown = written;
+    }
+
+    private void flush() {
+        String batch;
+        boolean replace;
+        synchronized (this) {
+            if (batchInFlight) {
+                // The view hasn't caught up yet; try again next interval
+                FLUSHER.schedule(this::flush, Math.max(flushIntervalNanos, 1_000_000L), TimeUnit.NANOSECONDS);
+                return;
+            }
+            flushScheduled = false;
+            lastFlush = System.nanoTime();
+            long from = Math.max(shown, written - ring.length);
+            if (from == written) {
+                return;
+            }
+            replace = from > shown;
+            StringBuilder sb = new StringBuilder();
+            for (long i = from; i < written; i++) {
+                sb.append(ring[(int) (i % ring.length)]).append('\n');
+            }
+            shown = written;
+            batch = sb.toString();
+            batchInFlight = true;
+            flushSpill();
+        }
+        dispatcher.execute(() -> {
+            try {
+                view.show(batch, replace);
+            } finally {
+                synchronized (this) {
+                    batchInFlight = false;
+                }
+            }
+        });
+    }
+
+    // Without a spill file old lines are simply dropped
+    private void openSpill() {
+        try {
+            spillBytes = Files.exists(spillFile) ? Files.size(spillFile) : 0;
+            spill = Files.newBufferedWriter(spillFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            System.err.println("Cannot open log spill file " + spillFile + ": " + e.getMessage());
+            spill = null;
+        }
+    }
+
+    // log.1 becomes log.2 and so on, the oldest is dropped, and a new log starts
+    private void rotateSpill() throws IOException {
+        spill.close();
+        try {
+            Files.deleteIfExists(rotated(SPILL_FILES - 1));
+            for (int i = SPILL_FILES - 2; i >= 1; i--) {
+                Path from = rotated(i);
+                if (Files.exists(from)) {
+                    Files.move(from, rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            Files.move(spillFile, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            openSpill();
+        }
+    }
+
+    private Path rotated(int generation) {
+        return spillFile.resolveSibling(spillFile.getFileName() + "." + generation);
+    }
+
+    private void flushSpill() {
+        if (spill != null) {
+            try {
+                spill.flush();
+            } catch (IOException e) {
+                System.err.println("Log spill failed: " + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (spill != null) {
+            spill.close();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+// Asks yt-dlp for stream URLs and metadata without downloading anything
+public class MediaResolver {
+    private final ProbeCache cache;
+
+    public MediaResolver() {
+        this(ProbeCache.shared());
+    }
+
+    // A null cache extracts every time
+    public MediaResolver(ProbeCache cache) {
+        this.cache = cache;
+    }
+
+    public ResolvedMedia resolve(String url, String outputPath, String format) throws IOException, InterruptedException {
+        ResolvedMedia cached = cache != null ? cache.get(url, outputPath, format) : null;
+        if (cached != null) {
+            return cached;
+        }
+        return resolveFresh(url, outputPath, format);
+    }
+
+    // Skips and replaces the cached entry, e.g. after its URLs were refused
+    public ResolvedMedia resolveFresh(String url, String outputPath, String format) throws IOException, InterruptedException {
+        return ResolvedMedia.fromJson(Json.parseObject(extract(url, outputPath, format)));
+    }
+
+    // The whole info JSON of yt-dlp's default choice, with every format the
+    // site offers under "formats"; cached like resolve()
+    public Map<String, Object> resolveInfo(String url, String outputPath) throws IOException, InterruptedException {
+        Path cached = cache != null ? cache.infoFile(url, outputPath, null) : null;
+        if (cached != null) {
+            try {
+                return Json.parseObject(Files.readString(cached, StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                // evicted meanwhile; extract again
+            }
+        }
+        return Json.parseObject(extract(url, outputPath, null));
+    }
+
+    private String extract(String url, String outputPath, String format) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>(List.of(
+            YoutubeDownloader.YT_DLP, "--dump-json", "--no-playlist", "--no-warnings",
+            "-o", outputPath + "/%(title)s.%(ext)s"));
+        if (format != null) {
+            command.add("--format");
+            command.add(format);
+        }
+        command.add("--"); // a URL starting with "-" must not read as an option
+        command.add(url);
+        long startedAt = System.nanoTime();
+        String json = run(command);
+        Metrics.EXTRACTION.recordSince(startedAt);
+        if (cache != null) {
+            try {
+                cache.put(url, outputPath, format, json);
+            } catch (IOException e) {
+                System.err.println("Could not cache probe for " + url + ": " + e.getMessage());
+            }
+        }
+        return json;
+    }
+
+    // Both streams are read on their own threads, so an interrupt, e.g. a
+    // pause, kills yt-dlp at once instead of after it closes stdout
+    static String run(List<String> command) throws IOException, InterruptedException {
+        Process process = Metrics.start(new ProcessBuilder(command));
+        ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+        Thread outputThread = reader(process.getInputStream(), stdout, "extract-output");
+        Thread errorThread = reader(process.getErrorStream(), stderr, "extract-error");
+        try {
+            int exitCode = process.waitFor();
+            outputThread.join();
+            errorThread.join();
+            if (exitCode != 0) {
+                String message = stderr.toString(StandardCharsets.UTF_8).trim();
+                throw new IOException("yt-dlp exited with code " + exitCode + (message.isEmpty() ? "" : ": " + message));
+            }
+            return stdout.toString(StandardCharsets.UTF_8);
+        } catch (InterruptedException e) {
+            ProcessSupervisor.destroyTree(process);
+            throw e;
+        }
+    }
+
+    private static Thread reader(InputStream in, ByteArrayOutputStream out, String name) {
+        Thread thread = new Thread(() -> copy(in, out), name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static void copy(InputStream in, ByteArrayOutputStream out) {
+        try (in) {
+            in.transferTo(out);
+        } catch (IOException ignored) {
+            // process went away
+        }
+    }
+}
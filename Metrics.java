@@ -0,0 +1,426 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+// Process-wide counters and latency histograms for the download pipeline.
+// Recording is a LongAdder increment (plus a short bucket search for
+// histograms), so it is cheap enough for per-line and per-buffer call sites.
+// Everything is readable as Prometheus text and as attributes of one JMX
+// MBean, DownyLink:type=Metrics.
+public final class Metrics {
+    private static final List<Metric> ALL = new ArrayList<>();
+
+    public static final Histogram PROCESS_START = histogram("downloader_process_start_seconds",
+        "Time for ProcessBuilder.start() to return");
+    public static final Histogram PROCESS_FIRST_OUTPUT = histogram("downloader_process_first_output_seconds",
+        "From spawning yt-dlp to its first line of output");
+    public static final Histogram EXTRACTION = histogram("downloader_extraction_seconds",
+        "From spawning yt-dlp, or starting a resolve, until the media is known");
+    public static final Histogram TTFB = histogram("downloader_http_ttfb_seconds",
+        "From sending a native HTTP request to its response headers");
+    public static final Histogram JOB_FIRST_BYTE = histogram("downloader_job_first_byte_seconds",
+        "From a job starting to its first downloaded bytes");
+    public static final Histogram POST_PROCESSING = histogram("downloader_post_processing_seconds",
+        "Merging and post-processing time per download");
+    public static final Histogram POST_PROCESS_WAIT = histogram("downloader_post_process_wait_seconds",
+        "Time a finished download waited for a post-processing thread");
+    public static final Histogram DOWNLOAD_STAGE = histogram("downloader_download_stage_seconds",
+        "Time a job held a download worker, excluding post-processing on its own pool");
+    public static final Histogram QUEUE_WAIT = histogram("downloader_queue_wait_seconds",
+        "Time a job spent queued before a worker picked it up");
+    public static final Histogram EDT_LATENCY = histogram("downloader_gui_edt_latency_seconds",
+        "From posting a GUI update to it running on the event dispatch thread");
+
+    public static final Counter PROCESSES = counter("downloader_processes_total", "Child processes started");
+    public static final Counter BYTES = counter("downloader_bytes_total", "Bytes downloaded by all jobs");
+    public static final Counter SEGMENT_RETRIES = counter("downloader_segment_retries_total",
+        "Native range requests that were retried");
+    public static final Counter YTDLP_RETRIES = counter("downloader_ytdlp_retries_total",
+        "Retries reported by yt-dlp");
+    public static final Counter RERESOLVES = counter("downloader_reresolves_total",
+        "Native downloads that had to resolve expired URLs again");
+    public static final Counter RESTARTS = counter("downloader_ytdlp_restarts_total",
+        "yt-dlp runs restarted to apply a new bandwidth share");
+    public static final Counter STALLS = counter("downloader_stalls_total",
+        "Downloads restarted or failed because their progress stopped");
+    public static final Counter THROTTLES = counter("downloader_throttles_total",
+        "HTTP 429 and 503 answers seen by downloads");
+    public static final Counter EVENTS_CONFLATED = counter("downloader_events_conflated_total",
+        "Progress events replaced by a newer one before a slow subscriber took them");
+    public static final Counter JOBS_COMPLETED = counter("downloader_jobs_completed_total", "Jobs that completed");
+    public static final Counter JOBS_FAILED = counter("downloader_jobs_failed_total", "Jobs that failed");
+    public static final Counter HASHED_BYTES = counter("downloader_hashed_bytes_total",
+        "Bytes hashed for deduplication as they were written");
+    public static final Counter HASH_READ_BYTES = counter("downloader_hash_read_bytes_total",
+        "Bytes read back for hashing because nothing hashed them while writing");
+    public static final Counter HASH_NANOS = counter("downloader_hash_nanoseconds_total",
+        "Time spent computing content hashes");
+    public static final Counter DEDUP_LINKS = counter("downloader_dedup_links_total",
+        "Downloads replaced by, or skipped for, a hard link to an identical file");
+    public static final Counter DEDUP_SAVED_BYTES = counter("downloader_dedup_saved_bytes_total",
+        "Disk space saved by hard links to identical files");
+    public static final Counter FORMAT_SAVED_BYTES = counter("downloader_format_saved_bytes_total",
+        "Estimated bytes not downloaded because a quality policy picked smaller formats than yt-dlp's default");
+    public static final Counter SPACE_REFUSALS = counter("downloader_space_refusals_total",
+        "Downloads refused up front because their volume lacked the space");
+    public static final Counter SYNC_KNOWN_ENTRIES = counter("downloader_sync_known_entries_total",
+        "Playlist entries a sync did not queue because an earlier sync had listed them");
+    public static final Counter SYNC_STOPPED_EARLY = counter("downloader_sync_stopped_early_total",
+        "Lists a sync stopped reading once it reached entries it knew");
+
+    static {
+        gauge("downloader_bandwidth_limit_bytes", "Global bandwidth cap, 0 when unlimited",
+            () -> BandwidthLimiter.shared().getLimit());
+        gauge("downloader_probe_cache_hits", "Probe cache hits", () -> ProbeCache.shared().getHits());
+        gauge("downloader_probe_cache_misses", "Probe cache misses", () -> ProbeCache.shared().getMisses());
+        gauge("downloader_post_process_queue_depth", "Post-processing tasks waiting for a thread",
+            () -> PostProcessor.shared().getQueueDepth());
+        gauge("downloader_post_process_active", "Post-processing tasks running",
+            () -> PostProcessor.shared().getActiveCount());
+        gauge("downloader_hash_bytes_per_second", "Content hashing throughput while hashing", () -> {
+            long nanos = HASH_NANOS.get();
+            return nanos == 0 ? 0 : (HASHED_BYTES.get() + HASH_READ_BYTES.get()) * 1e9 / nanos;
+        });
+    }
+
+    private static boolean registered;
+
+    private Metrics() {
+    }
+
+    public static synchronized Histogram histogram(String name, String help) {
+        Histogram histogram = new Histogram(name, help);
+        ALL.add(histogram);
+        return histogram;
+    }
+
+    public static synchronized Counter counter(String name, String help) {
+        Counter counter = new Counter(name, help);
+        ALL.add(counter);
+        return counter;
+    }
+
+    public static synchronized void gauge(String name, String help, DoubleSupplier value) {
+        ALL.add(new Gauge(name, help, value));
+    }
+
+    // Starts a child process, timing the spawn
+    public static Process start(ProcessBuilder builder) throws IOException {
+        long startedAt = System.nanoTime();
+        Process process = builder.start();
+        PROCESS_START.recordSince(startedAt);
+        PROCESSES.increment();
+        return process;
+    }
+
+    // Exposition format 0.0.4
+    public static String toPrometheus() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Metric metric : snapshot()) {
+            metric.writePrometheus(out);
+        }
+        return out.toString();
+    }
+
+    public static void writeGauge(StringBuilder out, String name, String help, double value) {
+        header(out, name, help, "gauge");
+        out.append(name).append(' ').append(format(value)).append('\n');
+    }
+
+    // One sample per label value, e.g. jobs per host; keep the label set bounded
+    public static void writeGaugeHeader(StringBuilder out, String name, String help) {
+        header(out, name, help, "gauge");
+    }
+
+    public static void writeSample(StringBuilder out, String name, String label, String labelValue, double value) {
+        out.append(name).append('{').append(label).append("=\"").append(labelValue.replace("\"", "\\\""))
+            .append("\"} ").append(format(value)).append('\n');
+    }
+
+    // Makes the metrics visible to jconsole and other JMX clients
+    public static synchronized void registerMBean() {
+        if (registered) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(new MetricsMBean(), new ObjectName("DownyLink:type=Metrics"));
+            registered = true;
+        } catch (JMException e) {
+            System.err.println("Could not register metrics MBean: " + e.getMessage());
+        }
+    }
+
+    private static synchronized List<Metric> snapshot() {
+        return new ArrayList<>(ALL);
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static String format(double value) {
+        if (value == (long) value) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    private abstract static class Metric {
+        final String name;
+        final String help;
+
+        Metric(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        abstract void writePrometheus(StringBuilder out);
+
+        abstract void addAttributes(List<MBeanAttributeInfo> infos, AttributeList values);
+    }
+
+    public static final class Counter extends Metric {
+        private final LongAdder count = new LongAdder();
+
+        private Counter(String name, String help) {
+            super(name, help);
+        }
+
+        public void increment() {
+            count.increment();
+        }
+
+        public void add(long n) {
+            count.add(n);
+        }
+
+        public long get() {
+            return count.sum();
+        }
+
+        @Override
+        void writePrometheus(StringBuilder out) {
+            header(out, name, help, "counter");
+            out.append(name).append(' ').append(get()).append('\n');
+        }
+
+        @Override
+        void addAttributes(List<MBeanAttributeInfo> infos, AttributeList values) {
+            infos.add(new MBeanAttributeInfo(name, "long", help, true, false, false));
+            values.add(new Attribute(name, get()));
+        }
+    }
+
+    private static final class Gauge extends Metric {
+        private final DoubleSupplier value;
+
+        Gauge(String name, String help, DoubleSupplier value) {
+            super(name, help);
+            this.value = value;
+        }
+
+        @Override
+        void writePrometheus(StringBuilder out) {
+            writeGauge(out, name, help, value.getAsDouble());
+        }
+
+        @Override
+        void addAttributes(List<MBeanAttributeInfo> infos, AttributeList values) {
+            infos.add(new MBeanAttributeInfo(name, "double", help, true, false, false));
+            values.add(new Attribute(name, value.getAsDouble()));
+        }
+    }
+
+    // Fixed 1-2-5 buckets from 100 us to 1000 s: coarse like an HDR histogram
+    // at low precision, but lock-free and allocation-free to record into
+    public static final class Histogram extends Metric {
+        private static final long[] BOUNDS_NANOS;
+        private static final String[] LE; // bucket bounds as Prometheus labels, in seconds
+
+        static {
+            List<Long> bounds = new ArrayList<>();
+            for (long decade = 100_000L; decade <= 1_000_000_000_000L; decade *= 10) {
+                bounds.add(decade);
+                if (decade < 1_000_000_000_000L) {
+                    bounds.add(decade * 2);
+                    bounds.add(decade * 5);
+                }
+            }
+            BOUNDS_NANOS = bounds.stream().mapToLong(Long::longValue).toArray();
+            LE = new String[BOUNDS_NANOS.length];
+            for (int i = 0; i < LE.length; i++) {
+                LE[i] = BigDecimal.valueOf(BOUNDS_NANOS[i], 9).stripTrailingZeros().toPlainString();
+            }
+        }
+
+        private final LongAdder[] buckets = new LongAdder[BOUNDS_NANOS.length + 1];
+        private final LongAdder sumNanos = new LongAdder();
+
+        private Histogram(String name, String help) {
+            super(name, help);
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void recordNanos(long nanos) {
+            if (nanos < 0) {
+                return;
+            }
+            int lo = 0;
+            int hi = BOUNDS_NANOS.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (BOUNDS_NANOS[mid] < nanos) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            buckets[lo].increment();
+            sumNanos.add(nanos);
+        }
+
+        // Records the time elapsed since a System.nanoTime() reading
+        public void recordSince(long startNanos) {
+            recordNanos(System.nanoTime() - startNanos);
+        }
+
+        public long count() {
+            long total = 0;
+            for (LongAdder bucket : buckets) {
+                total += bucket.sum();
+            }
+            return total;
+        }
+
+        public double sumSeconds() {
+            return sumNanos.sum() / 1e9;
+        }
+
+        // Upper bound of the bucket holding the given quantile, in seconds
+        public double quantile(double q) {
+            long[] counts = new long[buckets.length];
+            long total = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                counts[i] = buckets[i].sum();
+                total += counts[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(q * total);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return i < BOUNDS_NANOS.length ? BOUNDS_NANOS[i] / 1e9 : Double.POSITIVE_INFINITY;
+                }
+            }
+            return Double.POSITIVE_INFINITY;
+        }
+
+        @Override
+        void writePrometheus(StringBuilder out) {
+            header(out, name, help, "histogram");
+            long cumulative = 0;
+            for (int i = 0; i < BOUNDS_NANOS.length; i++) {
+                cumulative += buckets[i].sum();
+                out.append(name).append("_bucket{le=\"").append(LE[i]).append("\"} ")
+                    .append(cumulative).append('\n');
+            }
+            cumulative += buckets[BOUNDS_NANOS.length].sum();
+            out.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+            out.append(name).append("_sum ").append(sumSeconds()).append('\n');
+            out.append(name).append("_count ").append(cumulative).append('\n');
+        }
+
+        @Override
+        void addAttributes(List<MBeanAttributeInfo> infos, AttributeList values) {
+            infos.add(new MBeanAttributeInfo(name + "_count", "long", help + " (samples)", true, false, false));
+            values.add(new Attribute(name + "_count", count()));
+            infos.add(new MBeanAttributeInfo(name + "_sum", "double", help + " (total seconds)", true, false, false));
+            values.add(new Attribute(name + "_sum", sumSeconds()));
+            infos.add(new MBeanAttributeInfo(name + "_p50", "double", help + " (median, seconds)", true, false, false));
+            values.add(new Attribute(name + "_p50", quantile(0.5)));
+            infos.add(new MBeanAttributeInfo(name + "_p99", "double", help + " (99th percentile, seconds)", true, false, false));
+            values.add(new Attribute(name + "_p99", quantile(0.99)));
+        }
+    }
+
+    private static final class MetricsMBean implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            for (Object value : collect(null)) {
+                Attribute a = (Attribute) value;
+                if (a.getName().equals(attribute)) {
+                    return a.getValue();
+                }
+            }
+            throw new AttributeNotFoundException(attribute);
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList all = collect(null);
+            AttributeList result = new AttributeList();
+            for (String name : attributes) {
+                for (Object value : all) {
+                    if (((Attribute) value).getName().equals(name)) {
+                        result.add(value);
+                    }
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            // Every attribute is read-only, so none can be found for writing
+            throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName), "Metrics have no operations");
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> infos = new ArrayList<>();
+            collect(infos);
+            return new MBeanInfo(Metrics.class.getName(), "DownyLink download metrics",
+                infos.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+
+        private AttributeList collect(List<MBeanAttributeInfo> infos) {
+            List<MBeanAttributeInfo> sink = infos != null ? infos : new ArrayList<>();
+            AttributeList values = new AttributeList();
+            for (Metric metric : snapshot()) {
+                metric.addAttributes(sink, values);
+            }
+            return values;
+        }
+    }
+}
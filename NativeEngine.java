@@ -0,0 +1,239 @@
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+// Lets yt-dlp resolve the media URLs (--dump-json) and fetches them in-process
+// instead of spawning aria2c: plain files with SegmentedDownloader, HLS and
+// DASH streams with FragmentDownloader. Separate video and audio streams are
+// left to PostProcessor to merge. Anything else, including live and
+// encrypted streams, is handed back to yt-dlp.
+public class NativeEngine implements DownloadEngine {
+    private final MediaResolver resolver;
+    private final HttpClient client;
+    private final DownloadEngine fallback;
+
+    public NativeEngine() {
+        this(new MediaResolver(), SegmentedDownloader.newClient(), new YtDlpEngine());
+    }
+
+    public NativeEngine(MediaResolver resolver, HttpClient client, DownloadEngine fallback) {
+        this.resolver = resolver;
+        this.client = client;
+        this.fallback = fallback;
+    }
+
+    @Override
+    public int download(String url, String outputPath, DownloadOptions options,
+                        ProgressListener listener, Consumer<String> log) throws IOException, InterruptedException {
+        Files.createDirectories(Paths.get(outputPath));
+        Path journalFile = ResumeJournal.pathFor(outputPath, url, options.getFormat());
+        ResumeJournal journal = ResumeJournal.open(journalFile, url, options.getFormat());
+        try {
+            if (journal != null && !journal.getMedia().isExpired(60)) {
+                log.accept("[native] Resuming from " + journalFile.getFileName() + " without re-extracting");
+            } else {
+                ResolvedMedia media = resolve(url, outputPath, options, false, listener, log);
+                if (!media.canFetchNatively() || media.getFilename() == null) {
+                    if (journal != null) {
+                        journal.delete();
+                    }
+                    log.accept("[native] Streams are neither plain HTTP nor HLS/DASH, handing over to yt-dlp");
+                    return fallback.download(url, outputPath, options, listener, log);
+                }
+                if (journal == null) {
+                    journal = ResumeJournal.create(journalFile, url, options.getFormat(), media);
+                } else {
+                    journal.updateMedia(media);
+                }
+            }
+
+            try (BandwidthLimiter.Share share = BandwidthLimiter.shared().open(options)) {
+                int exitCode = download(url, outputPath, options, journal, share, false, listener, log);
+                if (exitCode == 0) {
+                    journal.delete();
+                }
+                return exitCode;
+            } catch (FragmentManifest.UnsupportedException e) {
+                journal.delete();
+                log.accept("[native] " + e.getMessage() + ", handing over to yt-dlp");
+            }
+        } finally {
+            // Also when extracting again fails, e.g. on a pause
+            if (journal != null) {
+                journal.close();
+            }
+        }
+        // Only now that this share is closed; yt-dlp opens its own
+        return fallback.download(url, outputPath, options, listener, log);
+    }
+
+    private int download(String url, String outputPath, DownloadOptions options, ResumeJournal journal,
+                         BandwidthLimiter.Share share, boolean reResolved,
+                         ProgressListener listener, Consumer<String> log) throws IOException, InterruptedException {
+        ResolvedMedia media = journal.getMedia();
+        if (media.getExtractor() != null && media.getId() != null) {
+            listener.onMediaId(media.getExtractor(), media.getId());
+        }
+        Path target = Paths.get(media.getFilename());
+        if (target.getParent() != null) {
+            Files.createDirectories(target.getParent());
+        }
+        HostConcurrency.Host host = HostConcurrency.shared().host(url);
+        List<FragmentManifest> manifests = new ArrayList<>();
+        try {
+            for (ResolvedMedia.Stream stream : media.getStreams()) {
+                manifests.add(stream.isFragmented()
+                    ? FragmentManifest.fetch(client, stream.getUri(), stream.getHeaders(), stream.getFormatId()) : null);
+            }
+        } catch (SegmentedDownloader.HttpStatusException e) {
+            return resolveAgain(e, url, outputPath, options, journal, share, reResolved, listener, log);
+        }
+        List<Path> parts = new ArrayList<>();
+        DownloadOptions planned = options;
+        for (int i = 0; i < media.getStreams().size(); i++) {
+            ResolvedMedia.Stream stream = media.getStreams().get(i);
+            if (media.getStreams().size() > 1) {
+                parts.add(target.resolveSibling(target.getFileName() + ".f" + stream.getFormatId() + "." + stream.getExt()));
+            } else if (manifests.get(0) != null && manifests.get(0).isTransportStream()) {
+                // MPEG-TS fragments; like yt-dlp, remux them into the container the name promises
+                parts.add(PostProcessor.withExtension(target, "ts"));
+                if (options.getContainer() == null) {
+                    planned = options.copy().container(PostProcessor.extension(target));
+                }
+            } else {
+                parts.add(target);
+            }
+        }
+        PostProcessor.Task task = PostProcessor.plan(parts, target, planned, log);
+        Path finished = task != null ? task.getOutput() : target;
+        if (Files.exists(finished)) {
+            listener.onPhase(ProgressParser.Phase.ALREADY_DOWNLOADED);
+            listener.onDestination(finished.toString());
+            log.accept("[native] " + finished + " has already been downloaded");
+            return 0;
+        }
+        Path staging = DiskAdmission.shared().stagingDir(outputPath);
+        if (staging != null) {
+            Files.createDirectories(staging);
+            if (task != null) {
+                // ffmpeg reads them from scratch and writes the result to the output directory
+                List<Path> staged = new ArrayList<>();
+                for (Path part : parts) {
+                    staged.add(DiskAdmission.staged(part, staging));
+                }
+                parts = staged;
+                task = PostProcessor.plan(parts, target, planned, log);
+            }
+        }
+        if (listener.reuseExisting(finished.toString())) {
+            for (Path part : parts) {
+                Files.deleteIfExists(partialFile(part, staging));
+                if (!part.equals(finished)) {
+                    Files.deleteIfExists(part);
+                }
+            }
+            listener.onPhase(ProgressParser.Phase.ALREADY_DOWNLOADED);
+            listener.onDestination(finished.toString());
+            return 0;
+        }
+
+        // What a pause left on disk doesn't need the space again
+        long written = 0;
+        for (Path part : parts) {
+            Path partial = partialFile(part, staging);
+            written += Files.exists(part) ? Files.size(part) : Files.exists(partial) ? Files.size(partial) : 0;
+        }
+        Path directory = target.toAbsolutePath().getParent();
+        Path writing = staging != null ? staging : directory;
+        // The parts, then what ffmpeg or the move out of scratch writes next to the output
+        try (DiskAdmission.Reservation space = staging != null || task != null
+                ? DiskAdmission.shared().reserve(media.getExpectedSize(), written, writing, directory)
+                : DiskAdmission.shared().reserve(media.getExpectedSize(), written, writing)) {
+            return fetch(options, journal, share, media, manifests, parts, task, staging, host,
+                space.watch(listener), log);
+        } catch (SegmentedDownloader.HttpStatusException e) {
+            return resolveAgain(e, url, outputPath, options, journal, share, reResolved, listener, log);
+        }
+    }
+
+    // Downloads every part not finished yet, then post-processes them
+    private int fetch(DownloadOptions options, ResumeJournal journal, BandwidthLimiter.Share share,
+                      ResolvedMedia media, List<FragmentManifest> manifests, List<Path> parts,
+                      PostProcessor.Task task, Path staging, HostConcurrency.Host host,
+                      ProgressListener listener, Consumer<String> log) throws IOException, InterruptedException {
+        ProgressListener counted = host.watch(listener);
+        int connections = host.connections(options.getSegments());
+        SegmentedDownloader downloader = new SegmentedDownloader(client, connections,
+            options.getSegmentSize(), share).onThrottled(host::throttled).preallocate(true);
+        FragmentDownloader fragments = new FragmentDownloader(client, connections, FragmentDownloader.DEFAULT_WINDOW,
+            FragmentDownloader.DEFAULT_BUFFER_BYTES, share).onThrottled(host::throttled);
+        for (int i = 0; i < parts.size(); i++) {
+            ResolvedMedia.Stream stream = media.getStreams().get(i);
+            Path file = parts.get(i);
+            if (Files.exists(file)) {
+                continue; // finished before the pause
+            }
+            Path partial = partialFile(file, staging);
+            listener.onPhase(ProgressParser.Phase.DOWNLOADING);
+            listener.onDestination(file.toString());
+            log.accept("[native] Destination: " + file);
+            // Only worth it for the finished file; ffmpeg's output is hashed when it is done
+            ContentHasher hasher = options.isDeduplicate() && task == null ? new ContentHasher() : null;
+            FragmentManifest manifest = manifests.get(i);
+            long bytes;
+            if (manifest != null && !manifest.isSingleFile()) {
+                bytes = fragments.download(manifest, stream.getHeaders(), partial, counted, journal.stream(i), hasher);
+            } else {
+                // A single-file DASH representation is a plain file too
+                bytes = downloader.download(manifest != null ? manifest.getFragments().get(0).getUri() : stream.getUri(),
+                    stream.getHeaders(), partial, counted, journal.stream(i), hasher);
+            }
+            String digest = hasher != null ? hasher.finish(partial, bytes) : null;
+            // Out of scratch this is a copy, the one time the file is written twice
+            Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING);
+            log.accept("[native] " + ProgressEvent.formatBytes(bytes) + " written to " + file.getFileName());
+            if (digest != null) {
+                listener.onContentHash(file.toString(), bytes, digest);
+            }
+        }
+
+        if (task == null || listener.deferPostProcessing(task)) {
+            return 0;
+        }
+        return task.run(listener);
+    }
+
+    // Where file is written until it is complete: next to it, or in scratch
+    private static Path partialFile(Path file, Path staging) {
+        Path staged = DiskAdmission.staged(file, staging);
+        return staged.resolveSibling(staged.getFileName() + ".part");
+    }
+
+    // The saved URLs went stale; get fresh ones and retry, keeping finished pieces and fragments
+    private int resolveAgain(SegmentedDownloader.HttpStatusException e, String url, String outputPath,
+                             DownloadOptions options, ResumeJournal journal, BandwidthLimiter.Share share,
+                             boolean reResolved, ProgressListener listener, Consumer<String> log)
+            throws IOException, InterruptedException {
+        if (!e.isExpired() || reResolved) {
+            throw e;
+        }
+        log.accept("[native] " + e.getMessage() + ", resolving the URL again");
+        Metrics.RERESOLVES.increment();
+        journal.updateMedia(resolve(url, outputPath, options, true, listener, log));
+        return download(url, outputPath, options, journal, share, true, listener, log);
+    }
+
+    private ResolvedMedia resolve(String url, String outputPath, DownloadOptions options, boolean fresh,
+                                  ProgressListener listener, Consumer<String> log) throws IOException, InterruptedException {
+        listener.onPhase(ProgressParser.Phase.EXTRACTING);
+        log.accept("[native] Resolving " + url);
+        return fresh ? resolver.resolveFresh(url, outputPath, options.getFormat())
+            : resolver.resolve(url, outputPath, options.getFormat());
+    }
+}
@@ -0,0 +1,331 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+
+// Lists a playlist or channel with --flat-playlist --dump-json and queues
+// every entry as soon as its line is parsed, so downloads run in parallel
+// while a long list is still being enumerated. At most maxOutstanding
+// entries are queued, running or paused at once; past that the reader
+// waits, and yt-dlp blocks on its full pipe, so memory stays flat for any
+// list size.
+// A sync does the same against the source's UploadIndex: only entries it
+// has not downloaded before are queued, and listing stops once it reaches
+// the known ones, so a daily sync of a large channel reads a page or two.
+public class PlaylistExpander {
+    public static final int DEFAULT_MAX_OUTSTANDING = 64;
+    private static final int MAX_DEPTH = 2; // channel -> tabs -> videos
+
+    private final DownloadScheduler scheduler;
+    private final int maxOutstanding;
+
+    public PlaylistExpander(DownloadScheduler scheduler) {
+        this(scheduler, DEFAULT_MAX_OUTSTANDING);
+    }
+
+    public PlaylistExpander(DownloadScheduler scheduler, int maxOutstanding) {
+        if (maxOutstanding < 1) {
+            throw new IllegalArgumentException("maxOutstanding must be positive");
+        }
+        this.scheduler = scheduler;
+        this.maxOutstanding = maxOutstanding;
+    }
+
+    // Starts listing in the background; onJob sees each queued job
+    public Expansion expand(String url, String outputPath, DownloadOptions options, Consumer<DownloadJob> onJob) {
+        Expansion expansion = new Expansion(url, outputPath, options, onJob, null);
+        expansion.thread.start();
+        return expansion;
+    }
+
+    // Like expand, but queues only what earlier syncs into outputPath did not list
+    public Expansion sync(String url, String outputPath, DownloadOptions options, Consumer<DownloadJob> onJob)
+            throws IOException {
+        Expansion expansion = new Expansion(url, outputPath, options, onJob, UploadIndex.forSource(url, outputPath));
+        expansion.thread.start();
+        return expansion;
+    }
+
+    static List<String> buildCommand(String url) {
+        return List.of(YoutubeDownloader.YT_DLP, "--flat-playlist", "--dump-json", "--no-warnings", "--", url);
+    }
+
+    // Without --lazy-playlist yt-dlp fetches every page before printing the
+    // first entry, which would leave nothing to stop early
+    static List<String> buildSyncCommand(String url) {
+        return List.of(YoutubeDownloader.YT_DLP, "--flat-playlist", "--lazy-playlist", "--dump-json", "--no-warnings", "--", url);
+    }
+
+    // Full URL for a flat entry; some extractors only give the ID
+    static String entryUrl(Map<String, Object> entry) {
+        String url = Json.getString(entry, "url");
+        if (url != null && url.contains("://")) {
+            return url;
+        }
+        String webpage = Json.getString(entry, "webpage_url");
+        if (webpage != null) {
+            return webpage;
+        }
+        String id = Json.getString(entry, "id");
+        if ("Youtube".equals(Json.getString(entry, "ie_key")) && id != null) {
+            return "https://www.youtube.com/watch?v=" + id;
+        }
+        return url;
+    }
+
+    // Tabs of a channel, or playlists on a tab, rather than single videos
+    static boolean isPlaylist(Map<String, Object> entry) {
+        String ieKey = Json.getString(entry, "ie_key");
+        return "playlist".equals(Json.getString(entry, "_type"))
+            || (ieKey != null && (ieKey.endsWith("Tab") || ieKey.endsWith("Playlist")));
+    }
+
+    public class Expansion {
+        private final String url;
+        private final String outputPath;
+        private final DownloadOptions options;
+        private final Consumer<DownloadJob> onJob;
+        private final UploadIndex index;
+        private final Semaphore outstanding = new Semaphore(maxOutstanding);
+        private final Thread thread;
+        private Process process;
+        private boolean cancelled;
+        private boolean done;
+        private String error;
+        private int listed;
+        private int queued;
+        private int skipped;
+        private int known;
+
+        private Expansion(String url, String outputPath, DownloadOptions options, Consumer<DownloadJob> onJob,
+                          UploadIndex index) {
+            this.url = url;
+            this.outputPath = outputPath;
+            this.options = options;
+            this.onJob = onJob;
+            this.index = index;
+            this.thread = new Thread(this::run, "playlist-expander");
+            thread.setDaemon(true);
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public synchronized int getListed() {
+            return listed;
+        }
+
+        public synchronized int getQueued() {
+            return queued;
+        }
+
+        // Entries already in the download archive
+        public synchronized int getSkipped() {
+            return skipped;
+        }
+
+        // Entries an earlier sync listed already, when syncing
+        public synchronized int getKnown() {
+            return known;
+        }
+
+        public boolean isSync() {
+            return index != null;
+        }
+
+        public synchronized boolean isDone() {
+            return done;
+        }
+
+        public synchronized String getError() {
+            return error;
+        }
+
+        // Stops listing; jobs already queued keep running
+        public void cancel() {
+            synchronized (this) {
+                cancelled = true;
+                if (process != null) {
+                    ProcessSupervisor.destroyTree(process);
+                }
+            }
+            thread.interrupt();
+        }
+
+        // Blocks until every entry has been listed and queued
+        public synchronized void await() throws InterruptedException {
+            while (!done) {
+                wait();
+            }
+        }
+
+        private void run() {
+            String failure = null;
+            try {
+                list(url, 0);
+            } catch (IOException e) {
+                failure = e.getMessage();
+            } catch (InterruptedException e) {
+                failure = "Cancelled";
+            }
+            if (index != null) {
+                // Passes only hold entries that were handled, so even a
+                // cancelled sync has something worth keeping
+                try {
+                    index.save();
+                } catch (IOException e) {
+                    System.err.println("Could not save upload index " + index.getFile() + ": " + e.getMessage());
+                }
+            }
+            synchronized (this) {
+                error = cancelled ? "Cancelled" : failure;
+                done = true;
+                notifyAll();
+            }
+        }
+
+        private void list(String listUrl, int depth) throws IOException, InterruptedException {
+            Process p;
+            Process parent;
+            synchronized (this) {
+                if (cancelled) {
+                    throw new InterruptedException();
+                }
+                List<String> command = index != null ? buildSyncCommand(listUrl) : buildCommand(listUrl);
+                p = Metrics.start(new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.DISCARD));
+                parent = process;
+                process = p;
+            }
+            UploadIndex.Pass pass = index != null ? index.begin(listUrl) : null;
+            boolean finished = false;
+            boolean caughtUp = false;
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(p.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while (!caughtUp && (line = reader.readLine()) != null) {
+                    if (!line.isBlank()) {
+                        caughtUp = onEntry(line, depth, pass);
+                    }
+                }
+                finished = !caughtUp;
+            } finally {
+                if (!finished) {
+                    ProcessSupervisor.destroyTree(p);
+                }
+                synchronized (this) {
+                    process = parent;
+                }
+            }
+            int exitCode = p.waitFor();
+            if (pass != null) {
+                pass.finish(caughtUp || exitCode == 0);
+            }
+            if (caughtUp) {
+                Metrics.SYNC_STOPPED_EARLY.increment();
+                return;
+            }
+            if (exitCode != 0 && depth == 0) {
+                throw new IOException("yt-dlp could not list " + listUrl + " (exit code " + exitCode + ")");
+            }
+        }
+
+        // True once a sync has reached entries it knows and can stop listing
+        private boolean onEntry(String line, int depth, UploadIndex.Pass pass) throws IOException, InterruptedException {
+            Map<String, Object> entry;
+            try {
+                entry = Json.parseObject(line);
+            } catch (IllegalArgumentException e) {
+                System.err.println("Skipping unreadable playlist entry: " + e.getMessage());
+                return false;
+            }
+            String entryUrl = entryUrl(entry);
+            if (entryUrl == null) {
+                return false;
+            }
+            if (isPlaylist(entry) && depth < MAX_DEPTH) {
+                list(entryUrl, depth + 1);
+                return false;
+            }
+            synchronized (this) {
+                listed++;
+            }
+
+            String ieKey = Json.getString(entry, "ie_key");
+            String id = Json.getString(entry, "id");
+            if (pass != null && id != null && pass.isKnown(id)) {
+                synchronized (this) {
+                    known++;
+                }
+                Metrics.SYNC_KNOWN_ENTRIES.increment();
+                return pass.add(id, Json.getString(entry, "upload_date"));
+            }
+            if (pass != null && id != null && pass.isPending(id)) {
+                // Still downloading since an earlier sync, maybe from before a restart
+                DownloadJob running = activeJob(entryUrl);
+                if (running != null) {
+                    watch(running, pass, id);
+                    synchronized (this) {
+                        known++;
+                    }
+                    return pass.add(id, Json.getString(entry, "upload_date"));
+                }
+            }
+            if (options.getArchiveFile() != null && ieKey != null && id != null
+                    && DownloadArchive.forFile(options.getArchiveFile()).contains(ieKey, id)) {
+                synchronized (this) {
+                    skipped++;
+                }
+                if (pass != null) {
+                    pass.downloaded(id);
+                }
+                return pass != null && pass.add(id, Json.getString(entry, "upload_date"));
+            }
+
+            outstanding.acquire();
+            DownloadJob job;
+            try {
+                job = scheduler.submit(entryUrl, outputPath, options);
+            } catch (RuntimeException e) {
+                outstanding.release();
+                throw e;
+            }
+            // Not on a pause: a resumed job runs again on the same permit
+            job.whenFinished(state -> outstanding.release());
+            if (pass != null && id != null) {
+                pass.queued(id);
+                watch(job, pass, id);
+            }
+            synchronized (this) {
+                queued++;
+            }
+            if (onJob != null) {
+                onJob.accept(job);
+            }
+            return pass != null && id != null && pass.add(id, Json.getString(entry, "upload_date"));
+        }
+
+        private DownloadJob activeJob(String entryUrl) {
+            for (DownloadJob job : scheduler.getJobs()) {
+                if (!job.getState().isFinished() && job.getUrl().equals(entryUrl)
+                        && job.getOutputPath().equals(outputPath)) {
+                    return job;
+                }
+            }
+            return null;
+        }
+
+        // A failed or cancelled download stays pending, so the next sync queues it again
+        private void watch(DownloadJob job, UploadIndex.Pass pass, String id) {
+            job.whenFinished(state -> {
+                if (state == DownloadJob.State.COMPLETED) {
+                    pass.downloaded(id);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,249 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// ffmpeg work that follows a download: merging separate video and audio
+// streams, remuxing into another container and extracting audio. It runs on
+// its own pool sized to the CPU, so a finished download hands its task over
+// and frees its worker for the next transfer while ffmpeg runs. Streams are
+// always copied first; re-encoding is only the fallback for a container that
+// can't take them as they are.
+public class PostProcessor {
+    static final String FFMPEG = System.getProperty("downloader.ffmpeg", "ffmpeg");
+
+    private static final PostProcessor SHARED = new PostProcessor(
+        Integer.getInteger("downloader.postProcessThreads", Runtime.getRuntime().availableProcessors()));
+    // Containers that take each other's streams without re-encoding
+    private static final Set<String> MP4_FAMILY = Set.of("mp4", "m4a", "m4v", "mov");
+
+    public enum Kind {
+        MERGE, REMUX, EXTRACT_AUDIO
+    }
+
+    public interface Action {
+        void run() throws IOException, InterruptedException;
+    }
+
+    private final ThreadPoolExecutor pool;
+
+    public PostProcessor(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive");
+        }
+        pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+            DownloadScheduler.daemonThreads("post-process"));
+    }
+
+    public static PostProcessor shared() {
+        return SHARED;
+    }
+
+    public int getThreads() {
+        return pool.getMaximumPoolSize();
+    }
+
+    // Tasks waiting for a thread
+    public int getQueueDepth() {
+        return pool.getQueue().size();
+    }
+
+    public int getActiveCount() {
+        return pool.getActiveCount();
+    }
+
+    public Future<?> submit(Runnable work) {
+        long queuedAt = System.nanoTime();
+        return pool.submit(() -> {
+            Metrics.POST_PROCESS_WAIT.recordSince(queuedAt);
+            work.run();
+        });
+    }
+
+    // What a finished download still needs, or null. Several files are merged
+    // into mergeTarget; a single file is remuxed or has its audio extracted
+    // as the options ask, into mergeTarget's directory if there is one.
+    public static Task plan(List<Path> files, Path mergeTarget, DownloadOptions options, Consumer<String> log) {
+        String container = options.getContainer();
+        if (files.size() > 1) {
+            Path target = container != null ? withExtension(mergeTarget, container) : mergeTarget;
+            return new Task(Kind.MERGE, files, target, log);
+        }
+        if (files.isEmpty()) {
+            return null;
+        }
+        Path file = files.get(0);
+        Path output = mergeTarget != null ? mergeTarget.resolveSibling(file.getFileName()) : file;
+        if (options.isExtractAudio()) {
+            return new Task(Kind.EXTRACT_AUDIO, files, withExtension(output, audioExtension(extension(file))), log);
+        }
+        if (container != null && !container.equalsIgnoreCase(extension(file))) {
+            return new Task(Kind.REMUX, files, withExtension(output, container), log);
+        }
+        return null;
+    }
+
+    // Container yt-dlp would pick for merging these streams
+    public static String mergeExtension(List<Path> files) {
+        List<String> extensions = new ArrayList<>();
+        for (Path file : files) {
+            extensions.add(extension(file));
+        }
+        return mergeExtensionOf(extensions);
+    }
+
+    // The same by the streams' extensions, before there are files
+    public static String mergeExtensionOf(List<String> extensions) {
+        boolean mp4 = true;
+        boolean webm = true;
+        for (String ext : extensions) {
+            mp4 &= MP4_FAMILY.contains(ext);
+            webm &= ext.equals("webm");
+        }
+        return mp4 ? "mp4" : webm ? "webm" : "mkv";
+    }
+
+    static String extension(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? "" : name.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+
+    static Path withExtension(Path file, String ext) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return file.resolveSibling((dot < 0 ? name : name.substring(0, dot)) + "." + ext);
+    }
+
+    private static String audioExtension(String ext) {
+        if (MP4_FAMILY.contains(ext)) {
+            return "m4a";
+        }
+        return ext.equals("webm") || ext.equals("opus") ? "opus" : "mka";
+    }
+
+    public static final class Task {
+        private final Kind kind;
+        private final List<Path> inputs;
+        private final Consumer<String> log;
+        private final List<Action> after = new ArrayList<>();
+        private volatile Path output;
+
+        private Task(Kind kind, List<Path> inputs, Path output, Consumer<String> log) {
+            this.kind = kind;
+            this.inputs = List.copyOf(inputs);
+            this.output = output;
+            this.log = log;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        public List<Path> getInputs() {
+            return inputs;
+        }
+
+        // The merge fallback can change the extension to mkv
+        public Path getOutput() {
+            return output;
+        }
+
+        // Runs action after the task succeeds, e.g. recording the download archive
+        public synchronized Task then(Action action) {
+            after.add(action);
+            return this;
+        }
+
+        // Reports the phase and final file to listener; returns ffmpeg's exit code
+        public int run(ProgressListener listener) throws IOException, InterruptedException {
+            listener.onPhase(kind == Kind.MERGE ? ProgressParser.Phase.MERGING : ProgressParser.Phase.POST_PROCESSING);
+            listener.onDestination(output.toString());
+            long startedAt = System.nanoTime();
+            int exitCode;
+            try {
+                exitCode = ffmpeg(true);
+                if (exitCode != 0 && kind == Kind.MERGE && !extension(output).equals("mkv")) {
+                    // Matroska takes any codec, so a merge still doesn't re-encode
+                    Files.deleteIfExists(output);
+                    output = withExtension(output, "mkv");
+                    listener.onDestination(output.toString());
+                    exitCode = ffmpeg(true);
+                } else if (exitCode != 0 && kind != Kind.MERGE) {
+                    exitCode = ffmpeg(false);
+                }
+            } finally {
+                Metrics.POST_PROCESSING.recordSince(startedAt);
+            }
+            if (exitCode != 0) {
+                return exitCode;
+            }
+            for (Path input : inputs) {
+                if (!input.equals(output)) {
+                    Files.deleteIfExists(input);
+                }
+            }
+            List<Action> actions;
+            synchronized (this) {
+                actions = new ArrayList<>(after);
+            }
+            for (Action action : actions) {
+                action.run();
+            }
+            return 0;
+        }
+
+        private int ffmpeg(boolean copy) throws IOException, InterruptedException {
+            List<String> command = new ArrayList<>(List.of(FFMPEG, "-y", "-loglevel", "error"));
+            for (Path input : inputs) {
+                command.add("-i");
+                command.add(input.toString());
+            }
+            switch (kind) {
+                case MERGE -> {
+                    for (int i = 0; i < inputs.size(); i++) {
+                        command.add("-map");
+                        command.add(String.valueOf(i));
+                    }
+                }
+                case EXTRACT_AUDIO -> command.add("-vn");
+                default -> {
+                }
+            }
+            if (copy) {
+                command.add("-c");
+                command.add("copy");
+            }
+            command.add(output.toString());
+            log.accept("[postprocess] " + describe() + " into \"" + output + "\"" + (copy ? "" : " (re-encoding)"));
+
+            Process process = Metrics.start(new ProcessBuilder(command).redirectErrorStream(true));
+            Thread outputThread = new Thread(new YoutubeDownloader.StreamGobbler(process.getInputStream(), "ffmpeg", null, log));
+            outputThread.start();
+            try {
+                int exitCode = process.waitFor();
+                outputThread.join();
+                return exitCode;
+            } catch (InterruptedException e) {
+                ProcessSupervisor.destroyTree(process);
+                throw e;
+            }
+        }
+
+        private String describe() {
+            return switch (kind) {
+                case MERGE -> "Merging formats";
+                case REMUX -> "Remuxing";
+                case EXTRACT_AUDIO -> "Extracting audio";
+            };
+        }
+    }
+}
@@ -0,0 +1,278 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Remembers what yt-dlp extracted for a URL (the info JSON with its format
+// list and resolved stream URLs) so pausing, resuming or restarting the same
+// video doesn't extract it again. The JSON lives on disk, where yt-dlp can
+// read it back with --load-info-json; a small LRU keeps the parsed form of
+// recent entries in memory. An entry is used until its TTL runs out or any
+// of its stream URLs is about to expire, whichever comes first.
+public class ProbeCache {
+    public static final int DEFAULT_MAX_ENTRIES = 64;
+    public static final long DEFAULT_TTL_MILLIS = TimeUnit.HOURS.toMillis(4);
+    private static final int MAX_DISK_ENTRIES = 512;
+    // Leaves time for the download itself before a stream URL dies
+    private static final long EXPIRY_MARGIN_SECONDS = 600;
+
+    private final Path dir;
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final Map<String, Entry> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private static class Shared {
+        static final ProbeCache INSTANCE = new ProbeCache(Paths.get(System.getProperty("downloader.cacheDir",
+            Paths.get(System.getProperty("java.io.tmpdir"), "youtube-downloader-cache").toString())),
+            DEFAULT_MAX_ENTRIES, DEFAULT_TTL_MILLIS);
+    }
+
+    public ProbeCache(Path dir, int maxEntries, long ttlMillis) {
+        if (maxEntries < 1 || ttlMillis < 1) {
+            throw new IllegalArgumentException("maxEntries and ttlMillis must be positive");
+        }
+        this.dir = dir;
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > ProbeCache.this.maxEntries) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+        try {
+            Files.createDirectories(dir);
+            prune();
+        } catch (IOException e) {
+            System.err.println("Probe cache at " + dir + " is unavailable: " + e.getMessage());
+        }
+    }
+
+    // One cache per JVM, shared by every engine
+    public static ProbeCache shared() {
+        return Shared.INSTANCE;
+    }
+
+    // Cached media for this download, or null if there is no valid entry
+    public ResolvedMedia get(String url, String outputPath, String format) {
+        Entry entry = lookup(url, outputPath, format);
+        return entry != null ? entry.media : null;
+    }
+
+    // Like get, but not counted as a hit or miss; for a look ahead of the
+    // run that is going to use the entry
+    public ResolvedMedia peek(String url, String outputPath, String format) {
+        Entry entry = lookup(url, outputPath, format, false);
+        return entry != null ? entry.media : null;
+    }
+
+    // Cached info JSON that yt-dlp can load instead of extracting, or null
+    public Path infoFile(String url, String outputPath, String format) {
+        Entry entry = lookup(url, outputPath, format);
+        return entry != null ? entry.file : null;
+    }
+
+    public void put(String url, String outputPath, String format, String json) throws IOException {
+        Path temp = Files.createTempFile(dir, "probe-", ".tmp");
+        Files.writeString(temp, json, StandardCharsets.UTF_8);
+        store(url, outputPath, format, temp);
+    }
+
+    // Fresh path yt-dlp can write the info JSON to (--print-to-file) before store()
+    public Path newTempFile() throws IOException {
+        return Files.createTempFile(dir, "probe-", ".tmp");
+    }
+
+    // Takes over a file holding one info JSON object; anything else (empty,
+    // torn, or one object per playlist entry) is discarded
+    public void store(String url, String outputPath, String format, Path written) throws IOException {
+        try {
+            String json = Files.readString(written, StandardCharsets.UTF_8).trim();
+            ResolvedMedia media;
+            try {
+                media = json.isEmpty() ? null : ResolvedMedia.fromJson(Json.parseObject(json));
+            } catch (IllegalArgumentException e) {
+                media = null;
+            }
+            if (media == null || media.getStreams().isEmpty()) {
+                return;
+            }
+            Path file = fileFor(key(url, outputPath, format));
+            Files.move(written, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            synchronized (entries) {
+                entries.put(key(url, outputPath, format), new Entry(media, file, System.currentTimeMillis()));
+            }
+        } finally {
+            Files.deleteIfExists(written);
+        }
+    }
+
+    // Drops an entry whose stream URLs turned out to be stale
+    public void invalidate(String url, String outputPath, String format) {
+        String key = key(url, outputPath, format);
+        synchronized (entries) {
+            entries.remove(key);
+        }
+        try {
+            Files.deleteIfExists(fileFor(key));
+        } catch (IOException e) {
+            System.err.println("Could not remove cached probe: " + e.getMessage());
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    // Hits that had to read the JSON back from disk
+    public long getDiskHits() {
+        return diskHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public double getHitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private Entry lookup(String url, String outputPath, String format) {
+        return lookup(url, outputPath, format, true);
+    }
+
+    private Entry lookup(String url, String outputPath, String format, boolean counted) {
+        String key = key(url, outputPath, format);
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+        if (entry == null) {
+            entry = load(key);
+            if (entry != null && counted) {
+                diskHits.incrementAndGet();
+                synchronized (entries) {
+                    entries.put(key, entry);
+                }
+            }
+        }
+        if (entry == null || !isValid(entry) || !Files.exists(entry.file)) {
+            if (entry != null) {
+                invalidate(url, outputPath, format);
+            }
+            if (counted) {
+                misses.incrementAndGet();
+            }
+            return null;
+        }
+        if (counted) {
+            hits.incrementAndGet();
+        }
+        return entry;
+    }
+
+    private boolean isValid(Entry entry) {
+        return System.currentTimeMillis() - entry.storedAt < ttlMillis && !entry.media.isExpired(EXPIRY_MARGIN_SECONDS);
+    }
+
+    private Entry load(String key) {
+        Path file = fileFor(key);
+        try {
+            if (!Files.isRegularFile(file)) {
+                return null;
+            }
+            long storedAt = Files.getLastModifiedTime(file).toMillis();
+            ResolvedMedia media = ResolvedMedia.fromJson(Json.parseObject(Files.readString(file, StandardCharsets.UTF_8)));
+            return new Entry(media, file, storedAt);
+        } catch (IOException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    // Removes expired files and keeps the directory to MAX_DISK_ENTRIES
+    private void prune() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        long now = System.currentTimeMillis();
+        Map<Path, FileTime> times = new LinkedHashMap<>();
+        for (Path file : files) {
+            FileTime time = Files.getLastModifiedTime(file);
+            if (!file.toString().endsWith(".json") || now - time.toMillis() >= ttlMillis) {
+                Files.deleteIfExists(file);
+            } else {
+                times.put(file, time);
+            }
+        }
+        List<Path> kept = new ArrayList<>(times.keySet());
+        kept.sort(Comparator.comparing(times::get));
+        for (int i = 0; i < kept.size() - MAX_DISK_ENTRIES; i++) {
+            Files.deleteIfExists(kept.get(i));
+        }
+    }
+
+    private Path fileFor(String key) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder();
+            for (int i = 0; i < 10; i++) {
+                name.append(String.format("%02x", hash[i]));
+            }
+            return dir.resolve(name.append(".info.json").toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String key(String url, String outputPath, String format) {
+        return url + "\n" + outputPath + "\n" + format;
+    }
+
+    private static class Entry {
+        final ResolvedMedia media;
+        final Path file;
+        final long storedAt;
+
+        Entry(ResolvedMedia media, Path file, long storedAt) {
+            this.media = media;
+            this.file = file;
+            this.storedAt = storedAt;
+        }
+    }
+}
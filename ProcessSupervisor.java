@@ -0,0 +1,133 @@
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+// Looks after one child process and everything it spawns. yt-dlp starts
+// aria2c and ffmpeg as children; Process.destroy() only signals yt-dlp, so
+// they would keep the connection and the files open. The supervisor keeps a
+// record of the descendants it has seen and kills the whole tree. It also
+// watches the parsed progress of the listeners it wraps, and reports a stall
+// when the download hasn't moved for the timeout. Restarting is left to the
+// caller, which can continue from the partial file.
+class ProcessSupervisor {
+    private static final long GRACE_MILLIS = Long.getLong("downloader.killGraceMillis", 3000);
+
+    private final long stallNanos;
+    private final Set<ProcessHandle> descendants = new LinkedHashSet<>();
+    private Process process;
+    private volatile long lastMoved = System.nanoTime();
+    private volatile boolean downloading;
+
+    // A timeout of 0 never reports a stall
+    ProcessSupervisor(long stallTimeoutSeconds) {
+        this.stallNanos = TimeUnit.SECONDS.toNanos(stallTimeoutSeconds);
+    }
+
+    // Sends SIGTERM to the process and all its descendants, then SIGKILL to
+    // whatever is left after a grace period. Completes once all are gone.
+    static CompletableFuture<Void> destroyTree(Process process) {
+        List<ProcessHandle> tree = new ArrayList<>();
+        tree.add(process.toHandle());
+        process.descendants().forEach(tree::add); // before the parent exits and they are reparented
+        return destroy(tree);
+    }
+
+    private static CompletableFuture<Void> destroy(List<ProcessHandle> tree) {
+        List<CompletableFuture<ProcessHandle>> exits = new ArrayList<>();
+        for (ProcessHandle handle : tree) {
+            if (handle.isAlive()) {
+                handle.destroy();
+                exits.add(handle.onExit());
+            }
+        }
+        return CompletableFuture.allOf(exits.toArray(new CompletableFuture<?>[0]))
+            .completeOnTimeout(null, GRACE_MILLIS, TimeUnit.MILLISECONDS)
+            .thenRun(() -> tree.forEach(ProcessHandle::destroyForcibly));
+    }
+
+    synchronized void attach(Process process) {
+        this.process = process;
+        descendants.clear();
+        lastMoved = System.nanoTime();
+    }
+
+    // Wraps a listener whose progress counts towards stall detection
+    ProgressListener watch(ProgressListener listener) {
+        return new ForwardingListener(listener) {
+            private long bytes = -1;
+            private double percent = Double.NaN;
+            private int fragment = -1;
+
+            @Override
+            public void onProgress(ProgressEvent event) {
+                // Repeated lines with the same count are what a stall looks like
+                if (event.getDownloadedBytes() != bytes || event.getFragment() != fragment
+                        || Double.compare(event.getPercent(), percent) != 0) {
+                    bytes = event.getDownloadedBytes();
+                    fragment = event.getFragment();
+                    percent = event.getPercent();
+                    lastMoved = System.nanoTime();
+                }
+                super.onProgress(event);
+            }
+
+            @Override
+            public void onPhase(ProgressParser.Phase phase) {
+                downloading = phase == ProgressParser.Phase.DOWNLOADING;
+                lastMoved = System.nanoTime();
+                super.onPhase(phase);
+            }
+        };
+    }
+
+    // Call regularly while the process runs; remembers new descendants so
+    // they can still be found after their parent has gone
+    synchronized void poll() {
+        if (process != null) {
+            process.descendants().forEach(descendants::add);
+        }
+    }
+
+    boolean isStalled() {
+        return stallNanos > 0 && downloading && System.nanoTime() - lastMoved >= stallNanos;
+    }
+
+    long getIdleSeconds() {
+        return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - lastMoved);
+    }
+
+    synchronized int getDescendantCount() {
+        descendants.removeIf(handle -> !handle.isAlive());
+        return descendants.size();
+    }
+
+    // Kills the process with every descendant seen so far
+    synchronized CompletableFuture<Void> destroy() {
+        if (process == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        poll();
+        List<ProcessHandle> tree = new ArrayList<>();
+        tree.add(process.toHandle());
+        tree.addAll(descendants);
+        return destroy(tree);
+    }
+
+    // After a normal exit: children left behind, e.g. an aria2c that outlived
+    // a crashed yt-dlp, would otherwise keep downloading
+    synchronized void reapOrphans() {
+        List<ProcessHandle> orphans = new ArrayList<>();
+        for (ProcessHandle handle : descendants) {
+            if (handle.isAlive()) {
+                orphans.add(handle);
+            }
+        }
+        if (!orphans.isEmpty()) {
+            destroy(orphans);
+        }
+        descendants.clear();
+    }
+}
@@ -0,0 +1,149 @@
+// One progress update parsed from yt-dlp or aria2c output. The parser reuses a
+// single instance per stream, so listeners that keep it must call copy().
+public class ProgressEvent {
+    private double percent = Double.NaN;
+    private long downloadedBytes = -1;
+    private long totalBytes = -1;
+    private boolean totalEstimated;
+    private double bytesPerSecond = -1;
+    private long etaSeconds = -1;
+    private int fragment = -1;
+    private int fragmentCount = -1;
+    private int connections = -1;
+
+    public double getPercent() {
+        return percent;
+    }
+
+    public boolean hasPercent() {
+        return !Double.isNaN(percent);
+    }
+
+    public long getDownloadedBytes() {
+        return downloadedBytes;
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    // yt-dlp prints "~" in front of sizes it guesses from fragment counts
+    public boolean isTotalEstimated() {
+        return totalEstimated;
+    }
+
+    public double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public long getEtaSeconds() {
+        return etaSeconds;
+    }
+
+    public int getFragment() {
+        return fragment;
+    }
+
+    public int getFragmentCount() {
+        return fragmentCount;
+    }
+
+    // Only reported by aria2c
+    public int getConnections() {
+        return connections;
+    }
+
+    public ProgressEvent copy() {
+        ProgressEvent c = new ProgressEvent();
+        c.copyFrom(this);
+        return c;
+    }
+
+    public void copyFrom(ProgressEvent o) {
+        percent = o.percent;
+        downloadedBytes = o.downloadedBytes;
+        totalBytes = o.totalBytes;
+        totalEstimated = o.totalEstimated;
+        bytesPerSecond = o.bytesPerSecond;
+        etaSeconds = o.etaSeconds;
+        fragment = o.fragment;
+        fragmentCount = o.fragmentCount;
+        connections = o.connections;
+    }
+
+    void reset() {
+        percent = Double.NaN;
+        downloadedBytes = -1;
+        totalBytes = -1;
+        totalEstimated = false;
+        bytesPerSecond = -1;
+        etaSeconds = -1;
+        fragment = -1;
+        fragmentCount = -1;
+        connections = -1;
+    }
+
+    void setPercent(double percent) {
+        this.percent = percent;
+    }
+
+    void setDownloadedBytes(long downloadedBytes) {
+        this.downloadedBytes = downloadedBytes;
+    }
+
+    void setTotalBytes(long totalBytes, boolean estimated) {
+        this.totalBytes = totalBytes;
+        this.totalEstimated = estimated;
+    }
+
+    void setBytesPerSecond(double bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    void setEtaSeconds(long etaSeconds) {
+        this.etaSeconds = etaSeconds;
+    }
+
+    void setFragment(int fragment, int fragmentCount) {
+        this.fragment = fragment;
+        this.fragmentCount = fragmentCount;
+    }
+
+    void setConnections(int connections) {
+        this.connections = connections;
+    }
+
+    public static String formatBytes(double bytes) {
+        if (bytes < 0) {
+            return "?";
+        }
+        String[] units = {"B", "KiB", "MiB", "GiB", "TiB"};
+        int unit = 0;
+        while (bytes >= 1024 && unit < units.length - 1) {
+            bytes /= 1024;
+            unit++;
+        }
+        return unit == 0 ? String.format("%.0f %s", bytes, units[unit]) : String.format("%.2f %s", bytes, units[unit]);
+    }
+
+    public static String formatEta(long seconds) {
+        if (seconds < 0) {
+            return "--:--";
+        }
+        long h = seconds / 3600, m = (seconds / 60) % 60, s = seconds % 60;
+        return h > 0 ? String.format("%d:%02d:%02d", h, m, s) : String.format("%02d:%02d", m, s);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(hasPercent() ? String.format("%.1f%%", percent) : "?%");
+        sb.append(" of ").append(totalEstimated ? "~" : "").append(formatBytes(totalBytes));
+        sb.append(" at ").append(formatBytes(bytesPerSecond)).append("/s");
+        sb.append(" ETA ").append(formatEta(etaSeconds));
+        if (fragmentCount > 0) {
+            sb.append(" (frag ").append(fragment).append('/').append(fragmentCount).append(')');
+        }
+        return sb.toString();
+    }
+}
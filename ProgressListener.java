@@ -0,0 +1,37 @@
+// Receives typed updates from a ProgressParser on the thread reading the stream
+public interface ProgressListener {
+    void onProgress(ProgressEvent event);
+
+    default void onPhase(ProgressParser.Phase phase) {
+    }
+
+    default void onDestination(String path) {
+    }
+
+    // Extractor name and video ID, as used in yt-dlp's download archive
+    default void onMediaId(String extractor, String id) {
+    }
+
+    // The engine had the filesystem allocate all bytes of path up front, so
+    // writing them later takes no more space
+    default void onAllocated(String path, long bytes) {
+    }
+
+    // The engine hashed path with ContentHasher while writing it
+    default void onContentHash(String path, long size, String digest) {
+    }
+
+    // The engine is about to fetch the media last given to onMediaId into
+    // path. Returning true means path was filled from an identical earlier
+    // download instead, so there is nothing left to fetch.
+    default boolean reuseExisting(String path) {
+        return false;
+    }
+
+    // The files are down but still need ffmpeg. Returning true takes the task
+    // over, to run it later on PostProcessor's pool; otherwise the engine
+    // runs it itself before returning.
+    default boolean deferPostProcessing(PostProcessor.Task task) {
+        return false;
+    }
+}
@@ -0,0 +1,411 @@
+// Hand-rolled parser for yt-dlp --newline output and the aria2c status lines
+// yt-dlp passes through. Progress lines are scanned in place and reported
+// through one reused ProgressEvent, so the hot path allocates nothing; only
+// the occasional destination path is turned into a String.
+//
+// Not thread-safe: use one parser per stream.
+public class ProgressParser {
+    public enum Phase {
+        EXTRACTING, DOWNLOADING, MERGING, POST_PROCESSING, ALREADY_DOWNLOADED
+    }
+
+    private static final String[] DOWNLOADER_TAGS = {"download", "hlsnative", "dashsegments"};
+    private static final String[] POST_PROCESSOR_TAGS = {
+        "ExtractAudio", "Fixup", "VideoRemuxer", "VideoConvertor", "Embed", "Metadata", "FFmpeg",
+        "ThumbnailsConvertor", "SponsorBlock", "ModifyChapters", "SplitChapters", "MoveFiles", "Exec"
+    };
+
+    private final ProgressListener listener;
+    private final ProgressEvent event = new ProgressEvent();
+    private Phase phase;
+
+    private CharSequence line;
+    private int pos;
+    private int end;
+
+    public ProgressParser(ProgressListener listener) {
+        this.listener = listener;
+    }
+
+    public Phase getPhase() {
+        return phase;
+    }
+
+    // Returns true if the line carried a progress update
+    public boolean parse(CharSequence text) {
+        line = text;
+        pos = 0;
+        end = text.length();
+        try {
+            while (end > 0 && Character.isWhitespace(line.charAt(end - 1))) {
+                end--;
+            }
+            skipSpaces();
+            if (pos >= end || line.charAt(pos) != '[') {
+                return false;
+            }
+            if (match("[#") || match("[DL:")) {
+                return parseAria2();
+            }
+            int tagStart = pos + 1;
+            int tagEnd = indexOf(']', tagStart);
+            if (tagEnd < 0) {
+                return false;
+            }
+            pos = tagEnd + 1;
+            skipSpaces();
+
+            if (regionEquals(tagStart, tagEnd, "download")) {
+                return parseDownload();
+            }
+            if (regionEquals(tagStart, tagEnd, "Merger")) {
+                setPhase(Phase.MERGING);
+                if (match("Merging formats into")) {
+                    skipSpaces();
+                    destination();
+                }
+            } else if (regionStartsWith(tagStart, tagEnd, POST_PROCESSOR_TAGS)) {
+                setPhase(Phase.POST_PROCESSING);
+                if (match("Destination:")) {
+                    skipSpaces();
+                    destination();
+                }
+            } else if (regionStartsWith(tagStart, tagEnd, DOWNLOADER_TAGS)) {
+                setPhase(Phase.DOWNLOADING);
+            } else {
+                setPhase(Phase.EXTRACTING); // [youtube], [info], [generic], ...
+                if (!regionEquals(tagStart, tagEnd, "info")) {
+                    mediaId(tagStart, tagEnd);
+                }
+            }
+            return false;
+        } finally {
+            line = null;
+        }
+    }
+
+    private boolean parseDownload() {
+        if (match("Destination:")) {
+            skipSpaces();
+            setPhase(Phase.DOWNLOADING);
+            destination();
+            return false;
+        }
+        String done = " has already been downloaded";
+        if (regionEndsWith(done)) {
+            end -= done.length();
+            setPhase(Phase.ALREADY_DOWNLOADED);
+            destination();
+            return false;
+        }
+        if (pos >= end || !isDigit(line.charAt(pos))) {
+            return false;
+        }
+
+        event.reset();
+        int mark = pos;
+        double first = parseNumber();
+        if (pos < end && line.charAt(pos) == '%') {
+            pos++;
+            event.setPercent(first);
+            skipSpaces();
+            if (matchWord("of")) {
+                skipSpaces();
+                boolean estimated = false;
+                if (pos < end && line.charAt(pos) == '~') {
+                    estimated = true;
+                    pos++;
+                    skipSpaces();
+                }
+                event.setTotalBytes(parseSize(), estimated);
+            }
+        } else {
+            pos = mark; // "[download]  1.23MiB at ..." when the total is unknown
+            event.setDownloadedBytes(parseSize());
+        }
+
+        while (true) {
+            skipSpaces();
+            if (pos >= end) {
+                break;
+            }
+            if (matchWord("at")) {
+                skipSpaces();
+                event.setBytesPerSecond(parseSize());
+            } else if (matchWord("ETA")) {
+                skipSpaces();
+                event.setEtaSeconds(parseClock());
+            } else if (match("(frag")) {
+                skipSpaces();
+                int fragment = (int) parseNumber();
+                int count = -1;
+                if (pos < end && line.charAt(pos) == '/') {
+                    pos++;
+                    count = (int) parseNumber();
+                }
+                event.setFragment(fragment, count);
+                skipPast(')');
+            } else {
+                skipToken(); // "in 00:00:10", "(00:00:05)", ...
+            }
+        }
+
+        if (event.getDownloadedBytes() < 0 && event.getTotalBytes() >= 0 && event.hasPercent()) {
+            event.setDownloadedBytes(Math.round(event.getTotalBytes() * event.getPercent() / 100));
+        }
+        if (event.getEtaSeconds() < 0 && event.getPercent() >= 100) {
+            event.setEtaSeconds(0);
+        }
+        setPhase(Phase.DOWNLOADING);
+        listener.onProgress(event);
+        return true;
+    }
+
+    // [#2089b0 400.0KiB/33.2MiB(1%) CN:1 DL:115.7KiB ETA:4m51s]
+    private boolean parseAria2() {
+        if (line.charAt(pos - 1) == ':') {
+            pos = indexOf('#', pos); // "[DL:1.2MiB][#2089b0 ..." summary form
+            if (pos < 0) {
+                return false;
+            }
+        }
+        skipPast(' ');
+        skipSpaces();
+        if (pos >= end || !isDigit(line.charAt(pos))) {
+            return false;
+        }
+
+        event.reset();
+        event.setDownloadedBytes(parseSize());
+        if (pos < end && line.charAt(pos) == '/') {
+            pos++;
+            event.setTotalBytes(parseSize(), false);
+        }
+        if (pos < end && line.charAt(pos) == '(') {
+            pos++;
+            event.setPercent(parseNumber());
+            skipPast(')');
+        }
+        if (event.getTotalBytes() > 0) {
+            event.setPercent(event.getDownloadedBytes() * 100.0 / event.getTotalBytes());
+        }
+
+        while (true) {
+            skipSpaces();
+            if (pos >= end || line.charAt(pos) == ']') {
+                break;
+            }
+            if (match("CN:")) {
+                event.setConnections((int) parseNumber());
+            } else if (match("DL:")) {
+                event.setBytesPerSecond(parseSize());
+            } else if (match("ETA:")) {
+                event.setEtaSeconds(parseClock());
+            } else {
+                skipToken();
+            }
+        }
+        setPhase(Phase.DOWNLOADING);
+        listener.onProgress(event);
+        return true;
+    }
+
+    private void setPhase(Phase newPhase) {
+        if (phase != newPhase) {
+            phase = newPhase;
+            listener.onPhase(newPhase);
+        }
+    }
+
+    // "[youtube] dQw4w9WgXcQ: Downloading webpage"; playlist extractors such
+    // as [youtube:tab] are skipped since their IDs aren't archived
+    private void mediaId(int tagStart, int tagEnd) {
+        if (indexOf(':', tagStart) < tagEnd) {
+            return;
+        }
+        int colon = indexOf(':', pos);
+        if (colon <= pos || colon + 1 >= end || line.charAt(colon + 1) != ' ') {
+            return;
+        }
+        for (int i = pos; i < colon; i++) {
+            if (line.charAt(i) == ' ') {
+                return; // "Extracting URL: ..."
+            }
+        }
+        listener.onMediaId(line.subSequence(tagStart, tagEnd).toString(), line.subSequence(pos, colon).toString());
+    }
+
+    private void destination() {
+        int from = pos;
+        int to = end;
+        if (to - from >= 2 && line.charAt(from) == '"' && line.charAt(to - 1) == '"') {
+            from++;
+            to--;
+        }
+        if (to > from) {
+            listener.onDestination(line.subSequence(from, to).toString());
+        }
+    }
+
+    // Decimal number at the cursor, NaN if there is none
+    private double parseNumber() {
+        long whole = 0;
+        long fraction = 0;
+        long scale = 1;
+        boolean digits = false;
+        while (pos < end && isDigit(line.charAt(pos))) {
+            whole = whole * 10 + (line.charAt(pos++) - '0');
+            digits = true;
+        }
+        if (pos + 1 < end && line.charAt(pos) == '.' && isDigit(line.charAt(pos + 1))) {
+            pos++;
+            while (pos < end && isDigit(line.charAt(pos))) {
+                if (scale < 1_000_000_000L) {
+                    fraction = fraction * 10 + (line.charAt(pos) - '0');
+                    scale *= 10;
+                }
+                pos++;
+            }
+        }
+        return digits ? whole + fraction / (double) scale : Double.NaN;
+    }
+
+    // "12.34MiB", "1.2MiB/s", "500KB", "Unknown"; -1 when unknown
+    private long parseSize() {
+        double value = parseNumber();
+        if (Double.isNaN(value)) {
+            skipToken();
+            return -1;
+        }
+        long multiplier = 1;
+        if (pos < end) {
+            char c = line.charAt(pos);
+            int power = "KMGTP".indexOf(Character.toUpperCase(c)) + 1;
+            if (power > 0) {
+                pos++;
+                boolean binary = pos < end && line.charAt(pos) == 'i';
+                if (binary) {
+                    pos++;
+                }
+                long base = binary ? 1024 : 1000;
+                for (int i = 0; i < power; i++) {
+                    multiplier *= base;
+                }
+            }
+        }
+        if (pos < end && line.charAt(pos) == 'B') {
+            pos++;
+        }
+        if (pos + 1 < end && line.charAt(pos) == '/' && line.charAt(pos + 1) == 's') {
+            pos += 2;
+        }
+        return Math.round(value * multiplier);
+    }
+
+    // "05:07", "01:02:03" or aria2c's "1h2m3s"; -1 when unknown
+    private long parseClock() {
+        long total = 0;
+        long current = 0;
+        boolean digits = false;
+        while (pos < end) {
+            char c = line.charAt(pos);
+            if (isDigit(c)) {
+                current = current * 10 + (c - '0');
+                digits = true;
+            } else if (c == ':') {
+                total = (total + current) * 60;
+                current = 0;
+            } else if (c == 'h' || c == 'm' || c == 's') {
+                total += current * (c == 'h' ? 3600 : c == 'm' ? 60 : 1);
+                current = 0;
+            } else {
+                break;
+            }
+            pos++;
+        }
+        if (!digits) {
+            skipToken();
+            return -1;
+        }
+        return total + current;
+    }
+
+    private boolean match(String s) {
+        int n = s.length();
+        if (end - pos < n) {
+            return false;
+        }
+        for (int i = 0; i < n; i++) {
+            if (line.charAt(pos + i) != s.charAt(i)) {
+                return false;
+            }
+        }
+        pos += n;
+        return true;
+    }
+
+    private boolean matchWord(String word) {
+        int mark = pos;
+        if (match(word) && (pos >= end || line.charAt(pos) == ' ')) {
+            return true;
+        }
+        pos = mark;
+        return false;
+    }
+
+    private boolean regionEquals(int from, int to, String s) {
+        if (to - from != s.length()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (line.charAt(from + i) != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean regionStartsWith(int from, int to, String[] prefixes) {
+        for (String prefix : prefixes) {
+            if (to - from >= prefix.length() && regionEquals(from, from + prefix.length(), prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean regionEndsWith(String suffix) {
+        int from = end - suffix.length();
+        return from >= pos && regionEquals(from, end, suffix);
+    }
+
+    private int indexOf(char c, int from) {
+        for (int i = from; i < end; i++) {
+            if (line.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void skipSpaces() {
+        while (pos < end && line.charAt(pos) == ' ') {
+            pos++;
+        }
+    }
+
+    private void skipToken() {
+        while (pos < end && line.charAt(pos) != ' ') {
+            pos++;
+        }
+    }
+
+    private void skipPast(char c) {
+        int i = indexOf(c, pos);
+        pos = i < 0 ? end : i + 1;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
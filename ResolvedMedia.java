@@ -0,0 +1,228 @@
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// What yt-dlp --dump-json says about one video: where its streams live and
+// which file it would write them to.
+public class ResolvedMedia {
+    public static class Stream {
+        private final URI uri;
+        private final Map<String, String> headers;
+        private final String formatId;
+        private final String ext;
+        private final String protocol;
+        private final long filesize;
+
+        Stream(URI uri, Map<String, String> headers, String formatId, String ext, String protocol, long filesize) {
+            this.uri = uri;
+            this.headers = headers;
+            this.formatId = formatId;
+            this.ext = ext;
+            this.protocol = protocol;
+            this.filesize = filesize;
+        }
+
+        public URI getUri() {
+            return uri;
+        }
+
+        public Map<String, String> getHeaders() {
+            return headers;
+        }
+
+        public String getFormatId() {
+            return formatId;
+        }
+
+        public String getExt() {
+            return ext;
+        }
+
+        public String getProtocol() {
+            return protocol;
+        }
+
+        // -1 when yt-dlp doesn't know it up front
+        public long getFilesize() {
+            return filesize;
+        }
+
+        // Signed CDN URLs carry their expiry as an "expire" epoch-seconds
+        // query parameter; -1 when there is none
+        public long getExpiresAt() {
+            String query = uri.getRawQuery();
+            if (query == null) {
+                return -1;
+            }
+            for (String param : query.split("&")) {
+                if (param.startsWith("expire=")) {
+                    try {
+                        return Long.parseLong(param.substring("expire=".length()));
+                    } catch (NumberFormatException e) {
+                        return -1;
+                    }
+                }
+            }
+            return -1;
+        }
+
+        // Plain progressive files that can be fetched with range requests
+        public boolean isHttp() {
+            return "http".equals(protocol) || "https".equals(protocol);
+        }
+
+        // HLS or DASH: the URL is a manifest listing the fragments
+        public boolean isFragmented() {
+            return "m3u8".equals(protocol) || "m3u8_native".equals(protocol) || "http_dash_segments".equals(protocol);
+        }
+
+        // Same keys as yt-dlp's format dicts, so fromJson reads it back
+        Map<String, Object> toJson() {
+            Map<String, Object> json = new LinkedHashMap<>();
+            json.put("url", uri.toString());
+            json.put("http_headers", headers);
+            json.put("format_id", formatId);
+            json.put("ext", ext);
+            json.put("protocol", protocol);
+            json.put("filesize", filesize);
+            return json;
+        }
+
+        static Stream fromJson(Map<String, Object> format) {
+            Map<String, String> headers = new LinkedHashMap<>();
+            Map<String, Object> rawHeaders = Json.getObject(format, "http_headers");
+            if (rawHeaders != null) {
+                rawHeaders.forEach((k, v) -> headers.put(k, String.valueOf(v)));
+            }
+            long size = Json.getLong(format, "filesize", -1);
+            if (size < 0) {
+                size = Json.getLong(format, "filesize_approx", -1);
+            }
+            String protocol = Json.getString(format, "protocol");
+            return new Stream(URI.create(Json.getString(format, "url")), Collections.unmodifiableMap(headers),
+                Json.getString(format, "format_id"), Json.getString(format, "ext"),
+                protocol == null ? "https" : protocol, size);
+        }
+    }
+
+    private final String id;
+    private final String title;
+    private final String extractor;
+    private final String filename;
+    private final List<Stream> streams;
+
+    ResolvedMedia(String id, String title, String extractor, String filename, List<Stream> streams) {
+        this.id = id;
+        this.title = title;
+        this.extractor = extractor;
+        this.filename = filename;
+        this.streams = streams;
+    }
+
+    public static ResolvedMedia fromJson(Map<String, Object> info) {
+        List<Stream> streams = new ArrayList<>();
+        List<Object> requested = Json.getArray(info, "requested_formats");
+        if (requested != null) {
+            for (Object format : requested) {
+                @SuppressWarnings("unchecked")
+                Map<String, Object> map = (Map<String, Object>) format;
+                streams.add(Stream.fromJson(map));
+            }
+        } else if (info.get("url") != null) {
+            streams.add(Stream.fromJson(info));
+        }
+        String filename = Json.getString(info, "filename");
+        if (filename == null) {
+            filename = Json.getString(info, "_filename");
+        }
+        return new ResolvedMedia(Json.getString(info, "id"), Json.getString(info, "title"),
+            Json.getString(info, "extractor_key"), filename, Collections.unmodifiableList(streams));
+    }
+
+    public Map<String, Object> toJson() {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("id", id);
+        json.put("title", title);
+        json.put("extractor_key", extractor);
+        json.put("filename", filename);
+        List<Object> formats = new ArrayList<>();
+        for (Stream stream : streams) {
+            formats.add(stream.toJson());
+        }
+        json.put("requested_formats", formats);
+        return json;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public String getExtractor() {
+        return extractor;
+    }
+
+    // Final output file from yt-dlp's -o template
+    public String getFilename() {
+        return filename;
+    }
+
+    public List<Stream> getStreams() {
+        return streams;
+    }
+
+    // Bytes of all streams together; -1 if yt-dlp doesn't know one of them
+    public long getExpectedSize() {
+        long total = 0;
+        for (Stream stream : streams) {
+            if (stream.getFilesize() < 0) {
+                return -1;
+            }
+            total += stream.getFilesize();
+        }
+        return streams.isEmpty() ? -1 : total;
+    }
+
+    // True if any stream URL expires within the given margin
+    public boolean isExpired(long marginSeconds) {
+        long now = System.currentTimeMillis() / 1000;
+        for (Stream stream : streams) {
+            long expiresAt = stream.getExpiresAt();
+            if (expiresAt > 0 && expiresAt - marginSeconds <= now) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean isHttp() {
+        if (streams.isEmpty()) {
+            return false;
+        }
+        for (Stream stream : streams) {
+            if (!stream.isHttp()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Every stream is a plain file or an HLS/DASH manifest
+    public boolean canFetchNatively() {
+        if (streams.isEmpty()) {
+            return false;
+        }
+        for (Stream stream : streams) {
+            if (!stream.isHttp() && !stream.isFragmented()) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,332 @@
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Append-only record of a native download: the resolved media, each stream's
+// validators (length, ETag, Last-Modified) and every finished piece, or for
+// HLS and DASH the manifest and how many fragments were written. It lives
+// next to the output, so a paused or crashed job can resume with the same
+// URLs and only fetch what is missing. One JSON object per line, each forced
+// to disk; a torn last line from a crash is dropped on the next open.
+public class ResumeJournal implements Closeable {
+    private static final int COMPACT_AFTER = 64;
+
+    private final Path file;
+    private final String url;
+    private final String format;
+    private final List<StreamState> streams = new ArrayList<>();
+    private ResolvedMedia media;
+    private FileChannel channel;
+
+    private ResumeJournal(Path file, String url, String format) {
+        this.file = file;
+        this.url = url;
+        this.format = format;
+    }
+
+    // Hidden file in the output folder, named after the URL and format
+    public static Path pathFor(String outputPath, String url, String format) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] hash = sha1.digest((url + "\n" + format).getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder(".resume-");
+            for (int i = 0; i < 8; i++) {
+                name.append(String.format("%02x", hash[i]));
+            }
+            return Paths.get(outputPath).resolve(name.append(".journal").toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static ResumeJournal create(Path file, String url, String format, ResolvedMedia media) throws IOException {
+        ResumeJournal journal = new ResumeJournal(file, url, format);
+        journal.setMedia(media);
+        journal.rewrite();
+        return journal;
+    }
+
+    // Null if there is no usable journal for this URL and format
+    public static ResumeJournal open(Path file, String url, String format) throws IOException {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        byte[] bytes = Files.readAllBytes(file);
+        ResumeJournal journal = new ResumeJournal(file, url, format);
+        int records = 0;
+        int start = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] != '\n') {
+                continue;
+            }
+            Map<String, Object> record;
+            try {
+                record = Json.parseObject(new String(bytes, start, i - start, StandardCharsets.UTF_8));
+            } catch (IllegalArgumentException e) {
+                break;
+            }
+            if (records == 0 && !(url.equals(record.get("url")) && String.valueOf(format).equals(String.valueOf(record.get("format"))))) {
+                return null;
+            }
+            journal.replay(record);
+            records++;
+            start = i + 1;
+        }
+        if (journal.media == null) {
+            return null;
+        }
+        if (records > COMPACT_AFTER || start != bytes.length) {
+            journal.rewrite(); // merge ranges and drop a torn tail
+        } else {
+            journal.channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        return journal;
+    }
+
+    public synchronized ResolvedMedia getMedia() {
+        return media;
+    }
+
+    public synchronized StreamState stream(int index) {
+        return streams.get(index);
+    }
+
+    // After re-resolving: new URLs, same pieces if the streams still match
+    public synchronized void updateMedia(ResolvedMedia newMedia) throws IOException {
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put("media", newMedia.toJson());
+        append(record);
+        setMedia(newMedia);
+    }
+
+    public synchronized void delete() throws IOException {
+        close();
+        Files.deleteIfExists(file);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private void setMedia(ResolvedMedia newMedia) {
+        int count = newMedia.getStreams().size();
+        boolean sameStreams = media != null && streams.size() == count;
+        for (int i = 0; sameStreams && i < count; i++) {
+            sameStreams = String.valueOf(media.getStreams().get(i).getFormatId())
+                .equals(String.valueOf(newMedia.getStreams().get(i).getFormatId()));
+        }
+        if (!sameStreams) {
+            streams.clear();
+            for (int i = 0; i < count; i++) {
+                streams.add(new StreamState(i));
+            }
+        }
+        media = newMedia;
+    }
+
+    private void replay(Map<String, Object> record) {
+        Map<String, Object> mediaJson = Json.getObject(record, "media");
+        if (mediaJson != null) {
+            setMedia(ResolvedMedia.fromJson(mediaJson));
+            return;
+        }
+        int index = (int) Json.getLong(record, "s", -1);
+        if (index < 0 || index >= streams.size()) {
+            return;
+        }
+        StreamState state = streams.get(index);
+        List<Object> range = Json.getArray(record, "r");
+        List<Object> fragment = Json.getArray(record, "f");
+        if (range != null && range.size() == 2) {
+            state.done.add(((Number) range.get(0)).longValue(), ((Number) range.get(1)).longValue());
+        } else if (fragment != null && fragment.size() == 2) {
+            state.fragments = ((Number) fragment.get(0)).intValue() + 1;
+            state.fragmentBytes = ((Number) fragment.get(1)).longValue();
+        } else if (record.containsKey("manifest")) {
+            state.setManifest(Json.getString(record, "manifest"));
+        } else if (record.containsKey("len")) {
+            state.setValidators(Json.getLong(record, "len", -1), Json.getString(record, "etag"), Json.getString(record, "lm"));
+        }
+    }
+
+    // Writes a compact copy next to the journal and swaps it in atomically
+    private void rewrite() throws IOException {
+        close();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Map<String, Object> header = new LinkedHashMap<>();
+        header.put("v", 1);
+        header.put("url", url);
+        header.put("format", format);
+        header.put("media", media.toJson());
+        writeLine(out, header);
+        for (StreamState state : streams) {
+            if (state.length >= 0) {
+                writeLine(out, state.validatorRecord());
+            }
+            for (long[] range : state.done.toList()) {
+                writeLine(out, state.rangeRecord(range[0], range[1]));
+            }
+            if (state.manifest != null) {
+                writeLine(out, state.manifestRecord());
+                if (state.fragments > 0) {
+                    writeLine(out, state.fragmentRecord());
+                }
+            }
+        }
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel tempChannel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(out.toByteArray());
+            while (buffer.hasRemaining()) {
+                tempChannel.write(buffer);
+            }
+            tempChannel.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private void append(Map<String, Object> record) throws IOException {
+        if (channel == null) {
+            throw new IOException("Journal " + file + " is closed");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap((Json.write(record) + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+    }
+
+    private static void writeLine(ByteArrayOutputStream out, Map<String, Object> record) {
+        out.writeBytes((Json.write(record) + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    public class StreamState implements SegmentedDownloader.Checkpoint, FragmentDownloader.Checkpoint {
+        private final int index;
+        private final ByteRanges done = new ByteRanges();
+        private long length = -1;
+        private String etag;
+        private String lastModified;
+        private String manifest; // fingerprint of the fragment list
+        private int fragments;
+        private long fragmentBytes;
+
+        StreamState(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public ByteRanges begin(long newLength, String newEtag, String newLastModified) throws IOException {
+            synchronized (ResumeJournal.this) {
+                boolean unchanged = length == newLength
+                    && (etag == null || newEtag == null || etag.equals(newEtag))
+                    && (lastModified == null || newLastModified == null || lastModified.equals(newLastModified));
+                if (!unchanged) {
+                    setValidators(newLength, newEtag, newLastModified);
+                    append(validatorRecord());
+                }
+                return done;
+            }
+        }
+
+        @Override
+        public void pieceDone(long start, long end) throws IOException {
+            synchronized (ResumeJournal.this) {
+                done.add(start, end);
+                append(rangeRecord(start, end));
+            }
+        }
+
+        @Override
+        public int beginFragments(String fingerprint) throws IOException {
+            synchronized (ResumeJournal.this) {
+                if (!fingerprint.equals(manifest)) {
+                    setManifest(fingerprint);
+                    append(manifestRecord());
+                }
+                return fragments;
+            }
+        }
+
+        @Override
+        public long getFragmentBytes() {
+            synchronized (ResumeJournal.this) {
+                return fragmentBytes;
+            }
+        }
+
+        @Override
+        public void fragmentWritten(int fragment, long end) throws IOException {
+            synchronized (ResumeJournal.this) {
+                fragments = fragment + 1;
+                fragmentBytes = end;
+                append(fragmentRecord());
+            }
+        }
+
+        // Another fragment list means the written ones may not line up
+        private void setManifest(String fingerprint) {
+            manifest = fingerprint;
+            fragments = 0;
+            fragmentBytes = 0;
+        }
+
+        private Map<String, Object> manifestRecord() {
+            Map<String, Object> record = new LinkedHashMap<>();
+            record.put("s", index);
+            record.put("manifest", manifest);
+            return record;
+        }
+
+        private Map<String, Object> fragmentRecord() {
+            Map<String, Object> record = new LinkedHashMap<>();
+            record.put("s", index);
+            record.put("f", List.of(fragments - 1, fragmentBytes));
+            return record;
+        }
+
+        // New validators mean new content, so earlier pieces are worthless
+        private void setValidators(long newLength, String newEtag, String newLastModified) {
+            if (length >= 0) {
+                done.clear();
+            }
+            length = newLength;
+            etag = newEtag;
+            lastModified = newLastModified;
+        }
+
+        private Map<String, Object> validatorRecord() {
+            Map<String, Object> record = new LinkedHashMap<>();
+            record.put("s", index);
+            record.put("len", length);
+            record.put("etag", etag);
+            record.put("lm", lastModified);
+            return record;
+        }
+
+        private Map<String, Object> rangeRecord(long start, long end) {
+            Map<String, Object> record = new LinkedHashMap<>();
+            record.put("s", index);
+            record.put("r", List.of(start, end));
+            return record;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+import java.util.function.Consumer;
+
+// Times one yt-dlp run for Metrics: first output, extraction (until the
+// download starts) and post-processing, and counts the retries yt-dlp
+// reports. Wraps the run's listener and log consumer.
+class RunMetrics extends ForwardingListener {
+    private final long spawnedAt = System.nanoTime();
+    private volatile boolean output;
+    private volatile boolean downloading;
+    private volatile long postProcessingAt;
+
+    RunMetrics(ProgressListener listener) {
+        super(listener);
+    }
+
+    Consumer<String> log(Consumer<String> log) {
+        return line -> {
+            onLine(line);
+            log.accept(line);
+        };
+    }
+
+    void onLine(String line) {
+        if (!output) {
+            output = true;
+            Metrics.PROCESS_FIRST_OUTPUT.recordSince(spawnedAt);
+        }
+        // "[download] Got error: ... Retrying (1/10)..." and fragment retries
+        if (line.contains("Retrying")) {
+            Metrics.YTDLP_RETRIES.increment();
+        }
+    }
+
+    // Call once the process has exited
+    void finished() {
+        long at = postProcessingAt;
+        if (at != 0) {
+            Metrics.POST_PROCESSING.recordSince(at);
+        }
+    }
+
+    @Override
+    public void onPhase(ProgressParser.Phase phase) {
+        switch (phase) {
+            case DOWNLOADING -> {
+                if (!downloading) {
+                    downloading = true;
+                    Metrics.EXTRACTION.recordSince(spawnedAt);
+                }
+            }
+            case MERGING, POST_PROCESSING -> {
+                if (postProcessingAt == 0) {
+                    postProcessingAt = System.nanoTime();
+                }
+            }
+            default -> {
+            }
+        }
+        super.onPhase(phase);
+    }
+}
@@ -0,0 +1,356 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Fetches one HTTP resource with parallel Range requests. The file is cut into
+// segmentSize pieces that a fixed number of connections work through, and
+// every piece is written straight to its offset with positional writes.
+// Servers without range support get a single plain GET.
+public class SegmentedDownloader {
+    // Remembers finished pieces so an interrupted download only fetches the gaps
+    public interface Checkpoint {
+        // Called once the server's validators are known. Returns the ranges
+        // that are still usable, which is none if the resource has changed.
+        ByteRanges begin(long length, String etag, String lastModified) throws IOException;
+
+        void pieceDone(long start, long end) throws IOException;
+    }
+
+    public static class HttpStatusException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int statusCode;
+
+        public HttpStatusException(int statusCode, String message) {
+            super(message);
+            this.statusCode = statusCode;
+        }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        // Typical answers for a signed media URL that has expired
+        public boolean isExpired() {
+            return statusCode == 403 || statusCode == 404 || statusCode == 410;
+        }
+
+        public boolean isThrottled() {
+            return statusCode == 429 || statusCode == 503;
+        }
+    }
+
+    public static final int DEFAULT_SEGMENTS = 4;
+    public static final long DEFAULT_SEGMENT_SIZE = 10L << 20;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long REPORT_INTERVAL_NANOS = 250_000_000L;
+    private static final long THROTTLE_BACKOFF_MILLIS = 1000;
+    private static final ExecutorService CONNECTIONS = Executors.newCachedThreadPool(
+        DownloadScheduler.daemonThreads("segment"));
+
+    private final HttpClient client;
+    private final int segments;
+    private final long segmentSize;
+    private final BandwidthLimiter.Share share;
+    private Runnable onThrottled = () -> { };
+    private boolean preallocate;
+
+    public SegmentedDownloader() {
+        this(newClient(), DEFAULT_SEGMENTS, DEFAULT_SEGMENT_SIZE, null);
+    }
+
+    // All connections draw from share, if given, so their sum stays within its rate
+    public SegmentedDownloader(HttpClient client, int segments, long segmentSize, BandwidthLimiter.Share share) {
+        if (segments < 1 || segmentSize < 1) {
+            throw new IllegalArgumentException("segments and segmentSize must be positive");
+        }
+        this.client = client;
+        this.segments = segments;
+        this.segmentSize = segmentSize;
+        this.share = share;
+    }
+
+    // Called for every HTTP 429 or 503, e.g. to lower the host's concurrency
+    public SegmentedDownloader onThrottled(Runnable onThrottled) {
+        this.onThrottled = onThrottled;
+        return this;
+    }
+
+    // Gives a file fetched in pieces its full length before the first byte
+    // arrives; see DiskAdmission.preallocate
+    public SegmentedDownloader preallocate(boolean preallocate) {
+        this.preallocate = preallocate;
+        return this;
+    }
+
+    public static HttpClient newClient() {
+        return HttpClient.newBuilder()
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .connectTimeout(Duration.ofSeconds(15))
+            .build();
+    }
+
+    // Downloads uri into target and returns the number of bytes written
+    public long download(URI uri, Map<String, String> headers, Path target, ProgressListener listener)
+            throws IOException, InterruptedException {
+        return download(uri, headers, target, listener, null);
+    }
+
+    // With a checkpoint, pieces it already holds are kept in target and skipped
+    public long download(URI uri, Map<String, String> headers, Path target, ProgressListener listener,
+                         Checkpoint checkpoint) throws IOException, InterruptedException {
+        return download(uri, headers, target, listener, checkpoint, null);
+    }
+
+    // With a hasher, each connection also hashes the bytes it writes
+    public long download(URI uri, Map<String, String> headers, Path target, ProgressListener listener,
+                         Checkpoint checkpoint, ContentHasher hasher) throws IOException, InterruptedException {
+        HttpResponse<InputStream> probe = send(uri, headers, "bytes=0-");
+        long total = contentLength(probe);
+        boolean ranged = probe.statusCode() == 206 && total >= 0;
+        ByteRanges done = new ByteRanges();
+        if (checkpoint != null && ranged) {
+            done = checkpoint.begin(total,
+                probe.headers().firstValue("ETag").orElse(null),
+                probe.headers().firstValue("Last-Modified").orElse(null));
+        }
+        boolean resuming = !done.isEmpty();
+        Progress progress = new Progress(total, done.coveredBytes(), listener);
+
+        try (FileChannel channel = resuming
+                ? FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE)
+                : FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            if (!ranged || (!resuming && total <= segmentSize)) {
+                // No ranges (or not worth splitting): the probe response is the whole file
+                ContentHasher.Writer writer = hasher != null ? hasher.writer(0) : null;
+                long written = copy(probe.body(), channel, new long[1], Long.MAX_VALUE, progress, writer);
+                if (writer != null) {
+                    writer.close();
+                }
+                progress.report();
+                return written;
+            }
+            probe.body().close();
+            if (preallocate && !resuming && DiskAdmission.preallocate(target, total)) {
+                listener.onAllocated(target.toString(), total);
+            }
+
+            ConcurrentLinkedQueue<long[]> pieces = new ConcurrentLinkedQueue<>();
+            for (long[] gap : done.missing(total)) {
+                for (long start = gap[0]; start <= gap[1]; start += segmentSize) {
+                    pieces.add(new long[] {start, Math.min(start + segmentSize - 1, gap[1])});
+                }
+            }
+            int connections = Math.min(segments, pieces.size());
+            List<Future<?>> workers = new ArrayList<>(connections);
+            for (int i = 0; i < connections; i++) {
+                workers.add(CONNECTIONS.submit(() -> {
+                    long[] piece;
+                    while ((piece = pieces.poll()) != null) {
+                        fetchPiece(uri, headers, channel, piece[0], piece[1], progress, hasher);
+                        if (checkpoint != null) {
+                            // The journal may only name pieces that are on disk
+                            channel.force(false);
+                            checkpoint.pieceDone(piece[0], piece[1]);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            if (!workers.isEmpty()) {
+                awaitAll(workers);
+            }
+            progress.report();
+            if (progress.downloaded.get() != total) {
+                throw new IOException("Expected " + total + " bytes but got " + progress.downloaded.get());
+            }
+            return total;
+        }
+    }
+
+    // Retries a piece from where the last attempt stopped
+    private void fetchPiece(URI uri, Map<String, String> headers, FileChannel channel, long start, long end,
+                            Progress progress, ContentHasher hasher) throws IOException, InterruptedException {
+        // Moved on by copy() chunk by chunk, so it stays right when a read fails
+        long[] position = {start};
+        ContentHasher.Writer writer = hasher != null ? hasher.writer(start) : null;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                HttpResponse<InputStream> response = send(uri, headers, "bytes=" + position[0] + "-" + end);
+                if (response.statusCode() != 206) {
+                    response.body().close();
+                    throw new IOException("Range request for " + position[0] + "-" + end + " returned HTTP " + response.statusCode());
+                }
+                copy(response.body(), channel, position, end - position[0] + 1, progress, writer);
+                if (position[0] > end) {
+                    if (writer != null) {
+                        writer.close();
+                    }
+                    return;
+                }
+                throw new IOException("Connection closed at byte " + position[0] + " of piece ending at " + end);
+            } catch (IOException e) {
+                if (attempt >= MAX_ATTEMPTS || Thread.currentThread().isInterrupted()
+                        || (e instanceof HttpStatusException && ((HttpStatusException) e).isExpired())) {
+                    throw e;
+                }
+                Metrics.SEGMENT_RETRIES.increment();
+                if (e instanceof HttpStatusException && ((HttpStatusException) e).isThrottled()) {
+                    // Asking again at once only makes it worse
+                    Thread.sleep(THROTTLE_BACKOFF_MILLIS << (attempt - 1));
+                }
+            }
+        }
+    }
+
+    private HttpResponse<InputStream> send(URI uri, Map<String, String> headers, String range)
+            throws IOException, InterruptedException {
+        HttpRequest.Builder request = request(uri, headers).header("Range", range);
+        long sentAt = System.nanoTime();
+        HttpResponse<InputStream> response = client.send(request.build(), HttpResponse.BodyHandlers.ofInputStream());
+        Metrics.TTFB.recordSince(sentAt); // ofInputStream returns once the headers are in
+        if (response.statusCode() >= 400) {
+            response.body().close();
+            HttpStatusException e = new HttpStatusException(response.statusCode(),
+                "HTTP " + response.statusCode() + " for " + uri.getHost());
+            if (e.isThrottled()) {
+                onThrottled.run();
+            }
+            throw e;
+        }
+        return response;
+    }
+
+    // A GET with yt-dlp's headers for the stream
+    static HttpRequest.Builder request(URI uri, Map<String, String> headers) {
+        HttpRequest.Builder request = HttpRequest.newBuilder(uri).GET();
+        headers.forEach((name, value) -> {
+            // HttpClient manages these itself and rejects them
+            if (!name.equalsIgnoreCase("Host") && !name.equalsIgnoreCase("Connection")
+                    && !name.equalsIgnoreCase("Content-Length") && !name.equalsIgnoreCase("Range")) {
+                request.header(name, value);
+            }
+        });
+        return request;
+    }
+
+    // Writes at position[0] and moves it past every chunk once the chunk is
+    // written, counted and hashed; a chunk cut short by an error is none of those
+    private long copy(InputStream in, FileChannel channel, long[] position, long limit, Progress progress,
+                      ContentHasher.Writer writer) throws IOException, InterruptedException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+        long copied = 0;
+        try (in) {
+            while (copied < limit) {
+                int n = in.read(buffer, 0, (int) Math.min(buffer.length, limit - copied));
+                if (n < 0) {
+                    break;
+                }
+                wrapped.clear().limit(n);
+                long at = position[0];
+                while (wrapped.hasRemaining()) {
+                    at += channel.write(wrapped, at);
+                }
+                if (writer != null) {
+                    writer.update(buffer, 0, n);
+                }
+                position[0] = at;
+                copied += n;
+                progress.add(n);
+                if (share != null) {
+                    share.acquire(n);
+                }
+            }
+        }
+        return copied;
+    }
+
+    // Full length from "Content-Range: bytes 0-99/12345", or Content-Length
+    private static long contentLength(HttpResponse<?> response) {
+        String range = response.headers().firstValue("Content-Range").orElse(null);
+        if (range != null) {
+            int slash = range.lastIndexOf('/');
+            if (slash >= 0 && !range.endsWith("*")) {
+                return Long.parseLong(range.substring(slash + 1).trim());
+            }
+        }
+        return response.headers().firstValueAsLong("Content-Length").orElse(-1);
+    }
+
+    private static void awaitAll(List<Future<?>> workers) throws IOException, InterruptedException {
+        try {
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } finally {
+            for (Future<?> worker : workers) {
+                worker.cancel(true);
+            }
+        }
+    }
+
+    // Shared by all connections of one download; reports at most every 250 ms
+    private final class Progress {
+        private final long total;
+        private final ProgressListener listener;
+        private final AtomicLong downloaded = new AtomicLong();
+        private final AtomicLong lastReport = new AtomicLong(System.nanoTime());
+        private final ThroughputMeter meter = new ThroughputMeter(3);
+        private final ProgressEvent event = new ProgressEvent();
+
+        Progress(long total, long alreadyDone, ProgressListener listener) {
+            this.total = total;
+            this.listener = listener;
+            downloaded.set(alreadyDone);
+            report();
+        }
+
+        void add(long bytes) {
+            downloaded.addAndGet(bytes);
+            meter.record(bytes);
+            long last = lastReport.get();
+            long now = System.nanoTime();
+            if (now - last >= REPORT_INTERVAL_NANOS && lastReport.compareAndSet(last, now)) {
+                report();
+            }
+        }
+
+        synchronized void report() {
+            long done = downloaded.get();
+            double speed = meter.ratePerSecond();
+            event.reset();
+            event.setDownloadedBytes(done);
+            event.setTotalBytes(total, false);
+            event.setBytesPerSecond(speed);
+            event.setConnections(segments);
+            if (total > 0) {
+                event.setPercent(done * 100.0 / total);
+                event.setEtaSeconds(done >= total ? 0 : speed > 0 ? (long) ((total - done) / speed) : -1);
+            }
+            listener.onProgress(event);
+        }
+    }
+}
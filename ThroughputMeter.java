@@ -0,0 +1,55 @@
+import java.util.Arrays;
+
+// Sliding-window rate meter: amounts are summed into one-second buckets and
+// the rate is averaged over the last few whole seconds.
+public class ThroughputMeter {
+    private final long[] buckets;
+    private final long[] seconds;
+    private long total;
+
+    public ThroughputMeter() {
+        this(5);
+    }
+
+    public ThroughputMeter(int windowSeconds) {
+        if (windowSeconds < 1) {
+            throw new IllegalArgumentException("windowSeconds must be positive");
+        }
+        buckets = new long[windowSeconds + 1];
+        seconds = new long[windowSeconds + 1];
+        Arrays.fill(seconds, Long.MIN_VALUE);
+    }
+
+    public synchronized void record(long amount) {
+        long now = currentSecond();
+        int i = (int) Math.floorMod(now, (long) buckets.length);
+        if (seconds[i] != now) {
+            seconds[i] = now;
+            buckets[i] = 0;
+        }
+        buckets[i] += amount;
+        total += amount;
+    }
+
+    // Average per second over the window, not counting the second in progress
+    public synchronized double ratePerSecond() {
+        long now = currentSecond();
+        int window = buckets.length - 1;
+        long sum = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            long age = now - seconds[i];
+            if (age >= 1 && age <= window) {
+                sum += buckets[i];
+            }
+        }
+        return sum / (double) window;
+    }
+
+    public synchronized long total() {
+        return total;
+    }
+
+    private static long currentSecond() {
+        return System.nanoTime() / 1_000_000_000L;
+    }
+}
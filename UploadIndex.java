@@ -0,0 +1,420 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// What earlier syncs of a channel or playlist listed, so the next one can
+// stop as soon as it reaches uploads it has seen. Each list of the source
+// (a channel has one per tab) keeps its IDs in listing order plus a
+// watermark, the newest ID and upload date seen. Channel tabs list newest
+// first, so once a few known IDs follow each other in the order they were
+// stored, everything after them is known too and yt-dlp can be stopped.
+// Lists that put new entries last, like most playlists, are still listed in
+// full, but only entries missing from the index are queued. IDs a sync
+// queued stay pending until their download completes, and a later sync
+// queues them again unless they are still downloading. One JSON file
+// per source and output directory under downloader.stateDir/uploads,
+// rewritten atomically after each sync.
+public class UploadIndex {
+    static final String DIRECTORY = "uploads";
+    // Known IDs in stored order it takes to trust the rest of a list is known;
+    // more than one, so a single old video moved to the top doesn't end a sync
+    static final int CONFIRM_RUN = 3;
+
+    static final String NEWEST_FIRST = "newest-first";
+    static final String OLDEST_FIRST = "oldest-first";
+
+    private static final Map<Path, UploadIndex> OPEN = new ConcurrentHashMap<>();
+    private static final ScheduledExecutorService SAVER = Executors.newSingleThreadScheduledExecutor(
+        DownloadScheduler.daemonThreads("upload-index"));
+    // Downloads finishing close together share one rewrite
+    static final long SAVE_DELAY_MILLIS = 1000;
+
+    private final Path file;
+    private final String source;
+    private final Map<String, Listing> listings = new LinkedHashMap<>();
+    private final Object writing = new Object();
+    private long lastSync;
+    private boolean saveScheduled;
+
+    private UploadIndex(Path file, String source) throws IOException {
+        this.file = file;
+        this.source = source;
+        if (!Files.exists(file)) {
+            return;
+        }
+        try {
+            Map<String, Object> json = Json.parseObject(Files.readString(file, StandardCharsets.UTF_8));
+            lastSync = Json.getLong(json, "lastSync", 0);
+            Map<String, Object> lists = Json.getObject(json, "lists");
+            if (lists != null) {
+                for (Map.Entry<String, Object> entry : lists.entrySet()) {
+                    if (entry.getValue() instanceof Map) {
+                        @SuppressWarnings("unchecked")
+                        Map<String, Object> listing = (Map<String, Object>) entry.getValue();
+                        listings.put(entry.getKey(), Listing.fromJson(entry.getKey(), listing));
+                    }
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            // Written with an atomic move, so only a hand edit gets here; start over
+            System.err.println("Ignoring unreadable upload index " + file + ": " + e.getMessage());
+        }
+    }
+
+    // One shared instance per source and output directory, under downloader.stateDir
+    public static UploadIndex forSource(String source, String outputPath) throws IOException {
+        return forSource(JobStore.defaultFile(DIRECTORY), source, outputPath);
+    }
+
+    public static UploadIndex forSource(Path directory, String source, String outputPath) throws IOException {
+        String output = Path.of(outputPath).toAbsolutePath().normalize().toString();
+        Path file = directory.toAbsolutePath().normalize().resolve(shortHash(source + "\n" + output) + ".json");
+        try {
+            return OPEN.computeIfAbsent(file, f -> {
+                try {
+                    return new UploadIndex(f, source);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    // 0 before the first sync
+    public synchronized long getLastSync() {
+        return lastSync;
+    }
+
+    // Starts a pass over one list of the source, the source itself or one of its tabs
+    public synchronized Pass begin(String listUrl) {
+        return new Pass(listings.computeIfAbsent(listUrl, Listing::new));
+    }
+
+    public synchronized int size() {
+        int size = 0;
+        for (Listing listing : listings.values()) {
+            size += listing.ids.size();
+        }
+        return size;
+    }
+
+    // Writes what the passes so far recorded, as of a sync now
+    public void save() throws IOException {
+        synchronized (this) {
+            lastSync = System.currentTimeMillis();
+        }
+        write();
+    }
+
+    // One write at a time, so an older snapshot can't replace a newer one
+    private void write() throws IOException {
+        synchronized (writing) {
+            String text;
+            synchronized (this) {
+                Map<String, Object> lists = new LinkedHashMap<>();
+                for (Listing listing : listings.values()) {
+                    lists.put(listing.url, listing.toJson());
+                }
+                Map<String, Object> json = new LinkedHashMap<>();
+                json.put("source", source);
+                json.put("lastSync", lastSync);
+                json.put("lists", lists);
+                text = Json.write(json);
+            }
+            Files.createDirectories(file.getParent());
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.writeString(temp, text, StandardCharsets.UTF_8);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    private void saveSoon() {
+        synchronized (this) {
+            if (saveScheduled) {
+                return;
+            }
+            saveScheduled = true;
+        }
+        SAVER.schedule(() -> {
+            synchronized (this) {
+                saveScheduled = false;
+            }
+            try {
+                write();
+            } catch (IOException e) {
+                System.err.println("Could not save upload index " + file + ": " + e.getMessage());
+            }
+        }, SAVE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // Tabs of a YouTube channel list their uploads newest first; other sites
+    // are left to inferOrder()
+    static boolean looksNewestFirst(String listUrl) {
+        URI uri;
+        try {
+            uri = URI.create(listUrl);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        String host = uri.getHost() != null ? uri.getHost().toLowerCase(Locale.ROOT) : "";
+        String query = uri.getRawQuery();
+        String path = uri.getRawPath() != null ? uri.getRawPath() : "";
+        if (!(host.equals("youtube.com") || host.endsWith(".youtube.com")) || (query != null && query.contains("list="))) {
+            return false;
+        }
+        return path.startsWith("/@") || path.startsWith("/channel/") || path.startsWith("/c/") || path.startsWith("/user/");
+    }
+
+    private static String shortHash(String text) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(text.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest, 0, 8);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Every JVM has SHA-1", e);
+        }
+    }
+
+    // One list as of the last sync; guarded by the UploadIndex
+    private static final class Listing {
+        final String url;
+        List<String> ids = new ArrayList<>();
+        Map<String, Integer> positions = new HashMap<>();
+        Set<String> pending = new LinkedHashSet<>(); // queued, not downloaded yet
+        String order; // NEWEST_FIRST, OLDEST_FIRST or null until known
+        String newestId;
+        String newestDate; // yyyymmdd, when the extractor gives one
+
+        Listing(String url) {
+            this.url = url;
+            this.order = looksNewestFirst(url) ? NEWEST_FIRST : null;
+        }
+
+        void setIds(List<String> ids) {
+            this.ids = ids;
+            positions = new HashMap<>();
+            for (int i = 0; i < ids.size(); i++) {
+                positions.putIfAbsent(ids.get(i), i);
+            }
+        }
+
+        Map<String, Object> toJson() {
+            Map<String, Object> json = new LinkedHashMap<>();
+            if (order != null) {
+                json.put("order", order);
+            }
+            if (newestId != null) {
+                json.put("newestId", newestId);
+            }
+            if (newestDate != null) {
+                json.put("newestDate", newestDate);
+            }
+            json.put("ids", ids);
+            if (!pending.isEmpty()) {
+                json.put("pending", new ArrayList<>(pending));
+            }
+            return json;
+        }
+
+        static Listing fromJson(String url, Map<String, Object> json) {
+            Listing listing = new Listing(url);
+            String order = Json.getString(json, "order");
+            if (order != null) {
+                listing.order = order;
+            }
+            listing.newestId = Json.getString(json, "newestId");
+            listing.newestDate = Json.getString(json, "newestDate");
+            List<String> ids = new ArrayList<>();
+            List<Object> stored = Json.getArray(json, "ids");
+            if (stored != null) {
+                for (Object id : stored) {
+                    if (id instanceof String) {
+                        ids.add((String) id);
+                    }
+                }
+            }
+            listing.setIds(ids);
+            List<Object> pending = Json.getArray(json, "pending");
+            if (pending != null) {
+                for (Object id : pending) {
+                    if (id instanceof String) {
+                        listing.pending.add((String) id);
+                    }
+                }
+            }
+            return listing;
+        }
+    }
+
+    // One listing run of a list. Entries are recorded once they have been
+    // handled, so a sync cancelled halfway lists the rest again next time.
+    // It doesn't stop early before it has listed every pending entry.
+    public final class Pass {
+        private final Listing listing;
+        private final Set<String> unlistedPending;
+        private final List<String> listed = new ArrayList<>();
+        private String newestDate;
+        private String firstDate;
+        private String lastDate;
+        private int firstKnown = -1;
+        private int lastKnown = -1;
+        private boolean newBeforeKnown;
+        private boolean newAfterKnown;
+        private int run;
+        private int runPosition = -2;
+        private boolean reachedKnown;
+
+        private Pass(Listing listing) {
+            this.listing = listing;
+            this.unlistedPending = new HashSet<>(listing.pending);
+        }
+
+        // Listed before and downloaded since
+        public boolean isKnown(String id) {
+            synchronized (UploadIndex.this) {
+                return listing.positions.containsKey(id) && !listing.pending.contains(id);
+            }
+        }
+
+        // Queued by an earlier sync but not downloaded yet
+        public boolean isPending(String id) {
+            synchronized (UploadIndex.this) {
+                return listing.pending.contains(id);
+            }
+        }
+
+        // id's download was queued; it stays pending until downloaded(id)
+        public void queued(String id) {
+            synchronized (UploadIndex.this) {
+                listing.pending.add(id);
+            }
+        }
+
+        // id is on disk, or in the download archive
+        public void downloaded(String id) {
+            synchronized (UploadIndex.this) {
+                if (!listing.pending.remove(id)) {
+                    return;
+                }
+            }
+            saveSoon();
+        }
+
+        // Records a handled entry; true once the rest of the list can be
+        // taken as known. date is yt-dlp's upload_date, or null.
+        public boolean add(String id, String date) {
+            if (date != null) {
+                if (firstDate == null) {
+                    firstDate = date;
+                }
+                lastDate = date;
+                if (newestDate == null || date.compareTo(newestDate) > 0) {
+                    newestDate = date;
+                }
+            }
+            synchronized (UploadIndex.this) {
+                Integer position = listing.positions.get(id);
+                listed.add(id);
+                unlistedPending.remove(id);
+                if (position == null) {
+                    if (firstKnown < 0) {
+                        newBeforeKnown = true;
+                    } else {
+                        newAfterKnown = true;
+                    }
+                    run = 0;
+                    runPosition = -2;
+                    return false;
+                }
+                if (firstKnown < 0) {
+                    firstKnown = listed.size() - 1;
+                }
+                lastKnown = listed.size() - 1;
+                run = position == runPosition + 1 ? run + 1 : 1;
+                runPosition = position;
+                // A short list may end before a full run
+                int needed = Math.min(CONFIRM_RUN, listing.ids.size() - (position - run + 1));
+                if (NEWEST_FIRST.equals(listing.order) && run >= needed && unlistedPending.isEmpty()) {
+                    reachedKnown = true;
+                }
+                return reachedKnown;
+            }
+        }
+
+        // True if the pass stopped at known entries rather than the end of the list
+        public boolean reachedKnown() {
+            return reachedKnown;
+        }
+
+        // Merges the pass into the index: IDs it listed first, in its order,
+        // then the ones stored before that it did not get to. complete is false
+        // when the listing failed partway, which says nothing about order.
+        public void finish(boolean complete) {
+            synchronized (UploadIndex.this) {
+                if (complete && !reachedKnown && listing.order == null) {
+                    listing.order = inferOrder();
+                }
+                if (complete) {
+                    listing.pending.removeAll(unlistedPending); // gone from the list
+                }
+                Set<String> merged = new LinkedHashSet<>(listed);
+                merged.addAll(listing.ids);
+                listing.setIds(new ArrayList<>(merged));
+                if (!listing.ids.isEmpty()) {
+                    listing.newestId = OLDEST_FIRST.equals(listing.order)
+                        ? listing.ids.get(listing.ids.size() - 1) : listing.ids.get(0);
+                }
+                if (newestDate != null && (listing.newestDate == null || newestDate.compareTo(listing.newestDate) > 0)) {
+                    listing.newestDate = newestDate;
+                }
+            }
+        }
+
+        // From upload dates where the extractor gives them, else from where
+        // new entries turned up around the known ones
+        private String inferOrder() {
+            if (firstDate != null && !firstDate.equals(lastDate)) {
+                return firstDate.compareTo(lastDate) > 0 ? NEWEST_FIRST : OLDEST_FIRST;
+            }
+            if (firstKnown < 0) {
+                return null;
+            }
+            if (newBeforeKnown && !newAfterKnown) {
+                return NEWEST_FIRST;
+            }
+            if (newAfterKnown && !newBeforeKnown && lastKnown < listed.size() - 1) {
+                return OLDEST_FIRST;
+            }
+            return null;
+        }
+    }
+}
@@ -2,77 +2,188 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
 
 public class YoutubeDownloader {
-    private Process process;
-    private boolean isPaused = false;
-    private String lastUrl;
-    private String lastOutputPath;
+    private final DownloadScheduler scheduler;
+    private DownloadJob lastJob;
 
-    public void downloadVideo(String url, String outputPath) {
-        lastUrl = url;
-        lastOutputPath = outputPath;
-        isPaused = false;
+    public YoutubeDownloader() {
+        this(new DownloadScheduler(DownloadScheduler.defaultWorkers()));
+    }
 
-        try {
-           
+    public YoutubeDownloader(DownloadScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
 
-            ProcessBuilder pb = new ProcessBuilder(
-                "yt-dlp",
-                "--newline", // better output formatting
-               
-                "--continue", // allows resuming
-                "-o", outputPath + "/%(title)s.%(ext)s",
-                "--no-warnings",
-                url
-            );
+    public DownloadScheduler getScheduler() {
+        return scheduler;
+    }
 
-            process = pb.start();
+    // Queues the download and returns immediately
+    public DownloadJob submit(String url, String outputPath) {
+        return submit(url, outputPath, new DownloadOptions());
+    }
 
-            // Create threads to read output and error streams
-            Thread outputThread = new Thread(new StreamGobbler(process.getInputStream(), "OUTPUT"));
-            Thread errorThread = new Thread(new StreamGobbler(process.getErrorStream(), "ERROR"));
+    public DownloadJob submit(String url, String outputPath, DownloadOptions options) {
+        DownloadJob job = scheduler.submit(url, outputPath, options);
+        lastJob = job;
+        return job;
+    }
 
-            outputThread.start();
-            errorThread.start();
+    // Blocks until the download finishes or is paused
+    public void downloadVideo(String url, String outputPath) {
+        awaitJob(submit(url, outputPath));
+    }
 
-            int exitCode = process.waitFor();
-            outputThread.join();
-            errorThread.join();
+    // Queues every entry of a playlist or channel while it is being listed
+    public PlaylistExpander.Expansion submitPlaylist(String url, String outputPath, DownloadOptions options,
+                                                     Consumer<DownloadJob> onJob) {
+        return new PlaylistExpander(scheduler).expand(url, outputPath, options, onJob);
+    }
 
-            if (!isPaused) {
-                System.out.println("Download finished with exit code: " + exitCode);
-            }
+    // Queues only the entries earlier syncs of the playlist or channel into outputPath did not list
+    public PlaylistExpander.Expansion syncPlaylist(String url, String outputPath, DownloadOptions options,
+                                                   Consumer<DownloadJob> onJob) throws IOException {
+        return new PlaylistExpander(scheduler).sync(url, outputPath, options, onJob);
+    }
 
-        } catch (IOException | InterruptedException e) {
-            e.printStackTrace();
+    // Blocks until all entries are listed and their downloads have finished
+    public void downloadPlaylist(String url, String outputPath) {
+        List<DownloadJob> jobs = Collections.synchronizedList(new ArrayList<>());
+        PlaylistExpander.Expansion expansion = submitPlaylist(url, outputPath, new DownloadOptions(), jobs::add);
+        try {
+            expansion.await();
+            List<DownloadJob> snapshot;
+            synchronized (jobs) {
+                snapshot = new ArrayList<>(jobs);
+            }
+            int failed = 0;
+            for (DownloadJob job : snapshot) {
+                if (job.await() != DownloadJob.State.COMPLETED) {
+                    failed++;
+                }
+            }
+            System.out.println("Playlist finished: " + expansion.getQueued() + " downloaded, "
+                + expansion.getSkipped() + " already archived, " + failed + " not completed"
+                + (expansion.getError() != null ? " (" + expansion.getError() + ")" : ""));
+        } catch (InterruptedException e) {
+            expansion.cancel();
+            Thread.currentThread().interrupt();
         }
     }
 
     public void pauseDownload() {
-        if (process != null && process.isAlive()) {
-            process.destroy();
-            isPaused = true;
+        if (lastJob != null && lastJob.pause()) {
             System.out.println("Download paused. You can resume it manually.");
         }
     }
 
     public void resumeDownload() {
-        if (isPaused && lastUrl != null && lastOutputPath != null) {
+        if (lastJob != null && lastJob.resume()) {
             System.out.println("Resuming download...");
-            downloadVideo(lastUrl, lastOutputPath);
+            awaitJob(lastJob);
         } else {
             System.out.println("No paused download to resume.");
         }
     }
 
-    private static class StreamGobbler implements Runnable {
+    private void awaitJob(DownloadJob job) {
+        try {
+            if (job.await() != DownloadJob.State.PAUSED) {
+                System.out.println("Download finished with exit code: " + job.getExitCode());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Overridable so tools and benchmarks can point at another build or a stub
+    static final String YT_DLP = System.getProperty("downloader.ytDlp", "yt-dlp");
+
+    // The Java-side archive checks URLs with a known ID itself; yt-dlp
+    // only needs the file for URLs it has to expand, like playlists
+    static boolean needsArchiveFile(String url, DownloadOptions options) {
+        return options.getArchiveFile() != null && DownloadArchive.keyForUrl(url) == null;
+    }
+
+    // The archive copy a yt-dlp run for url reads, or null if it needs none
+    static DownloadArchive.Snapshot archiveFor(String url, DownloadOptions options) throws IOException {
+        return needsArchiveFile(url, options) ? DownloadArchive.forFile(options.getArchiveFile()).snapshot() : null;
+    }
+
+    // Everything but the URLs; archive is a DownloadArchive snapshot or null,
+    // rateLimit is in bytes per second, 0 for none.
+    // Without a probe to choose from, a quality policy goes to yt-dlp as a selector
+    static List<String> baseCommand(String outputPath, DownloadOptions options, Path archive, long rateLimit) {
+        String format = options.getFormat() == null && options.getQuality() != null
+            ? options.getQuality().toSelector() : options.getFormat();
+        return baseCommand(outputPath, options, archive, rateLimit, "%(title)s.%(ext)s", format);
+    }
+
+    static List<String> baseCommand(String outputPath, DownloadOptions options, Path archive, long rateLimit,
+                                    String outputTemplate, String format) {
+        List<String> command = new ArrayList<>(List.of(
+            YT_DLP,
+            "--newline", // better output formatting
+            "--continue" // allows resuming
+        ));
+        if (archive != null) {
+            command.add("--download-archive");
+            command.add(archive.toString());
+        }
+        if (options.getEngine() == DownloadOptions.Engine.ARIA2C) {
+            int n = options.getSegments();
+            command.add("--external-downloader");
+            command.add("aria2c");
+            command.add("--external-downloader-args");
+            command.add("-c -j " + n + " -s " + n + " -x " + n
+                + (rateLimit > 0 ? " --max-overall-download-limit=" + rateLimit : ""));
+        } else if (rateLimit > 0) {
+            command.add("--limit-rate");
+            command.add(Long.toString(rateLimit));
+        }
+        Path staging = DiskAdmission.shared().stagingDir(outputPath);
+        if (staging != null) {
+            // Partial files go to scratch and yt-dlp moves each finished one
+            // over; it ignores -P when -o is an absolute path
+            command.add("-P");
+            command.add("home:" + outputPath);
+            command.add("-P");
+            command.add("temp:" + staging);
+            command.add("-o");
+            command.add(outputTemplate);
+        } else {
+            command.add("-o");
+            command.add(outputPath + "/" + outputTemplate);
+        }
+        if (format != null) {
+            command.add("--format");
+            command.add(format);
+        }
+        command.add("--no-warnings");
+        return command;
+    }
+
+    static class StreamGobbler implements Runnable {
         private final InputStream inputStream;
         private final String streamType;
+        private final ProgressParser parser;
+        private final Consumer<String> log;
 
         StreamGobbler(InputStream inputStream, String streamType) {
+            this(inputStream, streamType, null, line -> System.out.println(streamType + "> " + line));
+        }
+
+        StreamGobbler(InputStream inputStream, String streamType, ProgressParser parser, Consumer<String> log) {
             this.inputStream = inputStream;
             this.streamType = streamType;
+            this.parser = parser;
+            this.log = log;
         }
 
         @Override
@@ -80,7 +191,10 @@ public class YoutubeDownloader {
             try (BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream))) {
                 String line;
                 while ((line = reader.readLine()) != null) {
-                    System.out.println(streamType + "> " + line);
+                    log.accept(line);
+                    if (parser != null) {
+                        parser.parse(line);
+                    }
                 }
             } catch (IOException e) {
                 System.err.println("Error in " + streamType + " stream: " + e.getMessage());
@@ -97,6 +211,9 @@ public class YoutubeDownloader {
             "downloads"
         );
 
+        // Queue many downloads at once; they run on the scheduler's workers
+        // List<DownloadJob> jobs = downloader.getScheduler().submitAll(urls, "downloads");
+
         // Simulate pause/resume
         // You can control this manually or trigger from UI later
         // downloader.pauseDownload();
@@ -0,0 +1,385 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+// Runs several queued jobs through one yt-dlp process, reading the URLs from
+// stdin (--batch-file -), so interpreter start-up and extractor setup are
+// paid once per batch instead of once per URL. yt-dlp works through the list
+// in order; --print markers and a tagged --progress-template let the merged
+// output be split back into per-job progress, completion and errors.
+public class YtDlpBatch {
+    private static final String MARKER = "[batch] ";
+    private static final String START = "start ";
+    private static final String DONE = "done ";
+    private static final String PROGRESS = "progress ";
+    // Finished items are deduplicated and archived here rather than on the
+    // thread reading yt-dlp's output: hashing a whole file or an fsync there
+    // stalls the pipe, and with it the batch
+    private static final ExecutorService FINISHER = Executors.newCachedThreadPool(
+        DownloadScheduler.daemonThreads("batch-finish"));
+
+    private final List<DownloadJob> jobs;
+    private final String outputPath;
+    private final DownloadOptions options;
+    private final List<Item> items = new ArrayList<>();
+    private final Map<String, Item> byUrl = new HashMap<>();
+    private int current; // index of the item yt-dlp is working on
+    private final ProcessSupervisor supervisor;
+    private final HostConcurrency.Host host;
+
+    // All jobs must share the same groupKey
+    YtDlpBatch(List<DownloadJob> jobs) {
+        this.jobs = jobs;
+        this.outputPath = jobs.get(0).getOutputPath();
+        this.options = jobs.get(0).getOptions();
+        this.supervisor = new ProcessSupervisor(options.getStallTimeout());
+        this.host = HostConcurrency.shared().host(jobs.get(0).getUrl());
+    }
+
+    // Jobs needing post-processing run alone, so their ffmpeg work moves to
+    // PostProcessor instead of running inside the shared process
+    static boolean canBatch(DownloadJob job) {
+        DownloadOptions o = job.getOptions();
+        return o.getEngine() != DownloadOptions.Engine.NATIVE && YtDlpEngine.splitFormat(o.getFormat()) == null
+            && o.getContainer() == null && !o.isExtractAudio();
+    }
+
+    // Jobs with equal keys hit the same host and produce the same command
+    // line apart from the URL
+    static String groupKey(DownloadJob job) {
+        DownloadOptions o = job.getOptions();
+        // A quality policy becomes the format selector when there is no format
+        return HostConcurrency.hostName(job.getUrl()) + "\n" + job.getOutputPath() + "\n" + o.getFormat() + "\n"
+            + o.getQuality() + "\n" + o.getEngine() + "\n" + o.getSegments() + "\n" + o.getArchiveFile();
+    }
+
+    static List<String> buildCommand(String outputPath, DownloadOptions options, Path archive, long rateLimit) {
+        List<String> command = YoutubeDownloader.baseCommand(outputPath, options, archive, rateLimit);
+        command.add("--ignore-errors");
+        // --print implies --quiet and --simulate; keep the normal output and the download
+        command.add("--no-quiet");
+        command.add("--no-simulate");
+        command.add("--print");
+        command.add("pre_process:" + MARKER + START + "%(extractor_key)s %(id)s %(original_url)s");
+        command.add("--print");
+        command.add("after_move:" + MARKER + DONE + "%(original_url)s");
+        command.add("--progress-template");
+        command.add("download:" + MARKER + PROGRESS + "%(info.original_url)s [download] %(progress._percent_str)s"
+            + " of %(progress._total_bytes_str)s at %(progress._speed_str)s ETA %(progress._eta_str)s");
+        command.add("--batch-file");
+        command.add("-");
+        return command;
+    }
+
+    // self is the worker's future, shared by every job of the batch
+    void run(Future<?> self) {
+        boolean useArchive = false;
+        for (DownloadJob job : jobs) {
+            int attempt = job.begin(self);
+            if (attempt == 0) {
+                continue; // paused or cancelled while it waited for the batch
+            }
+            if (byUrl.containsKey(job.getUrl())) {
+                job.requeue(attempt); // same URL twice can't be told apart in one run
+                continue;
+            }
+            try {
+                if (ArchivingEngine.skipIfArchived(job.getUrl(), options, job, job::log)
+                        || DeduplicatingEngine.skipIfIndexed(job.getUrl(), outputPath, options, job, job::log)) {
+                    job.finish(attempt, 0, DownloadJob.State.COMPLETED, null);
+                    continue;
+                }
+            } catch (IOException e) {
+                job.finish(attempt, -1, DownloadJob.State.FAILED, e.getMessage());
+                continue;
+            }
+            useArchive |= YoutubeDownloader.needsArchiveFile(job.getUrl(), options);
+            Item item = new Item(items.size(), job, attempt, outputPath, supervisor.watch(host.watch(job)));
+            items.add(item);
+            byUrl.put(job.getUrl(), item);
+        }
+        if (items.isEmpty()) {
+            return;
+        }
+
+        // The batch runs one download at a time, so it holds a single share.
+        // Sizes aren't known before yt-dlp runs; a full volume is still refused.
+        try {
+            DiskAdmission.shared().checkFree(DiskAdmission.shared().writeDirectory(outputPath));
+        } catch (IOException e) {
+            finishAll(-1, e.getMessage());
+            return;
+        }
+        try (BandwidthLimiter.Share share = BandwidthLimiter.shared().open(options);
+             DownloadArchive.Snapshot archive = useArchive
+                 ? DownloadArchive.forFile(options.getArchiveFile()).snapshot() : null) {
+            run(archive != null ? archive.getFile() : null, share.getRate());
+        } catch (IOException e) {
+            finishAll(-1, e.getMessage());
+        }
+    }
+
+    private void run(Path archive, long rateLimit) {
+        Process process;
+        try {
+            process = Metrics.start(new ProcessBuilder(buildCommand(outputPath, host.adapt(options), archive, rateLimit))
+                .redirectErrorStream(true)); // one stream keeps errors in order with the markers
+        } catch (IOException e) {
+            finishAll(-1, e.getMessage());
+            return;
+        }
+        supervisor.attach(process);
+        // Only process-level timings: items share the one process
+        RunMetrics metrics = new RunMetrics(event -> { });
+        Thread outputThread = new Thread(() -> readOutput(process, metrics), "batch-output");
+        outputThread.start();
+
+        try {
+            try (OutputStream stdin = process.getOutputStream()) {
+                StringBuilder urls = new StringBuilder();
+                for (Item item : items) {
+                    urls.append(item.job.getUrl()).append('\n');
+                }
+                stdin.write(urls.toString().getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                System.err.println("Could not pass URLs to yt-dlp: " + e.getMessage());
+            }
+            while (!process.waitFor(1, TimeUnit.SECONDS)) {
+                supervisor.poll();
+                if (supervisor.isStalled()) {
+                    onStall();
+                    supervisor.destroy().join();
+                    outputThread.join();
+                    requeueUnfinished();
+                    return;
+                }
+            }
+            int exitCode = process.exitValue();
+            supervisor.reapOrphans();
+            outputThread.join();
+            finishAll(exitCode, null);
+        } catch (InterruptedException e) {
+            // One of the jobs was paused or cancelled; the rest go back in
+            // the queue and continue from their partial files
+            supervisor.destroy();
+            requeueUnfinished();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void readOutput(Process process, RunMetrics metrics) {
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                metrics.onLine(line);
+                host.onLine(line);
+                onLine(line);
+            }
+        } catch (IOException e) {
+            System.err.println("Error in batch output stream: " + e.getMessage());
+        }
+    }
+
+    private synchronized void onLine(String line) {
+        if (line.startsWith(MARKER)) {
+            String rest = line.substring(MARKER.length());
+            if (rest.startsWith(START)) {
+                onStart(rest.substring(START.length()));
+                return;
+            }
+            if (rest.startsWith(DONE)) {
+                onDone(rest.substring(DONE.length()));
+                return;
+            }
+            if (rest.startsWith(PROGRESS)) {
+                int space = rest.indexOf(' ', PROGRESS.length());
+                if (space > 0) {
+                    Item item = byUrl.get(rest.substring(PROGRESS.length(), space));
+                    if (item == null) {
+                        item = currentItem();
+                    }
+                    if (item != null) {
+                        route(item, rest.substring(space + 1));
+                        return;
+                    }
+                }
+            }
+        }
+        Item item = currentItem();
+        if (item == null) {
+            System.out.println(line);
+            return;
+        }
+        if (line.startsWith("ERROR:")) {
+            item.error = line.substring("ERROR:".length()).trim();
+        } else if (line.endsWith("has already been recorded in the archive")) {
+            item.archived = true;
+        }
+        route(item, line);
+    }
+
+    // "<extractor> <id> <url>"
+    private void onStart(String text) {
+        String[] parts = text.split(" ", 3);
+        Item item = parts.length == 3 ? byUrl.get(parts[2]) : null;
+        if (item == null) {
+            return; // a playlist entry; it stays with the current item
+        }
+        advanceTo(item.index);
+        item.keys.add(DownloadArchive.key(parts[0], parts[1]));
+        item.job.onMediaId(parts[0], parts[1]);
+    }
+
+    private void onDone(String url) {
+        Item item = byUrl.get(url);
+        if (item == null) {
+            item = currentItem(); // an entry of a playlist URL
+            if (item != null) {
+                item.done = true;
+            }
+            return;
+        }
+        advanceTo(item.index);
+        item.done = true;
+        complete(item, 0, null);
+        current = item.index + 1;
+    }
+
+    private void route(Item item, String line) {
+        item.job.log(line);
+        item.parser.parse(line);
+    }
+
+    private Item currentItem() {
+        return current < items.size() ? items.get(current) : null;
+    }
+
+    // yt-dlp has moved on to the item at index, so everything before it is over
+    private void advanceTo(int index) {
+        while (current < index) {
+            complete(items.get(current++), 1, null);
+        }
+    }
+
+    private void complete(Item item, int failureCode, String failure) {
+        if (item.finished) {
+            return;
+        }
+        item.finished = true;
+        DownloadJob job = item.job;
+        if (item.done && item.error == null) {
+            List<String> keys = new ArrayList<>(item.keys);
+            String destination = options.isDeduplicate() ? job.getDestination() : null;
+            String mediaKey = item.mediaKey(options);
+            FINISHER.execute(() -> finish(job, item.attempt, keys, destination, mediaKey));
+        } else if (item.archived && item.error == null) {
+            job.onPhase(ProgressParser.Phase.ALREADY_DOWNLOADED);
+            job.finish(item.attempt, 0, DownloadJob.State.COMPLETED, null);
+        } else {
+            String message = item.error != null ? item.error : failure != null ? failure : "yt-dlp did not finish this URL";
+            job.finish(item.attempt, failureCode, DownloadJob.State.FAILED, message);
+        }
+    }
+
+    // Runs on FINISHER; the job only completes once its file is indexed and its IDs are on disk
+    private void finish(DownloadJob job, int attempt, List<String> keys, String destination, String mediaKey) {
+        try {
+            if (destination != null) {
+                DeduplicatingEngine.deduplicate(ContentIndex.forRoot(Paths.get(outputPath)),
+                    Paths.get(destination), mediaKey, Map.of(), job::log);
+            }
+            ArchivingEngine.record(job.getUrl(), options, keys);
+            job.finish(attempt, 0, DownloadJob.State.COMPLETED, null);
+        } catch (IOException e) {
+            job.finish(attempt, -1, DownloadJob.State.FAILED, e.getMessage());
+        } catch (InterruptedException e) {
+            job.finish(attempt, -1, DownloadJob.State.FAILED, "Interrupted");
+        }
+    }
+
+    // The stalled item fails once it used up its restarts; the whole batch
+    // is requeued either way, since the process is about to be killed
+    private synchronized void onStall() {
+        Metrics.STALLS.increment();
+        Item item = currentItem();
+        if (item == null) {
+            return;
+        }
+        String message = "No progress for " + supervisor.getIdleSeconds() + " s";
+        if (item.job.recordStall() > options.getStallRestarts()) {
+            complete(item, -1, message + ", gave up after " + options.getStallRestarts() + " restarts");
+        } else {
+            item.job.log("[supervisor] " + message + ", restarting");
+        }
+    }
+
+    private synchronized void finishAll(int exitCode, String failure) {
+        for (Item item : items) {
+            complete(item, exitCode != 0 ? exitCode : 1, failure);
+        }
+    }
+
+    private synchronized void requeueUnfinished() {
+        for (Item item : items) {
+            if (!item.finished) {
+                item.finished = true;
+                item.job.requeue(item.attempt);
+            }
+        }
+    }
+
+    private static class Item {
+        final int index;
+        final DownloadJob job;
+        final int attempt;
+        final ProgressParser parser;
+        final List<String> keys = new ArrayList<>();
+        boolean done;
+        boolean archived;
+        boolean finished;
+        String error;
+
+        // listener wraps job
+        Item(int index, DownloadJob job, int attempt, String outputPath, ProgressListener listener) {
+            this.index = index;
+            this.job = job;
+            this.attempt = attempt;
+            this.parser = new ProgressParser(new ForwardingListener(listener) {
+                @Override
+                public void onMediaId(String extractor, String id) {
+                    keys.add(DownloadArchive.key(extractor, id));
+                    super.onMediaId(extractor, id);
+                }
+
+                // Downloads into scratch are reported where yt-dlp moves them
+                @Override
+                public void onDestination(String path) {
+                    super.onDestination(DiskAdmission.shared().unstaged(path, outputPath));
+                }
+            });
+        }
+
+        // Only a single video says which media the file holds; the key can be seen twice
+        String mediaKey(DownloadOptions options) {
+            for (String key : keys) {
+                if (!key.equals(keys.get(0))) {
+                    return null;
+                }
+            }
+            return keys.isEmpty() ? null : ContentIndex.mediaKey(keys.get(0), options);
+        }
+    }
+}
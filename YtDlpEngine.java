@@ -0,0 +1,268 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Runs yt-dlp (optionally with aria2c) as a child process and parses its output.
+// The info JSON of each run is kept in the probe cache, so a resumed or
+// restarted download is handed back to yt-dlp with --load-info-json and
+// skips extraction. A "video+audio" selector is downloaded as two separate
+// files which PostProcessor merges, so the merge doesn't hold the download.
+// A playlist or channel URL gets one merge or conversion per entry.
+public class YtDlpEngine implements DownloadEngine {
+    private static final int RESTART = Integer.MIN_VALUE;
+    private static final int STALLED = Integer.MIN_VALUE + 1;
+    // Restarts cost a process start, so a run gets some time before its rate is revisited
+    private static final long MIN_RUN_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final ProbeCache cache;
+
+    public YtDlpEngine() {
+        this(ProbeCache.shared());
+    }
+
+    // A null cache extracts every time
+    public YtDlpEngine(ProbeCache cache) {
+        this.cache = cache;
+    }
+
+    @Override
+    public int download(String url, String outputPath, DownloadOptions options,
+                        ProgressListener listener, Consumer<String> log) throws IOException, InterruptedException {
+        List<String> formats = splitFormat(options.getFormat());
+        // Files by the entry yt-dlp announced before them; a restart announces
+        // the same entries again, so they land in the same lists
+        Map<String, List<Path>> entries = new LinkedHashMap<>();
+        String[] entry = {""};
+        DiskAdmission disks = DiskAdmission.shared();
+        ProgressListener collecting = new ForwardingListener(listener) {
+            @Override
+            public void onMediaId(String extractor, String id) {
+                synchronized (entries) {
+                    entry[0] = DownloadArchive.key(extractor, id);
+                }
+                super.onMediaId(extractor, id);
+            }
+
+            @Override
+            public void onDestination(String path) {
+                // Downloads into scratch are reported where yt-dlp moves them
+                String moved = disks.unstaged(path, outputPath);
+                synchronized (entries) {
+                    Path file = Paths.get(moved);
+                    for (List<Path> files : entries.values()) {
+                        files.remove(file);
+                    }
+                    entries.computeIfAbsent(entry[0], k -> new ArrayList<>()).add(file);
+                }
+                super.onDestination(moved);
+            }
+        };
+        // The size is only known up front when the extraction is cached;
+        // without it this still refuses a volume that is already full
+        ResolvedMedia probed = cache != null ? cache.peek(url, outputPath, options.getFormat()) : null;
+        long expected = probed != null ? probed.getExpectedSize() : -1;
+        Path output = Paths.get(outputPath);
+        int exitCode;
+        int stalls = 0;
+        try (DiskAdmission.Reservation space = disks.getScratch() != null || formats != null
+                ? disks.reserve(expected, 0, disks.writeDirectory(outputPath), output)
+                : disks.reserve(expected, 0, output);
+             BandwidthLimiter.Share share = BandwidthLimiter.shared().open(options);
+             DownloadArchive.Snapshot archive = YoutubeDownloader.archiveFor(url, options)) {
+            ProgressListener watched = space.watch(collecting);
+            while (true) {
+                exitCode = run(url, outputPath, options, formats, archive, share, watched, log);
+                if (exitCode == RESTART) {
+                    log.accept("[bandwidth] Share is now " + rateText(share.getRate()) + ", restarting yt-dlp");
+                } else if (exitCode == STALLED) {
+                    if (++stalls > options.getStallRestarts()) {
+                        throw new IOException("No progress for " + options.getStallTimeout() + " s, gave up after "
+                            + options.getStallRestarts() + " restarts");
+                    }
+                    log.accept("[supervisor] Restarting yt-dlp (" + stalls + " of " + options.getStallRestarts() + ")");
+                } else {
+                    break;
+                }
+            }
+        }
+        if (exitCode != 0) {
+            return exitCode;
+        }
+
+        List<PostProcessor.Task> tasks = new ArrayList<>();
+        synchronized (entries) {
+            for (List<Path> files : entries.values()) {
+                PostProcessor.Task task = plan(files, formats != null, options, log);
+                if (task != null) {
+                    tasks.add(task);
+                }
+            }
+        }
+        if (tasks.isEmpty() || tasks.size() == 1 && listener.deferPostProcessing(tasks.get(0))) {
+            return 0;
+        }
+        // A job defers one task, so the entries of a playlist are done here
+        for (PostProcessor.Task task : tasks) {
+            int code = task.run(listener);
+            if (code != 0) {
+                return code;
+            }
+        }
+        return 0;
+    }
+
+    // What one entry still needs: its parts merged, or else whatever yt-dlp
+    // reported last for it, which is the finished file, converted
+    private static PostProcessor.Task plan(List<Path> files, boolean split, DownloadOptions options,
+                                           Consumer<String> log) {
+        if (files.isEmpty()) {
+            return null;
+        }
+        if (split && files.size() > 1) {
+            return PostProcessor.plan(files, mergeTarget(files), options, log);
+        }
+        return PostProcessor.plan(files.subList(files.size() - 1, files.size()), null, options, log);
+    }
+
+    // The parts of a plain "a+b" selector, or null for anything yt-dlp
+    // should resolve itself, such as fallbacks with "/"
+    static List<String> splitFormat(String format) {
+        if (format == null) {
+            return null;
+        }
+        List<String> parts = new ArrayList<>();
+        int depth = 0;
+        int start = 0;
+        for (int i = 0; i < format.length(); i++) {
+            char c = format.charAt(i);
+            if (c == '[') {
+                depth++;
+            } else if (c == ']') {
+                depth--;
+            } else if (depth == 0 && (c == '/' || c == ',' || c == '(' || c == ')')) {
+                return null;
+            } else if (depth == 0 && c == '+') {
+                parts.add(format.substring(start, i).trim());
+                start = i + 1;
+            }
+        }
+        parts.add(format.substring(start).trim());
+        return parts.size() > 1 && !parts.contains("") ? parts : null;
+    }
+
+    // "Title.f137.mp4" and "Title.f140.m4a" merge into "Title.mp4"
+    private static Path mergeTarget(List<Path> files) {
+        String name = files.get(0).getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) {
+            name = name.substring(0, dot);
+        }
+        int f = name.lastIndexOf(".f");
+        if (f > 0) {
+            name = name.substring(0, f);
+        }
+        return files.get(0).resolveSibling(name + "." + PostProcessor.mergeExtension(files));
+    }
+
+    // One yt-dlp run at the share's current rate. yt-dlp can't change its
+    // rate while running, so it is restarted (continuing its partial file)
+    // when the share moves far enough, e.g. when other jobs start or finish.
+    private int run(String url, String outputPath, DownloadOptions options, List<String> formats,
+                    DownloadArchive.Snapshot archive, BandwidthLimiter.Share share, ProgressListener listener,
+                    Consumer<String> log) throws IOException, InterruptedException {
+        long rate = share.getRate();
+        HostConcurrency.Host host = HostConcurrency.shared().host(url);
+        DownloadOptions spawned = host.adapt(options);
+        Path archiveFile = archive != null ? archive.getFile() : null;
+        List<String> command = formats == null
+            ? YoutubeDownloader.baseCommand(outputPath, spawned, archiveFile, rate)
+            // The same names yt-dlp gives the parts it merges itself
+            : YoutubeDownloader.baseCommand(outputPath, spawned, archiveFile, rate,
+                "%(title)s.f%(format_id)s.%(ext)s", String.join(",", formats));
+        Path info = cache != null ? cache.infoFile(url, outputPath, options.getFormat()) : null;
+        Path infoOut = null;
+        if (info != null) {
+            log.accept("[cache] Using saved extraction for " + url);
+            command.add("--load-info-json");
+            command.add(info.toString());
+        } else {
+            // A split run prints one info per part, which doesn't describe the whole download
+            if (cache != null && formats == null) {
+                // Printed after format selection, before the download starts
+                infoOut = cache.newTempFile();
+                command.add("--print-to-file");
+                command.add("video:%()j");
+                command.add(infoOut.toString());
+            }
+            command.add("--"); // a URL starting with "-" must not read as an option
+            command.add(url);
+        }
+
+        ProcessBuilder pb = new ProcessBuilder(command);
+        Process process = Metrics.start(pb);
+        long startedAt = System.nanoTime();
+        ProcessSupervisor supervisor = new ProcessSupervisor(options.getStallTimeout());
+        supervisor.attach(process);
+        RunMetrics metrics = new RunMetrics(supervisor.watch(host.watch(listener)));
+        Thread outputThread = new Thread(new YoutubeDownloader.StreamGobbler(
+            process.getInputStream(), "OUTPUT", new ProgressParser(metrics), metrics.log(host.log(log))));
+        Thread errorThread = new Thread(new YoutubeDownloader.StreamGobbler(
+            process.getErrorStream(), "ERROR", new ProgressParser(metrics),
+            metrics.log(host.log(line -> log.accept("ERROR: " + line)))));
+        outputThread.start();
+        errorThread.start();
+
+        try {
+            while (!process.waitFor(1, TimeUnit.SECONDS)) {
+                supervisor.poll();
+                if (supervisor.isStalled()) {
+                    log.accept("[supervisor] No progress for " + supervisor.getIdleSeconds() + " s, stopping yt-dlp"
+                        + " and its " + supervisor.getDescendantCount() + " child processes");
+                    stop(supervisor, outputThread, errorThread);
+                    Metrics.STALLS.increment();
+                    return STALLED;
+                }
+                if (System.nanoTime() - startedAt >= MIN_RUN_NANOS && share.differsFrom(rate)) {
+                    stop(supervisor, outputThread, errorThread);
+                    Metrics.RESTARTS.increment();
+                    return RESTART;
+                }
+            }
+            int exitCode = process.exitValue();
+            supervisor.reapOrphans();
+            outputThread.join();
+            errorThread.join();
+            metrics.finished();
+            if (exitCode != 0 && info != null) {
+                cache.invalidate(url, outputPath, options.getFormat()); // may have been refused
+            }
+            return exitCode;
+        } catch (InterruptedException e) {
+            supervisor.destroy(); // paused or cancelled
+            throw e;
+        } finally {
+            // Kept even if the run was paused or failed after extraction
+            if (infoOut != null) {
+                cache.store(url, outputPath, options.getFormat(), infoOut);
+            }
+        }
+    }
+
+    // The next run continues the partial file, so nothing may still be writing it
+    private static void stop(ProcessSupervisor supervisor, Thread outputThread, Thread errorThread)
+            throws InterruptedException {
+        supervisor.destroy().join(); // bounded by the kill grace period
+        outputThread.join();
+        errorThread.join();
+    }
+
+    private static String rateText(long rate) {
+        return rate == 0 ? "unlimited" : ProgressEvent.formatBytes(rate) + "/s";
+    }
+}
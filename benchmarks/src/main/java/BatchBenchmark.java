@@ -0,0 +1,101 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Compares one yt-dlp process per URL with batched runs, using a stub script
+// that sleeps for a fixed start-up time and a short time per URL.
+//
+//   java -cp benchmarks/target/benchmarks.jar BatchBenchmark [urls] [startupMillis] [perUrlMillis] [workers] [batchSize]
+//
+// It sits in the default package with the application classes instead of
+// in downylink.bench, since it drives the scheduler directly, not through JMH.
+public class BatchBenchmark {
+    public static void main(String[] args) throws Exception {
+        int urls = args.length > 0 ? Integer.parseInt(args[0]) : 48;
+        long startupMillis = args.length > 1 ? Long.parseLong(args[1]) : 400;
+        long perUrlMillis = args.length > 2 ? Long.parseLong(args[2]) : 40;
+        int workers = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+        int batchSize = args.length > 4 ? Integer.parseInt(args[4]) : 12;
+
+        Path dir = Files.createTempDirectory("batch-bench");
+        Path calls = dir.resolve("calls.log");
+        Path script = writeFakeYtDlp(dir, calls, startupMillis, perUrlMillis);
+        // Must be set before YoutubeDownloader is loaded
+        System.setProperty("downloader.ytDlp", script.toString());
+
+        List<String> urlList = new ArrayList<>();
+        for (int i = 0; i < urls; i++) {
+            urlList.add("https://www.youtube.com/watch?v=" + String.format("bench%06d", i));
+        }
+
+        System.out.printf("%d URLs, %d workers, %d ms start-up, %d ms per URL%n",
+            urls, workers, startupMillis, perUrlMillis);
+        run("per-URL", urlList, dir, calls, workers, 1);
+        run("batched x" + batchSize, urlList, dir, calls, workers, batchSize);
+    }
+
+    private static void run(String name, List<String> urls, Path dir, Path calls,
+                            int workers, int batchSize) throws Exception {
+        Files.deleteIfExists(calls);
+        DownloadScheduler scheduler = new DownloadScheduler(workers);
+        scheduler.setBatching(batchSize, 20);
+
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        long start = System.nanoTime();
+        int completed = 0;
+        try {
+            List<DownloadJob> jobs = scheduler.submitAll(urls, dir.resolve("out").toString());
+            for (DownloadJob job : jobs) {
+                if (job.await() == DownloadJob.State.COMPLETED) {
+                    completed++;
+                }
+            }
+        } finally {
+            System.setOut(out);
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        scheduler.shutdown();
+
+        long processes = Files.exists(calls) ? Files.readAllLines(calls).size() : 0;
+        System.out.printf("%-12s %6d ms  %4d/%d completed  %4d processes  %.1f URLs/s%n",
+            name, millis, completed, urls.size(), processes, urls.size() * 1000.0 / millis);
+    }
+
+    // Prints what yt-dlp would for our flags: plain output per URL, plus the
+    // markers and tagged progress lines when the URLs come from --batch-file
+    private static Path writeFakeYtDlp(Path dir, Path calls, long startupMillis, long perUrlMillis) throws IOException {
+        String step = String.format("%.3f", perUrlMillis / 4000.0);
+        String script = String.join("\n",
+            "#!/bin/sh",
+            "echo \"$*\" >> '" + calls + "'",
+            "sleep " + String.format("%.3f", startupMillis / 1000.0),
+            "batch=; prev=; last=",
+            "for a in \"$@\"; do [ \"$prev\" = --batch-file ] && batch=1; prev=$a; last=$a; done",
+            "if [ -n \"$batch\" ]; then urls=$(cat); else urls=$last; fi",
+            "for u in $urls; do",
+            "  id=${u##*=}",
+            "  echo \"[youtube] $id: Downloading webpage\"",
+            "  [ -n \"$batch\" ] && echo \"[batch] start Youtube $id $u\"",
+            "  echo \"[download] Destination: out/$id.mp4\"",
+            "  for p in 25.0 50.0 75.0 100.0; do",
+            "    line=\"[download]  $p% of 1.00MiB at 10.00MiB/s ETA 00:00\"",
+            "    if [ -n \"$batch\" ]; then echo \"[batch] progress $u $line\"; else echo \"$line\"; fi",
+            "    sleep " + step,
+            "  done",
+            "  [ -n \"$batch\" ] && echo \"[batch] done $u\"",
+            "done",
+            "exit 0",
+            "");
+        Path file = dir.resolve("yt-dlp");
+        Files.writeString(file, script);
+        Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rwxr-xr-x"));
+        return file;
+    }
+}
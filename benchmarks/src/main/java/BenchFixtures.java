@@ -0,0 +1,184 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntUnaryOperator;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Entry points for the JMH classes in downylink.bench. The application
+// classes live in the default package, which a named package can't import,
+// so each benchmark fetches its fixture here by reflection during setup and
+// only calls JDK interfaces while it is measured.
+public final class BenchFixtures {
+    private static final Pattern PERCENT = Pattern.compile("(\\d+\\.\\d)%");
+
+    private BenchFixtures() {
+    }
+
+    // yt-dlp's output for a two-format download with merge, one entry per line
+    public static List<String> recordedOutput() throws IOException {
+        try (InputStream in = BenchFixtures.class.getResourceAsStream("/yt-dlp-output.txt")) {
+            if (in == null) {
+                throw new IOException("yt-dlp-output.txt is missing from the classpath");
+            }
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8).lines().toList();
+        }
+    }
+
+    public static Predicate<String> progressParser() {
+        ProgressParser parser = new ProgressParser(new ProgressListener() {
+            private double percent;
+
+            @Override
+            public void onProgress(ProgressEvent event) {
+                percent = event.getPercent();
+            }
+        });
+        return parser::parse;
+    }
+
+    // What the GUI's parseProgress did before ProgressParser: compile the
+    // pattern again for every line
+    public static Predicate<String> patternPerLine() {
+        return line -> {
+            Matcher matcher = Pattern.compile("(\\d+\\.\\d)%").matcher(line);
+            return matcher.find() && Float.parseFloat(matcher.group(1)) >= 0;
+        };
+    }
+
+    // The same regex compiled once, to separate compile cost from matching
+    public static Predicate<String> precompiledPattern() {
+        return line -> {
+            Matcher matcher = PERCENT.matcher(line);
+            return matcher.find() && Float.parseFloat(matcher.group(1)) >= 0;
+        };
+    }
+
+    public static LogFixture logSink(int maxLines, Path spillFile) {
+        return new LogFixture(maxLines, spillFile);
+    }
+
+    // Archive with size entries; urls(size) are all recorded in it
+    public static Predicate<String> archiveLookup(Path file, int size) throws IOException, InterruptedException {
+        DownloadArchive archive = DownloadArchive.forFile(file);
+        for (String url : urls(size)) {
+            archive.addKey(DownloadArchive.keyForUrl(url));
+        }
+        archive.sync();
+        return archive::containsUrl;
+    }
+
+    public static Function<String, String> archiveKey() {
+        return DownloadArchive::keyForUrl;
+    }
+
+    public static List<String> urls(int count) {
+        List<String> urls = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            urls.add("https://www.youtube.com/watch?v=" + String.format("b%010d", i));
+        }
+        return urls;
+    }
+
+    // Jobs whose URLs are all in the archive, so they finish without
+    // starting a process: what is left is queueing, dispatch and bookkeeping
+    public static JobsFixture archivedJobs(int workers, int batchSize, Path dir, int count)
+            throws IOException, InterruptedException {
+        Path archiveFile = dir.resolve("archive.txt");
+        archiveLookup(archiveFile, count);
+        return new JobsFixture(workers, batchSize, dir, urls(count), new DownloadOptions().archiveFile(archiveFile));
+    }
+
+    // Jobs run through the yt-dlp engine against a script replaying
+    // recordedOutput(), sleeping lineDelay seconds after each line. Must be
+    // called before anything has loaded YoutubeDownloader.
+    public static JobsFixture fakeYtDlpJobs(int workers, Path dir, int count, String lineDelay) throws IOException {
+        Path recorded = dir.resolve("recorded.txt");
+        Files.write(recorded, recordedOutput(), StandardCharsets.UTF_8);
+        Path script = dir.resolve("yt-dlp");
+        Files.writeString(script, String.join("\n",
+            "#!/bin/sh",
+            "while IFS= read -r line; do",
+            "  printf '%s\\n' \"$line\"",
+            "  [ '" + lineDelay + "' = 0 ] || sleep " + lineDelay,
+            "done < '" + recorded + "'",
+            ""));
+        Files.setPosixFilePermissions(script, PosixFilePermissions.fromString("rwxr-xr-x"));
+        System.setProperty("downloader.ytDlp", script.toString());
+        System.setProperty("downloader.cacheDir", dir.resolve("cache").toString());
+        return new JobsFixture(workers, 1, dir, urls(count), new DownloadOptions());
+    }
+
+    public static final class LogFixture implements Consumer<String>, AutoCloseable {
+        private final LogSink sink;
+        private long shown;
+
+        private LogFixture(int maxLines, Path spillFile) {
+            // Batches are taken on the flusher thread, standing in for the EDT
+            sink = new LogSink(maxLines, spillFile, 50, Runnable::run, (lines, replace) -> shown += lines.length());
+        }
+
+        @Override
+        public void accept(String line) {
+            sink.append(line);
+        }
+
+        @Override
+        public void close() throws IOException {
+            sink.close();
+        }
+    }
+
+    // apply(n) runs the first n URLs to completion and returns how many completed
+    public static final class JobsFixture implements IntUnaryOperator, AutoCloseable {
+        private final DownloadScheduler scheduler;
+        private final List<String> urls;
+        private final String outputPath;
+        private final DownloadOptions options;
+        private final PrintStream out = System.out;
+
+        private JobsFixture(int workers, int batchSize, Path dir, List<String> urls, DownloadOptions options) {
+            this.scheduler = new DownloadScheduler(workers);
+            if (batchSize > 1) {
+                scheduler.setBatching(batchSize, 1);
+            }
+            this.urls = urls;
+            this.outputPath = dir.resolve("out").toString();
+            this.options = options;
+            // Every job logs its lines to stdout, which would swamp JMH's output
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        }
+
+        @Override
+        public int applyAsInt(int count) {
+            int completed = 0;
+            try {
+                for (DownloadJob job : scheduler.submitAll(urls.subList(0, count), outputPath, options)) {
+                    if (job.await() == DownloadJob.State.COMPLETED) {
+                        completed++;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            scheduler.removeFinished();
+            return completed;
+        }
+
+        @Override
+        public void close() {
+            scheduler.shutdownNow();
+            System.setOut(out);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package downylink.bench;
+
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Download archive checks as done before every job: URL to key, then lookup
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ArchiveBenchmark {
+    @Param({"1000", "100000"})
+    public int size;
+
+    private Predicate<String> containsUrl;
+    private Function<String, String> keyForUrl;
+    private String[] recorded;
+    private int next;
+
+    @Setup
+    public void setUp() throws Exception {
+        containsUrl = Fixtures.create("archiveLookup",
+            Files.createTempDirectory("archive-bench").resolve("archive.txt"), size);
+        keyForUrl = Fixtures.create("archiveKey");
+        List<String> urls = Fixtures.create("urls", Integer.highestOneBit(Math.min(size, 1024)));
+        recorded = urls.toArray(new String[0]);
+    }
+
+    @Benchmark
+    public boolean hit() {
+        return containsUrl.test(recorded[next++ & (recorded.length - 1)]);
+    }
+
+    @Benchmark
+    public boolean miss() {
+        return containsUrl.test("https://www.youtube.com/watch?v=zzzzzzzzzzz");
+    }
+
+    @Benchmark
+    public String keyForUrl() {
+        return keyForUrl.apply("https://www.youtube.com/watch?v=dQw4w9WgXcQ&t=42s");
+    }
+}
@@ -0,0 +1,54 @@
+package downylink.bench;
+
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntUnaryOperator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Whole jobs through the yt-dlp engine: process start, output parsing,
+// progress bookkeeping and completion, against a script replaying recorded
+// yt-dlp output. lineDelay is the pause after each line, in seconds.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EndToEndBenchmark {
+    @Param({"0", "0.005"})
+    public String lineDelay;
+
+    @Param({"8"})
+    public int jobCount;
+
+    @Param({"4"})
+    public int workers;
+
+    private IntUnaryOperator jobs;
+
+    @Setup
+    public void setUp() throws Exception {
+        jobs = Fixtures.create("fakeYtDlpJobs", workers, Files.createTempDirectory("e2e-bench"), jobCount, lineDelay);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        ((AutoCloseable) jobs).close();
+    }
+
+    @Benchmark
+    public int jobs() {
+        return jobs.applyAsInt(jobCount);
+    }
+}
@@ -0,0 +1,26 @@
+package downylink.bench;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+// Looks up factories on BenchFixtures, which is in the default package with
+// the application classes it wraps
+final class Fixtures {
+    private Fixtures() {
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> T create(String factory, Object... args) throws Exception {
+        Class<?> fixtures = Class.forName("BenchFixtures");
+        for (Method method : fixtures.getMethods()) {
+            if (method.getName().equals(factory) && method.getParameterCount() == args.length) {
+                try {
+                    return (T) method.invoke(null, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+        }
+        throw new NoSuchMethodException("BenchFixtures." + factory);
+    }
+}
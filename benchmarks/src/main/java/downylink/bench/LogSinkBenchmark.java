@@ -0,0 +1,60 @@
+package downylink.bench;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Lines appended per second, from one job and from several at once, with
+// and without spilling evicted lines to disk
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LogSinkBenchmark {
+    @Param({"1000", "100000"})
+    public int maxLines;
+
+    @Param({"false", "true"})
+    public boolean spill;
+
+    private Consumer<String> sink;
+    private Path dir;
+
+    @Setup
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("logsink-bench");
+        sink = Fixtures.create("logSink", maxLines, spill ? dir.resolve("spill.log") : null);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        ((AutoCloseable) sink).close();
+    }
+
+    @Benchmark
+    public void append() {
+        sink.accept("[download]  42.0% of   80.96MiB at   11.20MiB/s ETA 00:04");
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void appendFromFourThreads() {
+        sink.accept("[download]  42.0% of   80.96MiB at   11.20MiB/s ETA 00:04");
+    }
+}
@@ -0,0 +1,64 @@
+package downylink.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// One operation parses a whole recorded yt-dlp run (85 lines), with
+// ProgressParser and with the per-line Pattern.compile it replaced
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProgressParserBenchmark {
+    private String[] lines;
+    private Predicate<String> parser;
+    private Predicate<String> patternPerLine;
+    private Predicate<String> precompiledPattern;
+
+    @Setup
+    public void setUp() throws Exception {
+        List<String> output = Fixtures.create("recordedOutput");
+        lines = output.toArray(new String[0]);
+        parser = Fixtures.create("progressParser");
+        patternPerLine = Fixtures.create("patternPerLine");
+        precompiledPattern = Fixtures.create("precompiledPattern");
+    }
+
+    @Benchmark
+    public int progressParser() {
+        return parseAll(parser);
+    }
+
+    @Benchmark
+    public int patternPerLine() {
+        return parseAll(patternPerLine);
+    }
+
+    @Benchmark
+    public int precompiledPattern() {
+        return parseAll(precompiledPattern);
+    }
+
+    private int parseAll(Predicate<String> parse) {
+        int matched = 0;
+        for (String line : lines) {
+            if (parse.test(line)) {
+                matched++;
+            }
+        }
+        return matched;
+    }
+}
@@ -0,0 +1,54 @@
+package downylink.bench;
+
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntUnaryOperator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Time per job from submit to completion when the job itself costs nothing:
+// every URL is in the archive, so no process is started
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SchedulerBenchmark {
+    private static final int JOBS = 1000;
+
+    @Param({"1", "4"})
+    public int workers;
+
+    @Param({"1", "16"})
+    public int batchSize;
+
+    private IntUnaryOperator jobs;
+
+    @Setup
+    public void setUp() throws Exception {
+        jobs = Fixtures.create("archivedJobs", workers, batchSize, Files.createTempDirectory("scheduler-bench"), JOBS);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        ((AutoCloseable) jobs).close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(JOBS)
+    public int submitAndDispatch() {
+        return jobs.applyAsInt(JOBS);
+    }
+}
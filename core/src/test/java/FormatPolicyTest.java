@@ -0,0 +1,150 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class FormatPolicyTest {
+    @Test
+    void takesTheSmallestStreamsAtTheHighestAllowedHeight() {
+        Map<String, Object> info = info(
+            video("137", "mp4", "avc1.640028", 1080, 4000, 50_000_000),
+            video("248", "webm", "vp09.00.40.08", 1080, 2500, 30_000_000),
+            video("136", "mp4", "avc1.4d401f", 720, 2000, 20_000_000),
+            audio("140", "m4a", 129, 3_000_000),
+            audio("251", "webm", 135, 2_900_000));
+
+        FormatPolicy.Selection selection = new FormatPolicy().maxHeight(1080).choose(info);
+
+        assertEquals("248+251", selection.getSelector());
+        assertEquals(32_900_000, selection.getEstimatedBytes());
+        assertEquals("136+251", new FormatPolicy().maxHeight(720).choose(info).getSelector());
+    }
+
+    @Test
+    void preferredCodecFallsBackToWhatTheSiteHas() {
+        Map<String, Object> info = info(
+            video("137", "mp4", "avc1.640028", 1080, 4000, 50_000_000),
+            video("248", "webm", "vp09.00.40.08", 1080, 2500, 30_000_000),
+            audio("140", "m4a", 129, 3_000_000));
+
+        assertEquals("137+140", new FormatPolicy().codecs("h264").choose(info).getSelector());
+        // No AV1 on offer: preferred, not required
+        assertEquals("248+140", new FormatPolicy().codecs("av1").choose(info).getSelector());
+    }
+
+    @Test
+    void unknownBitratePassesTheLimit() {
+        Map<String, Object> info = info(
+            video("137", "mp4", "avc1.640028", 1080, 4000, -1),
+            video("399", "mp4", "av01.0.08M.08", 1080, 0, -1),
+            video("136", "mp4", "avc1.4d401f", 720, 1500, -1),
+            audio("140", "m4a", 129, -1));
+
+        FormatPolicy.Selection selection = new FormatPolicy().maxBitrate(2000).choose(info);
+
+        // 137 is over the limit with its audio; 399 doesn't say, so it stays in
+        assertEquals("399+140", selection.getSelector());
+        assertEquals(-1, selection.getEstimatedBytes());
+    }
+
+    @Test
+    void audioFloorFallsBackToTheBestStream() {
+        Map<String, Object> info = info(
+            audio("139", "m4a", 48, 1_000_000),
+            audio("140", "m4a", 129, 3_000_000),
+            audio("251", "webm", 135, 2_900_000));
+
+        assertEquals("140", new FormatPolicy().audioOnly(true).minAudioBitrate(128).ext("mp4").choose(info).getSelector());
+        assertEquals("251", new FormatPolicy().audioOnly(true).minAudioBitrate(256).choose(info).getSelector());
+        assertEquals("139", new FormatPolicy().audioOnly(true).choose(info).getSelector());
+    }
+
+    @Test
+    void progressiveStreamNeedsNoAudio() {
+        Map<String, Object> info = info(
+            progressive("22", "mp4", 720, 10_000_000),
+            video("136", "mp4", "avc1.4d401f", 720, 2000, 20_000_000),
+            audio("140", "m4a", 129, 3_000_000));
+
+        FormatPolicy.Selection selection = new FormatPolicy().choose(info);
+
+        assertEquals("22", selection.getSelector());
+        assertEquals(List.of("mp4"), selection.getExtensions());
+    }
+
+    @Test
+    void mp4PolicyTakesM4aAudio() {
+        Map<String, Object> info = info(
+            video("248", "webm", "vp09.00.40.08", 1080, 2500, 30_000_000),
+            video("137", "mp4", "avc1.640028", 1080, 4000, 50_000_000),
+            audio("251", "webm", 135, 2_900_000),
+            audio("140", "m4a", 129, 3_000_000));
+
+        FormatPolicy policy = new FormatPolicy().ext("MP4");
+
+        assertEquals("137+140", policy.choose(info).getSelector());
+        assertTrue(policy.toSelector().startsWith("bv[ext=mp4]+ba[ext=m4a]/"), policy.toSelector());
+        assertNull(new FormatPolicy().ext("webm").maxHeight(480).choose(info));
+    }
+
+    @Test
+    void fromJsonRejectsWhatToJsonNeverWrites() {
+        FormatPolicy policy = new FormatPolicy().maxHeight(720).codecs("vp9", "h264").ext("webm");
+        assertEquals(policy.toString(), FormatPolicy.fromJson(policy.toJson()).toString());
+
+        assertThrows(IllegalArgumentException.class, () -> FormatPolicy.fromJson(Map.of("ext", "mkv")));
+        assertThrows(IllegalArgumentException.class, () -> FormatPolicy.fromJson(Map.of("maxHeight", 1L << 32)));
+        assertThrows(IllegalArgumentException.class, () -> FormatPolicy.fromJson(Map.of("codecs", List.of("mpeg2"))));
+    }
+
+    @SafeVarargs
+    private static Map<String, Object> info(Map<String, Object>... formats) {
+        Map<String, Object> info = new LinkedHashMap<>();
+        info.put("duration", 100.0);
+        info.put("formats", new ArrayList<Object>(List.of(formats)));
+        return info;
+    }
+
+    private static Map<String, Object> video(String id, String ext, String vcodec, int height, double tbr, long size) {
+        Map<String, Object> format = format(id, ext, tbr, size);
+        format.put("vcodec", vcodec);
+        format.put("acodec", "none");
+        format.put("height", (long) height);
+        return format;
+    }
+
+    private static Map<String, Object> audio(String id, String ext, double abr, long size) {
+        Map<String, Object> format = format(id, ext, abr, size);
+        format.put("vcodec", "none");
+        format.put("acodec", ext.equals("m4a") ? "mp4a.40.2" : "opus");
+        return format;
+    }
+
+    // acodec left out, as yt-dlp often does for these
+    private static Map<String, Object> progressive(String id, String ext, int height, long size) {
+        Map<String, Object> format = format(id, ext, 0, size);
+        format.put("vcodec", "avc1.64001F");
+        format.put("height", (long) height);
+        return format;
+    }
+
+    private static Map<String, Object> format(String id, String ext, double tbr, long size) {
+        Map<String, Object> format = new LinkedHashMap<>();
+        format.put("format_id", id);
+        format.put("ext", ext);
+        format.put("url", "https://example.com/" + id);
+        if (tbr > 0) {
+            format.put("tbr", tbr);
+        }
+        if (size >= 0) {
+            format.put("filesize", size);
+        }
+        return format;
+    }
+}
@@ -0,0 +1,203 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FragmentDownloaderTest {
+    private static final int FRAGMENTS = 12;
+
+    @TempDir
+    Path dir;
+
+    private final List<byte[]> segments = new ArrayList<>();
+    private final ByteArrayOutputStream whole = new ByteArrayOutputStream();
+    private final HttpClient client = SegmentedDownloader.newClient();
+    private RangeServer server;
+
+    @BeforeEach
+    void start() throws Exception {
+        server = new RangeServer();
+        Random random = new Random(21);
+        StringBuilder playlist = new StringBuilder("#EXTM3U\n#EXT-X-TARGETDURATION:4\n#EXT-X-PLAYLIST-TYPE:VOD\n");
+        for (int i = 0; i < FRAGMENTS; i++) {
+            byte[] segment = new byte[50_000 + random.nextInt(250_000)];
+            random.nextBytes(segment);
+            segments.add(segment);
+            whole.write(segment);
+            server.serve("/hls/seg" + i + ".ts", segment);
+            playlist.append("#EXTINF:4.0,\nseg").append(i).append(".ts\n");
+        }
+        server.serve("/hls/index.m3u8", playlist.append("#EXT-X-ENDLIST\n").toString());
+    }
+
+    @AfterEach
+    void stop() {
+        server.close();
+    }
+
+    @Test
+    void writesHlsFragmentsInPlaybackOrder() throws Exception {
+        FragmentManifest manifest = manifest("/hls/index.m3u8");
+        Path target = dir.resolve("stream.ts");
+        ContentHasher hasher = new ContentHasher();
+        long written = downloader(4, 64L << 20).download(manifest, Map.of(), target, e -> { }, null, hasher);
+
+        assertEquals(FRAGMENTS, manifest.size());
+        assertEquals(whole.size(), written);
+        assertArrayEquals(whole.toByteArray(), Files.readAllBytes(target));
+        assertEquals(ContentHasher.hash(target, written), hasher.finish(target, written));
+    }
+
+    @Test
+    void retriesACutFragmentFromItsStart() throws Exception {
+        server.cutOnce("/hls/seg3.ts", null).cutOnce("/hls/seg7.ts", null);
+        Path target = dir.resolve("stream.ts");
+        long written = downloader(4, 64L << 20).download(manifest("/hls/index.m3u8"), Map.of(), target, e -> { }, null, null);
+
+        assertEquals(whole.size(), written);
+        assertArrayEquals(whole.toByteArray(), Files.readAllBytes(target));
+    }
+
+    // The fragment that never arrives blocks the window, so the other
+    // connection is left waiting for its turn; the download still has to fail
+    @Test
+    void failsWhenAFragmentNeverArrives() throws Exception {
+        StringBuilder playlist = new StringBuilder("#EXTM3U\n#EXT-X-TARGETDURATION:4\n#EXT-X-PLAYLIST-TYPE:VOD\n");
+        for (int i = 0; i < 200; i++) {
+            if (i != 1) {
+                server.serve("/long/seg" + i + ".ts", new byte[1000]);
+            }
+            playlist.append("#EXTINF:4.0,\nseg").append(i).append(".ts\n");
+        }
+        server.serve("/long/index.m3u8", playlist.append("#EXT-X-ENDLIST\n").toString());
+        FragmentManifest manifest = manifest("/long/index.m3u8");
+        FragmentDownloader downloader = new FragmentDownloader(client, 2, 4, 64L << 20, null);
+
+        assertTimeoutPreemptively(Duration.ofSeconds(30), () -> assertThrows(IOException.class,
+            () -> downloader.download(manifest, Map.of(), dir.resolve("stream.ts"), e -> { }, null, null)));
+    }
+
+    // With a 256 KiB budget over 4 connections, every fragment over 64 KiB
+    // goes straight into the file instead of the reorder buffer
+    @Test
+    void streamsFragmentsTooBigForTheBuffer() throws Exception {
+        server.cutOnce("/hls/seg5.ts", null);
+        Path target = dir.resolve("stream.ts");
+        ContentHasher hasher = new ContentHasher();
+        long written = downloader(4, 256 << 10).download(manifest("/hls/index.m3u8"), Map.of(), target, e -> { }, null, hasher);
+
+        assertEquals(whole.size(), written);
+        assertArrayEquals(whole.toByteArray(), Files.readAllBytes(target));
+        assertEquals(ContentHasher.hash(target, written), hasher.finish(target, written));
+    }
+
+    @Test
+    void streamsFragmentsOfUnknownSizeOncePastTheBudget() throws Exception {
+        server.withoutLength();
+        Path target = dir.resolve("stream.ts");
+        long written = downloader(4, 256 << 10).download(manifest("/hls/index.m3u8"), Map.of(), target, e -> { }, null, null);
+
+        assertEquals(whole.size(), written);
+        assertArrayEquals(whole.toByteArray(), Files.readAllBytes(target));
+    }
+
+    @Test
+    void resumesAfterTheFragmentsACheckpointHolds() throws Exception {
+        Path target = dir.resolve("stream.ts");
+        long done = 0;
+        try (var out = Files.newOutputStream(target)) {
+            for (int i = 0; i < 5; i++) {
+                out.write(segments.get(i));
+                done += segments.get(i).length;
+            }
+            out.write(new byte[1000]); // part of a sixth that was cut off
+        }
+        long held = done;
+        List<Integer> journaled = new ArrayList<>();
+        long written = downloader(3, 64L << 20).download(manifest("/hls/index.m3u8"), Map.of(), target, e -> { },
+            new FragmentDownloader.Checkpoint() {
+                @Override
+                public int beginFragments(String fingerprint) {
+                    return 5;
+                }
+
+                @Override
+                public long getFragmentBytes() {
+                    return held;
+                }
+
+                @Override
+                public void fragmentWritten(int index, long end) {
+                    journaled.add(index);
+                }
+            }, null);
+
+        assertEquals(whole.size(), written);
+        assertArrayEquals(whole.toByteArray(), Files.readAllBytes(target));
+        assertFalse(server.requests().contains("/hls/seg4.ts null"));
+        assertTrue(server.requests().contains("/hls/seg5.ts null"));
+        assertEquals(FRAGMENTS - 1, journaled.get(journaled.size() - 1));
+    }
+
+    @Test
+    void fetchesDashSegmentListByRange() throws Exception {
+        server.serve("/dash/video.mp4", whole.toByteArray());
+        StringBuilder list = new StringBuilder();
+        long offset = 0;
+        for (byte[] segment : segments) {
+            list.append("<SegmentURL mediaRange=\"").append(offset).append('-').append(offset + segment.length - 1)
+                .append("\"/>");
+            offset += segment.length;
+        }
+        server.serve("/dash/manifest.mpd", "<?xml version=\"1.0\"?><MPD type=\"static\"><Period>"
+            + "<AdaptationSet mimeType=\"video/mp4\"><Representation id=\"1\" bandwidth=\"1000\">"
+            + "<BaseURL>video.mp4</BaseURL><SegmentList>" + list + "</SegmentList>"
+            + "</Representation></AdaptationSet></Period></MPD>");
+        FragmentManifest manifest = manifest("/dash/manifest.mpd");
+        Path target = dir.resolve("video.mp4");
+        long written = downloader(4, 64L << 20).download(manifest, Map.of(), target, e -> { }, null, null);
+
+        assertFalse(manifest.isSingleFile());
+        assertArrayEquals(whole.toByteArray(), Files.readAllBytes(target));
+        assertEquals(whole.size(), written);
+        assertTrue(server.requests().contains("/dash/video.mp4 bytes=0-" + (segments.get(0).length - 1)));
+    }
+
+    // SegmentBase is one whole file, which NativeEngine fetches with SegmentedDownloader
+    @Test
+    void dashSegmentBaseIsASingleFile() throws Exception {
+        server.serve("/dash/base.mpd", "<?xml version=\"1.0\"?><MPD type=\"static\"><Period>"
+            + "<AdaptationSet mimeType=\"audio/mp4\"><Representation id=\"140\" bandwidth=\"128000\">"
+            + "<BaseURL>audio.m4a</BaseURL><SegmentBase indexRange=\"600-1000\"><Initialization range=\"0-599\"/>"
+            + "</SegmentBase></Representation></AdaptationSet></Period></MPD>");
+        FragmentManifest manifest = manifest("/dash/base.mpd");
+
+        assertTrue(manifest.isSingleFile());
+        assertEquals(server.uri("/dash/audio.m4a"), manifest.getFragments().get(0).getUri());
+    }
+
+    private FragmentManifest manifest(String path) throws Exception {
+        return FragmentManifest.fetch(client, server.uri(path), Map.of(), null);
+    }
+
+    private FragmentDownloader downloader(int connections, long bufferBytes) {
+        return new FragmentDownloader(client, connections, FragmentDownloader.DEFAULT_WINDOW, bufferBytes, null);
+    }
+}
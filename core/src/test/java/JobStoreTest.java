@@ -0,0 +1,86 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class JobStoreTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void replaySkipsADamagedLineAndATornTail() throws Exception {
+        Path file = dir.resolve("jobs.log");
+        Files.writeString(file, submission(1) + "\n"
+            + "{\"id\":1,\"sta\n" // damaged in the middle; what follows still counts
+            + submission(2) + "\n"
+            + "{\"id\":1,\"state\":\"PAUSED\"}\n"
+            + submission(3) + "\n"
+            + "{\"id\":3,\"state\":\"COMPLETED\"}\n"
+            + "{\"id\":2,\"state\":\"RUNN", StandardCharsets.UTF_8); // torn by a crash
+
+        try (JobStore store = JobStore.open(file)) {
+            List<JobStore.Entry> recovered = store.getRecovered();
+            assertEquals(2, recovered.size());
+            assertEquals(1, recovered.get(0).getId());
+            assertEquals(DownloadJob.State.PAUSED, recovered.get(0).getState());
+            assertEquals(2, recovered.get(1).getId());
+            assertEquals(DownloadJob.State.QUEUED, recovered.get(1).getState());
+            assertEquals("https://example.com/2", recovered.get(1).getUrl());
+        }
+
+        // Rewritten with one readable line per live job
+        List<Map<String, Object>> lines = read(file);
+        assertEquals(2, lines.size());
+        assertEquals(1L, Json.getLong(lines.get(0), "id", -1));
+        assertEquals("PAUSED", Json.getString(lines.get(0), "state"));
+        assertEquals(2L, Json.getLong(lines.get(1), "id", -1));
+        assertEquals("https://example.com/2", Json.getString(lines.get(1), "url"));
+    }
+
+    @Test
+    void recordsAppendUntilTheLogIsWorthCompacting() throws Exception {
+        Path file = dir.resolve("jobs.log");
+        Files.writeString(file, submission(7) + "\n", StandardCharsets.UTF_8);
+
+        try (JobStore store = JobStore.open(file)) {
+            store.record(JobEvent.state(7, DownloadJob.State.RUNNING));
+            store.awaitDurable();
+            assertEquals(2, read(file).size());
+
+            for (int i = 0; i < 1100; i++) {
+                store.record(JobEvent.state(7, i % 2 == 0 ? DownloadJob.State.PAUSED : DownloadJob.State.QUEUED));
+            }
+            store.awaitDurable();
+        }
+
+        List<Map<String, Object>> lines = read(file);
+        assertTrue(lines.size() < 1100, lines.size() + " lines");
+        Map<String, Object> last = lines.get(lines.size() - 1);
+        assertEquals(7L, Json.getLong(last, "id", -1));
+        assertEquals("QUEUED", Json.getString(last, "state"));
+        try (JobStore store = JobStore.open(file)) {
+            assertEquals(1, store.getRecovered().size());
+            assertEquals(DownloadJob.State.QUEUED, store.getRecovered().get(0).getState());
+        }
+    }
+
+    private static String submission(long id) {
+        return "{\"id\":" + id + ",\"url\":\"https://example.com/" + id + "\",\"output\":\"downloads\",\"at\":1,"
+            + "\"options\":{},\"state\":\"QUEUED\"}";
+    }
+
+    private static List<Map<String, Object>> read(Path file) throws Exception {
+        List<Map<String, Object>> records = new ArrayList<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            records.add(Json.parseObject(line));
+        }
+        return records;
+    }
+}
@@ -0,0 +1,114 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Local HTTP server for the download tests: serves byte arrays with Range
+// support and can cut chosen responses off halfway, the way a flaky CDN does
+final class RangeServer implements AutoCloseable {
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final Map<String, byte[]> files = new ConcurrentHashMap<>();
+    private final Set<String> cutOnce = ConcurrentHashMap.newKeySet();
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<>());
+    private volatile boolean ranges = true;
+    private volatile boolean lengths = true;
+
+    RangeServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    RangeServer serve(String path, byte[] body) {
+        files.put(path, body);
+        return this;
+    }
+
+    RangeServer serve(String path, String body) {
+        return serve(path, body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Answers without Range support, with 200 and the whole body
+    RangeServer withoutRanges() {
+        ranges = false;
+        return this;
+    }
+
+    // Answers chunked, without a Content-Length
+    RangeServer withoutLength() {
+        lengths = false;
+        return this;
+    }
+
+    // The first answer for path with this Range header ("bytes=100-199", or
+    // null for none) stops halfway and drops the connection
+    RangeServer cutOnce(String path, String range) {
+        cutOnce.add(path + " " + range);
+        return this;
+    }
+
+    URI uri(String path) {
+        return URI.create("http://127.0.0.1:" + server.getAddress().getPort() + path);
+    }
+
+    // "<path> <range>" for every request so far
+    List<String> requests() {
+        synchronized (requests) {
+            return new ArrayList<>(requests);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        requests.add(path + " " + range);
+        byte[] body = files.get(path);
+        if (body == null) {
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+            return;
+        }
+        int start = 0;
+        int end = body.length - 1;
+        int status = 200;
+        if (ranges && range != null && range.startsWith("bytes=")) {
+            String[] bounds = range.substring("bytes=".length()).split("-", -1);
+            start = Integer.parseInt(bounds[0]);
+            if (!bounds[1].isEmpty()) {
+                end = Math.min(end, Integer.parseInt(bounds[1]));
+            }
+            status = 206;
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + body.length);
+        }
+        int length = end - start + 1;
+        exchange.sendResponseHeaders(status, lengths ? length : 0);
+        boolean cut = cutOnce.remove(path + " " + range);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(body, start, cut ? length / 2 : length);
+            out.flush();
+        } finally {
+            // Short of the announced length this drops the connection
+            exchange.close();
+        }
+    }
+}
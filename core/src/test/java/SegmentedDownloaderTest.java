@@ -0,0 +1,101 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SegmentedDownloaderTest {
+    private static final int SIZE = 1_000_000;
+    private static final long SEGMENT = 100_000;
+
+    @TempDir
+    Path dir;
+
+    private final byte[] body = new byte[SIZE];
+    private RangeServer server;
+
+    @BeforeEach
+    void start() throws Exception {
+        new Random(4).nextBytes(body);
+        server = new RangeServer().serve("/media", body);
+    }
+
+    @AfterEach
+    void stop() {
+        server.close();
+    }
+
+    @Test
+    void fetchesAllPiecesInParallel() throws Exception {
+        Path target = dir.resolve("media.bin");
+        AtomicLong reported = new AtomicLong();
+        long written = downloader().download(server.uri("/media"), Map.of(), target, e -> reported.set(e.getDownloadedBytes()));
+
+        assertEquals(SIZE, written);
+        assertEquals(SIZE, reported.get());
+        assertArrayEquals(body, Files.readAllBytes(target));
+        assertTrue(server.requests().contains("/media bytes=500000-599999"));
+    }
+
+    @Test
+    void retryResumesWhereACutConnectionStopped() throws Exception {
+        server.cutOnce("/media", "bytes=0-99999").cutOnce("/media", "bytes=300000-399999");
+        Path target = dir.resolve("media.bin");
+        AtomicLong reported = new AtomicLong();
+        ContentHasher hasher = new ContentHasher();
+        long written = downloader().download(server.uri("/media"), Map.of(), target,
+            e -> reported.set(e.getDownloadedBytes()), null, hasher);
+
+        assertEquals(SIZE, written);
+        assertEquals(SIZE, reported.get());
+        assertArrayEquals(body, Files.readAllBytes(target));
+        // Half of each cut piece arrived, so only the other half is asked for again
+        assertTrue(server.requests().contains("/media bytes=50000-99999"), server.requests().toString());
+        assertTrue(server.requests().contains("/media bytes=350000-399999"), server.requests().toString());
+        assertEquals(ContentHasher.hash(target, SIZE), hasher.finish(target, SIZE));
+    }
+
+    @Test
+    void journalsOnlyPiecesThatArrived() throws Exception {
+        server.cutOnce("/media", "bytes=200000-299999");
+        Path target = dir.resolve("media.bin");
+        ByteRanges journaled = new ByteRanges();
+        downloader().download(server.uri("/media"), Map.of(), target, e -> { }, new SegmentedDownloader.Checkpoint() {
+            @Override
+            public ByteRanges begin(long length, String etag, String lastModified) {
+                return new ByteRanges();
+            }
+
+            @Override
+            public void pieceDone(long start, long end) {
+                journaled.add(start, end);
+            }
+        });
+
+        assertEquals(SIZE, journaled.coveredBytes());
+        assertArrayEquals(body, Files.readAllBytes(target));
+    }
+
+    @Test
+    void serverWithoutRangesGetsOnePlainGet() throws Exception {
+        server.withoutRanges();
+        Path target = dir.resolve("media.bin");
+        long written = downloader().download(server.uri("/media"), Map.of(), target, e -> { });
+
+        assertEquals(SIZE, written);
+        assertArrayEquals(body, Files.readAllBytes(target));
+        assertEquals(1, server.requests().size());
+    }
+
+    private static SegmentedDownloader downloader() {
+        return new SegmentedDownloader(SegmentedDownloader.newClient(), 4, SEGMENT, null);
+    }
+}